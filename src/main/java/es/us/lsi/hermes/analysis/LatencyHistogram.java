@@ -0,0 +1,173 @@
+package es.us.lsi.hermes.analysis;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histograma de latencias con un amplio rango dinámico, en el que pueden
+ * registrar valores muchos hilos a la vez sin bloquearse.
+ *
+ * Los valores se agrupan en intervalos log-lineales: los menores de 128 tienen
+ * un intervalo propio y, a partir de ahí, cada potencia de 2 se divide en 64
+ * intervalos iguales. Así el error relativo de cualquier percentil es menor del
+ * 1,6%, sea el valor de unos pocos milisegundos o de varias horas, con un
+ * número fijo de contadores.
+ *
+ * Cada registro sólo incrementa un contador atómico. 'intervalSnapshot()'
+ * obtiene lo registrado desde la anterior llamada y pone los contadores a 0,
+ * de modo que ningún valor se pierde ni se cuenta dos veces, aunque un valor
+ * que se registra mientras tanto puede quedar en el intervalo siguiente.
+ */
+public final class LatencyHistogram {
+
+    // Bits de precisión de cada intervalo.
+    private static final int SUB_BUCKET_BITS = 7;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    private static final int SUB_BUCKET_HALF_COUNT = SUB_BUCKET_COUNT / 2;
+    // Intervalos directos y 64 por cada desplazamiento posible de un 'long' positivo.
+    private static final int BUCKET_COUNT = SUB_BUCKET_COUNT + (Long.SIZE - SUB_BUCKET_BITS) * SUB_BUCKET_HALF_COUNT;
+
+    private final AtomicLongArray counts;
+    private final AtomicLong max;
+
+    public LatencyHistogram() {
+        this.counts = new AtomicLongArray(BUCKET_COUNT);
+        this.max = new AtomicLong(0);
+    }
+
+    /**
+     * Registra un valor. Los negativos se registran como 0.
+     *
+     * @param value Valor a registrar.
+     */
+    public void record(long value) {
+        long v = Math.max(value, 0L);
+        counts.incrementAndGet(bucketIndex(v));
+        long currentMax;
+        while (v > (currentMax = max.get())) {
+            if (max.compareAndSet(currentMax, v)) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * Obtiene los valores registrados desde la anterior llamada y los
+     * descarta del histograma.
+     *
+     * @return Valores registrados en el intervalo.
+     */
+    public Snapshot intervalSnapshot() {
+        long[] snapshot = new long[BUCKET_COUNT];
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            if (counts.get(i) != 0) {
+                snapshot[i] = counts.getAndSet(i, 0);
+            }
+        }
+        return new Snapshot(snapshot, max.getAndSet(0));
+    }
+
+    static int bucketIndex(long value) {
+        if (value < SUB_BUCKET_COUNT) {
+            return (int) value;
+        }
+        // Desplazamiento necesario para que el valor quede con 7 bits significativos.
+        int shift = (Long.SIZE - 1 - Long.numberOfLeadingZeros(value)) - (SUB_BUCKET_BITS - 1);
+        return SUB_BUCKET_COUNT + (shift - 1) * SUB_BUCKET_HALF_COUNT + (int) ((value >>> shift) - SUB_BUCKET_HALF_COUNT);
+    }
+
+    // Mayor valor que se agrupa en el intervalo indicado.
+    static long highestEquivalentValue(int index) {
+        if (index < SUB_BUCKET_COUNT) {
+            return index;
+        }
+        int shift = (index - SUB_BUCKET_COUNT) / SUB_BUCKET_HALF_COUNT + 1;
+        long subBucket = (index - SUB_BUCKET_COUNT) % SUB_BUCKET_HALF_COUNT + SUB_BUCKET_HALF_COUNT;
+        return ((subBucket + 1) << shift) - 1;
+    }
+
+    /**
+     * Copia inmutable de los valores registrados en un histograma.
+     */
+    public static final class Snapshot {
+
+        private static final Snapshot EMPTY = new Snapshot(new long[BUCKET_COUNT], 0);
+
+        private final long[] counts;
+        private final long count;
+        private final long max;
+        private final double mean;
+
+        Snapshot(long[] counts, long max) {
+            this.counts = counts;
+            long total = 0;
+            double sum = 0.0d;
+            long highest = 0;
+            for (int i = 0; i < counts.length; i++) {
+                if (counts[i] != 0) {
+                    total += counts[i];
+                    sum += (double) counts[i] * highestEquivalentValue(i);
+                    highest = highestEquivalentValue(i);
+                }
+            }
+            this.count = total;
+            // El máximo exacto, si no se ha registrado en otro intervalo.
+            this.max = total > 0 ? (max > 0 && max <= highest ? max : highest) : 0;
+            this.mean = total > 0 ? sum / total : 0.0d;
+        }
+
+        public static Snapshot empty() {
+            return EMPTY;
+        }
+
+        /**
+         * Une los valores de dos copias, por ejemplo para acumular los
+         * intervalos de toda la simulación.
+         *
+         * @param other Copia a unir con ésta.
+         * @return Nueva copia con los valores de ambas.
+         */
+        public Snapshot merge(Snapshot other) {
+            long[] merged = new long[BUCKET_COUNT];
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                merged[i] = counts[i] + other.counts[i];
+            }
+            return new Snapshot(merged, Math.max(max, other.max));
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getMax() {
+            return max;
+        }
+
+        public double getMean() {
+            return mean;
+        }
+
+        /**
+         * Valor por debajo del cual, o igual al cual, está el porcentaje
+         * indicado de los valores registrados.
+         *
+         * @param percentile Percentil, entre 0 y 100.
+         * @return Valor del percentil, con la precisión del histograma. Será 0
+         * si no hay valores.
+         */
+        public long getValueAtPercentile(double percentile) {
+            if (count == 0) {
+                return 0;
+            }
+            long target = Math.max(1L, (long) Math.ceil(Math.min(percentile, 100.0d) / 100.0d * count));
+            long accumulated = 0;
+            for (int i = 0; i < counts.length; i++) {
+                accumulated += counts[i];
+                if (accumulated >= target) {
+                    return Math.min(highestEquivalentValue(i), max);
+                }
+            }
+            return max;
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package es.us.lsi.hermes.analysis;
+
+/**
+ * Estimación de la mediana de una serie de valores según se añaden, con
+ * memoria y coste constantes por valor (algoritmo P² de Jain y Chlamtac). Con
+ * menos de 5 valores, la mediana es exacta.
+ */
+public final class P2MedianEstimator {
+
+    private static final double P = 0.5d;
+
+    // Alturas y posiciones de los 5 marcadores.
+    private final double[] heights;
+    private final int[] positions;
+    // Posiciones deseadas de los marcadores y su incremento por cada valor.
+    private final double[] desiredPositions;
+    private final double[] increments;
+
+    private int n;
+
+    public P2MedianEstimator() {
+        this.heights = new double[5];
+        this.positions = new int[5];
+        this.desiredPositions = new double[5];
+        this.increments = new double[]{0.0d, P / 2.0d, P, (1.0d + P) / 2.0d, 1.0d};
+        clear();
+    }
+
+    public void clear() {
+        n = 0;
+        for (int i = 0; i < 5; i++) {
+            positions[i] = i + 1;
+        }
+        desiredPositions[0] = 1.0d;
+        desiredPositions[1] = 1.0d + 2.0d * P;
+        desiredPositions[2] = 1.0d + 4.0d * P;
+        desiredPositions[3] = 3.0d + 2.0d * P;
+        desiredPositions[4] = 5.0d;
+    }
+
+    public void addValue(double value) {
+        if (n < 5) {
+            // Los 5 primeros valores son las alturas iniciales, ordenadas.
+            int i = n;
+            while (i > 0 && heights[i - 1] > value) {
+                heights[i] = heights[i - 1];
+                i--;
+            }
+            heights[i] = value;
+            n++;
+            return;
+        }
+        n++;
+
+        // Celda en la que cae el valor, ajustando los extremos si es necesario.
+        int k;
+        if (value < heights[0]) {
+            heights[0] = value;
+            k = 0;
+        } else if (value >= heights[4]) {
+            heights[4] = value;
+            k = 3;
+        } else {
+            k = 0;
+            while (k < 3 && value >= heights[k + 1]) {
+                k++;
+            }
+        }
+
+        for (int i = k + 1; i < 5; i++) {
+            positions[i]++;
+        }
+        for (int i = 0; i < 5; i++) {
+            desiredPositions[i] += increments[i];
+        }
+
+        // Ajustamos los marcadores centrales si se han desviado de su posición deseada.
+        for (int i = 1; i < 4; i++) {
+            double d = desiredPositions[i] - positions[i];
+            if ((d >= 1.0d && positions[i + 1] - positions[i] > 1) || (d <= -1.0d && positions[i - 1] - positions[i] < -1)) {
+                int sign = d > 0 ? 1 : -1;
+                double candidate = parabolic(i, sign);
+                if (heights[i - 1] < candidate && candidate < heights[i + 1]) {
+                    heights[i] = candidate;
+                } else {
+                    heights[i] = linear(i, sign);
+                }
+                positions[i] += sign;
+            }
+        }
+    }
+
+    private double parabolic(int i, int sign) {
+        return heights[i] + sign / (double) (positions[i + 1] - positions[i - 1])
+                * ((positions[i] - positions[i - 1] + sign) * (heights[i + 1] - heights[i]) / (positions[i + 1] - positions[i])
+                + (positions[i + 1] - positions[i] - sign) * (heights[i] - heights[i - 1]) / (positions[i] - positions[i - 1]));
+    }
+
+    private double linear(int i, int sign) {
+        return heights[i] + sign * (heights[i + sign] - heights[i]) / (positions[i + sign] - positions[i]);
+    }
+
+    public int getN() {
+        return n;
+    }
+
+    /**
+     * Mediana estimada.
+     *
+     * @return Mediana o 'NaN' si no hay valores.
+     */
+    public double getMedian() {
+        if (n < 5) {
+            // Aún tenemos todos los valores, ordenados.
+            return RunningStatistics.median(heights, n);
+        }
+        return heights[2];
+    }
+}
@@ -0,0 +1,166 @@
+package es.us.lsi.hermes.analysis;
+
+import java.util.Arrays;
+
+/**
+ * Estadísticos de una serie de valores que se calculan según se añaden los
+ * valores, con coste constante por valor y sin almacenarlos (algoritmo de
+ * Welford para la media y la varianza).
+ *
+ * En modo exacto, además, se guardan los valores, y la media, la desviación
+ * típica y la mediana se calculan sobre todos ellos igual que lo hace
+ * 'DescriptiveStatistics' de Apache Commons Math. Sirve para contrastar los
+ * resultados del modo incremental.
+ */
+public final class RunningStatistics {
+
+    private final boolean exact;
+
+    private long n;
+    private double mean;
+    // Suma de los cuadrados de las diferencias con la media.
+    private double m2;
+    private double min;
+    private double max;
+
+    // Sólo en modo exacto.
+    private double[] values;
+
+    public RunningStatistics(boolean exact) {
+        this.exact = exact;
+        this.values = exact ? new double[64] : null;
+        clear();
+    }
+
+    public void clear() {
+        n = 0;
+        mean = 0.0d;
+        m2 = 0.0d;
+        min = Double.NaN;
+        max = Double.NaN;
+    }
+
+    public void addValue(double value) {
+        if (exact) {
+            if (n == values.length) {
+                values = Arrays.copyOf(values, values.length * 2);
+            }
+            values[(int) n] = value;
+        }
+
+        n++;
+        double delta = value - mean;
+        mean += delta / n;
+        m2 += delta * (value - mean);
+
+        if (n == 1) {
+            min = value;
+            max = value;
+        } else {
+            if (value < min) {
+                min = value;
+            }
+            if (value > max) {
+                max = value;
+            }
+        }
+    }
+
+    public long getN() {
+        return n;
+    }
+
+    public boolean isExact() {
+        return exact;
+    }
+
+    /**
+     * Media de los valores.
+     *
+     * @return Media o 'NaN' si no hay valores.
+     */
+    public double getMean() {
+        if (n == 0) {
+            return Double.NaN;
+        }
+        if (exact) {
+            // Con la misma corrección de errores de redondeo que aplica Apache Commons Math.
+            double sum = 0.0d;
+            for (int i = 0; i < n; i++) {
+                sum += values[i];
+            }
+            double xbar = sum / n;
+            double correction = 0.0d;
+            for (int i = 0; i < n; i++) {
+                correction += values[i] - xbar;
+            }
+            return xbar + (correction / n);
+        }
+        return mean;
+    }
+
+    /**
+     * Desviación típica muestral de los valores.
+     *
+     * @return Desviación típica, 0 si sólo hay un valor o 'NaN' si no hay
+     * ninguno.
+     */
+    public double getStandardDeviation() {
+        if (n == 0) {
+            return Double.NaN;
+        }
+        if (n == 1) {
+            return 0.0d;
+        }
+        if (exact) {
+            // Dos pasadas, con la corrección de errores de redondeo que aplica Apache Commons Math.
+            double exactMean = getMean();
+            double accum = 0.0d;
+            double accum2 = 0.0d;
+            for (int i = 0; i < n; i++) {
+                double dev = values[i] - exactMean;
+                accum += dev * dev;
+                accum2 += dev;
+            }
+            return Math.sqrt((accum - (accum2 * accum2 / n)) / (n - 1));
+        }
+        return Math.sqrt(m2 / (n - 1));
+    }
+
+    public double getMin() {
+        return min;
+    }
+
+    public double getMax() {
+        return max;
+    }
+
+    /**
+     * Mediana exacta de los valores. Sólo está disponible en modo exacto.
+     *
+     * @return Mediana o 'NaN' si no hay valores.
+     */
+    public double getMedian() {
+        if (!exact) {
+            throw new IllegalStateException("La mediana exacta sólo está disponible en modo exacto");
+        }
+        return median(values, (int) n);
+    }
+
+    /**
+     * Mediana de los primeros valores de un 'array', con la misma
+     * interpolación que el percentil 50 de Apache Commons Math.
+     */
+    static double median(double[] data, int length) {
+        if (length == 0) {
+            return Double.NaN;
+        }
+        double[] sorted = Arrays.copyOf(data, length);
+        Arrays.sort(sorted);
+        int middle = length / 2;
+        if (length % 2 != 0) {
+            return sorted[middle];
+        }
+        return sorted[middle - 1] + 0.5d * (sorted[middle] - sorted[middle - 1]);
+    }
+}
@@ -0,0 +1,184 @@
+package es.us.lsi.hermes.analysis;
+
+/**
+ * Resumen estadístico de la sección de trayecto que un SmartDriver envía como
+ * 'Data Section'. Se alimenta con cada tramo según se genera, de modo
+ * que al terminar la sección el resumen está disponible sin recorrer sus
+ * tramos.
+ *
+ * En modo incremental la mediana de la velocidad es una estimación (P²). En
+ * modo exacto se guardan todos los valores y los resultados son los mismos
+ * que se obtendrían con 'DescriptiveStatistics'.
+ */
+public final class SectionStatistics {
+
+    private final double highAccelerationThreshold;
+    private final double highDecelerationThreshold;
+    private final boolean exact;
+
+    private final RunningStatistics speedStats;
+    private final RunningStatistics heartRateStats;
+    private final RunningStatistics rrStats;
+    private final RunningStatistics accelerationStats;
+    private final RunningStatistics decelerationStats;
+    // Sólo en modo incremental.
+    private final P2MedianEstimator speedMedian;
+
+    private int numHighAccelerations;
+    private int numHighDecelerations;
+
+    // Datos del tramo anterior, para calcular la aceleración.
+    private boolean empty;
+    private long previousTime;
+    private double previousSpeed;
+
+    /**
+     * Constructor del resumen.
+     *
+     * @param highAccelerationThreshold Aceleración en m/s2 a partir de la cual
+     * se considera brusca.
+     * @param highDecelerationThreshold Deceleración en m/s2 (valor negativo)
+     * a partir de la cual se considera brusca.
+     * @param exact Indicará si se guardan todos los valores para obtener
+     * resultados exactos.
+     */
+    public SectionStatistics(double highAccelerationThreshold, double highDecelerationThreshold, boolean exact) {
+        this.highAccelerationThreshold = highAccelerationThreshold;
+        this.highDecelerationThreshold = highDecelerationThreshold;
+        this.exact = exact;
+        this.speedStats = new RunningStatistics(exact);
+        this.heartRateStats = new RunningStatistics(exact);
+        this.rrStats = new RunningStatistics(exact);
+        this.accelerationStats = new RunningStatistics(exact);
+        this.decelerationStats = new RunningStatistics(exact);
+        this.speedMedian = exact ? null : new P2MedianEstimator();
+        clear();
+    }
+
+    /**
+     * Prepara el resumen para una nueva sección.
+     */
+    public void clear() {
+        speedStats.clear();
+        heartRateStats.clear();
+        rrStats.clear();
+        accelerationStats.clear();
+        decelerationStats.clear();
+        if (speedMedian != null) {
+            speedMedian.clear();
+        }
+        numHighAccelerations = 0;
+        numHighDecelerations = 0;
+        empty = true;
+    }
+
+    /**
+     * Añade un tramo de la sección.
+     *
+     * @param time Instante del tramo, en milisegundos.
+     * @param speed Velocidad en Km/h.
+     * @param heartRate Ritmo cardíaco.
+     * @param rrTime Intervalo RR en milisegundos.
+     */
+    public void add(long time, double speed, int heartRate, int rrTime) {
+        speedStats.addValue(speed);
+        if (speedMedian != null) {
+            speedMedian.addValue(speed);
+        }
+        rrStats.addValue(rrTime);
+
+        if (!empty) {
+            double vDiff = (speed - previousSpeed) / 3.6d; // Diferencia de velocidades pasadas a m/s.
+            double tDiff = (time - previousTime) / 1000.0; // Diferencia de tiempos en segundos.
+            double acceleration = tDiff > 0.0d ? vDiff / tDiff : 0.0d; // Aceleración o deceleración en m/s2.
+
+            if (acceleration > 0.0d) {
+                accelerationStats.addValue(acceleration);
+                if (acceleration > highAccelerationThreshold) {
+                    numHighAccelerations++;
+                }
+            } else if (acceleration < 0.0d) {
+                decelerationStats.addValue(acceleration);
+                if (acceleration < highDecelerationThreshold) {
+                    numHighDecelerations++;
+                }
+            }
+
+            // Como en el resumen original, el ritmo cardíaco del primer tramo no se tiene en cuenta.
+            heartRateStats.addValue(heartRate);
+        }
+
+        empty = false;
+        previousTime = time;
+        previousSpeed = speed;
+    }
+
+    public boolean isEmpty() {
+        return empty;
+    }
+
+    public boolean isExact() {
+        return exact;
+    }
+
+    public long getN() {
+        return speedStats.getN();
+    }
+
+    public double getAverageSpeed() {
+        return valueOrZero(speedStats.getMean());
+    }
+
+    public double getStandardDeviationSpeed() {
+        return valueOrZero(speedStats.getStandardDeviation());
+    }
+
+    public double getMinSpeed() {
+        return speedStats.getN() > 0 ? speedStats.getMin() : 0.0d;
+    }
+
+    public double getMaxSpeed() {
+        return speedStats.getN() > 0 ? speedStats.getMax() : 0.0d;
+    }
+
+    public double getMedianSpeed() {
+        return valueOrZero(exact ? speedStats.getMedian() : speedMedian.getMedian());
+    }
+
+    public double getAverageHeartRate() {
+        return valueOrZero(heartRateStats.getMean());
+    }
+
+    public double getStandardDeviationHeartRate() {
+        return valueOrZero(heartRateStats.getStandardDeviation());
+    }
+
+    public double getAverageRR() {
+        return valueOrZero(rrStats.getMean());
+    }
+
+    public double getStandardDeviationRR() {
+        return valueOrZero(rrStats.getStandardDeviation());
+    }
+
+    public double getAverageAcceleration() {
+        return valueOrZero(accelerationStats.getMean());
+    }
+
+    public double getAverageDeceleration() {
+        return valueOrZero(decelerationStats.getMean());
+    }
+
+    public int getNumHighAccelerations() {
+        return numHighAccelerations;
+    }
+
+    public int getNumHighDecelerations() {
+        return numHighDecelerations;
+    }
+
+    // Si no hay valores o el resultado no es válido, se informa un 0.
+    private static double valueOrZero(double value) {
+        return Double.isNaN(value) ? 0.0d : value;
+    }
+}
@@ -1,5 +1,6 @@
 package es.us.lsi.hermes.csv;
 
+import es.us.lsi.hermes.analysis.LatencyHistogram;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.List;
@@ -11,26 +12,52 @@ import org.supercsv.cellprocessor.ift.CellProcessor;
 public class CSVSimulatorStatus implements Serializable, ICSVBean {
 
     private final long timestamp;
-    private final int generated;
-    private final int sent;
-    private final int ok;
-    private final int notOk;
-    private final int errors;
-    private final int recovered;
-    private final int pending;
-    private final int runningThreads;
+    private final long generated;
+    private final long sent;
+    private final long ok;
+    private final long notOk;
+    private final long errors;
+    private final long recovered;
+    private final long pending;
+    private final int activeSmartDrivers;
     private final long maxSmartDriversDelay;
     private final long currentSmartDriversDelay;
+    // Percentiles del retraso de los envíos confirmados en el intervalo, por tipo de evento.
+    private final long vehicleLocationDelayP50;
+    private final long vehicleLocationDelayP95;
+    private final long vehicleLocationDelayP99;
+    private final long vehicleLocationDelayP999;
+    private final long dataSectionDelayP50;
+    private final long dataSectionDelayP95;
+    private final long dataSectionDelayP99;
+    private final long dataSectionDelayP999;
+    // Retraso de planificación de los SmartDrivers en el intervalo.
+    private final long schedulingLagP50;
+    private final long schedulingLagP99;
+    private final long schedulingLagMax;
+    // Envíos realizados, correctos y fallidos ('no OK' y errores), por tipo de evento.
+    private final long vehicleLocationSent;
+    private final long vehicleLocationOk;
+    private final long vehicleLocationFailed;
+    private final long dataSectionSent;
+    private final long dataSectionOk;
+    private final long dataSectionFailed;
+    // Duración de los 'ticks' del motor (ms) y de las ejecuciones de los SmartDrivers (µs) en el intervalo, y retraso del motor respecto al reloj del sistema (ms).
+    private final long tickDurationP99;
+    private final long runDurationP99;
+    private final long engineBehind;
 
     protected CellProcessor[] cellProcessors;
     protected String[] fields;
     protected String[] headers;
 
     public CSVSimulatorStatus() {
-        this(System.currentTimeMillis(), 0, 0, 0, 0, 0, 0, 0, 0, 0, 0);
+        this(System.currentTimeMillis(), 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, LatencyHistogram.Snapshot.empty(), LatencyHistogram.Snapshot.empty(), LatencyHistogram.Snapshot.empty(), 0, 0, 0, 0, 0, 0, LatencyHistogram.Snapshot.empty(), LatencyHistogram.Snapshot.empty(), 0);
     }
 
-    public CSVSimulatorStatus(long timestamp, int generated, int sent, int ok, int notOk, int errors, int recovered, int pending, int runningThreads, long maxSmartDriversDelay, long currentSmartDriversDelay) {
+    public CSVSimulatorStatus(long timestamp, long generated, long sent, long ok, long notOk, long errors, long recovered, long pending, int activeSmartDrivers, long maxSmartDriversDelay, long currentSmartDriversDelay, LatencyHistogram.Snapshot vehicleLocationDelays, LatencyHistogram.Snapshot dataSectionDelays, LatencyHistogram.Snapshot schedulingLag,
+            long vehicleLocationSent, long vehicleLocationOk, long vehicleLocationFailed, long dataSectionSent, long dataSectionOk, long dataSectionFailed,
+            LatencyHistogram.Snapshot tickDuration, LatencyHistogram.Snapshot runDuration, long engineBehind) {
         this.timestamp = timestamp;
         this.generated = generated;
         this.sent = sent;
@@ -39,9 +66,29 @@ public class CSVSimulatorStatus implements Serializable, ICSVBean {
         this.errors = errors;
         this.recovered = recovered;
         this.pending = pending;
-        this.runningThreads = runningThreads;
+        this.activeSmartDrivers = activeSmartDrivers;
         this.maxSmartDriversDelay = maxSmartDriversDelay;
         this.currentSmartDriversDelay = currentSmartDriversDelay;
+        this.vehicleLocationDelayP50 = vehicleLocationDelays.getValueAtPercentile(50.0d);
+        this.vehicleLocationDelayP95 = vehicleLocationDelays.getValueAtPercentile(95.0d);
+        this.vehicleLocationDelayP99 = vehicleLocationDelays.getValueAtPercentile(99.0d);
+        this.vehicleLocationDelayP999 = vehicleLocationDelays.getValueAtPercentile(99.9d);
+        this.dataSectionDelayP50 = dataSectionDelays.getValueAtPercentile(50.0d);
+        this.dataSectionDelayP95 = dataSectionDelays.getValueAtPercentile(95.0d);
+        this.dataSectionDelayP99 = dataSectionDelays.getValueAtPercentile(99.0d);
+        this.dataSectionDelayP999 = dataSectionDelays.getValueAtPercentile(99.9d);
+        this.schedulingLagP50 = schedulingLag.getValueAtPercentile(50.0d);
+        this.schedulingLagP99 = schedulingLag.getValueAtPercentile(99.0d);
+        this.schedulingLagMax = schedulingLag.getMax();
+        this.vehicleLocationSent = vehicleLocationSent;
+        this.vehicleLocationOk = vehicleLocationOk;
+        this.vehicleLocationFailed = vehicleLocationFailed;
+        this.dataSectionSent = dataSectionSent;
+        this.dataSectionOk = dataSectionOk;
+        this.dataSectionFailed = dataSectionFailed;
+        this.tickDurationP99 = tickDuration.getValueAtPercentile(99.0d);
+        this.runDurationP99 = runDuration.getValueAtPercentile(99.0d);
+        this.engineBehind = engineBehind;
         init();
     }
 
@@ -57,36 +104,36 @@ public class CSVSimulatorStatus implements Serializable, ICSVBean {
         return timestamp;
     }
 
-    public int getGenerated() {
+    public long getGenerated() {
         return generated;
     }
 
-    public int getSent() {
+    public long getSent() {
         return sent;
     }
 
-    public int getOk() {
+    public long getOk() {
         return ok;
     }
 
-    public int getNotOk() {
+    public long getNotOk() {
         return notOk;
     }
 
-    public int getErrors() {
+    public long getErrors() {
         return errors;
     }
 
-    public int getRecovered() {
+    public long getRecovered() {
         return recovered;
     }
 
-    public int getPending() {
+    public long getPending() {
         return pending;
     }
 
-    public int getRunningThreads() {
-        return runningThreads;
+    public int getActiveSmartDrivers() {
+        return activeSmartDrivers;
     }
 
     public long getMaxSmartDriversDelay() {
@@ -97,10 +144,90 @@ public class CSVSimulatorStatus implements Serializable, ICSVBean {
         return currentSmartDriversDelay;
     }
 
+    public long getVehicleLocationDelayP50() {
+        return vehicleLocationDelayP50;
+    }
+
+    public long getVehicleLocationDelayP95() {
+        return vehicleLocationDelayP95;
+    }
+
+    public long getVehicleLocationDelayP99() {
+        return vehicleLocationDelayP99;
+    }
+
+    public long getVehicleLocationDelayP999() {
+        return vehicleLocationDelayP999;
+    }
+
+    public long getDataSectionDelayP50() {
+        return dataSectionDelayP50;
+    }
+
+    public long getDataSectionDelayP95() {
+        return dataSectionDelayP95;
+    }
+
+    public long getDataSectionDelayP99() {
+        return dataSectionDelayP99;
+    }
+
+    public long getDataSectionDelayP999() {
+        return dataSectionDelayP999;
+    }
+
+    public long getSchedulingLagP50() {
+        return schedulingLagP50;
+    }
+
+    public long getSchedulingLagP99() {
+        return schedulingLagP99;
+    }
+
+    public long getSchedulingLagMax() {
+        return schedulingLagMax;
+    }
+
+    public long getVehicleLocationSent() {
+        return vehicleLocationSent;
+    }
+
+    public long getVehicleLocationOk() {
+        return vehicleLocationOk;
+    }
+
+    public long getVehicleLocationFailed() {
+        return vehicleLocationFailed;
+    }
+
+    public long getDataSectionSent() {
+        return dataSectionSent;
+    }
+
+    public long getDataSectionOk() {
+        return dataSectionOk;
+    }
+
+    public long getDataSectionFailed() {
+        return dataSectionFailed;
+    }
+
+    public long getTickDurationP99() {
+        return tickDurationP99;
+    }
+
+    public long getRunDurationP99() {
+        return runDurationP99;
+    }
+
+    public long getEngineBehind() {
+        return engineBehind;
+    }
+
     @Override
     public final void init() {
 
-        cellProcessors = new CellProcessor[]{null, null, null, null, null, null, null, null, null, null, null};
+        cellProcessors = new CellProcessor[]{null, null, null, null, null, null, null, null, null, null, null, null, null, null, null, null, null, null, null, null, null, null, null, null, null, null, null, null, null, null, null};
 
         List<String> f = new ArrayList();
 
@@ -112,9 +239,29 @@ public class CSVSimulatorStatus implements Serializable, ICSVBean {
         f.add("errors");
         f.add("recovered");
         f.add("pending");
-        f.add("runningThreads");
+        f.add("activeSmartDrivers");
         f.add("maxSmartDriversDelay");
         f.add("currentSmartDriversDelay");
+        f.add("vehicleLocationDelayP50");
+        f.add("vehicleLocationDelayP95");
+        f.add("vehicleLocationDelayP99");
+        f.add("vehicleLocationDelayP999");
+        f.add("dataSectionDelayP50");
+        f.add("dataSectionDelayP95");
+        f.add("dataSectionDelayP99");
+        f.add("dataSectionDelayP999");
+        f.add("schedulingLagP50");
+        f.add("schedulingLagP99");
+        f.add("schedulingLagMax");
+        f.add("vehicleLocationSent");
+        f.add("vehicleLocationOk");
+        f.add("vehicleLocationFailed");
+        f.add("dataSectionSent");
+        f.add("dataSectionOk");
+        f.add("dataSectionFailed");
+        f.add("tickDurationP99");
+        f.add("runDurationP99");
+        f.add("engineBehind");
 
         fields = f.toArray(new String[f.size()]);
 
@@ -128,9 +275,29 @@ public class CSVSimulatorStatus implements Serializable, ICSVBean {
         h.add("Errors");
         h.add("Recovered");
         h.add("Pending");
-        h.add("Running Threads");
+        h.add("Active SmartDrivers");
         h.add("Max SmartDrivers delay");
         h.add("Current SmartDrivers delay");
+        h.add("Vehicle Location delay p50");
+        h.add("Vehicle Location delay p95");
+        h.add("Vehicle Location delay p99");
+        h.add("Vehicle Location delay p99.9");
+        h.add("Data Section delay p50");
+        h.add("Data Section delay p95");
+        h.add("Data Section delay p99");
+        h.add("Data Section delay p99.9");
+        h.add("Scheduling lag p50");
+        h.add("Scheduling lag p99");
+        h.add("Scheduling lag max");
+        h.add("Vehicle Location sent");
+        h.add("Vehicle Location ok");
+        h.add("Vehicle Location failed");
+        h.add("Data Section sent");
+        h.add("Data Section ok");
+        h.add("Data Section failed");
+        h.add("Tick duration p99 (ms)");
+        h.add("Run duration p99 (us)");
+        h.add("Engine behind (ms)");
 
         headers = h.toArray(new String[h.size()]);
     }
@@ -0,0 +1,63 @@
+package es.us.lsi.hermes.google.directions;
+
+import java.util.Arrays;
+
+/**
+ * Coordenadas de una o varias polilíneas de Google decodificadas, guardadas en
+ * un par de arrays en lugar de un objeto 'Location' por punto.
+ *
+ * Está pensada para reutilizarse: 'clear()' vacía las coordenadas pero
+ * conserva la capacidad de los arrays, así que decodificar el siguiente
+ * trayecto en el mismo hilo no reserva memoria salvo que sea más largo.
+ */
+public final class DecodedPolyline {
+
+    private double[] latitudes;
+    private double[] longitudes;
+    private int size;
+
+    public DecodedPolyline() {
+        this(256);
+    }
+
+    public DecodedPolyline(int expectedSize) {
+        int capacity = Math.max(expectedSize, 2);
+        this.latitudes = new double[capacity];
+        this.longitudes = new double[capacity];
+        this.size = 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public double getLatitude(int index) {
+        return latitudes[index];
+    }
+
+    public double getLongitude(int index) {
+        return longitudes[index];
+    }
+
+    /**
+     * Vacía las coordenadas, conservando los arrays.
+     */
+    public void clear() {
+        size = 0;
+    }
+
+    void add(double latitude, double longitude) {
+        if (size == latitudes.length) {
+            int capacity = size * 2;
+            latitudes = Arrays.copyOf(latitudes, capacity);
+            longitudes = Arrays.copyOf(longitudes, capacity);
+        }
+        latitudes[size] = latitude;
+        longitudes[size] = longitude;
+        size++;
+    }
+}
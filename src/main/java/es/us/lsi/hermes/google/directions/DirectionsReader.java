@@ -0,0 +1,161 @@
+package es.us.lsi.hermes.google.directions;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Lectura de las respuestas de Google Directions sin construir el árbol de
+ * objetos completo ('GeocodedWaypoints', 'Route', 'Leg', 'Step'...).
+ *
+ * Se recorre el JSON directamente del 'InputStream' y sólo se conservan los
+ * campos de la primera ruta que usan los trayectos: la distancia y la duración
+ * de su primer tramo y sus coordenadas. Las coordenadas se obtienen de las
+ * polilíneas de los pasos del tramo, que tienen más resolución que
+ * 'overview_polyline', y se decodifican según se leen en un 'DecodedPolyline'.
+ * 'overview_polyline' sólo se usa si el tramo no trae pasos. El resto se salta
+ * sin crear objetos.
+ */
+public final class DirectionsReader {
+
+    private DirectionsReader() {
+    }
+
+    /**
+     * Lee la primera ruta de una respuesta de Google Directions.
+     *
+     * @param is Respuesta en JSON, en UTF-8. No se cierra.
+     * @param polyline Coordenadas de la ruta. Se vacía antes de leer, así que
+     * se puede reutilizar de una respuesta a otra.
+     * @return Ruta o nulo si la respuesta no trae ninguna completa, por
+     * ejemplo porque se ha superado la cuota.
+     * @throws IOException Si no se puede leer o no es un JSON válido.
+     */
+    public static DirectionsRoute read(InputStream is, DecodedPolyline polyline) throws IOException {
+        polyline.clear();
+        JsonReader reader = new JsonReader(new InputStreamReader(is, StandardCharsets.UTF_8));
+        DirectionsRoute route = null;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if ("routes".equals(reader.nextName()) && reader.peek() == JsonToken.BEGIN_ARRAY) {
+                reader.beginArray();
+                if (reader.hasNext()) {
+                    route = readRoute(reader, polyline);
+                }
+                while (reader.hasNext()) {
+                    reader.skipValue();
+                }
+                reader.endArray();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return route;
+    }
+
+    private static DirectionsRoute readRoute(JsonReader reader, DecodedPolyline polyline) throws IOException {
+        String overviewPolyline = null;
+        int distance = -1;
+        int duration = -1;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if ("overview_polyline".equals(name)) {
+                overviewPolyline = readValue(reader, "points");
+            } else if ("legs".equals(name) && reader.peek() == JsonToken.BEGIN_ARRAY) {
+                reader.beginArray();
+                if (reader.hasNext()) {
+                    // Primer tramo: su distancia y su duración.
+                    reader.beginObject();
+                    while (reader.hasNext()) {
+                        String legName = reader.nextName();
+                        if ("distance".equals(legName)) {
+                            distance = parseInt(readValue(reader, "value"));
+                        } else if ("duration".equals(legName)) {
+                            duration = parseInt(readValue(reader, "value"));
+                        } else if ("steps".equals(legName) && reader.peek() == JsonToken.BEGIN_ARRAY) {
+                            readSteps(reader, polyline);
+                        } else {
+                            reader.skipValue();
+                        }
+                    }
+                    reader.endObject();
+                }
+                while (reader.hasNext()) {
+                    reader.skipValue();
+                }
+                reader.endArray();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        if (polyline.isEmpty() && overviewPolyline != null) {
+            PolylineDecoder.decode(overviewPolyline, polyline);
+        }
+        if (polyline.isEmpty() || distance <= 0 || duration < 0) {
+            return null;
+        }
+        return new DirectionsRoute(distance, duration);
+    }
+
+    // Concatena las polilíneas de los pasos del tramo.
+    private static void readSteps(JsonReader reader, DecodedPolyline polyline) throws IOException {
+        reader.beginArray();
+        while (reader.hasNext()) {
+            if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+                reader.skipValue();
+                continue;
+            }
+            reader.beginObject();
+            while (reader.hasNext()) {
+                if ("polyline".equals(reader.nextName())) {
+                    String points = readValue(reader, "points");
+                    if (points != null) {
+                        PolylineDecoder.decode(points, polyline);
+                    }
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+        }
+        reader.endArray();
+    }
+
+    // Valor del campo indicado de un objeto, como texto. Nulo si no está.
+    private static String readValue(JsonReader reader, String field) throws IOException {
+        if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+            reader.skipValue();
+            return null;
+        }
+        String value = null;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if (field.equals(reader.nextName()) && reader.peek() != JsonToken.NULL) {
+                // 'nextString()' también admite números.
+                value = reader.nextString();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return value;
+    }
+
+    private static int parseInt(String value) {
+        if (value == null) {
+            return -1;
+        }
+        try {
+            return (int) Math.round(Double.parseDouble(value));
+        } catch (NumberFormatException ex) {
+            return -1;
+        }
+    }
+}
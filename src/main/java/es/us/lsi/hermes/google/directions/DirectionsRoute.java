@@ -0,0 +1,31 @@
+package es.us.lsi.hermes.google.directions;
+
+/**
+ * Datos de la primera ruta de una respuesta de Google Directions que se usan
+ * para construir un trayecto: la distancia y la duración de su primer tramo.
+ * Las coordenadas las deja 'DirectionsReader' en un 'DecodedPolyline'.
+ */
+public final class DirectionsRoute {
+
+    private final int distance;
+    private final int duration;
+
+    public DirectionsRoute(int distance, int duration) {
+        this.distance = distance;
+        this.duration = duration;
+    }
+
+    /**
+     * Distancia del tramo, en metros.
+     */
+    public int getDistance() {
+        return distance;
+    }
+
+    /**
+     * Duración del tramo, en segundos.
+     */
+    public int getDuration() {
+        return duration;
+    }
+}
@@ -1,16 +1,29 @@
 package es.us.lsi.hermes.google.directions;
 
-import java.util.ArrayList;
-
 public class PolylineDecoder {
 
-    public static ArrayList<Location> decodePoly(String encoded) {
-        ArrayList poly = new ArrayList();
+    /**
+     * Decodifica una polilínea de Google y añade sus puntos al final de
+     * 'polyline', sin crear un objeto por punto.
+     *
+     * Si el primer punto coincide con el último que ya había, no se repite.
+     * Así se pueden concatenar las polilíneas de los pasos ('steps') de un
+     * tramo, ya que cada paso empieza donde termina el anterior.
+     *
+     * @param encoded Polilínea codificada.
+     * @param polyline Coordenadas a las que se añaden los puntos.
+     * @throws IllegalArgumentException Si la polilínea está incompleta.
+     */
+    public static void decode(CharSequence encoded, DecodedPolyline polyline) {
         int index = 0, len = encoded.length();
         int lat = 0, lng = 0;
+        boolean first = true;
         while (index < len) {
             int b, shift = 0, result = 0;
             do {
+                if (index >= len) {
+                    throw new IllegalArgumentException("Polilínea incompleta");
+                }
                 b = encoded.charAt(index++) - 63;
                 result |= (b & 0x1f) << shift;
                 shift += 5;
@@ -20,17 +33,24 @@ public class PolylineDecoder {
             shift = 0;
             result = 0;
             do {
+                if (index >= len) {
+                    throw new IllegalArgumentException("Polilínea incompleta");
+                }
                 b = encoded.charAt(index++) - 63;
                 result |= (b & 0x1f) << shift;
                 shift += 5;
             } while (b >= 0x20);
             int dlng = ((result & 1) != 0 ? ~(result >> 1) : (result >> 1));
             lng += dlng;
-            Location p = new Location(((lat / 1E5)),
-                    ((lng / 1E5)));
-            poly.add(p);
+
+            double latitude = lat / 1E5;
+            double longitude = lng / 1E5;
+            int last = polyline.size() - 1;
+            if (!first || last < 0 || polyline.getLatitude(last) != latitude || polyline.getLongitude(last) != longitude) {
+                polyline.add(latitude, longitude);
+            }
+            first = false;
         }
-        return poly;
     }
 
     private PolylineDecoder() {
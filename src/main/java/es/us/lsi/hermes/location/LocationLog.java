@@ -1,25 +1,22 @@
 package es.us.lsi.hermes.location;
 
-import es.us.lsi.hermes.location.detail.LocationLogDetail;
 import es.us.lsi.hermes.person.Person;
 import java.io.Serializable;
-import java.util.ArrayList;
 import java.util.Date;
-import java.util.List;
 
 public class LocationLog implements Serializable {
 
     private static final long serialVersionUID = 1L;
     private Integer locationLogId;
     private Person person;
-    private List<LocationLogDetail> locationLogDetailList;
+    // Puntos del trayecto, compartidos por todos los SmartDrivers que lo recorren.
+    private PackedPath packedPath;
     private String filename;
 
     private int duration;
     private double distance;
 
     public LocationLog() {
-        locationLogDetailList = new ArrayList<>();
     }
 
     public Integer getLocationLogId() {
@@ -50,12 +47,12 @@ public class LocationLog implements Serializable {
         this.filename = filename;
     }
 
-    public List<LocationLogDetail> getLocationLogDetailList() {
-        return locationLogDetailList;
+    public PackedPath getPackedPath() {
+        return packedPath;
     }
 
-    public void setLocationLogDetailList(List<LocationLogDetail> locationLogDetailList) {
-        this.locationLogDetailList = locationLogDetailList;
+    public void setPackedPath(PackedPath packedPath) {
+        this.packedPath = packedPath;
     }
 
     public int getDuration() {
@@ -0,0 +1,222 @@
+package es.us.lsi.hermes.location;
+
+import es.us.lsi.hermes.location.detail.LocationLogDetail;
+import es.us.lsi.hermes.util.Util;
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Copia compacta e inmutable de los puntos de un trayecto. Todos los
+ * SmartDrivers que recorren un mismo trayecto comparten la misma instancia, en
+ * lugar de tener cada uno su propia lista de 'LocationLogDetail'. Las
+ * variaciones propias de cada SmartDriver (factores de velocidad y ritmo
+ * cardíaco, intervalo RR actual...) las mantiene el propio SmartDriver, que
+ * recorre el trayecto mediante un 'PathCursor'.
+ */
+public final class PackedPath implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final double[] latitude;
+    private final double[] longitude;
+    private final double[] speed;
+    private final int[] heartRate;
+    private final int[] rrTime;
+    private final int[] secondsToBeHere;
+    // Distancia en metros recorrida desde el inicio del trayecto hasta cada punto.
+    private final double[] cumulativeDistance;
+    // Orientación en grados del tramo que llega a cada punto desde el anterior. El primer punto no tiene tramo.
+    private final double[] bearing;
+
+    private PackedPath(Builder builder) {
+        int size = builder.size;
+        this.latitude = Arrays.copyOf(builder.latitude, size);
+        this.longitude = Arrays.copyOf(builder.longitude, size);
+        this.speed = Arrays.copyOf(builder.speed, size);
+        this.heartRate = Arrays.copyOf(builder.heartRate, size);
+        this.rrTime = Arrays.copyOf(builder.rrTime, size);
+        this.secondsToBeHere = Arrays.copyOf(builder.secondsToBeHere, size);
+
+        // Precalculamos la geometría de los tramos, para que los SmartDrivers no tengan que hacerlo en cada avance.
+        this.cumulativeDistance = new double[size];
+        this.bearing = new double[size];
+        for (int i = 1; i < size; i++) {
+            cumulativeDistance[i] = cumulativeDistance[i - 1] + Util.distanceHaversine(latitude[i - 1], longitude[i - 1], latitude[i], longitude[i]);
+            bearing[i] = Util.bearing(latitude[i - 1], longitude[i - 1], latitude[i], longitude[i]);
+        }
+    }
+
+    /**
+     * Crea la copia compacta de una lista de puntos de un trayecto.
+     *
+     * @param lldList Lista de puntos del trayecto.
+     * @return Trayecto compacto con los mismos puntos.
+     */
+    public static PackedPath fromLocationLogDetailList(List<LocationLogDetail> lldList) {
+        Builder builder = new Builder(lldList.size());
+        for (LocationLogDetail lld : lldList) {
+            builder.add(lld.getLatitude(), lld.getLongitude(), lld.getSpeed(), lld.getHeartRate(), lld.getRrTime(), lld.getSecondsToBeHere());
+        }
+        return builder.build();
+    }
+
+    /**
+     * Genera un nuevo trayecto con una interpolación lineal entre cada par de
+     * puntos consecutivos, de forma que no haya más de la distancia indicada
+     * entre ellos.
+     *
+     * @param maxDistance Distancia máxima en metros entre puntos.
+     * @return Trayecto interpolado.
+     */
+    public PackedPath interpolate(double maxDistance) {
+        Builder builder = new Builder(size() * 2);
+
+        for (int j = 0; j < size() - 1; j++) {
+            int k = j + 1;
+            double pointsDistance = Util.distanceHaversine(latitude[j], longitude[j], latitude[k], longitude[k]);
+
+            int numberOfInnerLocations = (int) Math.ceil(pointsDistance / maxDistance);
+
+            if (numberOfInnerLocations > 0) {
+                double latitudeFragment = (latitude[k] - latitude[j]) / numberOfInnerLocations;
+                double longitudeFragment = (longitude[k] - longitude[j]) / numberOfInnerLocations;
+                double heartRateFragment = (heartRate[k] - heartRate[j]) / numberOfInnerLocations;
+                double rrFragment = (rrTime[k] - rrTime[j]) / numberOfInnerLocations;
+                double speedFragment = (speed[k] - speed[j]) / numberOfInnerLocations;
+                double secondsToBeHereFragment = (secondsToBeHere[k] - secondsToBeHere[j]) / numberOfInnerLocations;
+
+                for (int i = 0; i < numberOfInnerLocations; i++) {
+                    builder.add(i * latitudeFragment + latitude[j],
+                            i * longitudeFragment + longitude[j],
+                            i * speedFragment + speed[j],
+                            (int) (i * heartRateFragment + heartRate[j]),
+                            (int) (i * rrFragment + rrTime[j]),
+                            (int) (i * secondsToBeHereFragment + secondsToBeHere[j]));
+                }
+            }
+
+            builder.add(latitude[k], longitude[k], speed[k], heartRate[k], rrTime[k], secondsToBeHere[k]);
+        }
+
+        return builder.build();
+    }
+
+    public int size() {
+        return latitude.length;
+    }
+
+    public boolean isEmpty() {
+        return latitude.length == 0;
+    }
+
+    public double getLatitude(int index) {
+        return latitude[index];
+    }
+
+    public double getLongitude(int index) {
+        return longitude[index];
+    }
+
+    public double getSpeed(int index) {
+        return speed[index];
+    }
+
+    public int getHeartRate(int index) {
+        return heartRate[index];
+    }
+
+    public int getRrTime(int index) {
+        return rrTime[index];
+    }
+
+    public int getSecondsToBeHere(int index) {
+        return secondsToBeHere[index];
+    }
+
+    public double getCumulativeDistance(int index) {
+        return cumulativeDistance[index];
+    }
+
+    public double getBearing(int index) {
+        return bearing[index];
+    }
+
+    public double getLength() {
+        return cumulativeDistance.length > 0 ? cumulativeDistance[cumulativeDistance.length - 1] : 0.0d;
+    }
+
+    /**
+     * Permite ir añadiendo los puntos de un trayecto según se procesa la
+     * respuesta del servicio de rutas, sin crear un objeto por cada punto.
+     */
+    public static final class Builder {
+
+        private double[] latitude;
+        private double[] longitude;
+        private double[] speed;
+        private int[] heartRate;
+        private int[] rrTime;
+        private int[] secondsToBeHere;
+        private int size;
+
+        public Builder() {
+            this(64);
+        }
+
+        public Builder(int expectedSize) {
+            int capacity = Math.max(expectedSize, 1);
+            this.latitude = new double[capacity];
+            this.longitude = new double[capacity];
+            this.speed = new double[capacity];
+            this.heartRate = new int[capacity];
+            this.rrTime = new int[capacity];
+            this.secondsToBeHere = new int[capacity];
+            this.size = 0;
+        }
+
+        public Builder add(double latitude, double longitude, double speed, int heartRate, int rrTime, int secondsToBeHere) {
+            if (size == this.latitude.length) {
+                grow();
+            }
+            this.latitude[size] = latitude;
+            this.longitude[size] = longitude;
+            this.speed[size] = speed;
+            this.heartRate[size] = heartRate;
+            this.rrTime[size] = rrTime;
+            this.secondsToBeHere[size] = secondsToBeHere;
+            size++;
+            return this;
+        }
+
+        public int size() {
+            return size;
+        }
+
+        public boolean isEmpty() {
+            return size == 0;
+        }
+
+        public double getLatitude(int index) {
+            return latitude[index];
+        }
+
+        public double getLongitude(int index) {
+            return longitude[index];
+        }
+
+        public PackedPath build() {
+            return new PackedPath(this);
+        }
+
+        private void grow() {
+            int capacity = latitude.length * 2;
+            latitude = Arrays.copyOf(latitude, capacity);
+            longitude = Arrays.copyOf(longitude, capacity);
+            speed = Arrays.copyOf(speed, capacity);
+            heartRate = Arrays.copyOf(heartRate, capacity);
+            rrTime = Arrays.copyOf(rrTime, capacity);
+            secondsToBeHere = Arrays.copyOf(secondsToBeHere, capacity);
+        }
+    }
+}
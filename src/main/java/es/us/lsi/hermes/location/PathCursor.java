@@ -0,0 +1,204 @@
+package es.us.lsi.hermes.location;
+
+import es.us.lsi.hermes.util.Util;
+
+/**
+ * Recorrido de un SmartDriver sobre un trayecto compartido. Aplica sobre los
+ * valores del trayecto los factores de velocidad y ritmo cardíaco propios del
+ * SmartDriver y mantiene su posición actual y el sentido del recorrido, sin
+ * copiar ni modificar los puntos del trayecto.
+ *
+ * El tiempo para llegar a cada posición se calcula acumulando la duración de
+ * cada tramo recorrido, ajustada a la velocidad del SmartDriver, por lo que
+ * siempre es creciente y el cursor sólo tiene que avanzar.
+ */
+public final class PathCursor {
+
+    private final PackedPath path;
+    private final double speedFactor;
+    private final double heartRateFactor;
+    private final double minSpeed;
+
+    private int position;
+    // Indicará si se está recorriendo el trayecto en sentido inverso.
+    private boolean reversed;
+    // Segundos que deben pasar desde el inicio del recorrido para estar en la posición actual.
+    private double secondsToBeHere;
+
+    /**
+     * Constructor del cursor.
+     *
+     * @param path Trayecto compartido.
+     * @param speedFactor Factor que se aplica a la velocidad de cada punto.
+     * @param heartRateFactor Factor que se aplica al ritmo cardíaco de cada
+     * punto.
+     * @param minSpeed Velocidad mínima en Km/h. Los puntos con una velocidad
+     * inferior tendrán esta velocidad.
+     */
+    public PathCursor(PackedPath path, double speedFactor, double heartRateFactor, double minSpeed) {
+        this.path = path;
+        this.speedFactor = speedFactor;
+        this.heartRateFactor = heartRateFactor;
+        this.minSpeed = minSpeed;
+        this.position = 0;
+        this.reversed = false;
+        this.secondsToBeHere = initialSecondsToBeHere();
+    }
+
+    public int size() {
+        return path.size();
+    }
+
+    public int getPosition() {
+        return position;
+    }
+
+    public boolean isAtEnd() {
+        return position == path.size() - 1;
+    }
+
+    public boolean isReversed() {
+        return reversed;
+    }
+
+    /**
+     * Da la vuelta al recorrido y vuelve a la posición inicial, que es la
+     * misma en la que se encontraba.
+     */
+    public void reverse() {
+        reversed = !reversed;
+        position = 0;
+        secondsToBeHere = initialSecondsToBeHere();
+    }
+
+    /**
+     * Avanza hasta la primera posición cuyo tiempo para estar en ella sea
+     * mayor que el tiempo transcurrido o, si no hay ninguna, hasta la última.
+     * El coste es proporcional al número de posiciones avanzadas.
+     *
+     * @param elapsedSeconds Segundos transcurridos desde el inicio del
+     * recorrido.
+     * @return Posición en la que estaba antes de avanzar.
+     */
+    public int advance(int elapsedSeconds) {
+        int previousPosition = position;
+        int last = path.size() - 1;
+        while (position < last) {
+            position++;
+            secondsToBeHere += segmentSeconds(position);
+            if (secondsToBeHere > elapsedSeconds) {
+                break;
+            }
+        }
+        return previousPosition;
+    }
+
+    // Tiempo para estar en la posición inicial, que es el del primer punto del trayecto en ambos sentidos.
+    private double initialSecondsToBeHere() {
+        return adjustSeconds(path.getSecondsToBeHere(0), 0);
+    }
+
+    // Duración, ajustada a la velocidad del SmartDriver, del tramo que llega a la posición indicada desde la anterior.
+    private double segmentSeconds(int position) {
+        int from = index(position - 1);
+        int to = index(position);
+        return adjustSeconds(Math.abs(path.getSecondsToBeHere(to) - path.getSecondsToBeHere(from)), to);
+    }
+
+    private double adjustSeconds(int seconds, int index) {
+        double speed = path.getSpeed(index);
+        // Si la velocidad queda por debajo de la mínima, el tramo se recorre a la velocidad mínima.
+        if (speed * speedFactor < minSpeed) {
+            return seconds * (speed / minSpeed);
+        }
+        return seconds / speedFactor;
+    }
+
+    // Índice en el trayecto compartido del punto que ocupa la posición indicada en el recorrido actual.
+    private int index(int position) {
+        return reversed ? path.size() - 1 - position : position;
+    }
+
+    public double getLatitude(int position) {
+        return path.getLatitude(index(position));
+    }
+
+    public double getLongitude(int position) {
+        return path.getLongitude(index(position));
+    }
+
+    public double getSpeed(int position) {
+        double speed = path.getSpeed(index(position)) * speedFactor;
+        // No habrá ninguna velocidad inferior a la indicada como mínimo.
+        return speed < minSpeed ? minSpeed : speed;
+    }
+
+    public int getHeartRate(int position) {
+        return (int) (path.getHeartRate(index(position)) * heartRateFactor);
+    }
+
+    public int getRrTime(int position) {
+        return path.getRrTime(index(position));
+    }
+
+    /**
+     * Distancia recorrida sobre el trayecto entre dos posiciones.
+     *
+     * @param fromPosition Posición de origen.
+     * @param toPosition Posición de destino.
+     * @return Distancia en metros.
+     */
+    public double getDistance(int fromPosition, int toPosition) {
+        return Math.abs(path.getCumulativeDistance(index(toPosition)) - path.getCumulativeDistance(index(fromPosition)));
+    }
+
+    /**
+     * Orientación del tramo que llega a la posición indicada desde la anterior,
+     * en el sentido del recorrido.
+     *
+     * @param position Posición, mayor que 0.
+     * @return Orientación en grados, entre 0 y 360.
+     */
+    public double getBearing(int position) {
+        if (reversed) {
+            // Es el tramo del trayecto original recorrido en sentido contrario.
+            return (path.getBearing(index(position) + 1) + 180.0d) % 360.0d;
+        }
+        return path.getBearing(position);
+    }
+
+    /**
+     * Cambio de orientación al pasar de una posición a otra: diferencia entre
+     * la orientación del tramo que llega a la primera y la de la línea que une
+     * ambas posiciones. Si son consecutivas, esa línea es el tramo que llega a
+     * la segunda, cuya orientación ya está calculada en el trayecto.
+     *
+     * @param fromPosition Primera posición, mayor que 0.
+     * @param toPosition Segunda posición, posterior a la primera.
+     * @return Cambio de orientación en grados, entre 0 y 180.
+     */
+    public double getBearingDelta(int fromPosition, int toPosition) {
+        double bearing = toPosition == fromPosition + 1
+                ? getBearing(toPosition)
+                : Util.bearing(getLatitude(fromPosition), getLongitude(fromPosition), getLatitude(toPosition), getLongitude(toPosition));
+        double delta = Math.abs(bearing - getBearing(fromPosition)) % 360.0d;
+        // Un giro de 350 grados en un sentido es uno de 10 grados en el otro.
+        return delta > 180.0d ? 360.0d - delta : delta;
+    }
+
+    public double getLatitude() {
+        return getLatitude(position);
+    }
+
+    public double getLongitude() {
+        return getLongitude(position);
+    }
+
+    public double getSpeed() {
+        return getSpeed(position);
+    }
+
+    public int getSecondsToBeHere() {
+        return (int) Math.ceil(secondsToBeHere);
+    }
+}
@@ -0,0 +1,266 @@
+package es.us.lsi.hermes.location;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.codec.digest.DigestUtils;
+
+/**
+ * Almacén en disco de los trayectos ya construidos, para no tener que volver
+ * a pedirlos al servicio de rutas en las siguientes simulaciones.
+ *
+ * Cada trayecto se guarda en su propio fichero, identificado por el servicio
+ * de rutas y los puntos de origen y destino. Se guarda tal y como lo recorren
+ * los SmartDrivers, es decir, ya interpolado si se ha pedido interpolación,
+ * así que el servicio debe indicar también si el trayecto está interpolado, y
+ * los parámetros con los que se eligen el origen y el destino, para no
+ * reutilizar trayectos de otra configuración.
+ *
+ * El tamaño total está limitado: cuando se supera, se borran los trayectos
+ * guardados hace más tiempo.
+ *
+ * Formato binario de cada fichero: cabecera ('HRT1'), servicio (UTF), origen y
+ * destino (4 double), distancia (double), duración (int), número de puntos
+ * (int) y, por cada punto, latitud y longitud en millonésimas de grado (2
+ * int), velocidad (float), ritmo cardíaco, intervalo RR y segundos para estar
+ * en él (3 int).
+ */
+public class RouteCache {
+
+    private static final Logger LOG = Logger.getLogger(RouteCache.class.getName());
+
+    private static final int MAGIC = 0x48525431;
+    private static final String EXTENSION = ".route";
+    // Precisión de las coordenadas guardadas: un millonésimo de grado, unos 11 cm.
+    private static final double COORDINATE_SCALE = 1e6d;
+    // Al superar el tamaño máximo, se borran trayectos hasta quedar en esta fracción, para no tener que borrar en cada nuevo trayecto.
+    private static final double EVICTION_TARGET = 0.9d;
+
+    private final Path directory;
+    private final long maxSize;
+    // Tamaño total de los trayectos guardados, en bytes.
+    private final AtomicLong size;
+
+    /**
+     * Constructor del almacén.
+     *
+     * @param directory Directorio de los trayectos. Se crea si no existe.
+     * @param maxSize Tamaño máximo en bytes de los trayectos guardados. Si es
+     * 0, no se limita.
+     * @throws IOException Si no se puede crear el directorio.
+     */
+    public RouteCache(Path directory, long maxSize) throws IOException {
+        this.directory = directory;
+        this.maxSize = Math.max(maxSize, 0L);
+        Files.createDirectories(directory);
+        this.size = new AtomicLong(0);
+        evict();
+    }
+
+    /**
+     * Guarda un trayecto, sustituyendo al que hubiera con el mismo origen y
+     * destino.
+     *
+     * @param provider Servicio de rutas del trayecto.
+     * @param originLat Latitud del origen.
+     * @param originLng Longitud del origen.
+     * @param destinationLat Latitud del destino.
+     * @param destinationLng Longitud del destino.
+     * @param ll Trayecto a guardar.
+     */
+    public void put(String provider, double originLat, double originLng, double destinationLat, double destinationLng, LocationLog ll) {
+        PackedPath path = ll.getPackedPath();
+        if (path == null || path.isEmpty()) {
+            return;
+        }
+        Path file = getFile(provider, originLat, originLng, destinationLat, destinationLng);
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try {
+            long previousSize = Files.exists(file) ? Files.size(file) : 0;
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+                out.writeInt(MAGIC);
+                out.writeUTF(provider);
+                out.writeDouble(originLat);
+                out.writeDouble(originLng);
+                out.writeDouble(destinationLat);
+                out.writeDouble(destinationLng);
+                out.writeDouble(ll.getDistance());
+                out.writeInt(ll.getDuration());
+                out.writeInt(path.size());
+                for (int i = 0; i < path.size(); i++) {
+                    out.writeInt((int) Math.round(path.getLatitude(i) * COORDINATE_SCALE));
+                    out.writeInt((int) Math.round(path.getLongitude(i) * COORDINATE_SCALE));
+                    out.writeFloat((float) path.getSpeed(i));
+                    out.writeInt(path.getHeartRate(i));
+                    out.writeInt(path.getRrTime(i));
+                    out.writeInt(path.getSecondsToBeHere(i));
+                }
+            }
+            // Así no puede quedar un trayecto a medio escribir.
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            if (size.addAndGet(Files.size(file) - previousSize) > maxSize && maxSize > 0) {
+                evict();
+            }
+        } catch (IOException ex) {
+            LOG.log(Level.WARNING, "put() - No se ha podido guardar el trayecto en: {0} - {1}", new Object[]{file, ex.getMessage()});
+            try {
+                Files.deleteIfExists(temp);
+            } catch (IOException ex1) {
+            }
+        }
+    }
+
+    /**
+     * Obtiene trayectos guardados del servicio indicado, elegidos al azar.
+     *
+     * @param provider Servicio de rutas de los trayectos.
+     * @param amount Número máximo de trayectos.
+     * @return Trayectos, sin usuario asignado. Puede haber menos de los
+     * pedidos si no hay tantos guardados.
+     */
+    public List<LocationLog> getRandom(String provider, int amount) {
+        List<Path> files = list(provider);
+        Collections.shuffle(files, ThreadLocalRandom.current());
+        List<LocationLog> result = new ArrayList<>(Math.min(amount, files.size()));
+        for (Path file : files) {
+            if (result.size() >= amount) {
+                break;
+            }
+            LocationLog ll = read(file);
+            if (ll != null) {
+                result.add(ll);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Recalcula el tamaño de los trayectos guardados y, si supera el máximo,
+     * borra los más antiguos.
+     */
+    private synchronized void evict() {
+        final List<Path> files = new ArrayList<>();
+        final List<BasicFileAttributes> attributes = new ArrayList<>();
+        long total = 0;
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*" + EXTENSION)) {
+            for (Path file : stream) {
+                try {
+                    BasicFileAttributes fileAttributes = Files.readAttributes(file, BasicFileAttributes.class);
+                    files.add(file);
+                    attributes.add(fileAttributes);
+                    total += fileAttributes.size();
+                } catch (IOException ex) {
+                    // Lo ha borrado otro hilo.
+                }
+            }
+        } catch (IOException ex) {
+            LOG.log(Level.WARNING, "evict() - No se ha podido leer el directorio de trayectos: {0} - {1}", new Object[]{directory, ex.getMessage()});
+            return;
+        }
+
+        if (maxSize > 0 && total > maxSize) {
+            // Índices de los ficheros, del guardado hace más tiempo al más reciente.
+            List<Integer> order = new ArrayList<>(files.size());
+            for (int i = 0; i < files.size(); i++) {
+                order.add(i);
+            }
+            Collections.sort(order, new Comparator<Integer>() {
+                @Override
+                public int compare(Integer a, Integer b) {
+                    return attributes.get(a).lastModifiedTime().compareTo(attributes.get(b).lastModifiedTime());
+                }
+            });
+            long target = (long) (maxSize * EVICTION_TARGET);
+            int deleted = 0;
+            for (int i = 0; i < order.size() && total > target; i++) {
+                int index = order.get(i);
+                try {
+                    Files.deleteIfExists(files.get(index));
+                    total -= attributes.get(index).size();
+                    deleted++;
+                } catch (IOException ex) {
+                    LOG.log(Level.WARNING, "evict() - No se ha podido borrar el trayecto guardado en: {0} - {1}", new Object[]{files.get(index), ex.getMessage()});
+                }
+            }
+            LOG.log(Level.INFO, "evict() - Se han borrado {0} trayectos guardados para no superar {1} bytes", new Object[]{deleted, maxSize});
+        }
+        size.set(total);
+    }
+
+    private List<Path> list(String provider) {
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, getPrefix(provider) + "*" + EXTENSION)) {
+            for (Path file : stream) {
+                files.add(file);
+            }
+        } catch (IOException ex) {
+            LOG.log(Level.WARNING, "list() - No se ha podido leer el directorio de trayectos: {0} - {1}", new Object[]{directory, ex.getMessage()});
+        }
+        return files;
+    }
+
+    private LocationLog read(Path file) {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Formato desconocido");
+            }
+            // Servicio, origen y destino.
+            in.readUTF();
+            in.readDouble();
+            in.readDouble();
+            in.readDouble();
+            in.readDouble();
+            double distance = in.readDouble();
+            int duration = in.readInt();
+            int size = in.readInt();
+            PackedPath.Builder builder = new PackedPath.Builder(size);
+            for (int i = 0; i < size; i++) {
+                builder.add(in.readInt() / COORDINATE_SCALE, in.readInt() / COORDINATE_SCALE, in.readFloat(), in.readInt(), in.readInt(), in.readInt());
+            }
+            if (builder.isEmpty()) {
+                return null;
+            }
+            LocationLog ll = new LocationLog();
+            ll.setPackedPath(builder.build());
+            ll.setDistance(distance);
+            ll.setDuration(duration);
+            return ll;
+        } catch (NoSuchFileException ex) {
+            return null;
+        } catch (IOException ex) {
+            LOG.log(Level.WARNING, "read() - Se descarta el trayecto guardado en: {0} - {1}", new Object[]{file, ex.getMessage()});
+            try {
+                Files.deleteIfExists(file);
+            } catch (IOException ex1) {
+            }
+            return null;
+        }
+    }
+
+    private Path getFile(String provider, double originLat, double originLng, double destinationLat, double destinationLng) {
+        String key = String.format(Locale.ROOT, "%s|%.6f,%.6f|%.6f,%.6f", provider, originLat, originLng, destinationLat, destinationLng);
+        return directory.resolve(getPrefix(provider) + new String(Hex.encodeHex(DigestUtils.sha256(key))) + EXTENSION);
+    }
+
+    private static String getPrefix(String provider) {
+        return provider.replaceAll("[^A-Za-z0-9]", "_") + "-";
+    }
+}
@@ -121,13 +121,17 @@ public class LocationLogDetail implements Serializable {
     }
 
     public String getMarkerTitle() {
+        return getMarkerTitle(getLatitude(), getLongitude(), getSpeed(), getHeartRate(), secondsToBeHere);
+    }
+
+    public static String getMarkerTitle(double latitude, double longitude, double speed, int heartRate, int secondsToBeHere) {
         StringBuilder sb = new StringBuilder();
         sb.append(ResourceBundle.getBundle("/Bundle").getString("Time")).append(": ").append(Constants.dfTime.format(System.currentTimeMillis() + (secondsToBeHere * 1000)));
         sb.append(" ");
-        sb.append(ResourceBundle.getBundle("/Bundle").getString("HeartRate")).append(": ").append(Integer.toString(getHeartRate()));
+        sb.append(ResourceBundle.getBundle("/Bundle").getString("HeartRate")).append(": ").append(Integer.toString(heartRate));
         sb.append(" ");
-        sb.append(ResourceBundle.getBundle("/Bundle").getString("Speed")).append(": ").append(Constants.df2Decimals.format(getSpeed())).append(" Km/h");
-        sb.append(" (").append(getLatitude()).append(", ").append(getLongitude()).append(")");
+        sb.append(ResourceBundle.getBundle("/Bundle").getString("Speed")).append(": ").append(Constants.df2Decimals.format(speed)).append(" Km/h");
+        sb.append(" (").append(latitude).append(", ").append(longitude).append(")");
 
         return sb.toString();
     }
@@ -0,0 +1,63 @@
+package es.us.lsi.hermes.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * Ritmo de asignación de memoria de la JVM, en bytes por segundo.
+ *
+ * Se calcula con la memoria asignada por cada hilo vivo, que proporciona la
+ * JVM de HotSpot. El ritmo se recalcula como mucho una vez por segundo, con la
+ * diferencia desde el cálculo anterior. Lo que asignaron los hilos que han
+ * terminado entre medias no se cuenta. Si la JVM no lo proporciona, vale -1.
+ */
+public class AllocationRateGauge implements Gauge {
+
+    private static final long MIN_INTERVAL_NANOS = 1000000000L;
+
+    private final com.sun.management.ThreadMXBean threadBean;
+    private long lastTime;
+    private long lastAllocated;
+    private long rate;
+
+    public AllocationRateGauge() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean && ((com.sun.management.ThreadMXBean) bean).isThreadAllocatedMemorySupported()) {
+            this.threadBean = (com.sun.management.ThreadMXBean) bean;
+            this.threadBean.setThreadAllocatedMemoryEnabled(true);
+            this.lastTime = System.nanoTime();
+            this.lastAllocated = getAllocatedBytes();
+            this.rate = 0;
+        } else {
+            this.threadBean = null;
+            this.rate = -1;
+        }
+    }
+
+    private long getAllocatedBytes() {
+        long total = 0;
+        for (long allocated : threadBean.getThreadAllocatedBytes(threadBean.getAllThreadIds())) {
+            // Es -1 para los hilos que ya han terminado.
+            if (allocated > 0) {
+                total += allocated;
+            }
+        }
+        return total;
+    }
+
+    @Override
+    public synchronized long getValue() {
+        if (threadBean == null) {
+            return rate;
+        }
+        long now = System.nanoTime();
+        long elapsed = now - lastTime;
+        if (elapsed >= MIN_INTERVAL_NANOS) {
+            long allocated = getAllocatedBytes();
+            rate = (long) (Math.max(allocated - lastAllocated, 0L) * (double) MIN_INTERVAL_NANOS / elapsed);
+            lastTime = now;
+            lastAllocated = allocated;
+        }
+        return rate;
+    }
+}
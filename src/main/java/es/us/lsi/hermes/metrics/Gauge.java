@@ -0,0 +1,10 @@
+package es.us.lsi.hermes.metrics;
+
+/**
+ * Valor instantáneo que se consulta cada vez que se lee la métrica, como el
+ * número de SmartDrivers activos.
+ */
+public interface Gauge {
+
+    long getValue();
+}
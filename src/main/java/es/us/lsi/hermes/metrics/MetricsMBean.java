@@ -0,0 +1,93 @@
+package es.us.lsi.hermes.metrics;
+
+import es.us.lsi.hermes.analysis.LatencyHistogram;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.ReflectionException;
+
+/**
+ * MBean de sólo lectura con las métricas de un 'MetricsRegistry'. Cada
+ * contador y cada valor instantáneo es un atributo. De cada histograma se
+ * publican el número de valores, los percentiles 50, 95 y 99 y el máximo de
+ * su última muestra. Los atributos se obtienen al consultarlos, así que
+ * incluyen las métricas registradas después de publicar el MBean.
+ */
+class MetricsMBean implements DynamicMBean {
+
+    private final MetricsRegistry registry;
+
+    MetricsMBean(MetricsRegistry registry) {
+        this.registry = registry;
+    }
+
+    private SortedMap<String, Long> getValues() {
+        SortedMap<String, Long> values = new TreeMap<>();
+        values.putAll(registry.getCounterValues());
+        values.putAll(registry.getGaugeValues());
+        for (Map.Entry<String, LatencyHistogram.Snapshot> entry : registry.getHistogramSnapshots().entrySet()) {
+            LatencyHistogram.Snapshot snapshot = entry.getValue();
+            values.put(entry.getKey() + ".count", snapshot.getCount());
+            values.put(entry.getKey() + ".p50", snapshot.getValueAtPercentile(50.0d));
+            values.put(entry.getKey() + ".p95", snapshot.getValueAtPercentile(95.0d));
+            values.put(entry.getKey() + ".p99", snapshot.getValueAtPercentile(99.0d));
+            values.put(entry.getKey() + ".max", snapshot.getMax());
+        }
+        return values;
+    }
+
+    @Override
+    public Object getAttribute(String attribute) throws AttributeNotFoundException {
+        Long value = getValues().get(attribute);
+        if (value == null) {
+            throw new AttributeNotFoundException(attribute);
+        }
+        return value;
+    }
+
+    @Override
+    public AttributeList getAttributes(String[] attributes) {
+        SortedMap<String, Long> values = getValues();
+        AttributeList list = new AttributeList();
+        for (String attribute : attributes) {
+            Long value = values.get(attribute);
+            if (value != null) {
+                list.add(new Attribute(attribute, value));
+            }
+        }
+        return list;
+    }
+
+    @Override
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+        throw new AttributeNotFoundException("Las métricas son de sólo lectura: " + attribute.getName());
+    }
+
+    @Override
+    public AttributeList setAttributes(AttributeList attributes) {
+        return new AttributeList();
+    }
+
+    @Override
+    public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+        throw new ReflectionException(new NoSuchMethodException(actionName));
+    }
+
+    @Override
+    public MBeanInfo getMBeanInfo() {
+        List<MBeanAttributeInfo> attributes = new ArrayList<>();
+        for (String name : getValues().keySet()) {
+            attributes.add(new MBeanAttributeInfo(name, Long.class.getName(), name, true, false, false));
+        }
+        return new MBeanInfo(getClass().getName(), "Métricas del simulador Hermes", attributes.toArray(new MBeanAttributeInfo[attributes.size()]), null, new MBeanOperationInfo[0], null);
+    }
+}
@@ -0,0 +1,263 @@
+package es.us.lsi.hermes.metrics;
+
+import es.us.lsi.hermes.analysis.LatencyHistogram;
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Registro de las métricas de la simulación: contadores, valores
+ * instantáneos ('gauges') e histogramas de latencias, identificados por su
+ * nombre.
+ *
+ * Un nombre puede llevar etiquetas entre llaves, por ejemplo
+ * 'ok{server=KAFKA,type=NORMAL_VEHICLE_LOCATION}', para distinguir varias
+ * series de la misma métrica.
+ *
+ * Los histogramas se muestrean desde fuera, normalmente una vez por segundo.
+ * El registro guarda la última muestra de cada uno, que es la que se publica,
+ * y acumula el número y la suma de los valores de todas las muestras.
+ * Todas las métricas se pueden consultar por JMX como atributos de un único
+ * MBean.
+ */
+public class MetricsRegistry {
+
+    private static final Logger LOG = Logger.getLogger(MetricsRegistry.class.getName());
+
+    private final ConcurrentMap<String, StripedCounter> counters;
+    private final ConcurrentMap<String, Gauge> gauges;
+    private final ConcurrentMap<String, LatencyHistogram> histograms;
+    private final ConcurrentMap<String, LatencyHistogram.Snapshot> lastSnapshots;
+    private final ConcurrentMap<String, HistogramTotals> histogramTotals;
+    private ObjectName objectName;
+
+    public MetricsRegistry() {
+        this.counters = new ConcurrentHashMap<>();
+        this.gauges = new ConcurrentHashMap<>();
+        this.histograms = new ConcurrentHashMap<>();
+        this.lastSnapshots = new ConcurrentHashMap<>();
+        this.histogramTotals = new ConcurrentHashMap<>();
+        this.objectName = null;
+    }
+
+    /**
+     * Obtiene el contador con el nombre indicado, creándolo si no existe.
+     *
+     * @param name Nombre del contador.
+     * @return Contador.
+     */
+    public StripedCounter counter(String name) {
+        StripedCounter counter = counters.get(name);
+        if (counter == null) {
+            StripedCounter created = new StripedCounter();
+            counter = counters.putIfAbsent(name, created);
+            if (counter == null) {
+                counter = created;
+            }
+        }
+        return counter;
+    }
+
+    /**
+     * Registra un valor instantáneo, sustituyendo al que tuviera el mismo
+     * nombre.
+     *
+     * @param name Nombre del valor.
+     * @param gauge Valor a registrar.
+     */
+    public void gauge(String name, Gauge gauge) {
+        gauges.put(name, gauge);
+    }
+
+    /**
+     * Obtiene el histograma con el nombre indicado, creándolo si no existe.
+     *
+     * @param name Nombre del histograma.
+     * @return Histograma.
+     */
+    public LatencyHistogram histogram(String name) {
+        LatencyHistogram histogram = histograms.get(name);
+        if (histogram == null) {
+            LatencyHistogram created = new LatencyHistogram();
+            histogram = histograms.putIfAbsent(name, created);
+            if (histogram == null) {
+                histogram = created;
+            }
+        }
+        return histogram;
+    }
+
+    /**
+     * Registra un histograma que pertenece a otro componente, sustituyendo al
+     * que tuviera el mismo nombre.
+     *
+     * @param name Nombre del histograma.
+     * @param histogram Histograma a registrar.
+     */
+    public void histogram(String name, LatencyHistogram histogram) {
+        histograms.put(name, histogram);
+        lastSnapshots.remove(name);
+    }
+
+    /**
+     * Obtiene los valores registrados en el histograma desde el anterior
+     * muestreo, que pasan a ser los que se publican.
+     *
+     * @param name Nombre del histograma.
+     * @return Valores registrados en el intervalo.
+     */
+    public LatencyHistogram.Snapshot sampleHistogram(String name) {
+        LatencyHistogram.Snapshot snapshot = histogram(name).intervalSnapshot();
+        lastSnapshots.put(name, snapshot);
+        HistogramTotals totals = histogramTotals.get(name);
+        if (totals == null) {
+            HistogramTotals created = new HistogramTotals();
+            totals = histogramTotals.putIfAbsent(name, created);
+            if (totals == null) {
+                totals = created;
+            }
+        }
+        totals.add(snapshot);
+        return snapshot;
+    }
+
+    /**
+     * Pone a 0 todos los contadores y los acumulados de los histogramas, y
+     * descarta sus muestras.
+     */
+    public void reset() {
+        for (StripedCounter counter : counters.values()) {
+            counter.reset();
+        }
+        for (LatencyHistogram histogram : histograms.values()) {
+            histogram.intervalSnapshot();
+        }
+        lastSnapshots.clear();
+        for (HistogramTotals totals : histogramTotals.values()) {
+            totals.reset();
+        }
+    }
+
+    public SortedMap<String, Long> getCounterValues() {
+        SortedMap<String, Long> values = new TreeMap<>();
+        for (Map.Entry<String, StripedCounter> entry : counters.entrySet()) {
+            values.put(entry.getKey(), entry.getValue().sum());
+        }
+        return Collections.unmodifiableSortedMap(values);
+    }
+
+    public SortedMap<String, Long> getGaugeValues() {
+        SortedMap<String, Long> values = new TreeMap<>();
+        for (Map.Entry<String, Gauge> entry : gauges.entrySet()) {
+            values.put(entry.getKey(), entry.getValue().getValue());
+        }
+        return Collections.unmodifiableSortedMap(values);
+    }
+
+    /**
+     * Última muestra de cada histograma. Los que aún no se han muestreado
+     * aparecen vacíos.
+     *
+     * @return Muestras por nombre del histograma.
+     */
+    public SortedMap<String, LatencyHistogram.Snapshot> getHistogramSnapshots() {
+        SortedMap<String, LatencyHistogram.Snapshot> values = new TreeMap<>();
+        for (String name : histograms.keySet()) {
+            LatencyHistogram.Snapshot snapshot = lastSnapshots.get(name);
+            values.put(name, snapshot != null ? snapshot : LatencyHistogram.Snapshot.empty());
+        }
+        return Collections.unmodifiableSortedMap(values);
+    }
+
+    /**
+     * Número y suma de los valores de todas las muestras de cada histograma.
+     * Los que aún no se han muestreado aparecen a 0.
+     *
+     * @return Acumulados por nombre del histograma.
+     */
+    public SortedMap<String, HistogramTotals> getHistogramTotals() {
+        SortedMap<String, HistogramTotals> values = new TreeMap<>();
+        for (String name : histograms.keySet()) {
+            HistogramTotals totals = histogramTotals.get(name);
+            values.put(name, totals != null ? totals.copy() : new HistogramTotals());
+        }
+        return Collections.unmodifiableSortedMap(values);
+    }
+
+    /**
+     * Publica las métricas por JMX. Si ya había un MBean con ese nombre, por
+     * ejemplo de un despliegue anterior, se sustituye.
+     *
+     * @param name Nombre del MBean.
+     */
+    public synchronized void registerMBean(String name) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName on = new ObjectName(name);
+            if (server.isRegistered(on)) {
+                server.unregisterMBean(on);
+            }
+            server.registerMBean(new MetricsMBean(this), on);
+            objectName = on;
+            LOG.log(Level.INFO, "registerMBean() - Métricas publicadas por JMX en: {0}", name);
+        } catch (JMException ex) {
+            LOG.log(Level.WARNING, "registerMBean() - No se han podido publicar las métricas por JMX: {0}", ex.getMessage());
+        }
+    }
+
+    public synchronized void unregisterMBean() {
+        if (objectName == null) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+        } catch (JMException ex) {
+            LOG.log(Level.WARNING, "unregisterMBean() - No se ha podido retirar el MBean de las métricas: {0}", ex.getMessage());
+        }
+        objectName = null;
+    }
+
+    /**
+     * Número y suma de los valores registrados en un histograma desde el
+     * último 'reset()'. La suma tiene la precisión del histograma.
+     */
+    public static final class HistogramTotals {
+
+        private long count;
+        private double sum;
+
+        public synchronized long getCount() {
+            return count;
+        }
+
+        public synchronized double getSum() {
+            return sum;
+        }
+
+        synchronized void add(LatencyHistogram.Snapshot snapshot) {
+            count += snapshot.getCount();
+            sum += snapshot.getMean() * snapshot.getCount();
+        }
+
+        synchronized void reset() {
+            count = 0;
+            sum = 0.0d;
+        }
+
+        synchronized HistogramTotals copy() {
+            HistogramTotals copy = new HistogramTotals();
+            copy.count = count;
+            copy.sum = sum;
+            return copy;
+        }
+    }
+}
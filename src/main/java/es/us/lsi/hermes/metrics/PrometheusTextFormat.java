@@ -0,0 +1,150 @@
+package es.us.lsi.hermes.metrics;
+
+import es.us.lsi.hermes.analysis.LatencyHistogram;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * Escribe las métricas de un 'MetricsRegistry' en el formato de texto de
+ * Prometheus.
+ *
+ * Los nombres se pasan a minúsculas separadas por '_' y se les antepone el
+ * espacio de nombres, de modo que 'activeSmartDrivers' se publica como
+ * 'hermes_active_smart_drivers'. Los contadores terminan en '_total'. Las
+ * etiquetas entre llaves del nombre pasan a ser etiquetas de Prometheus. De
+ * cada histograma se publican como 'summary' los percentiles 50, 95, 99 y
+ * 99,9 de su última muestra, junto con el número y la suma de los valores de
+ * todas las muestras ('_count' y '_sum'), y el máximo de la última muestra
+ * como 'gauge'. Su unidad debe indicarse en el nombre, como en 'delayMs'.
+ */
+public final class PrometheusTextFormat {
+
+    public static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    private static final double[] QUANTILES = {0.5d, 0.95d, 0.99d, 0.999d};
+
+    private PrometheusTextFormat() {
+    }
+
+    /**
+     * Escribe todas las métricas del registro.
+     *
+     * @param registry Registro de las métricas.
+     * @param namespace Prefijo de los nombres de las métricas.
+     * @param writer Destino del texto.
+     * @throws IOException Si falla la escritura.
+     */
+    public static void write(MetricsRegistry registry, String namespace, Writer writer) throws IOException {
+        writeValues(registry.getCounterValues(), namespace, "_total", "counter", writer);
+        writeValues(registry.getGaugeValues(), namespace, "", "gauge", writer);
+
+        SortedMap<String, List<Sample<LatencyHistogram.Snapshot>>> histograms = group(registry.getHistogramSnapshots());
+        SortedMap<String, List<Sample<MetricsRegistry.HistogramTotals>>> totals = group(registry.getHistogramTotals());
+        for (Map.Entry<String, List<Sample<LatencyHistogram.Snapshot>>> entry : histograms.entrySet()) {
+            String name = namespace + "_" + toSnakeCase(entry.getKey());
+            writer.write("# TYPE " + name + " summary\n");
+            for (Sample<LatencyHistogram.Snapshot> sample : entry.getValue()) {
+                for (double quantile : QUANTILES) {
+                    String labels = sample.labels.isEmpty() ? "" : sample.labels + ",";
+                    writer.write(name + "{" + labels + "quantile=\"" + quantile + "\"} " + sample.value.getValueAtPercentile(quantile * 100.0d) + "\n");
+                }
+            }
+            List<Sample<MetricsRegistry.HistogramTotals>> histogramTotals = totals.get(entry.getKey());
+            if (histogramTotals != null) {
+                for (Sample<MetricsRegistry.HistogramTotals> sample : histogramTotals) {
+                    writer.write(name + "_sum" + braces(sample.labels) + " " + sample.value.getSum() + "\n");
+                    writer.write(name + "_count" + braces(sample.labels) + " " + sample.value.getCount() + "\n");
+                }
+            }
+            writer.write("# TYPE " + name + "_max gauge\n");
+            for (Sample<LatencyHistogram.Snapshot> sample : entry.getValue()) {
+                writer.write(name + "_max" + braces(sample.labels) + " " + sample.value.getMax() + "\n");
+            }
+        }
+        writer.flush();
+    }
+
+    private static void writeValues(SortedMap<String, Long> values, String namespace, String suffix, String type, Writer writer) throws IOException {
+        for (Map.Entry<String, List<Sample<Long>>> entry : group(values).entrySet()) {
+            String name = namespace + "_" + toSnakeCase(entry.getKey()) + suffix;
+            writer.write("# TYPE " + name + " " + type + "\n");
+            for (Sample<Long> sample : entry.getValue()) {
+                writer.write(name + braces(sample.labels) + " " + sample.value + "\n");
+            }
+        }
+    }
+
+    // Agrupa las series de cada métrica, que en Prometheus deben ir seguidas.
+    private static <T> SortedMap<String, List<Sample<T>>> group(SortedMap<String, T> values) {
+        SortedMap<String, List<Sample<T>>> groups = new TreeMap<>();
+        for (Map.Entry<String, T> entry : values.entrySet()) {
+            String key = entry.getKey();
+            int brace = key.indexOf('{');
+            String name = brace < 0 ? key : key.substring(0, brace);
+            String labels = brace < 0 ? "" : toLabels(key.substring(brace + 1, key.endsWith("}") ? key.length() - 1 : key.length()));
+            List<Sample<T>> samples = groups.get(name);
+            if (samples == null) {
+                samples = new ArrayList<>();
+                groups.put(name, samples);
+            }
+            samples.add(new Sample<>(labels, entry.getValue()));
+        }
+        return groups;
+    }
+
+    // Convierte 'server=KAFKA,type=NORMAL_DATA_SECTION' en 'server="KAFKA",type="NORMAL_DATA_SECTION"'.
+    private static String toLabels(String labels) {
+        StringBuilder sb = new StringBuilder();
+        for (String label : labels.split(",")) {
+            int equals = label.indexOf('=');
+            if (equals <= 0) {
+                continue;
+            }
+            if (sb.length() > 0) {
+                sb.append(',');
+            }
+            sb.append(toSnakeCase(label.substring(0, equals).trim())).append("=\"");
+            String value = label.substring(equals + 1).trim();
+            sb.append(value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n")).append('"');
+        }
+        return sb.toString();
+    }
+
+    private static String braces(String labels) {
+        return labels.isEmpty() ? "" : "{" + labels + "}";
+    }
+
+    static String toSnakeCase(String name) {
+        StringBuilder sb = new StringBuilder(name.length() + 8);
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (Character.isUpperCase(c)) {
+                if (i > 0 && !Character.isUpperCase(name.charAt(i - 1))) {
+                    sb.append('_');
+                }
+                sb.append(Character.toLowerCase(c));
+            } else if (Character.isLetterOrDigit(c) && c < 128) {
+                sb.append(c);
+            } else {
+                sb.append('_');
+            }
+        }
+        return sb.toString();
+    }
+
+    private static final class Sample<T> {
+
+        private final String labels;
+        private final T value;
+
+        Sample(String labels, T value) {
+            this.labels = labels;
+            this.value = value;
+        }
+    }
+}
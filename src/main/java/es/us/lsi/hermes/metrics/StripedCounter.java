@@ -0,0 +1,84 @@
+package es.us.lsi.hermes.metrics;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Contador de tipo 'long' repartido en varias celdas, para que muchos hilos lo
+ * incrementen a la vez sin competir por la misma variable atómica.
+ *
+ * Cada hilo suma en una celda, elegida al azar la primera vez. Si otro hilo la
+ * está modificando a la vez, pasa a otra celda para los siguientes
+ * incrementos. Las celdas están separadas por el tamaño de una línea de caché,
+ * para que no se invaliden unas a otras. El valor es la suma de todas ellas.
+ */
+public final class StripedCounter {
+
+    // Número de 'long' que ocupa una línea de caché de 64 bytes.
+    private static final int PADDING = 8;
+
+    // Celda en la que suma cada hilo.
+    private static final ThreadLocal<int[]> PROBE = new ThreadLocal<int[]>() {
+        @Override
+        protected int[] initialValue() {
+            return new int[]{ThreadLocalRandom.current().nextInt() | 1};
+        }
+    };
+
+    private final AtomicLongArray cells;
+    private final int mask;
+
+    public StripedCounter() {
+        // El doble de celdas que de procesadores, redondeado a una potencia de 2.
+        int stripes = Integer.highestOneBit(Math.max(Runtime.getRuntime().availableProcessors() * 2 - 1, 1)) << 1;
+        this.cells = new AtomicLongArray(stripes * PADDING);
+        this.mask = stripes - 1;
+    }
+
+    public void increment() {
+        add(1L);
+    }
+
+    public void add(long x) {
+        int[] probe = PROBE.get();
+        int index = (probe[0] & mask) * PADDING;
+        long current = cells.get(index);
+        if (!cells.compareAndSet(index, current, current + x)) {
+            // Hay competencia por la celda: se suma igualmente y se cambia de celda para la próxima vez.
+            cells.addAndGet(index, x);
+            int h = probe[0];
+            h ^= h << 13;
+            h ^= h >>> 17;
+            h ^= h << 5;
+            probe[0] = h;
+        }
+    }
+
+    /**
+     * Suma de todas las celdas. Los incrementos que se hagan mientras se
+     * calcula pueden no estar incluidos.
+     *
+     * @return Valor del contador.
+     */
+    public long sum() {
+        long sum = 0;
+        for (int i = 0; i < cells.length(); i += PADDING) {
+            sum += cells.get(i);
+        }
+        return sum;
+    }
+
+    /**
+     * Pone el contador a 0. Sólo es exacto si no se incrementa mientras tanto.
+     */
+    public void reset() {
+        for (int i = 0; i < cells.length(); i += PADDING) {
+            cells.set(i, 0L);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return Long.toString(sum());
+    }
+}
@@ -0,0 +1,216 @@
+package es.us.lsi.hermes.openStreetMap;
+
+import java.util.Arrays;
+
+/**
+ * Cálculo de trayectos sobre una red de carreteras local, con el algoritmo A*
+ * y el tiempo de recorrido como coste: la longitud de cada tramo entre su
+ * límite de velocidad. La heurística es el tiempo que se tardaría en línea
+ * recta al mayor límite de velocidad de la red, así que el trayecto obtenido es
+ * el más rápido.
+ *
+ * El resultado tiene los mismos datos que la respuesta del servicio de
+ * simulación de OpenStreetMap, para que se procese igual. Se pueden calcular
+ * trayectos desde varios hilos a la vez: cada hilo tiene sus propios arrays de
+ * trabajo, que se reutilizan entre búsquedas.
+ */
+public final class OfflineRouter {
+
+    // Metros por grado de latitud, algo por debajo del valor real para que la heurística nunca supere la distancia de 'Util.distanceHaversine()'.
+    private static final double METERS_PER_DEGREE = 6371000.0d * Math.PI / 180.0d * 0.99d;
+
+    private final RoadNetwork network;
+    // Segundos por metro a la mayor velocidad de la red.
+    private final double minSecondsPerMeter;
+    private final ThreadLocal<Search> searches;
+
+    public OfflineRouter(final RoadNetwork network) {
+        this.network = network;
+        this.minSecondsPerMeter = 3.6d / network.getMaxSpeed();
+        this.searches = new ThreadLocal<Search>() {
+            @Override
+            protected Search initialValue() {
+                return new Search(network.getNodeCount());
+            }
+        };
+    }
+
+    public RoadNetwork getNetwork() {
+        return network;
+    }
+
+    /**
+     * Calcula el trayecto más rápido entre los nodos más cercanos al origen y
+     * al destino.
+     *
+     * @param originLat Latitud del origen.
+     * @param originLng Longitud del origen.
+     * @param destinationLat Latitud del destino.
+     * @param destinationLng Longitud del destino.
+     * @return Posiciones del trayecto, con el límite de velocidad del tramo por
+     * el que se llega a cada una, o nulo si no hay trayecto posible.
+     */
+    public SimulatedPath route(double originLat, double originLng, double destinationLat, double destinationLng) {
+        int origin = network.findNearestNode(originLat, originLng);
+        int destination = network.findNearestNode(destinationLat, destinationLng);
+        if (origin < 0 || destination < 0 || origin == destination) {
+            return null;
+        }
+
+        Search search = searches.get();
+        int[] edges = search.run(origin, destination);
+        if (edges == null) {
+            return null;
+        }
+
+        SimulatedPath.Builder builder = new SimulatedPath.Builder(edges.length + 1);
+        // La primera posición toma la velocidad del primer tramo.
+        builder.add(network.getLatitude(origin), network.getLongitude(origin), network.getEdgeSpeed(edges[0]));
+        for (int edge : edges) {
+            int target = network.getEdgeTarget(edge);
+            builder.add(network.getLatitude(target), network.getLongitude(target), network.getEdgeSpeed(edge));
+        }
+        return builder.build();
+    }
+
+    /**
+     * Arrays de trabajo de una búsqueda. Para no tener que limpiarlos en cada
+     * búsqueda, cada nodo guarda el número de la búsqueda en la que se
+     * alcanzó por última vez.
+     */
+    private final class Search {
+
+        private final double[] cost;
+        // Tramo por el que se llega a cada nodo y nodo de origen de ese tramo.
+        private final int[] parentEdge;
+        private final int[] parentNode;
+        private final int[] reached;
+        private final boolean[] settled;
+        private int searchId = 0;
+        // Montículo binario de nodos ordenados por coste estimado. Un nodo puede estar repetido si se ha mejorado su coste.
+        private double[] heapKeys = new double[1024];
+        private int[] heapNodes = new int[1024];
+        private int heapSize;
+        // Metros por grado de longitud en la búsqueda actual.
+        private double lngScale;
+
+        Search(int nodeCount) {
+            this.cost = new double[nodeCount];
+            this.parentEdge = new int[nodeCount];
+            this.parentNode = new int[nodeCount];
+            this.reached = new int[nodeCount];
+            this.settled = new boolean[nodeCount];
+        }
+
+        int[] run(int origin, int destination) {
+            searchId++;
+            heapSize = 0;
+            double destinationLat = network.getLatitude(destination);
+            double destinationLng = network.getLongitude(destination);
+            lngScale = METERS_PER_DEGREE * Math.cos(Math.toRadians(Math.max(Math.abs(network.getLatitude(origin)), Math.abs(destinationLat)) + 0.5d));
+
+            reach(origin, 0.0d, -1, -1);
+            push(heuristic(origin, destinationLat, destinationLng), origin);
+            while (heapSize > 0) {
+                int node = pop();
+                if (settled[node]) {
+                    continue;
+                }
+                settled[node] = true;
+                if (node == destination) {
+                    return buildPath(destination);
+                }
+                for (int edge = network.getFirstEdge(node); edge < network.getLastEdge(node); edge++) {
+                    int target = network.getEdgeTarget(edge);
+                    double newCost = cost[node] + network.getEdgeLength(edge) * 3.6d / network.getEdgeSpeed(edge);
+                    if (reached[target] != searchId) {
+                        reach(target, newCost, edge, node);
+                    } else if (!settled[target] && newCost < cost[target]) {
+                        cost[target] = newCost;
+                        parentEdge[target] = edge;
+                        parentNode[target] = node;
+                    } else {
+                        continue;
+                    }
+                    push(newCost + heuristic(target, destinationLat, destinationLng), target);
+                }
+            }
+            return null;
+        }
+
+        private void reach(int node, double nodeCost, int edge, int parent) {
+            reached[node] = searchId;
+            settled[node] = false;
+            cost[node] = nodeCost;
+            parentEdge[node] = edge;
+            parentNode[node] = parent;
+        }
+
+        private double heuristic(int node, double destinationLat, double destinationLng) {
+            double dy = (network.getLatitude(node) - destinationLat) * METERS_PER_DEGREE;
+            double dx = (network.getLongitude(node) - destinationLng) * lngScale;
+            return Math.sqrt(dx * dx + dy * dy) * minSecondsPerMeter;
+        }
+
+        private int[] buildPath(int destination) {
+            int length = 0;
+            for (int node = destination; parentEdge[node] >= 0; node = parentNode[node]) {
+                length++;
+            }
+            int[] edges = new int[length];
+            int node = destination;
+            for (int i = length - 1; i >= 0; i--) {
+                edges[i] = parentEdge[node];
+                node = parentNode[node];
+            }
+            return edges;
+        }
+
+        private void push(double key, int node) {
+            if (heapSize == heapKeys.length) {
+                heapKeys = Arrays.copyOf(heapKeys, heapSize * 2);
+                heapNodes = Arrays.copyOf(heapNodes, heapSize * 2);
+            }
+            int i = heapSize++;
+            while (i > 0) {
+                int parent = (i - 1) >>> 1;
+                if (heapKeys[parent] <= key) {
+                    break;
+                }
+                heapKeys[i] = heapKeys[parent];
+                heapNodes[i] = heapNodes[parent];
+                i = parent;
+            }
+            heapKeys[i] = key;
+            heapNodes[i] = node;
+        }
+
+        private int pop() {
+            int result = heapNodes[0];
+            heapSize--;
+            if (heapSize > 0) {
+                double key = heapKeys[heapSize];
+                int node = heapNodes[heapSize];
+                int i = 0;
+                while (true) {
+                    int child = 2 * i + 1;
+                    if (child >= heapSize) {
+                        break;
+                    }
+                    if (child + 1 < heapSize && heapKeys[child + 1] < heapKeys[child]) {
+                        child++;
+                    }
+                    if (key <= heapKeys[child]) {
+                        break;
+                    }
+                    heapKeys[i] = heapKeys[child];
+                    heapNodes[i] = heapNodes[child];
+                    i = child;
+                }
+                heapKeys[i] = key;
+                heapNodes[i] = node;
+            }
+            return result;
+        }
+    }
+}
@@ -0,0 +1,526 @@
+package es.us.lsi.hermes.openStreetMap;
+
+import es.us.lsi.hermes.util.Util;
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Red de carreteras obtenida de un extracto local de OpenStreetMap, para
+ * calcular trayectos sin depender de un servicio de rutas externo.
+ *
+ * El extracto se lee en formato XML ('.osm' u '.osm.gz') de forma secuencial,
+ * sin cargar el documento en memoria. Sólo se conservan los nodos de las vías
+ * por las que se puede circular en coche, y el grafo se guarda en arrays
+ * compactos: para cada nodo, la posición de su primer tramo de salida, y para
+ * cada tramo, el nodo de destino, la longitud en metros y el límite de
+ * velocidad en Km/h.
+ *
+ * Una vez cargada, la red es inmutable y se puede consultar desde varios hilos
+ * a la vez.
+ */
+public final class RoadNetwork {
+
+    private static final Logger LOG = Logger.getLogger(RoadNetwork.class.getName());
+
+    // Las coordenadas se guardan en diezmillonésimas de grado, como en OpenStreetMap.
+    private static final double COORDINATE_SCALE = 1e7d;
+    // Tamaño en grados de las celdas del índice espacial (unos 500 m de latitud).
+    private static final double CELL_SIZE = 0.005d;
+    // Número máximo de anillos de celdas alrededor del punto en los que se busca el nodo más cercano.
+    private static final int MAX_SEARCH_RINGS = 20;
+    // Velocidades mínima y máxima, en Km/h, que se asignarán a un tramo.
+    private static final int MIN_SPEED = 10;
+    private static final int MAX_SPEED = 140;
+
+    // Límite de velocidad por defecto de cada tipo de vía, cuando no se indica en 'maxspeed'.
+    private static final Map<String, Integer> DEFAULT_SPEEDS = new HashMap<>();
+
+    static {
+        DEFAULT_SPEEDS.put("motorway", 120);
+        DEFAULT_SPEEDS.put("motorway_link", 60);
+        DEFAULT_SPEEDS.put("trunk", 100);
+        DEFAULT_SPEEDS.put("trunk_link", 50);
+        DEFAULT_SPEEDS.put("primary", 70);
+        DEFAULT_SPEEDS.put("primary_link", 50);
+        DEFAULT_SPEEDS.put("secondary", 60);
+        DEFAULT_SPEEDS.put("secondary_link", 50);
+        DEFAULT_SPEEDS.put("tertiary", 50);
+        DEFAULT_SPEEDS.put("tertiary_link", 40);
+        DEFAULT_SPEEDS.put("unclassified", 40);
+        DEFAULT_SPEEDS.put("residential", 30);
+        DEFAULT_SPEEDS.put("living_street", 20);
+        DEFAULT_SPEEDS.put("service", 20);
+    }
+
+    // Coordenadas de cada nodo.
+    private final int[] latitudes;
+    private final int[] longitudes;
+    // Tramos de salida del nodo 'n': desde 'firstEdge[n]' hasta 'firstEdge[n + 1]' (excluido).
+    private final int[] firstEdge;
+    private final int[] edgeTarget;
+    private final float[] edgeLength;
+    private final byte[] edgeSpeed;
+    private final int maxSpeed;
+    // Índice espacial: nodos de cada celda.
+    private final Map<Long, int[]> cells;
+
+    private RoadNetwork(int[] latitudes, int[] longitudes, int[] firstEdge, int[] edgeTarget, float[] edgeLength, byte[] edgeSpeed) {
+        this.latitudes = latitudes;
+        this.longitudes = longitudes;
+        this.firstEdge = firstEdge;
+        this.edgeTarget = edgeTarget;
+        this.edgeLength = edgeLength;
+        this.edgeSpeed = edgeSpeed;
+        int max = MIN_SPEED;
+        for (byte speed : edgeSpeed) {
+            max = Math.max(max, speed & 0xff);
+        }
+        this.maxSpeed = max;
+        this.cells = buildCells();
+    }
+
+    /**
+     * Carga la red de carreteras de un extracto de OpenStreetMap en formato
+     * XML, comprimido con GZIP si el nombre termina en '.gz'.
+     *
+     * @param file Fichero del extracto.
+     * @return Red de carreteras.
+     * @throws IOException Si no se puede leer el fichero o no es un XML de
+     * OpenStreetMap válido.
+     */
+    public static RoadNetwork load(Path file) throws IOException {
+        long start = System.currentTimeMillis();
+        try (InputStream is = openStream(file)) {
+            XMLStreamReader reader = XMLInputFactory.newInstance().createXMLStreamReader(is);
+            try {
+                RoadNetwork network = new Loader().read(reader);
+                LOG.log(Level.INFO, "load() - Red de carreteras cargada de {0}: {1} nodos y {2} tramos en {3} ms", new Object[]{file, network.getNodeCount(), network.getEdgeCount(), System.currentTimeMillis() - start});
+                return network;
+            } finally {
+                reader.close();
+            }
+        } catch (XMLStreamException ex) {
+            throw new IOException("El extracto de OpenStreetMap no es válido: " + ex.getMessage(), ex);
+        }
+    }
+
+    private static InputStream openStream(Path file) throws IOException {
+        InputStream is = new BufferedInputStream(Files.newInputStream(file), 1 << 16);
+        if (file.getFileName().toString().endsWith(".gz")) {
+            is = new GZIPInputStream(is, 1 << 16);
+        }
+        return is;
+    }
+
+    public int getNodeCount() {
+        return latitudes.length;
+    }
+
+    public int getEdgeCount() {
+        return edgeTarget.length;
+    }
+
+    public double getLatitude(int node) {
+        return latitudes[node] / COORDINATE_SCALE;
+    }
+
+    public double getLongitude(int node) {
+        return longitudes[node] / COORDINATE_SCALE;
+    }
+
+    int getFirstEdge(int node) {
+        return firstEdge[node];
+    }
+
+    int getLastEdge(int node) {
+        return firstEdge[node + 1];
+    }
+
+    int getEdgeTarget(int edge) {
+        return edgeTarget[edge];
+    }
+
+    double getEdgeLength(int edge) {
+        return edgeLength[edge];
+    }
+
+    int getEdgeSpeed(int edge) {
+        return edgeSpeed[edge] & 0xff;
+    }
+
+    /**
+     * Mayor límite de velocidad de la red, en Km/h.
+     */
+    public int getMaxSpeed() {
+        return maxSpeed;
+    }
+
+    /**
+     * Obtiene el nodo con tramos de salida más cercano al punto indicado.
+     *
+     * @param latitude Latitud del punto.
+     * @param longitude Longitud del punto.
+     * @return Nodo más cercano o -1 si no hay ninguno a menos de unos 10 Km.
+     */
+    public int findNearestNode(double latitude, double longitude) {
+        long cellLat = (long) Math.floor(latitude / CELL_SIZE);
+        long cellLng = (long) Math.floor(longitude / CELL_SIZE);
+        int nearest = -1;
+        double nearestDistance = Double.MAX_VALUE;
+        for (int ring = 0; ring <= MAX_SEARCH_RINGS; ring++) {
+            for (long i = cellLat - ring; i <= cellLat + ring; i++) {
+                for (long j = cellLng - ring; j <= cellLng + ring; j++) {
+                    // Sólo las celdas del borde del anillo, las interiores ya se han visitado.
+                    if (Math.abs(i - cellLat) != ring && Math.abs(j - cellLng) != ring) {
+                        continue;
+                    }
+                    int[] nodes = cells.get(cellKey(i, j));
+                    if (nodes == null) {
+                        continue;
+                    }
+                    for (int node : nodes) {
+                        double d = Util.distanceHaversine(latitude, longitude, getLatitude(node), getLongitude(node));
+                        if (d < nearestDistance) {
+                            nearestDistance = d;
+                            nearest = node;
+                        }
+                    }
+                }
+            }
+            // Un nodo de un anillo más exterior aún podría estar más cerca, así que se busca en uno más.
+            if (nearest >= 0 && nearestDistance <= ring * CELL_SIZE * 111000.0d * Math.cos(Math.toRadians(latitude))) {
+                break;
+            }
+        }
+        return nearest;
+    }
+
+    private Map<Long, int[]> buildCells() {
+        Map<Long, int[]> counts = new HashMap<>();
+        for (int node = 0; node < latitudes.length; node++) {
+            if (firstEdge[node] == firstEdge[node + 1]) {
+                continue;
+            }
+            Long key = cellKey(getLatitude(node), getLongitude(node));
+            int[] count = counts.get(key);
+            if (count == null) {
+                count = new int[1];
+                counts.put(key, count);
+            }
+            count[0]++;
+        }
+        Map<Long, int[]> result = new HashMap<>(counts.size() * 2);
+        for (Map.Entry<Long, int[]> entry : counts.entrySet()) {
+            result.put(entry.getKey(), new int[entry.getValue()[0]]);
+            entry.getValue()[0] = 0;
+        }
+        for (int node = 0; node < latitudes.length; node++) {
+            if (firstEdge[node] == firstEdge[node + 1]) {
+                continue;
+            }
+            Long key = cellKey(getLatitude(node), getLongitude(node));
+            result.get(key)[counts.get(key)[0]++] = node;
+        }
+        return result;
+    }
+
+    private static long cellKey(double latitude, double longitude) {
+        return cellKey((long) Math.floor(latitude / CELL_SIZE), (long) Math.floor(longitude / CELL_SIZE));
+    }
+
+    private static long cellKey(long cellLat, long cellLng) {
+        return (cellLat << 32) | (cellLng & 0xffffffffL);
+    }
+
+    /**
+     * Límite de velocidad de una vía, a partir de sus etiquetas 'maxspeed' y
+     * 'highway'.
+     */
+    static int parseSpeed(String maxspeed, String highway) {
+        int speed = -1;
+        if (maxspeed != null) {
+            String value = maxspeed.trim().toLowerCase();
+            // Puede haber varios valores, por ejemplo '50;30'. Nos quedamos con el primero.
+            int separator = value.indexOf(';');
+            if (separator >= 0) {
+                value = value.substring(0, separator).trim();
+            }
+            boolean mph = value.endsWith("mph");
+            if (mph) {
+                value = value.substring(0, value.length() - 3).trim();
+            } else if (value.endsWith("km/h")) {
+                value = value.substring(0, value.length() - 4).trim();
+            }
+            try {
+                speed = (int) Math.round(Double.parseDouble(value) * (mph ? 1.609344d : 1.0d));
+            } catch (NumberFormatException ex) {
+                // Valores como 'ES:urban' o 'none': se usa el del tipo de vía.
+            }
+        }
+        if (speed <= 0) {
+            Integer defaultSpeed = DEFAULT_SPEEDS.get(highway);
+            speed = defaultSpeed != null ? defaultSpeed : 30;
+        }
+        // Se redondea a múltiplos de 10, que son los límites de velocidad que se muestran en el mapa.
+        speed = (int) Math.round(speed / 10.0d) * 10;
+        return Math.max(MIN_SPEED, Math.min(MAX_SPEED, speed));
+    }
+
+    /**
+     * Lectura del XML de OpenStreetMap. Los nodos de OpenStreetMap aparecen
+     * antes que las vías, así que se guardan todos y, al final, sólo se
+     * conservan los que forman parte de alguna vía.
+     */
+    private static final class Loader {
+
+        // Identificador de OpenStreetMap de cada nodo leído a su índice.
+        private final LongIntHashMap osmNodes = new LongIntHashMap(1 << 16);
+        private int[] nodeLat = new int[1 << 16];
+        private int[] nodeLng = new int[1 << 16];
+        private int nodeCount = 0;
+
+        // Tramos en ambos sentidos o en uno solo, con los índices de los nodos leídos.
+        private int[] edgeFrom = new int[1 << 16];
+        private int[] edgeTo = new int[1 << 16];
+        private byte[] edgeSpeed = new byte[1 << 16];
+        private int edgeCount = 0;
+
+        // Vía actual.
+        private long[] wayRefs = new long[256];
+        private int wayRefCount;
+        private String highway;
+        private String maxspeed;
+        private String oneway;
+        private String junction;
+
+        RoadNetwork read(XMLStreamReader reader) throws XMLStreamException {
+            boolean inWay = false;
+            while (reader.hasNext()) {
+                int event = reader.next();
+                if (event == XMLStreamConstants.START_ELEMENT) {
+                    String name = reader.getLocalName();
+                    if ("node".equals(name)) {
+                        addNode(reader);
+                    } else if ("way".equals(name)) {
+                        inWay = true;
+                        wayRefCount = 0;
+                        highway = null;
+                        maxspeed = null;
+                        oneway = null;
+                        junction = null;
+                    } else if (inWay && "nd".equals(name)) {
+                        if (wayRefCount == wayRefs.length) {
+                            wayRefs = Arrays.copyOf(wayRefs, wayRefCount * 2);
+                        }
+                        wayRefs[wayRefCount++] = Long.parseLong(reader.getAttributeValue(null, "ref"));
+                    } else if (inWay && "tag".equals(name)) {
+                        readWayTag(reader.getAttributeValue(null, "k"), reader.getAttributeValue(null, "v"));
+                    } else if ("relation".equals(name)) {
+                        // Las relaciones van al final y no se usan.
+                        break;
+                    }
+                } else if (event == XMLStreamConstants.END_ELEMENT && inWay && "way".equals(reader.getLocalName())) {
+                    inWay = false;
+                    addWay();
+                }
+            }
+            return build();
+        }
+
+        private void addNode(XMLStreamReader reader) {
+            long id = Long.parseLong(reader.getAttributeValue(null, "id"));
+            String lat = reader.getAttributeValue(null, "lat");
+            String lon = reader.getAttributeValue(null, "lon");
+            if (lat == null || lon == null) {
+                return;
+            }
+            if (nodeCount == nodeLat.length) {
+                nodeLat = Arrays.copyOf(nodeLat, nodeCount * 2);
+                nodeLng = Arrays.copyOf(nodeLng, nodeCount * 2);
+            }
+            nodeLat[nodeCount] = (int) Math.round(Double.parseDouble(lat) * COORDINATE_SCALE);
+            nodeLng[nodeCount] = (int) Math.round(Double.parseDouble(lon) * COORDINATE_SCALE);
+            osmNodes.put(id, nodeCount++);
+        }
+
+        private void readWayTag(String key, String value) {
+            if ("highway".equals(key)) {
+                highway = value;
+            } else if ("maxspeed".equals(key)) {
+                maxspeed = value;
+            } else if ("oneway".equals(key)) {
+                oneway = value;
+            } else if ("junction".equals(key)) {
+                junction = value;
+            } else if (("access".equals(key) || "motor_vehicle".equals(key)) && ("no".equals(value) || "private".equals(value))) {
+                // Vía por la que no se puede circular.
+                highway = null;
+            }
+        }
+
+        private void addWay() {
+            if (highway == null || !DEFAULT_SPEEDS.containsKey(highway) || wayRefCount < 2) {
+                return;
+            }
+            int speed = parseSpeed(maxspeed, highway);
+            boolean forward = true;
+            boolean backward = true;
+            if ("-1".equals(oneway) || "reverse".equals(oneway)) {
+                forward = false;
+            } else if ("yes".equals(oneway) || "true".equals(oneway) || "1".equals(oneway)
+                    || (oneway == null && ("roundabout".equals(junction) || "circular".equals(junction) || "motorway".equals(highway) || "motorway_link".equals(highway)))) {
+                backward = false;
+            }
+            int previous = osmNodes.get(wayRefs[0]);
+            for (int i = 1; i < wayRefCount; i++) {
+                int current = osmNodes.get(wayRefs[i]);
+                // Puede que el extracto no incluya todos los nodos de las vías que lo cruzan.
+                if (previous >= 0 && current >= 0 && previous != current) {
+                    if (forward) {
+                        addEdge(previous, current, speed);
+                    }
+                    if (backward) {
+                        addEdge(current, previous, speed);
+                    }
+                }
+                previous = current;
+            }
+        }
+
+        private void addEdge(int from, int to, int speed) {
+            if (edgeCount == edgeFrom.length) {
+                edgeFrom = Arrays.copyOf(edgeFrom, edgeCount * 2);
+                edgeTo = Arrays.copyOf(edgeTo, edgeCount * 2);
+                edgeSpeed = Arrays.copyOf(edgeSpeed, edgeCount * 2);
+            }
+            edgeFrom[edgeCount] = from;
+            edgeTo[edgeCount] = to;
+            edgeSpeed[edgeCount] = (byte) speed;
+            edgeCount++;
+        }
+
+        private RoadNetwork build() {
+            // Nuevo índice de los nodos que forman parte de algún tramo.
+            int[] graphNode = new int[nodeCount];
+            Arrays.fill(graphNode, -1);
+            int graphNodeCount = 0;
+            for (int e = 0; e < edgeCount; e++) {
+                if (graphNode[edgeFrom[e]] < 0) {
+                    graphNode[edgeFrom[e]] = graphNodeCount++;
+                }
+                if (graphNode[edgeTo[e]] < 0) {
+                    graphNode[edgeTo[e]] = graphNodeCount++;
+                }
+            }
+            int[] latitudes = new int[graphNodeCount];
+            int[] longitudes = new int[graphNodeCount];
+            for (int n = 0; n < nodeCount; n++) {
+                if (graphNode[n] >= 0) {
+                    latitudes[graphNode[n]] = nodeLat[n];
+                    longitudes[graphNode[n]] = nodeLng[n];
+                }
+            }
+
+            // Tramos ordenados por nodo de origen.
+            int[] firstEdge = new int[graphNodeCount + 1];
+            for (int e = 0; e < edgeCount; e++) {
+                firstEdge[graphNode[edgeFrom[e]] + 1]++;
+            }
+            for (int n = 0; n < graphNodeCount; n++) {
+                firstEdge[n + 1] += firstEdge[n];
+            }
+            int[] next = Arrays.copyOf(firstEdge, graphNodeCount);
+            int[] target = new int[edgeCount];
+            float[] length = new float[edgeCount];
+            byte[] speed = new byte[edgeCount];
+            for (int e = 0; e < edgeCount; e++) {
+                int from = graphNode[edgeFrom[e]];
+                int to = graphNode[edgeTo[e]];
+                int position = next[from]++;
+                target[position] = to;
+                length[position] = (float) Util.distanceHaversine(latitudes[from] / COORDINATE_SCALE, longitudes[from] / COORDINATE_SCALE, latitudes[to] / COORDINATE_SCALE, longitudes[to] / COORDINATE_SCALE);
+                speed[position] = edgeSpeed[e];
+            }
+            return new RoadNetwork(latitudes, longitudes, firstEdge, target, length, speed);
+        }
+    }
+
+    /**
+     * Tabla hash de 'long' a 'int' con direccionamiento abierto, para no crear
+     * un objeto por cada nodo del extracto.
+     */
+    private static final class LongIntHashMap {
+
+        private long[] keys;
+        private int[] values;
+        private boolean[] used;
+        private int size;
+
+        LongIntHashMap(int capacity) {
+            int c = Integer.highestOneBit(Math.max(capacity, 16) - 1) << 1;
+            keys = new long[c];
+            values = new int[c];
+            used = new boolean[c];
+        }
+
+        void put(long key, int value) {
+            if (size * 2 >= keys.length) {
+                resize();
+            }
+            int i = index(key, keys.length);
+            while (used[i] && keys[i] != key) {
+                i = (i + 1) & (keys.length - 1);
+            }
+            if (!used[i]) {
+                used[i] = true;
+                keys[i] = key;
+                size++;
+            }
+            values[i] = value;
+        }
+
+        int get(long key) {
+            int i = index(key, keys.length);
+            while (used[i]) {
+                if (keys[i] == key) {
+                    return values[i];
+                }
+                i = (i + 1) & (keys.length - 1);
+            }
+            return -1;
+        }
+
+        private void resize() {
+            long[] oldKeys = keys;
+            int[] oldValues = values;
+            boolean[] oldUsed = used;
+            keys = new long[oldKeys.length * 2];
+            values = new int[oldKeys.length * 2];
+            used = new boolean[oldKeys.length * 2];
+            size = 0;
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldUsed[i]) {
+                    put(oldKeys[i], oldValues[i]);
+                }
+            }
+        }
+
+        private static int index(long key, int length) {
+            long h = key * 0x9E3779B97F4A7C15L;
+            return (int) (h >>> 32) & (length - 1);
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package es.us.lsi.hermes.openStreetMap;
+
+import java.util.Arrays;
+
+/**
+ * Posiciones de un trayecto con el límite de velocidad de cada una, tal como
+ * las devuelve el servicio de simulación de OpenStreetMap o el cálculo de
+ * trayectos sin conexión.
+ *
+ * Equivale a una lista de 'PositionSimulatedSpeed', pero guardada en arrays,
+ * sin un objeto por posición.
+ */
+public final class SimulatedPath {
+
+    private final double[] latitudes;
+    private final double[] longitudes;
+    private final double[] speeds;
+    private final int size;
+
+    private SimulatedPath(double[] latitudes, double[] longitudes, double[] speeds, int size) {
+        this.latitudes = latitudes;
+        this.longitudes = longitudes;
+        this.speeds = speeds;
+        this.size = size;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public double getLatitude(int index) {
+        return latitudes[index];
+    }
+
+    public double getLongitude(int index) {
+        return longitudes[index];
+    }
+
+    /**
+     * Límite de velocidad en la posición indicada, en Km/h.
+     */
+    public double getSpeed(int index) {
+        return speeds[index];
+    }
+
+    /**
+     * Construcción incremental de un 'SimulatedPath'.
+     */
+    public static final class Builder {
+
+        private double[] latitudes;
+        private double[] longitudes;
+        private double[] speeds;
+        private int size;
+
+        public Builder() {
+            this(64);
+        }
+
+        public Builder(int expectedSize) {
+            int capacity = Math.max(expectedSize, 2);
+            this.latitudes = new double[capacity];
+            this.longitudes = new double[capacity];
+            this.speeds = new double[capacity];
+            this.size = 0;
+        }
+
+        public Builder add(double latitude, double longitude, double speed) {
+            if (size == latitudes.length) {
+                int capacity = size * 2;
+                latitudes = Arrays.copyOf(latitudes, capacity);
+                longitudes = Arrays.copyOf(longitudes, capacity);
+                speeds = Arrays.copyOf(speeds, capacity);
+            }
+            latitudes[size] = latitude;
+            longitudes[size] = longitude;
+            speeds[size] = speed;
+            size++;
+            return this;
+        }
+
+        public SimulatedPath build() {
+            return new SimulatedPath(latitudes, longitudes, speeds, size);
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package es.us.lsi.hermes.openStreetMap;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Lectura de las respuestas del servicio de simulación de OpenStreetMap sin
+ * construir una lista de 'PositionSimulatedSpeed'.
+ *
+ * Se recorre el JSON directamente del 'InputStream' y cada posición se añade a
+ * un 'SimulatedPath'. Las posiciones sin coordenadas o sin velocidad se
+ * descartan, igual que al construir el trayecto a partir de la lista.
+ */
+public final class SimulatedPathReader {
+
+    private SimulatedPathReader() {
+    }
+
+    /**
+     * Lee las posiciones de una respuesta del servicio de simulación.
+     *
+     * @param is Respuesta en JSON, en UTF-8. No se cierra.
+     * @return Posiciones del trayecto. Puede estar vacío.
+     * @throws IOException Si no se puede leer o no es un JSON válido.
+     */
+    public static SimulatedPath read(InputStream is) throws IOException {
+        JsonReader reader = new JsonReader(new InputStreamReader(is, StandardCharsets.UTF_8));
+        SimulatedPath.Builder builder = new SimulatedPath.Builder(256);
+        reader.beginArray();
+        while (reader.hasNext()) {
+            readPosition(reader, builder);
+        }
+        reader.endArray();
+        return builder.build();
+    }
+
+    private static void readPosition(JsonReader reader, SimulatedPath.Builder builder) throws IOException {
+        double speed = Double.NaN;
+        double latitude = Double.NaN;
+        double longitude = Double.NaN;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if ("speed".equals(name) && reader.peek() == JsonToken.NUMBER) {
+                speed = reader.nextDouble();
+            } else if ("position".equals(name) && reader.peek() == JsonToken.BEGIN_OBJECT) {
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    if ("coordinates".equals(reader.nextName()) && reader.peek() == JsonToken.BEGIN_ARRAY) {
+                        // Como en GeoJSON, primero la longitud y después la latitud.
+                        reader.beginArray();
+                        if (reader.hasNext()) {
+                            longitude = reader.nextDouble();
+                        }
+                        if (reader.hasNext()) {
+                            latitude = reader.nextDouble();
+                        }
+                        while (reader.hasNext()) {
+                            reader.skipValue();
+                        }
+                        reader.endArray();
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+                reader.endObject();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        if (!Double.isNaN(speed) && !Double.isNaN(latitude) && !Double.isNaN(longitude)) {
+            builder.add(latitude, longitude, speed);
+        }
+    }
+}
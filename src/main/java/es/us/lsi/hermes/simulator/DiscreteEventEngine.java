@@ -0,0 +1,224 @@
+package es.us.lsi.hermes.simulator;
+
+import es.us.lsi.hermes.analysis.LatencyHistogram;
+import java.util.PriorityQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Motor de simulación por eventos discretos. El tiempo de la simulación es
+ * independiente del reloj del sistema: un único hilo toma de una cola de
+ * prioridad el siguiente SmartDriver que debe despertar, adelanta el reloj
+ * virtual hasta ese instante y ejecuta su 'run()'. No hay esperas entre
+ * ejecuciones, de modo que la simulación avanza tan rápido como el servidor de
+ * tramas acepte los envíos.
+ */
+public class DiscreteEventEngine implements ISimulationEngine {
+
+    private static final Logger LOG = Logger.getLogger(DiscreteEventEngine.class.getName());
+
+    // Cada ejecución de un SmartDriver equivale a un segundo de simulación.
+    private static final long TICK_MS = 1000;
+
+    // Cada cuánto tiempo de simulación se informa del avance, en milisegundos.
+    private static final long PROGRESS_REPORT_INTERVAL_MS = TimeUnit.MINUTES.toMillis(10);
+
+    // Sólo se accede desde el hilo del motor.
+    private final PriorityQueue<WakeUp> wakeUps;
+    // Los SmartDrivers nuevos se reciben por esta cola y se incorporan en la siguiente iteración.
+    private final LinkedBlockingQueue<WakeUp> incoming;
+    private final ExecutorService executor;
+    private final AtomicInteger activeSmartDrivers;
+    // Para mantener el orden de inserción entre SmartDrivers que despiertan en el mismo instante.
+    private final AtomicLong sequence;
+    // Siempre vacío: con el reloj virtual cada SmartDriver se ejecuta exactamente en su instante.
+    private final LatencyHistogram schedulingLag;
+    // Siempre vacío: no hay 'ticks', cada SmartDriver se ejecuta por separado.
+    private final LatencyHistogram tickDuration;
+    private final LatencyHistogram runDuration;
+
+    private volatile long virtualTime;
+    private volatile boolean running;
+    private long origin;
+
+    public DiscreteEventEngine() {
+        this.wakeUps = new PriorityQueue<>();
+        this.incoming = new LinkedBlockingQueue<>();
+        this.executor = Executors.newSingleThreadExecutor();
+        this.activeSmartDrivers = new AtomicInteger(0);
+        this.sequence = new AtomicLong(0);
+        this.schedulingLag = new LatencyHistogram();
+        this.tickDuration = new LatencyHistogram();
+        this.runDuration = new LatencyHistogram();
+        this.virtualTime = System.currentTimeMillis();
+        this.running = false;
+    }
+
+    @Override
+    public synchronized void start() {
+        if (!running) {
+            running = true;
+            origin = System.currentTimeMillis();
+            virtualTime = origin;
+            LOG.log(Level.INFO, "start() - Se inicia el motor de simulación por eventos discretos con {0} SmartDrivers", activeSmartDrivers.get());
+            executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    loop();
+                }
+            });
+        }
+    }
+
+    @Override
+    public void schedule(SimulatedSmartDriver ssd, long initialDelayMs) {
+        activeSmartDrivers.incrementAndGet();
+        incoming.add(new WakeUp(ssd, initialDelayMs, sequence.getAndIncrement()));
+    }
+
+    private void loop() {
+        long nextProgressReport = origin + PROGRESS_REPORT_INTERVAL_MS;
+        long wallStart = System.currentTimeMillis();
+
+        try {
+            while (running && !Thread.currentThread().isInterrupted()) {
+                drainIncoming();
+
+                WakeUp wakeUp = wakeUps.poll();
+                if (wakeUp == null) {
+                    // No hay nada que ejecutar. Esperamos a que se añada algún SmartDriver o a que se pare el motor.
+                    WakeUp newWakeUp = incoming.poll(100, TimeUnit.MILLISECONDS);
+                    if (newWakeUp != null) {
+                        addWakeUp(newWakeUp);
+                    }
+                    continue;
+                }
+
+                virtualTime = wakeUp.time;
+
+                boolean remove = false;
+                long runStart = System.nanoTime();
+                try {
+                    wakeUp.ssd.run();
+                } catch (RuntimeException ex) {
+                    remove = true;
+                    if (!wakeUp.ssd.isFinished()) {
+                        LOG.log(Level.SEVERE, "loop() - Error en la ejecución del SmartDriver: " + wakeUp.ssd.getSha() + ". Se retira de la simulación", ex);
+                    }
+                }
+                runDuration.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - runStart));
+
+                if (remove || wakeUp.ssd.isFinished()) {
+                    activeSmartDrivers.decrementAndGet();
+                } else {
+                    wakeUp.time += TICK_MS;
+                    wakeUps.add(wakeUp);
+                }
+
+                if (virtualTime >= nextProgressReport) {
+                    LOG.log(Level.INFO, "loop() - Tiempo de simulación: {0} s en {1} s reales. SmartDrivers activos: {2}", new Object[]{(virtualTime - origin) / 1000, (System.currentTimeMillis() - wallStart) / 1000, activeSmartDrivers.get()});
+                    nextProgressReport += PROGRESS_REPORT_INTERVAL_MS;
+                }
+            }
+        } catch (InterruptedException ex) {
+            LOG.log(Level.INFO, "loop() - Se interrumpe el motor de simulación por eventos discretos");
+        }
+    }
+
+    private void drainIncoming() {
+        WakeUp wakeUp;
+        while ((wakeUp = incoming.poll()) != null) {
+            addWakeUp(wakeUp);
+        }
+    }
+
+    private void addWakeUp(WakeUp wakeUp) {
+        // El retraso es relativo al inicio de la simulación. Si se añade más tarde, empieza en el instante actual.
+        wakeUp.time = Math.max(virtualTime, origin + wakeUp.time);
+        wakeUps.add(wakeUp);
+    }
+
+    @Override
+    public void shutdownNow() {
+        running = false;
+        executor.shutdownNow();
+    }
+
+    @Override
+    public int getActiveSmartDrivers() {
+        return activeSmartDrivers.get();
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return activeSmartDrivers.get() == 0;
+    }
+
+    @Override
+    public long getOverruns() {
+        // Sin reloj real no hay 'ticks' que lleguen tarde.
+        return 0;
+    }
+
+    @Override
+    public long currentTimeMillis() {
+        return virtualTime;
+    }
+
+    @Override
+    public boolean isVirtualTime() {
+        return true;
+    }
+
+    @Override
+    public LatencyHistogram getSchedulingLag() {
+        return schedulingLag;
+    }
+
+    @Override
+    public LatencyHistogram getTickDuration() {
+        return tickDuration;
+    }
+
+    @Override
+    public LatencyHistogram getRunDuration() {
+        return runDuration;
+    }
+
+    @Override
+    public long getBehindMillis() {
+        // Con el reloj virtual el motor nunca va por detrás.
+        return 0;
+    }
+
+    /**
+     * Próxima ejecución de un SmartDriver.
+     */
+    private static class WakeUp implements Comparable<WakeUp> {
+
+        private final SimulatedSmartDriver ssd;
+        private final long sequence;
+        // Mientras está en la cola de entrada, es el retraso inicial. Después, el instante de simulación en que debe despertar.
+        private long time;
+
+        WakeUp(SimulatedSmartDriver ssd, long time, long sequence) {
+            this.ssd = ssd;
+            this.time = time;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public int compareTo(WakeUp o) {
+            if (time != o.time) {
+                return time < o.time ? -1 : 1;
+            }
+            return sequence < o.sequence ? -1 : (sequence == o.sequence ? 0 : 1);
+        }
+    }
+}
@@ -0,0 +1,451 @@
+package es.us.lsi.hermes.simulator;
+
+import es.us.lsi.hermes.simulator.kafka.ExtendedEventSerializer;
+import es.us.lsi.hermes.simulator.kafka.KafkaProducerPool;
+import es.us.lsi.hermes.simulator.ztreamy.ZtreamyCallback;
+import es.us.lsi.hermes.simulator.ztreamy.ZtreamyPublisherPool;
+import java.net.HttpURLConnection;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.apache.kafka.clients.producer.Callback;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.clients.producer.RecordMetadata;
+import org.apache.kafka.common.errors.RecordTooLargeException;
+
+/**
+ * Agrupación de los eventos de todos los SmartDrivers antes de enviarlos al
+ * servidor de tramas.
+ *
+ * Los eventos de cada 'topic' se acumulan hasta que se alcanza un número
+ * máximo de eventos o de bytes, o pasa un tiempo máximo, y entonces se envían
+ * todos juntos: en un único registro de Kafka o en una única publicación de
+ * Ztreamy. El resultado del envío se contabiliza por cada evento, igual que si
+ * se hubieran enviado por separado, y se notifica a cada SmartDriver el de los
+ * suyos. Si Kafka rechaza un lote por demasiado grande, se divide en dos.
+ *
+ * Una vez cerrada, los eventos que se añadan, o los que no se hayan podido
+ * enviar, se cuentan como no reenviados finalmente.
+ */
+public class EventBatcher {
+
+    private static final Logger LOG = Logger.getLogger(EventBatcher.class.getName());
+
+    /**
+     * Recibe la confirmación de los eventos de un SmartDriver que se han
+     * enviado correctamente.
+     */
+    public interface DeliveryListener {
+
+        /**
+         * Se invoca cuando el lote que contenía el evento se ha enviado
+         * correctamente.
+         *
+         * @param event Evento enviado.
+         * @param delay Tiempo en milisegundos desde que se envió el lote, o
+         * desde el instante de inicio del evento si lo tenía, hasta que se
+         * confirmó.
+         * @param batchSize Número de bytes del lote. Será -1 si no se conoce.
+         */
+        void onDelivered(ExtendedEvent event, long delay, int batchSize);
+    }
+
+    private final int streamServer;
+    private final KafkaProducerPool kafkaProducerPool;
+    private final ZtreamyPublisherPool ztreamyPublisherPool;
+    private final long window;
+    private final int maxEvents;
+    private final int maxBytes;
+    // Para calcular el tamaño de los eventos, con el formato con el que se enviarán.
+    private final ExtendedEventSerializer sizeSerializer;
+
+    private final ConcurrentMap<String, Batch> batches;
+    // Hilo que envía los lotes, tanto los que se llenan como los que cumplen su tiempo máximo.
+    private final ScheduledExecutorService sender;
+    private volatile boolean closed;
+
+    /**
+     * Constructor de la agrupación de eventos.
+     *
+     * @param streamServer Servidor de tramas: 0 para Kafka y 1 para Ztreamy.
+     * @param kafkaProducerPool 'Producers' de Kafka de la simulación. Sólo se
+     * usa si el servidor de tramas es Kafka.
+     * @param ztreamyPublisherPool Publicación en Ztreamy de la simulación.
+     * Sólo se usa si el servidor de tramas es Ztreamy.
+     * @param window Tiempo máximo en milisegundos que se acumulan los eventos.
+     * @param maxEvents Número máximo de eventos de un lote.
+     * @param maxBytes Número máximo de bytes de los eventos serializados de un
+     * lote. Si es 0, no se limita.
+     */
+    public EventBatcher(int streamServer, KafkaProducerPool kafkaProducerPool, ZtreamyPublisherPool ztreamyPublisherPool, long window, int maxEvents, int maxBytes) {
+        this.streamServer = streamServer;
+        this.kafkaProducerPool = kafkaProducerPool;
+        this.ztreamyPublisherPool = ztreamyPublisherPool;
+        this.window = Math.max(window, 1L);
+        this.maxEvents = Math.max(maxEvents, 1);
+        this.maxBytes = Math.max(maxBytes, 0);
+        // Ztreamy recibe los eventos en JSON.
+        this.sizeSerializer = streamServer == 0 ? kafkaProducerPool.getSerializer() : new ExtendedEventSerializer(ExtendedEventSerializer.Format.JSON);
+        this.batches = new ConcurrentHashMap<>();
+        this.sender = Executors.newSingleThreadScheduledExecutor();
+        this.closed = false;
+    }
+
+    public void start() {
+        sender.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                flushAll();
+            }
+        }, window, window, TimeUnit.MILLISECONDS);
+        LOG.log(Level.INFO, "start() - Los eventos se enviarán en lotes de hasta {0} eventos y {1} bytes o cada {2}ms", new Object[]{maxEvents, maxBytes, window});
+    }
+
+    /**
+     * Añade un evento al lote de su 'topic'. Si el lote se llena, se envía. Si
+     * ya se ha cerrado, el evento se cuenta como no reenviado finalmente.
+     *
+     * @param topic 'Topic' de Kafka del evento.
+     * @param event Evento a enviar.
+     * @param listener Se le notificará si el evento se envía correctamente.
+     * @param intendedTime Instante desde el que se mide el retraso del evento.
+     * Si es 0, se mide desde que se envía el lote.
+     */
+    public void add(String topic, ExtendedEvent event, DeliveryListener listener, long intendedTime) {
+        if (closed) {
+            SimulatorController.addFinallyPending(streamServer, SimulatedSmartDriver.Event_Type.fromTopic(topic), 1);
+            return;
+        }
+
+        Batch batch = batches.get(topic);
+        if (batch == null) {
+            Batch newBatch = new Batch(topic);
+            batch = batches.putIfAbsent(topic, newBatch);
+            if (batch == null) {
+                batch = newBatch;
+            }
+        }
+
+        int size = maxBytes > 0 ? sizeSerializer.serializedSize(event) + 1 : 0;
+        Entries full = batch.add(event, listener, intendedTime, size, maxEvents, maxBytes);
+        if (full != null) {
+            if (full.rejected) {
+                // Se ha cerrado mientras se añadía.
+                finallyPending(full);
+            } else {
+                submit(full);
+            }
+        }
+    }
+
+    private void submit(Entries entries) {
+        try {
+            sender.execute(new SendTask(entries));
+        } catch (RejectedExecutionException ex) {
+            // Ya se ha cerrado.
+            finallyPending(entries);
+        }
+    }
+
+    /**
+     * Envía los eventos pendientes y detiene el envío de lotes. Debe llamarse
+     * cuando los SmartDrivers ya no generen eventos. Los que se añadan después
+     * no se envían.
+     */
+    public void close() {
+        closed = true;
+        try {
+            sender.execute(new Runnable() {
+                @Override
+                public void run() {
+                    // Último envío de cada lote. Los eventos que lleguen después se rechazan.
+                    for (Batch batch : batches.values()) {
+                        Entries entries = batch.close();
+                        if (entries != null) {
+                            send(entries);
+                        }
+                    }
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            // Ya estaba cerrado.
+        }
+        sender.shutdown();
+        try {
+            if (!sender.awaitTermination(30, TimeUnit.SECONDS)) {
+                LOG.log(Level.WARNING, "close() - No se han terminado de enviar los últimos lotes de eventos");
+                shutdownSender();
+            }
+        } catch (InterruptedException ex) {
+            shutdownSender();
+            Thread.currentThread().interrupt();
+        }
+
+        // Lotes que no han llegado a enviarse porque se ha agotado la espera.
+        for (Batch batch : batches.values()) {
+            Entries entries = batch.close();
+            if (entries != null) {
+                finallyPending(entries);
+            }
+        }
+    }
+
+    private void shutdownSender() {
+        for (Runnable task : sender.shutdownNow()) {
+            if (task instanceof SendTask) {
+                finallyPending(((SendTask) task).entries);
+            }
+        }
+    }
+
+    private void flushAll() {
+        for (Batch batch : batches.values()) {
+            Entries entries = batch.drain();
+            if (entries != null) {
+                send(entries);
+            }
+        }
+    }
+
+    private void send(Entries entries) {
+        ExtendedEvent[] events = entries.events.toArray(new ExtendedEvent[entries.events.size()]);
+        switch (streamServer) {
+            case 0:
+                // Kafka
+                try {
+                    long id = kafkaProducerPool.nextRecordId();
+                    // Los lotes tienen eventos de muchos SmartDrivers, así que se reparten entre los 'producers' por su identificador.
+                    kafkaProducerPool.getProducer(Long.toString(id)).send(new ProducerRecord<>(entries.topic,
+                            id,
+                            events
+                    ), new BatchCallBack(System.currentTimeMillis(), entries));
+                } catch (RecordTooLargeException ex) {
+                    tooLarge(entries, ex);
+                } catch (Exception ex) {
+                    LOG.log(Level.SEVERE, "send() - Error: {0} - No se ha podido enviar el lote de {1} eventos a Kafka", new Object[]{ex.getMessage(), events.length});
+                    failed(entries, false);
+                    SimulatorController.logCurrentStatus();
+                }
+                break;
+            case 1:
+                // Ztreamy
+                ztreamyPublisherPool.publish(events, new BatchZtreamyCallBack(System.currentTimeMillis(), entries));
+                break;
+            default:
+                throw new IllegalArgumentException("Invalid Stream Server option");
+        }
+    }
+
+    // Kafka no admite lotes tan grandes. Se envían las dos mitades por separado en lugar de reintentar el lote completo, que volvería a fallar.
+    private void tooLarge(Entries entries, RecordTooLargeException ex) {
+        if (entries.events.size() > 1) {
+            LOG.log(Level.WARNING, "tooLarge() - El lote de {0} eventos es demasiado grande para Kafka. Se divide en dos", entries.events.size());
+            int half = entries.events.size() / 2;
+            submit(entries.subList(0, half));
+            submit(entries.subList(half, entries.events.size()));
+        } else {
+            // Un único evento demasiado grande no se podrá enviar nunca, así que no se reintenta.
+            LOG.log(Level.SEVERE, "tooLarge() - Error: {0} - El evento es demasiado grande para Kafka", ex.getMessage());
+            SimulatedSmartDriver.Event_Type type = SimulatedSmartDriver.Event_Type.fromTopic(entries.topic);
+            SimulatorController.increaseErrors(streamServer, type);
+            SimulatorController.addFinallyPending(streamServer, type, 1);
+        }
+    }
+
+    private void finallyPending(Entries entries) {
+        SimulatorController.addFinallyPending(streamServer, SimulatedSmartDriver.Event_Type.fromTopic(entries.topic), entries.events.size());
+    }
+
+    private void delivered(Entries entries, long delay, int batchSize) {
+        SimulatedSmartDriver.Event_Type type = SimulatedSmartDriver.Event_Type.fromTopic(entries.topic);
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < entries.events.size(); i++) {
+            // El retraso de cada evento es el de su lote, salvo que tenga su propio instante de inicio.
+            long eventDelay = entries.intendedTimes[i] > 0 ? now - entries.intendedTimes[i] : delay;
+            SimulatorController.recordDelay(type, eventDelay);
+            SimulatorController.increaseOkSends(streamServer, type);
+            DeliveryListener listener = entries.listeners.get(i);
+            if (listener != null) {
+                listener.onDelivered(entries.events.get(i), eventDelay, batchSize);
+            }
+        }
+    }
+
+    private void failed(Entries entries, boolean notOk) {
+        SimulatedSmartDriver.Event_Type type = SimulatedSmartDriver.Event_Type.fromTopic(entries.topic);
+        for (int i = 0; i < entries.events.size(); i++) {
+            if (notOk) {
+                SimulatorController.increaseNoOkSends(streamServer, type);
+            } else {
+                SimulatorController.increaseErrors(streamServer, type);
+            }
+        }
+        if (SimulatorController.retryOnFail) {
+            // Se reintenta el lote completo.
+            SimulatorController.scheduleRetry(streamServer, entries.topic, entries.events.toArray(new ExtendedEvent[entries.events.size()]));
+        }
+    }
+
+    /**
+     * Eventos acumulados de un 'topic' y los SmartDrivers a los que hay que
+     * notificar su envío.
+     */
+    private static final class Entries {
+
+        private final String topic;
+        private final List<ExtendedEvent> events;
+        private final List<DeliveryListener> listeners;
+        private long[] intendedTimes;
+        // Bytes aproximados de los eventos serializados.
+        private int bytes;
+        // Eventos que llegan cuando el lote ya está cerrado.
+        private final boolean rejected;
+
+        Entries(String topic, int capacity, boolean rejected) {
+            this.topic = topic;
+            this.events = new ArrayList<>(capacity);
+            this.listeners = new ArrayList<>(capacity);
+            this.intendedTimes = new long[Math.max(capacity, 1)];
+            this.bytes = 0;
+            this.rejected = rejected;
+        }
+
+        void add(ExtendedEvent event, DeliveryListener listener, long intendedTime, int size) {
+            int index = events.size();
+            if (index == intendedTimes.length) {
+                intendedTimes = Arrays.copyOf(intendedTimes, index * 2);
+            }
+            intendedTimes[index] = intendedTime;
+            events.add(event);
+            listeners.add(listener);
+            bytes += size;
+        }
+
+        Entries subList(int from, int to) {
+            Entries entries = new Entries(topic, to - from, false);
+            for (int i = from; i < to; i++) {
+                entries.add(events.get(i), listeners.get(i), intendedTimes[i], 0);
+            }
+            return entries;
+        }
+    }
+
+    private final class SendTask implements Runnable {
+
+        private final Entries entries;
+
+        SendTask(Entries entries) {
+            this.entries = entries;
+        }
+
+        @Override
+        public void run() {
+            send(entries);
+        }
+    }
+
+    /**
+     * Lote en curso de un 'topic'.
+     */
+    private static final class Batch {
+
+        private final String topic;
+        private Entries current;
+        private boolean closed;
+
+        Batch(String topic) {
+            this.topic = topic;
+        }
+
+        // Devuelve los eventos del lote si se ha llenado, o sólo el nuevo, como rechazado, si el lote ya está cerrado.
+        synchronized Entries add(ExtendedEvent event, DeliveryListener listener, long intendedTime, int size, int maxEvents, int maxBytes) {
+            if (closed) {
+                Entries rejected = new Entries(topic, 1, true);
+                rejected.add(event, listener, intendedTime, size);
+                return rejected;
+            }
+            Entries full = null;
+            if (current != null && maxBytes > 0 && current.bytes + size > maxBytes) {
+                // No cabe: se envía lo que había y el evento empieza un lote nuevo.
+                full = drain();
+            }
+            if (current == null) {
+                current = new Entries(topic, Math.min(maxEvents, 1024), false);
+            }
+            current.add(event, listener, intendedTime, size);
+            if (full == null && current.events.size() >= maxEvents) {
+                full = drain();
+            }
+            return full;
+        }
+
+        synchronized Entries drain() {
+            Entries entries = current;
+            current = null;
+            return entries;
+        }
+
+        synchronized Entries close() {
+            closed = true;
+            return drain();
+        }
+    }
+
+    private final class BatchCallBack implements Callback {
+
+        private final long startTime;
+        private final Entries entries;
+
+        BatchCallBack(long startTime, Entries entries) {
+            this.startTime = startTime;
+            this.entries = entries;
+        }
+
+        @Override
+        public void onCompletion(RecordMetadata metadata, Exception exception) {
+            if (metadata != null) {
+                delivered(entries, System.currentTimeMillis() - startTime, metadata.serializedValueSize());
+            } else if (exception instanceof RecordTooLargeException) {
+                tooLarge(entries, (RecordTooLargeException) exception);
+            } else {
+                LOG.log(Level.SEVERE, "onCompletion() - No se ha podido enviar a Kafka el lote de " + entries.events.size() + " eventos", exception);
+                failed(entries, false);
+                SimulatorController.logCurrentStatus();
+            }
+        }
+    }
+
+    private final class BatchZtreamyCallBack implements ZtreamyCallback {
+
+        private final long startTime;
+        private final Entries entries;
+
+        BatchZtreamyCallBack(long startTime, Entries entries) {
+            this.startTime = startTime;
+            this.entries = entries;
+        }
+
+        @Override
+        public void onCompletion(int statusCode, Exception exception) {
+            if (statusCode == HttpURLConnection.HTTP_OK) {
+                delivered(entries, System.currentTimeMillis() - startTime, -1);
+            } else if (exception == null) {
+                LOG.log(Level.SEVERE, "onCompletion() - Error SEND (Not OK): No se ha podido enviar el lote de {0} eventos a Ztreamy", entries.events.size());
+                failed(entries, true);
+                SimulatorController.logCurrentStatus();
+            } else {
+                LOG.log(Level.SEVERE, "onCompletion() - Error I/O: {0} - No se ha podido enviar el lote de {1} eventos a Ztreamy", new Object[]{exception.getMessage(), entries.events.size()});
+                failed(entries, false);
+                SimulatorController.logCurrentStatus();
+            }
+        }
+    }
+}
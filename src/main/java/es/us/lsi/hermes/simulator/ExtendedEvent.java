@@ -1,15 +1,92 @@
 package es.us.lsi.hermes.simulator;
 
+import java.lang.reflect.Field;
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
 import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 import ztreamy.Event;
 
 public class ExtendedEvent extends Event {
 
+    private static final Logger LOG = Logger.getLogger(ExtendedEvent.class.getName());
+
+    // Ztreamy no permite indicar la marca temporal del evento, así que accedemos a su atributo privado.
+    private static final Field TIMESTAMP_FIELD = getTimestampField();
+    // Mismo formato que usa Ztreamy para la marca temporal de los eventos.
+    private static final ThreadLocal<DateFormat> TIMESTAMP_FORMAT = new ThreadLocal<DateFormat>() {
+        @Override
+        protected DateFormat initialValue() {
+            return new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSXXX");
+        }
+    };
+
     private int retries;
+    // Copias de los atributos de Ztreamy que no tienen 'getter', para poder serializar el evento sin usar reflexión.
+    // Son 'transient' para que no los serialice el GSON.
+    private final transient String syntax;
+    private final transient String applicationId;
+    private final transient String eventType;
 
     public ExtendedEvent(String sourceId, String syntax, String applicationId, String eventType, Map<String, Object> body, int retries) {
         super(sourceId, syntax, applicationId, eventType, body);
         this.retries = retries;
+        this.syntax = syntax;
+        this.applicationId = applicationId;
+        this.eventType = eventType;
+    }
+
+    /**
+     * Constructor con la marca temporal del evento. Se usa cuando la simulación
+     * no sigue el reloj del sistema.
+     *
+     * @param timestamp Marca temporal del evento, en milisegundos desde
+     * 'epoch'.
+     */
+    public ExtendedEvent(String sourceId, String syntax, String applicationId, String eventType, Map<String, Object> body, int retries, long timestamp) {
+        this(sourceId, syntax, applicationId, eventType, body, retries);
+        setTimestamp(timestamp);
+    }
+
+    /**
+     * Constructor con todos los atributos del evento. Se usa para reconstruir
+     * un evento ya serializado.
+     *
+     * @param timestamp Marca temporal del evento, en el formato de Ztreamy.
+     */
+    public ExtendedEvent(String eventId, String sourceId, String syntax, String applicationId, String eventType, Map<String, Object> body, int retries, String timestamp) {
+        super(eventId, sourceId, syntax, applicationId, eventType, body);
+        this.retries = retries;
+        this.syntax = syntax;
+        this.applicationId = applicationId;
+        this.eventType = eventType;
+        setTimestamp(timestamp);
+    }
+
+    private void setTimestamp(long timestamp) {
+        setTimestamp(TIMESTAMP_FORMAT.get().format(timestamp));
+    }
+
+    private void setTimestamp(String timestamp) {
+        if (TIMESTAMP_FIELD != null) {
+            try {
+                TIMESTAMP_FIELD.set(this, timestamp);
+            } catch (IllegalAccessException ex) {
+                LOG.log(Level.WARNING, "setTimestamp() - No se ha podido asignar la marca temporal del evento", ex);
+            }
+        }
+    }
+
+    private static Field getTimestampField() {
+        try {
+            Field field = Event.class.getDeclaredField("timestamp");
+            field.setAccessible(true);
+            return field;
+        } catch (NoSuchFieldException | SecurityException ex) {
+            LOG.log(Level.WARNING, "getTimestampField() - No se podrá asignar la marca temporal de los eventos. Se usará la del sistema", ex);
+            return null;
+        }
     }
 
     public void decreaseRetries() {
@@ -21,4 +98,16 @@ public class ExtendedEvent extends Event {
     public int getRetries() {
         return retries;
     }
+
+    public String getSyntax() {
+        return syntax;
+    }
+
+    public String getApplicationId() {
+        return applicationId;
+    }
+
+    public String getEventType() {
+        return eventType;
+    }
 }
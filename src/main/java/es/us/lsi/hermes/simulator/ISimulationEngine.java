@@ -0,0 +1,85 @@
+package es.us.lsi.hermes.simulator;
+
+import es.us.lsi.hermes.analysis.LatencyHistogram;
+
+/**
+ * Motor que ejecuta periódicamente los SmartDrivers de una simulación. Cada
+ * ejecución del método 'run()' de un SmartDriver equivale a un segundo de
+ * simulación.
+ */
+public interface ISimulationEngine {
+
+    /**
+     * Inicia la ejecución de los SmartDrivers añadidos.
+     */
+    void start();
+
+    /**
+     * Añade un SmartDriver a la simulación.
+     *
+     * @param ssd SmartDriver a ejecutar.
+     * @param initialDelayMs Retraso inicial, en milisegundos de simulación.
+     */
+    void schedule(SimulatedSmartDriver ssd, long initialDelayMs);
+
+    void shutdownNow();
+
+    int getActiveSmartDrivers();
+
+    boolean isEmpty();
+
+    /**
+     * Número de 'ticks' que no se han podido completar a tiempo.
+     *
+     * @return Número de 'ticks' retrasados.
+     */
+    long getOverruns();
+
+    /**
+     * Instante actual de la simulación, que será el del reloj del sistema salvo
+     * que el motor use un reloj virtual.
+     *
+     * @return Milisegundos desde 'epoch'.
+     */
+    long currentTimeMillis();
+
+    /**
+     * Indica si el tiempo de la simulación es independiente del reloj del
+     * sistema.
+     *
+     * @return 'true' si el motor usa un reloj virtual.
+     */
+    boolean isVirtualTime();
+
+    /**
+     * Retraso con el que se ejecuta cada SmartDriver respecto al instante en
+     * el que le correspondía según su planificación, en milisegundos.
+     *
+     * @return Histograma de los retrasos de planificación.
+     */
+    LatencyHistogram getSchedulingLag();
+
+    /**
+     * Duración de cada 'tick' completo, en milisegundos.
+     *
+     * @return Histograma de las duraciones de los 'ticks'.
+     */
+    LatencyHistogram getTickDuration();
+
+    /**
+     * Duración de cada ejecución del método 'run()' de un SmartDriver, en
+     * microsegundos.
+     *
+     * @return Histograma de las duraciones de las ejecuciones.
+     */
+    LatencyHistogram getRunDuration();
+
+    /**
+     * Cuánto se ha quedado atrás el motor respecto al reloj del sistema: el
+     * tiempo que ha pasado desde que debería haber terminado el 'tick' más
+     * antiguo que aún no ha terminado. Será 0 mientras el motor vaya al día.
+     *
+     * @return Retraso del motor en milisegundos.
+     */
+    long getBehindMillis();
+}
@@ -0,0 +1,29 @@
+package es.us.lsi.hermes.simulator;
+
+import es.us.lsi.hermes.metrics.PrometheusTextFormat;
+import java.io.IOException;
+import java.io.PrintWriter;
+import javax.servlet.ServletException;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Publica las métricas de la simulación en curso en el formato de texto de
+ * Prometheus, para seguirla mientras se ejecuta sin esperar al correo final.
+ */
+@WebServlet(name = "MetricsServlet", urlPatterns = {"/metrics"})
+public class MetricsServlet extends HttpServlet {
+
+    private static final String NAMESPACE = "hermes";
+
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+        response.setStatus(HttpServletResponse.SC_OK);
+        response.setContentType(PrometheusTextFormat.CONTENT_TYPE);
+        response.setHeader("Cache-Control", "no-cache, no-store, must-revalidate");
+        PrintWriter writer = response.getWriter();
+        PrometheusTextFormat.write(SimulatorController.getMetrics(), NAMESPACE, writer);
+    }
+}
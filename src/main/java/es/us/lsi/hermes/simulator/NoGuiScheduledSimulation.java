@@ -35,6 +35,7 @@ public class NoGuiScheduledSimulation {
     private static Boolean randomizeEachSmartDriverBehaviour;
     private static Boolean monitorEachSmartDriver;
     private static Integer retries;
+    private static Integer simulationSpeed;
 
     @PostConstruct
     public void onStartup() {
@@ -99,9 +100,9 @@ public class NoGuiScheduledSimulation {
         property = noGuiScheduledSimulationProperties.getProperty("paths.generation.method");
         if (property != null) {
             pathsGenerationMethod = Integer.parseInt(property);
-            if (pathsGenerationMethod < 0 || pathsGenerationMethod > 1) {
+            if (pathsGenerationMethod < 0 || pathsGenerationMethod > 2) {
                 pathsGenerationMethod = null;
-                LOG.log(Level.SEVERE, "validate() - Valor no válido para 'pathsGenerationMethod' [0 para Google o 1 para OpenStreetMap]");
+                LOG.log(Level.SEVERE, "validate() - Valor no válido para 'pathsGenerationMethod' [0 para Google, 1 para OpenStreetMap o 2 para OpenStreetMap sin conexión]");
             }
         }
 
@@ -171,6 +172,15 @@ public class NoGuiScheduledSimulation {
                 LOG.log(Level.SEVERE, "validate() - Valor no válido para 'retries' [-1 a 5]");
             }
         }
+
+        property = noGuiScheduledSimulationProperties.getProperty("simulation.speed");
+        if (property != null) {
+            simulationSpeed = Integer.parseInt(property);
+            if (simulationSpeed < 0 || simulationSpeed > 4) {
+                simulationSpeed = null;
+                LOG.log(Level.SEVERE, "validate() - Valor no válido para 'simulationSpeed' [0 para 1x, 1 para 10x, 2 para 100x, 3 para 1000x o 4 para simulación por eventos discretos]");
+            }
+        }
     }
 
     public static Integer getDistanceFromCenter() {
@@ -228,4 +238,8 @@ public class NoGuiScheduledSimulation {
     public static Integer getRetries() {
         return retries;
     }
+
+    public static Integer getSimulationSpeed() {
+        return simulationSpeed;
+    }
 }
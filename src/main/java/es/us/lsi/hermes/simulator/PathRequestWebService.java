@@ -1,5 +1,6 @@
 package es.us.lsi.hermes.simulator;
 
+import es.us.lsi.hermes.util.HermesSimulatorConfig;
 import java.util.List;
 import java.util.concurrent.Callable;
 import java.util.concurrent.Future;
@@ -17,45 +18,87 @@ public class PathRequestWebService implements ServletContextListener {
 
     private static final Logger LOG = Logger.getLogger(PathRequestWebService.class.getName());
 
-    private static ThreadPoolExecutor executor;
+    // Número máximo de conexiones con los servicios de rutas.
+    private static final int ROUTE_FETCH_MAX_CONNECTIONS = Integer.parseInt(HermesSimulatorConfig.getHermesSimulatorProperties().getProperty("route.fetch.max.connections", "20"));
+    // Número máximo de peticiones de trayectos sin respuesta.
+    private static final int ROUTE_FETCH_MAX_IN_FLIGHT = Integer.parseInt(HermesSimulatorConfig.getHermesSimulatorProperties().getProperty("route.fetch.max.in.flight", "50"));
+    // Tiempo máximo en milisegundos para conectar con los servicios de rutas y para recibir su respuesta.
+    private static final int ROUTE_FETCH_TIMEOUT = Integer.parseInt(HermesSimulatorConfig.getHermesSimulatorProperties().getProperty("route.fetch.timeout.ms", "15000"));
+
+    private static volatile ThreadPoolExecutor executor;
     private static ThreadPoolMonitor monitor;
+    private static RouteFetchPipeline routeFetchPipeline;
 
     @Override
     public void contextInitialized(ServletContextEvent sce) {
-        createExecutor();
+        getExecutor();
         LOG.log(Level.INFO, "contextInitialized() - Inicialización");
     }
 
     @Override
     public void contextDestroyed(ServletContextEvent sce) {
-        executor.shutdown();
+        shutdown();
         LOG.log(Level.INFO, "contextDestroyed() - Finalización");
     }
 
-    public static synchronized void submitTask(Runnable runnable) {
-        init();
-        executor.submit(runnable);
+    public static void submitTask(Runnable runnable) {
+        getExecutor().submit(runnable);
     }
 
-    public static synchronized Future<String> submitTask(Callable callable) {
-        init();
-        return executor.submit(callable);
+    public static Future<String> submitTask(Callable callable) {
+        return getExecutor().submit(callable);
     }
 
-    public static synchronized List<Future<String>> submitAllTask(List<Callable<String>> callableList) throws InterruptedException {
-        init();
-        return executor.invokeAll(callableList);
+    public static List<Future<String>> submitAllTask(List<? extends Callable<String>> callableList) throws InterruptedException {
+        return getExecutor().invokeAll(callableList);
     }
 
-    private static void init() {
-        shutdown();
-        createExecutor();
-        monitor = new ThreadPoolMonitor(executor, 1);
-        Thread monitorThread = new Thread(monitor);
-        monitorThread.start();
+    /**
+     * 'Pipeline' de peticiones de trayectos a los servicios de rutas. Se crea
+     * con la primera petición y se conserva, con sus conexiones, hasta que se
+     * detiene la aplicación. Las respuestas se procesan en el 'pool' de hilos
+     * de este servicio.
+     */
+    public static synchronized RouteFetchPipeline getRouteFetchPipeline() {
+        if (routeFetchPipeline == null) {
+            routeFetchPipeline = new RouteFetchPipeline(getExecutor(), ROUTE_FETCH_MAX_CONNECTIONS, ROUTE_FETCH_MAX_IN_FLIGHT, ROUTE_FETCH_TIMEOUT);
+        }
+        return routeFetchPipeline;
+    }
+
+    // El 'pool' se crea una sola vez y se conserva hasta que se detiene la aplicación.
+    private static synchronized ThreadPoolExecutor getExecutor() {
+        if (executor == null || executor.isShutdown()) {
+            createExecutor();
+            monitor = new ThreadPoolMonitor(executor, 1);
+            Thread monitorThread = new Thread(monitor, "PathRequestWebService-monitor");
+            monitorThread.setDaemon(true);
+            monitorThread.start();
+        }
+        return executor;
+    }
+
+    /**
+     * Número de tareas en espera de un hilo libre del 'pool'.
+     */
+    public static int getQueuedTasks() {
+        ThreadPoolExecutor e = executor;
+        return e != null ? e.getQueue().size() : 0;
+    }
+
+    /**
+     * Número de hilos del 'pool' que están ejecutando una tarea.
+     */
+    public static int getActiveTasks() {
+        ThreadPoolExecutor e = executor;
+        return e != null ? e.getActiveCount() : 0;
     }
 
     public static synchronized void shutdown() {
+        if (routeFetchPipeline != null) {
+            routeFetchPipeline.close();
+            routeFetchPipeline = null;
+        }
         if (executor != null) {
             executor.shutdown();
         }
@@ -65,9 +108,11 @@ public class PathRequestWebService implements ServletContextListener {
     }
 
     private static void createExecutor() {
+        // Las peticiones HTTP no ocupan hilos del 'pool', que sólo procesa las respuestas, así que basta con uno por procesador.
+        int threads = Runtime.getRuntime().availableProcessors();
         executor = new ThreadPoolExecutor(
-                100, // Tendremos siempre 100 hilos activos.
-                100, // Número máximo de hilos (pool).
+                threads, // Número de hilos activos.
+                threads, // Número máximo de hilos (pool).
                 60L, // Tiempo máximo que esperarán los nuevos hilos que lleguen, si todos los hilos del 'pool' están ocupados.
                 TimeUnit.SECONDS, // Unidad de medida para el tiempo de espera máximo.
                 new LinkedBlockingQueue<Runnable>()); // La cola que se usará para almacenar los hilos antes de ser ejecutados, para resolver el problema productor-consumidor a distintas velocidades.
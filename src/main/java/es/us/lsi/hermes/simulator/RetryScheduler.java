@@ -0,0 +1,390 @@
+package es.us.lsi.hermes.simulator;
+
+import es.us.lsi.hermes.simulator.kafka.KafkaProducerPool;
+import es.us.lsi.hermes.simulator.ztreamy.ZtreamyCallback;
+import es.us.lsi.hermes.simulator.ztreamy.ZtreamyPublisherPool;
+import es.us.lsi.hermes.util.TokenBucket;
+import java.net.HttpURLConnection;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.apache.kafka.clients.producer.Callback;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.clients.producer.RecordMetadata;
+
+/**
+ * Reintentos de envío de las tramas fallidas de todos los SmartDrivers de una
+ * simulación.
+ *
+ * Cada envío fallido se programa para un instante propio, con una espera que
+ * se duplica en cada intento fallido (hasta un máximo) y a la que se aplica
+ * una variación aleatoria. Un único hilo envía los reintentos según vencen,
+ * sin superar un número máximo de reintentos por segundo. Así, cuando el
+ * servidor de tramas se recupera de una caída, los reintentos de todos los
+ * SmartDrivers no le llegan a la vez.
+ *
+ * Los reintentos se mantienen en memoria hasta un máximo. Durante una caída
+ * larga, los que no caben se guardan en un diario en disco ('SpillJournal') y
+ * se vuelven a cargar según se van liberando los de memoria.
+ */
+public class RetryScheduler {
+
+    private static final Logger LOG = Logger.getLogger(RetryScheduler.class.getName());
+
+    // Máximo de duplicaciones de la espera, para no desbordar el cálculo.
+    private static final int MAX_BACKOFF_SHIFT = 20;
+    // Tiempo máximo que espera el hilo de reintentos antes de comprobar si tiene que cargar los guardados en disco.
+    private static final long REPLAY_CHECK_INTERVAL = 1;
+
+    private final int streamServer;
+    private final KafkaProducerPool kafkaProducerPool;
+    private final ZtreamyPublisherPool ztreamyPublisherPool;
+    private final int retries;
+    private final long baseDelay;
+    private final long maxDelay;
+    private final double maxRetriesPerSecond;
+    // Será nulo si no se limita el número de reintentos por segundo.
+    private final TokenBucket rateLimiter;
+
+    private final DelayQueue<PendingRetry> queue;
+    // Máximo de reintentos en memoria. Será 0 si no se limita.
+    private final int maxInMemory;
+    // Será nulo si no se limitan los reintentos en memoria.
+    private final SpillJournal journal;
+    // Número de eventos pendientes de reenviar, incluidos los que se están reenviando.
+    private final AtomicInteger backlog;
+    private final Thread dispatcher;
+    private volatile boolean running;
+
+    /**
+     * Constructor de los reintentos.
+     *
+     * @param streamServer Servidor de tramas: 0 para Kafka y 1 para Ztreamy.
+     * @param kafkaProducerPool 'Producers' de Kafka de la simulación. Sólo se
+     * usa si el servidor de tramas es Kafka.
+     * @param ztreamyPublisherPool Publicación en Ztreamy de la simulación.
+     * Sólo se usa si el servidor de tramas es Ztreamy.
+     * @param retries Número de reintentos de cada evento. Con -1 se reintenta
+     * indefinidamente.
+     * @param baseDelay Espera en milisegundos antes del primer reintento.
+     * @param maxDelay Espera máxima en milisegundos entre reintentos.
+     * @param maxRetriesPerSecond Número máximo de reintentos por segundo. Si no
+     * es mayor que 0, no se limita.
+     * @param maxInMemory Número máximo de reintentos en memoria. Los que no
+     * quepan se guardarán en disco. Si no es mayor que 0, no se limita.
+     * @param journalDirectory Directorio en el que se guardarán los reintentos
+     * que no quepan en memoria.
+     * @param journalSegmentSize Tamaño en bytes de cada fichero del diario de
+     * reintentos.
+     */
+    public RetryScheduler(int streamServer, KafkaProducerPool kafkaProducerPool, ZtreamyPublisherPool ztreamyPublisherPool, int retries, long baseDelay, long maxDelay, double maxRetriesPerSecond, int maxInMemory, Path journalDirectory, int journalSegmentSize) {
+        this.streamServer = streamServer;
+        this.kafkaProducerPool = kafkaProducerPool;
+        this.ztreamyPublisherPool = ztreamyPublisherPool;
+        this.retries = retries;
+        this.baseDelay = Math.max(baseDelay, 0L);
+        this.maxDelay = Math.max(maxDelay, this.baseDelay);
+        this.maxRetriesPerSecond = maxRetriesPerSecond;
+        // Se permiten ráfagas de hasta un segundo de reintentos.
+        this.rateLimiter = maxRetriesPerSecond > 0.0d ? new TokenBucket(maxRetriesPerSecond, (int) Math.ceil(maxRetriesPerSecond)) : null;
+        this.queue = new DelayQueue<>();
+        if (maxInMemory > 0 && journalDirectory != null) {
+            this.maxInMemory = maxInMemory;
+            this.journal = new SpillJournal(journalDirectory, journalSegmentSize);
+        } else {
+            this.maxInMemory = 0;
+            this.journal = null;
+        }
+        this.backlog = new AtomicInteger(0);
+        this.dispatcher = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                dispatch();
+            }
+        }, "RetryScheduler");
+        this.dispatcher.setDaemon(true);
+        this.running = false;
+    }
+
+    public void start() {
+        running = true;
+        dispatcher.start();
+        LOG.log(Level.INFO, "start() - Reintentos: Espera inicial={0}ms|Espera máxima={1}ms|Máximo por segundo={2}|Máximo en memoria={3}", new Object[]{baseDelay, maxDelay, rateLimiter != null ? maxRetriesPerSecond : "Sin límite", journal != null ? maxInMemory : "Sin límite"});
+    }
+
+    /**
+     * Programa el reintento de un envío fallido.
+     *
+     * @param topic 'Topic' de Kafka al que se enviarán los eventos.
+     * @param events Eventos del envío fallido.
+     */
+    public void schedule(String topic, ExtendedEvent[] events) {
+        backlog.addAndGet(events.length);
+        enqueue(new PendingRetry(topic, events, 0));
+    }
+
+    /**
+     * Número de eventos pendientes de reenviar.
+     *
+     * @return Eventos pendientes, incluidos los que se están reenviando.
+     */
+    public int getBacklog() {
+        return backlog.get();
+    }
+
+    /**
+     * Número de eventos pendientes de reenviar que están guardados en disco.
+     *
+     * @return Eventos guardados en disco.
+     */
+    public int getSpilled() {
+        return journal != null ? journal.getEvents() : 0;
+    }
+
+    /**
+     * Detiene los reintentos. Los que se estén reenviando terminarán
+     * normalmente, pero si fallan no se volverán a intentar.
+     *
+     * @return Número de eventos que quedaban pendientes de reenviar.
+     */
+    public int shutdown() {
+        running = false;
+        dispatcher.interrupt();
+        try {
+            dispatcher.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+
+        // 'drainTo()' sólo sacaría los que ya han vencido.
+        PendingRetry[] remaining = queue.toArray(new PendingRetry[0]);
+        queue.clear();
+        int pending = 0;
+        for (PendingRetry retry : remaining) {
+            pending += retry.events.length;
+        }
+        if (journal != null) {
+            pending += journal.close();
+        }
+        backlog.addAndGet(-pending);
+        LOG.log(Level.INFO, "shutdown() - Se detienen los reintentos. Eventos sin reenviar: {0}", pending);
+        return pending;
+    }
+
+    private void enqueue(PendingRetry retry) {
+        if (!running) {
+            // Ya no se reintenta.
+            backlog.addAndGet(-retry.events.length);
+            SimulatorController.addFinallyPending(streamServer, SimulatedSmartDriver.Event_Type.fromTopic(retry.topic), retry.events.length);
+            return;
+        }
+        if (journal != null && queue.size() >= maxInMemory && journal.append(retry.topic, retry.events, retry.attempt, retry.deadline)) {
+            // No cabe en memoria, se ha guardado en disco.
+            return;
+        }
+        queue.put(retry);
+    }
+
+    // Carga en memoria los reintentos guardados en disco, si ya hay sitio para ellos.
+    private void replay() {
+        if (journal == null || queue.size() > maxInMemory / 2) {
+            return;
+        }
+        int target = maxInMemory - maxInMemory / 4;
+        SpillJournal.Record record;
+        while (queue.size() < target && (record = journal.next()) != null) {
+            queue.put(new PendingRetry(record.topic, record.events, record.attempt, record.deadline, record.segment));
+        }
+    }
+
+    // El reintento ya no depende del segmento del diario del que se cargó.
+    private void resolve(PendingRetry retry) {
+        if (retry.segment != null) {
+            journal.release(retry.segment);
+        }
+    }
+
+    private long nextDelay(int attempt) {
+        // Espera exponencial, con la mitad de ella aleatoria para que los reintentos se repartan.
+        long delay = Math.min(maxDelay, baseDelay << Math.min(attempt, MAX_BACKOFF_SHIFT));
+        long half = delay / 2;
+        return delay - half + ThreadLocalRandom.current().nextLong(half + 1);
+    }
+
+    private void dispatch() {
+        PendingRetry retry = null;
+        try {
+            while (running) {
+                replay();
+                retry = queue.poll(REPLAY_CHECK_INTERVAL, TimeUnit.SECONDS);
+                if (retry == null) {
+                    continue;
+                }
+                if (rateLimiter != null) {
+                    rateLimiter.acquire();
+                }
+                send(retry);
+                retry = null;
+            }
+        } catch (InterruptedException ex) {
+            // Se han detenido los reintentos mientras se esperaba para enviar uno.
+            if (retry != null) {
+                backlog.addAndGet(-retry.events.length);
+                SimulatorController.addFinallyPending(streamServer, SimulatedSmartDriver.Event_Type.fromTopic(retry.topic), retry.events.length);
+            }
+        }
+    }
+
+    private void send(PendingRetry retry) {
+        SimulatorController.increaseSends(streamServer, SimulatedSmartDriver.Event_Type.fromTopic(retry.topic));
+        switch (streamServer) {
+            case 0:
+                // Kafka
+                try {
+                    long id = kafkaProducerPool.nextRecordId();
+                    kafkaProducerPool.getProducer(retry.events[0].getSourceId()).send(new ProducerRecord<>(retry.topic,
+                            id,
+                            retry.events
+                    ), new RetryCallBack(retry));
+                } catch (Exception ex) {
+                    LOG.log(Level.SEVERE, "*Reintento* - Error: {0} - No se han podido reenviar los {1} eventos pendientes", new Object[]{ex.getMessage(), retry.events.length});
+                    failed(retry);
+                }
+                break;
+            case 1:
+                // Ztreamy
+                ztreamyPublisherPool.publish(retry.events, new RetryZtreamyCallBack(retry));
+                break;
+            default:
+                throw new IllegalArgumentException("Invalid Stream Server option");
+        }
+    }
+
+    private void recovered(PendingRetry retry) {
+        resolve(retry);
+        backlog.addAndGet(-retry.events.length);
+        SimulatorController.addRecovered(streamServer, SimulatedSmartDriver.Event_Type.fromTopic(retry.topic), retry.events.length);
+        LOG.log(Level.INFO, "*Reintento* - {0} eventos pendientes ''{1}'' enviados correctamente tras {2} intentos", new Object[]{retry.events.length, retry.events[0].getEventType(), retry.attempt + 1});
+    }
+
+    private void failed(PendingRetry retry) {
+        SimulatorController.logCurrentStatus();
+        ExtendedEvent[] events = retry.events;
+        if (retries != -1) {
+            events = decreaseRetries(events);
+            int discarded = retry.events.length - events.length;
+            if (discarded > 0) {
+                backlog.addAndGet(-discarded);
+                LOG.log(Level.INFO, "Se han descartado: {0} ''{1}'' por alcanzar el máximo número de reintentos de envío", new Object[]{discarded, retry.events[0].getEventType()});
+            }
+        }
+        if (events.length > 0) {
+            enqueue(new PendingRetry(retry.topic, events, retry.attempt + 1));
+        }
+        resolve(retry);
+    }
+
+    private static ExtendedEvent[] decreaseRetries(ExtendedEvent[] events) {
+        List<ExtendedEvent> remaining = new ArrayList<>(events.length);
+        for (ExtendedEvent ee : events) {
+            if (ee.getRetries() > 0) {
+                ee.decreaseRetries();
+                remaining.add(ee);
+            }
+        }
+        return remaining.size() == events.length ? events : remaining.toArray(new ExtendedEvent[remaining.size()]);
+    }
+
+    /**
+     * Envío fallido pendiente de reintentar, con el instante en el que toca
+     * reintentarlo.
+     */
+    private final class PendingRetry implements Delayed {
+
+        private final String topic;
+        private final ExtendedEvent[] events;
+        // Número de reintentos ya realizados.
+        private final int attempt;
+        private final long deadline;
+        // Segmento del diario del que se ha cargado. Será nulo si no se guardó en disco.
+        private final SpillJournal.Segment segment;
+
+        PendingRetry(String topic, ExtendedEvent[] events, int attempt) {
+            this(topic, events, attempt, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(nextDelay(attempt)), null);
+        }
+
+        PendingRetry(String topic, ExtendedEvent[] events, int attempt, long deadline, SpillJournal.Segment segment) {
+            this.topic = topic;
+            this.events = events;
+            this.attempt = attempt;
+            this.deadline = deadline;
+            this.segment = segment;
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed other) {
+            if (other == this) {
+                return 0;
+            }
+            if (other instanceof PendingRetry) {
+                long diff = deadline - ((PendingRetry) other).deadline;
+                return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+            }
+            long diff = getDelay(TimeUnit.NANOSECONDS) - other.getDelay(TimeUnit.NANOSECONDS);
+            return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+        }
+    }
+
+    private final class RetryCallBack implements Callback {
+
+        private final PendingRetry retry;
+
+        RetryCallBack(PendingRetry retry) {
+            this.retry = retry;
+        }
+
+        @Override
+        public void onCompletion(RecordMetadata metadata, Exception exception) {
+            if (metadata != null) {
+                recovered(retry);
+            } else {
+                LOG.log(Level.SEVERE, "*Reintento* - No se ha podido reenviar a Kafka", exception);
+                failed(retry);
+            }
+        }
+    }
+
+    private final class RetryZtreamyCallBack implements ZtreamyCallback {
+
+        private final PendingRetry retry;
+
+        RetryZtreamyCallBack(PendingRetry retry) {
+            this.retry = retry;
+        }
+
+        @Override
+        public void onCompletion(int statusCode, Exception exception) {
+            if (statusCode == HttpURLConnection.HTTP_OK) {
+                recovered(retry);
+            } else if (exception == null) {
+                LOG.log(Level.SEVERE, "*Reintento* - Error SEND (Not OK): No se han podido reenviar los {0} eventos pendientes", retry.events.length);
+                failed(retry);
+            } else {
+                LOG.log(Level.SEVERE, "*Reintento* - Error: {0} - No se han podido reenviar los {1} eventos pendientes", new Object[]{exception.getMessage(), retry.events.length});
+                failed(retry);
+            }
+        }
+    }
+}
@@ -0,0 +1,259 @@
+package es.us.lsi.hermes.simulator;
+
+import es.us.lsi.hermes.util.TokenBucket;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
+import org.apache.http.util.EntityUtils;
+
+/**
+ * Obtención de trayectos de los servicios de rutas externos (Google Maps u
+ * OpenStreetMap).
+ *
+ * Las peticiones se hacen con un cliente HTTP no bloqueante y conexiones
+ * persistentes, que se conservan entre una generación de trayectos y la
+ * siguiente. El ritmo de las peticiones lo marca el 'TokenBucket' del servicio,
+ * así que el tiempo de preparación de los trayectos depende de su cuota y no
+ * de esperas fijas. Las respuestas se procesan (decodificación del JSON,
+ * construcción del trayecto e interpolación) en un 'pool' de hilos, mientras
+ * se siguen esperando las de otras peticiones. Si una petición falla o su
+ * respuesta no es válida, se reintenta un número limitado de veces.
+ */
+public class RouteFetchPipeline {
+
+    private static final Logger LOG = Logger.getLogger(RouteFetchPipeline.class.getName());
+
+    /**
+     * Petición de un trayecto.
+     *
+     * @param <T> Tipo del trayecto obtenido.
+     */
+    public interface RouteFetch<T> {
+
+        /**
+         * URL de la petición.
+         *
+         * @param attempt Número de intento, empezando en 0. En los reintentos
+         * se pueden elegir otros extremos del trayecto.
+         * @return URL a pedir.
+         */
+        String getUrl(int attempt);
+
+        /**
+         * Procesa la respuesta del servicio de rutas. Se ejecuta en un hilo
+         * del 'pool' de procesado.
+         *
+         * @param response Respuesta del servicio, para leerla a medida que se
+         * procesa. La cierra el 'pipeline'.
+         * @return Trayecto o nulo si la respuesta no es válida, en cuyo caso
+         * se reintenta la petición.
+         * @throws Exception Si no se puede procesar la respuesta. También se
+         * reintenta la petición.
+         */
+        T process(InputStream response) throws Exception;
+    }
+
+    private final CloseableHttpAsyncClient client;
+    private final Executor processingExecutor;
+    private final int maxInFlight;
+    // Permisos para peticiones en curso.
+    private final Semaphore inFlight;
+
+    /**
+     * Constructor del 'pipeline'.
+     *
+     * @param processingExecutor 'Pool' de hilos en el que se procesan las
+     * respuestas.
+     * @param maxConnections Número máximo de conexiones con los servicios de
+     * rutas.
+     * @param maxInFlight Número máximo de peticiones en curso.
+     * @param timeout Tiempo máximo en milisegundos para conectar, para obtener
+     * una conexión libre y entre dos lecturas de la respuesta.
+     */
+    public RouteFetchPipeline(Executor processingExecutor, int maxConnections, int maxInFlight, int timeout) {
+        this.processingExecutor = processingExecutor;
+        this.maxInFlight = Math.max(maxInFlight, 1);
+        this.inFlight = new Semaphore(this.maxInFlight);
+        int connections = Math.max(maxConnections, 1);
+        this.client = HttpAsyncClients.custom()
+                .setMaxConnTotal(connections)
+                .setMaxConnPerRoute(connections)
+                .setDefaultIOReactorConfig(IOReactorConfig.custom()
+                        .setIoThreadCount(Math.min(connections, Runtime.getRuntime().availableProcessors()))
+                        .setSoKeepAlive(true)
+                        .setTcpNoDelay(true)
+                        .build())
+                .setDefaultRequestConfig(RequestConfig.custom()
+                        .setConnectTimeout(timeout)
+                        .setConnectionRequestTimeout(timeout)
+                        .setSocketTimeout(timeout)
+                        .build())
+                .build();
+        this.client.start();
+        LOG.log(Level.INFO, "RouteFetchPipeline() - Peticiones de trayectos con {0} conexiones y hasta {1} peticiones en curso", new Object[]{connections, this.maxInFlight});
+    }
+
+    /**
+     * Obtiene los trayectos indicados. Bloquea el hilo que llama hasta que
+     * termina el último.
+     *
+     * @param <T> Tipo de los trayectos.
+     * @param fetches Peticiones de los trayectos.
+     * @param limiter Limitador del ritmo de peticiones del servicio de rutas.
+     * @param maxAttempts Número máximo de intentos de cada trayecto.
+     * @return Trayectos obtenidos, en el mismo orden que las peticiones. Los
+     * que no se han podido obtener son nulos.
+     * @throws InterruptedException Si se interrumpe el hilo mientras espera.
+     */
+    public <T> List<T> fetchAll(List<? extends RouteFetch<T>> fetches, TokenBucket limiter, int maxAttempts) throws InterruptedException {
+        // Intentos pendientes de enviar y trayectos terminados. Sólo los consume el hilo que llama.
+        BlockingQueue<Attempt<T>> events = new LinkedBlockingQueue<>();
+        for (int i = 0; i < fetches.size(); i++) {
+            events.add(new Attempt<>(i, fetches.get(i), 0));
+        }
+
+        List<T> results = new ArrayList<>(Collections.<T>nCopies(fetches.size(), null));
+        int remaining = fetches.size();
+        while (remaining > 0) {
+            Attempt<T> attempt = events.take();
+            if (attempt.done) {
+                results.set(attempt.index, attempt.result);
+                remaining--;
+            } else {
+                limiter.acquire();
+                inFlight.acquire();
+                send(attempt, events, Math.max(maxAttempts, 1));
+            }
+        }
+        return results;
+    }
+
+    private <T> void send(final Attempt<T> attempt, final BlockingQueue<Attempt<T>> events, final int maxAttempts) {
+        try {
+            client.execute(new HttpGet(attempt.fetch.getUrl(attempt.number)), new FutureCallback<HttpResponse>() {
+                @Override
+                public void completed(final HttpResponse response) {
+                    inFlight.release();
+                    int statusCode = response.getStatusLine().getStatusCode();
+                    if (statusCode != 200) {
+                        EntityUtils.consumeQuietly(response.getEntity());
+                        retry(attempt, events, maxAttempts, "HTTP " + statusCode);
+                        return;
+                    }
+                    try {
+                        processingExecutor.execute(new Runnable() {
+                            @Override
+                            public void run() {
+                                process(attempt, response, events, maxAttempts);
+                            }
+                        });
+                    } catch (RejectedExecutionException ex) {
+                        // Se está cerrando la aplicación.
+                        events.add(attempt.finish(null));
+                    }
+                }
+
+                @Override
+                public void failed(Exception ex) {
+                    inFlight.release();
+                    retry(attempt, events, maxAttempts, ex.toString());
+                }
+
+                @Override
+                public void cancelled() {
+                    inFlight.release();
+                    retry(attempt, events, maxAttempts, "Petición cancelada");
+                }
+            });
+        } catch (RuntimeException ex) {
+            // No se ha llegado a enviar la petición.
+            inFlight.release();
+            retry(attempt, events, maxAttempts, ex.toString());
+        }
+    }
+
+    private <T> void process(Attempt<T> attempt, HttpResponse response, BlockingQueue<Attempt<T>> events, int maxAttempts) {
+        try (InputStream content = response.getEntity().getContent()) {
+            T result = attempt.fetch.process(content);
+            if (result != null) {
+                events.add(attempt.finish(result));
+            } else {
+                retry(attempt, events, maxAttempts, "Trayecto no válido");
+            }
+        } catch (Exception ex) {
+            retry(attempt, events, maxAttempts, ex.toString());
+        }
+    }
+
+    private <T> void retry(Attempt<T> attempt, BlockingQueue<Attempt<T>> events, int maxAttempts, String reason) {
+        LOG.log(Level.WARNING, "retry() - Error en la petición del trayecto (intento {0} de {1}): {2}", new Object[]{attempt.number + 1, maxAttempts, reason});
+        if (attempt.number + 1 < maxAttempts) {
+            events.add(new Attempt<>(attempt.index, attempt.fetch, attempt.number + 1));
+        } else {
+            events.add(attempt.finish(null));
+        }
+    }
+
+    /**
+     * Número de peticiones enviadas de las que aún no se tiene respuesta.
+     */
+    public int getInFlight() {
+        return maxInFlight - inFlight.availablePermits();
+    }
+
+    /**
+     * Cierra las conexiones. Las peticiones en curso se cancelan.
+     */
+    public void close() {
+        try {
+            client.close();
+        } catch (IOException ex) {
+            LOG.log(Level.WARNING, "close() - Error al cerrar el cliente HTTP de los servicios de rutas: {0}", ex.getMessage());
+        }
+    }
+
+    /**
+     * Intento de obtener un trayecto o, si 'done' es 'true', trayecto
+     * terminado.
+     */
+    private static final class Attempt<T> {
+
+        private final int index;
+        private final RouteFetch<T> fetch;
+        private final int number;
+        private final boolean done;
+        private final T result;
+
+        Attempt(int index, RouteFetch<T> fetch, int number) {
+            this(index, fetch, number, false, null);
+        }
+
+        private Attempt(int index, RouteFetch<T> fetch, int number, boolean done, T result) {
+            this.index = index;
+            this.fetch = fetch;
+            this.number = number;
+            this.done = done;
+            this.result = result;
+        }
+
+        Attempt<T> finish(T result) {
+            return new Attempt<>(index, fetch, number, true, result);
+        }
+    }
+}
@@ -0,0 +1,253 @@
+package es.us.lsi.hermes.simulator;
+
+import es.us.lsi.hermes.analysis.LatencyHistogram;
+import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Búsqueda automática del punto de saturación del servidor de tramas.
+ *
+ * Durante la simulación se añaden SmartDrivers por escalones. Al final de cada
+ * escalón se comprueban los objetivos de servicio con lo medido en él: el p99
+ * del retraso de los envíos, la proporción de envíos fallidos ('no OK' y
+ * errores) y el p99 del retraso de planificación de los SmartDrivers. Si se
+ * cumplen, se añade otro escalón. Si no, se retiran los SmartDrivers del
+ * último escalón y se sigue con escalones de la mitad de tamaño, hasta que son
+ * menores que el mínimo. Tras retirar SmartDrivers se espera un escalón sin
+ * evaluarlo, para que el servidor de tramas se recupere de la sobrecarga, y
+ * después se vuelve a medir con la carga reducida. El resultado es el mayor número de SmartDrivers, y su
+ * ritmo de eventos, con el que se han cumplido los objetivos.
+ *
+ * Sólo la usa el hilo de muestreo del estado de la simulación.
+ */
+public class SaturationSearch {
+
+    private static final Logger LOG = Logger.getLogger(SaturationSearch.class.getName());
+
+    /**
+     * Control de los SmartDrivers de la simulación.
+     */
+    public interface LoadControl {
+
+        int getActiveSmartDrivers();
+
+        /**
+         * Añade SmartDrivers a la simulación.
+         *
+         * @param amount Número de SmartDrivers a añadir.
+         * @return SmartDrivers añadidos.
+         */
+        List<SimulatedSmartDriver> addSmartDrivers(int amount);
+    }
+
+    private final LoadControl loadControl;
+    private final long stepDurationMs;
+    private final int minStepSize;
+    private final int maxSmartDrivers;
+    private final long maxDelayP99;
+    private final double maxFailureRate;
+    private final long maxSchedulingLagP99;
+
+    private int stepSize;
+    private long stepStart;
+    // SmartDrivers añadidos en el escalón actual, por si hay que retirarlos.
+    private List<SimulatedSmartDriver> stepSmartDrivers;
+    // Medidas del escalón actual.
+    private LatencyHistogram.Snapshot stepDelays;
+    private LatencyHistogram.Snapshot stepSchedulingLag;
+    private long stepSent;
+    private long stepOk;
+    private long stepFailed;
+    // Contadores globales al terminar la anterior muestra.
+    private long lastSent;
+    private long lastOk;
+    private long lastFailed;
+    // El escalón actual es el periodo de recuperación tras retirar SmartDrivers.
+    private boolean settling;
+
+    private boolean finished;
+    // Mejor escalón que ha cumplido los objetivos.
+    private int bestSmartDrivers;
+    private double bestEventRate;
+    private long bestDelayP99;
+    private String lastViolation;
+
+    /**
+     * Constructor de la búsqueda.
+     *
+     * @param loadControl Control de los SmartDrivers de la simulación.
+     * @param initialStepSize Número de SmartDrivers de cada escalón al
+     * principio.
+     * @param minStepSize Número mínimo de SmartDrivers de un escalón. Cuando
+     * los escalones son menores, termina la búsqueda.
+     * @param stepDurationMs Duración en milisegundos de cada escalón.
+     * @param maxSmartDrivers Número máximo de SmartDrivers que se añadirán.
+     * @param maxDelayP99 Máximo p99 del retraso de los envíos, en
+     * milisegundos.
+     * @param maxFailureRate Máxima proporción de envíos fallidos, entre 0 y 1.
+     * @param maxSchedulingLagP99 Máximo p99 del retraso de planificación de
+     * los SmartDrivers, en milisegundos.
+     */
+    public SaturationSearch(LoadControl loadControl, int initialStepSize, int minStepSize, long stepDurationMs, int maxSmartDrivers, long maxDelayP99, double maxFailureRate, long maxSchedulingLagP99) {
+        this.loadControl = loadControl;
+        this.stepSize = Math.max(initialStepSize, 1);
+        this.minStepSize = Math.max(Math.min(minStepSize, this.stepSize), 1);
+        this.stepDurationMs = Math.max(stepDurationMs, 1000L);
+        this.maxSmartDrivers = maxSmartDrivers;
+        this.maxDelayP99 = maxDelayP99;
+        this.maxFailureRate = maxFailureRate;
+        this.maxSchedulingLagP99 = maxSchedulingLagP99;
+        this.stepSmartDrivers = new ArrayList<>();
+        this.settling = false;
+        this.finished = false;
+        this.bestSmartDrivers = 0;
+        this.bestEventRate = 0.0d;
+        this.bestDelayP99 = 0;
+        this.lastViolation = null;
+    }
+
+    /**
+     * Inicia la búsqueda. El primer escalón son los SmartDrivers con los que
+     * empieza la simulación.
+     *
+     * @param sent Envíos realizados hasta ahora.
+     * @param ok Envíos correctos hasta ahora.
+     * @param failed Envíos fallidos hasta ahora.
+     */
+    public void start(long sent, long ok, long failed) {
+        lastSent = sent;
+        lastOk = ok;
+        lastFailed = failed;
+        startStep();
+        LOG.log(Level.INFO, "start() - Búsqueda del punto de saturación: Escalones de {0} SmartDrivers cada {1} s|p99 retraso<={2}ms|Fallos<={3}|p99 planificación<={4}ms", new Object[]{stepSize, TimeUnit.MILLISECONDS.toSeconds(stepDurationMs), maxDelayP99, maxFailureRate, maxSchedulingLagP99});
+    }
+
+    /**
+     * Añade una muestra del estado de la simulación al escalón actual y, si
+     * éste ha terminado, lo evalúa.
+     *
+     * @param delays Retrasos de los envíos confirmados desde la anterior
+     * muestra.
+     * @param schedulingLag Retrasos de planificación desde la anterior
+     * muestra.
+     * @param sent Envíos realizados hasta ahora.
+     * @param ok Envíos correctos hasta ahora.
+     * @param failed Envíos fallidos ('no OK' y errores) hasta ahora.
+     */
+    public void onSample(LatencyHistogram.Snapshot delays, LatencyHistogram.Snapshot schedulingLag, long sent, long ok, long failed) {
+        if (finished) {
+            return;
+        }
+        stepDelays = stepDelays.merge(delays);
+        stepSchedulingLag = stepSchedulingLag.merge(schedulingLag);
+        stepSent += sent - lastSent;
+        stepOk += ok - lastOk;
+        stepFailed += failed - lastFailed;
+        lastSent = sent;
+        lastOk = ok;
+        lastFailed = failed;
+
+        long elapsed = System.currentTimeMillis() - stepStart;
+        if (elapsed >= stepDurationMs) {
+            evaluateStep(elapsed);
+        }
+    }
+
+    private void evaluateStep(long elapsed) {
+        int smartDrivers = loadControl.getActiveSmartDrivers();
+        if (settling) {
+            // Lo medido durante la recuperación aún refleja la sobrecarga, así que se descarta y se vuelve a medir.
+            LOG.log(Level.INFO, "evaluateStep() - Fin del periodo de recuperación. Se vuelve a medir con {0} SmartDrivers", smartDrivers);
+            settling = false;
+            startStep();
+            return;
+        }
+        long delayP99 = stepDelays.getValueAtPercentile(99.0d);
+        long lagP99 = stepSchedulingLag.getValueAtPercentile(99.0d);
+        double failureRate = stepSent > 0 ? (double) stepFailed / stepSent : 0.0d;
+        double eventRate = stepOk * 1000.0d / elapsed;
+
+        String violation = null;
+        if (delayP99 > maxDelayP99) {
+            violation = MessageFormat.format("p99 del retraso={0}ms", delayP99);
+        } else if (failureRate > maxFailureRate) {
+            violation = MessageFormat.format("Fallos={0}", failureRate);
+        } else if (lagP99 > maxSchedulingLagP99) {
+            violation = MessageFormat.format("p99 del retraso de planificación={0}ms", lagP99);
+        }
+
+        if (violation == null) {
+            LOG.log(Level.INFO, "evaluateStep() - Escalón correcto: SmartDrivers={0}|Eventos por segundo={1}|p99 retraso={2}ms|Fallos={3}|p99 planificación={4}ms", new Object[]{smartDrivers, eventRate, delayP99, failureRate, lagP99});
+            if (smartDrivers >= bestSmartDrivers) {
+                bestSmartDrivers = smartDrivers;
+                bestEventRate = eventRate;
+                bestDelayP99 = delayP99;
+            }
+            int amount = Math.min(stepSize, maxSmartDrivers - smartDrivers);
+            if (amount <= 0) {
+                finish("Se ha alcanzado el máximo de SmartDrivers");
+                return;
+            }
+            startStep();
+            stepSmartDrivers = loadControl.addSmartDrivers(amount);
+        } else {
+            lastViolation = violation;
+            LOG.log(Level.WARNING, "evaluateStep() - No se cumplen los objetivos con {0} SmartDrivers: {1}", new Object[]{smartDrivers, violation});
+            if (stepSmartDrivers.isEmpty()) {
+                finish(bestSmartDrivers == 0 ? "No se cumplen los objetivos con los SmartDrivers iniciales" : "No se pueden retirar más SmartDrivers");
+                return;
+            }
+            // Se retiran los del último escalón y se prueba con escalones más pequeños.
+            for (SimulatedSmartDriver ssd : stepSmartDrivers) {
+                ssd.retire();
+            }
+            stepSize /= 2;
+            if (stepSize < minStepSize) {
+                finish("Los escalones son menores que el mínimo");
+                return;
+            }
+            startStep();
+            stepSmartDrivers = new ArrayList<>();
+            settling = true;
+        }
+    }
+
+    private void startStep() {
+        stepStart = System.currentTimeMillis();
+        stepDelays = LatencyHistogram.Snapshot.empty();
+        stepSchedulingLag = LatencyHistogram.Snapshot.empty();
+        stepSent = 0;
+        stepOk = 0;
+        stepFailed = 0;
+    }
+
+    private void finish(String reason) {
+        finished = true;
+        LOG.log(Level.INFO, "finish() - Fin de la búsqueda del punto de saturación ({0}). {1}", new Object[]{reason, getSummary()});
+    }
+
+    public boolean isFinished() {
+        return finished;
+    }
+
+    public int getBestSmartDrivers() {
+        return bestSmartDrivers;
+    }
+
+    public double getBestEventRate() {
+        return bestEventRate;
+    }
+
+    /**
+     * Resumen del resultado de la búsqueda.
+     *
+     * @return Texto con el máximo sostenible encontrado.
+     */
+    public String getSummary() {
+        return MessageFormat.format("PUNTO DE SATURACION:\n\n-> Máximo de SmartDrivers sostenible={0}\n-> Eventos por segundo={1}\n-> p99 del retraso={2}ms\n-> Último objetivo incumplido={3}\n-> Búsqueda terminada={4}\n\n", new Object[]{bestSmartDrivers, bestEventRate, bestDelayP99, lastViolation != null ? lastViolation : "Ninguno", finished});
+    }
+}
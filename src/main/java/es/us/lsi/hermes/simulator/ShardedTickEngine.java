@@ -0,0 +1,292 @@
+package es.us.lsi.hermes.simulator;
+
+import es.us.lsi.hermes.analysis.LatencyHistogram;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Motor de ejecución de los SmartDrivers. En lugar de planificar una tarea
+ * periódica por cada SmartDriver, los reparte en grupos ('shards'), uno por
+ * núcleo disponible, y en cada 'tick' de la simulación cada grupo ejecuta el
+ * método 'run()' de todos sus SmartDrivers. De este modo, la cola de tareas
+ * planificadas sólo contiene una tarea por grupo, independientemente del
+ * número de SmartDrivers.
+ */
+public class ShardedTickEngine implements ISimulationEngine {
+
+    private static final Logger LOG = Logger.getLogger(ShardedTickEngine.class.getName());
+
+    // Tiempo mínimo entre avisos de 'ticks' que no terminan a tiempo, para no saturar el log.
+    private static final long OVERRUN_REPORT_INTERVAL_NS = TimeUnit.SECONDS.toNanos(1);
+
+    private final long periodMs;
+    private final long periodNanos;
+    private final Shard[] shards;
+    private final ScheduledThreadPoolExecutor executor;
+
+    // Número de SmartDrivers que aún no han terminado.
+    private final AtomicInteger activeSmartDrivers;
+    // Número total de 'ticks' que algún 'shard' no ha podido completar dentro de su periodo.
+    private final AtomicLong overruns;
+    // Para repartir los SmartDrivers entre los 'shards' de forma equilibrada.
+    private final AtomicInteger nextShard;
+    // Retraso de cada ejecución de un SmartDriver respecto al instante de su 'tick'.
+    private final LatencyHistogram schedulingLag;
+    // Duración de cada 'tick' de un 'shard', en milisegundos.
+    private final LatencyHistogram tickDuration;
+    // Duración de cada ejecución de un SmartDriver, en microsegundos.
+    private final LatencyHistogram runDuration;
+    // Referencia para convertir los instantes de 'System.nanoTime()' en instantes del reloj del sistema.
+    private final long originMillis;
+    private final long originNanos;
+
+    private volatile long startNanos;
+    private volatile boolean started;
+
+    /**
+     * Constructor del motor.
+     *
+     * @param shardsAmount Número de grupos en los que se repartirán los
+     * SmartDrivers. Si es menor que 1, se usará el número de núcleos
+     * disponibles.
+     * @param periodMs Periodo de cada 'tick' de la simulación, en
+     * milisegundos.
+     */
+    public ShardedTickEngine(int shardsAmount, long periodMs) {
+        int amount = shardsAmount > 0 ? shardsAmount : Runtime.getRuntime().availableProcessors();
+        this.periodMs = periodMs;
+        this.periodNanos = TimeUnit.MILLISECONDS.toNanos(periodMs);
+        this.shards = new Shard[amount];
+        for (int i = 0; i < amount; i++) {
+            shards[i] = new Shard(i);
+        }
+        this.executor = new ScheduledThreadPoolExecutor(amount);
+        this.executor.setContinueExistingPeriodicTasksAfterShutdownPolicy(false);
+        this.executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+        this.executor.setRemoveOnCancelPolicy(true);
+        this.activeSmartDrivers = new AtomicInteger(0);
+        this.overruns = new AtomicLong(0);
+        this.nextShard = new AtomicInteger(0);
+        this.schedulingLag = new LatencyHistogram();
+        this.tickDuration = new LatencyHistogram();
+        this.runDuration = new LatencyHistogram();
+        this.originMillis = System.currentTimeMillis();
+        this.originNanos = System.nanoTime();
+        this.started = false;
+    }
+
+    /**
+     * Inicia los 'ticks' de todos los 'shards'.
+     */
+    @Override
+    public synchronized void start() {
+        if (!started) {
+            started = true;
+            startNanos = System.nanoTime();
+            LOG.log(Level.INFO, "start() - Se inicia el motor de simulación con {0} shards y un periodo de {1} ms", new Object[]{shards.length, periodMs});
+            for (Shard shard : shards) {
+                executor.scheduleAtFixedRate(shard, 0, periodMs, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    /**
+     * Añade un SmartDriver al motor. Su método 'run()' se ejecutará en cada
+     * 'tick', una vez transcurrido el retraso inicial indicado.
+     *
+     * @param ssd SmartDriver a ejecutar.
+     * @param initialDelayMs Retraso inicial en milisegundos.
+     */
+    @Override
+    public void schedule(SimulatedSmartDriver ssd, long initialDelayMs) {
+        activeSmartDrivers.incrementAndGet();
+        int index = (nextShard.getAndIncrement() & Integer.MAX_VALUE) % shards.length;
+        shards[index].add(new Slot(ssd, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(initialDelayMs)));
+    }
+
+    @Override
+    public void shutdownNow() {
+        executor.shutdownNow();
+    }
+
+    @Override
+    public int getActiveSmartDrivers() {
+        return activeSmartDrivers.get();
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return activeSmartDrivers.get() == 0;
+    }
+
+    @Override
+    public long getOverruns() {
+        return overruns.get();
+    }
+
+    @Override
+    public long currentTimeMillis() {
+        return System.currentTimeMillis();
+    }
+
+    @Override
+    public boolean isVirtualTime() {
+        return false;
+    }
+
+    @Override
+    public LatencyHistogram getSchedulingLag() {
+        return schedulingLag;
+    }
+
+    @Override
+    public LatencyHistogram getTickDuration() {
+        return tickDuration;
+    }
+
+    @Override
+    public LatencyHistogram getRunDuration() {
+        return runDuration;
+    }
+
+    @Override
+    public long getBehindMillis() {
+        if (!started) {
+            return 0;
+        }
+        long now = System.nanoTime();
+        long behind = 0;
+        for (Shard shard : shards) {
+            // El 'tick' pendiente más antiguo del 'shard' debería haber terminado un periodo después de su inicio previsto.
+            behind = Math.max(behind, now - (startNanos + shard.completedTicks * periodNanos + periodNanos));
+        }
+        return TimeUnit.NANOSECONDS.toMillis(behind);
+    }
+
+    public int getShardsAmount() {
+        return shards.length;
+    }
+
+    public long getPeriodMs() {
+        return periodMs;
+    }
+
+    /**
+     * SmartDriver asignado a un 'shard', con el instante a partir del cual debe
+     * empezar a ejecutarse.
+     */
+    private static class Slot {
+
+        private final SimulatedSmartDriver ssd;
+        private final long startNanos;
+
+        Slot(SimulatedSmartDriver ssd, long startNanos) {
+            this.ssd = ssd;
+            this.startNanos = startNanos;
+        }
+    }
+
+    /**
+     * Grupo de SmartDrivers que se ejecutan secuencialmente en el mismo hilo en
+     * cada 'tick'.
+     */
+    private class Shard implements Runnable {
+
+        private final int index;
+        // Los SmartDrivers nuevos se reciben por esta cola y se incorporan al inicio del siguiente 'tick'.
+        private final ConcurrentLinkedQueue<Slot> incoming;
+        // Sólo se accede desde el hilo que ejecuta el 'shard'.
+        private final List<Slot> slots;
+        private long ticks;
+        // 'Ticks' terminados. Se lee desde otros hilos para saber si el motor va por detrás.
+        private volatile long completedTicks;
+        private long pendingOverruns;
+        private long lastOverrunReport;
+
+        Shard(int index) {
+            this.index = index;
+            this.incoming = new ConcurrentLinkedQueue<>();
+            this.slots = new ArrayList<>();
+            this.ticks = 0;
+            this.completedTicks = 0;
+            this.pendingOverruns = 0;
+            this.lastOverrunReport = 0;
+        }
+
+        void add(Slot slot) {
+            incoming.add(slot);
+        }
+
+        @Override
+        public void run() {
+            // Instante en el que debería haberse ejecutado este 'tick'.
+            long scheduledNanos = startNanos + ticks * periodNanos;
+            ticks++;
+            long tickStart = System.nanoTime();
+            // Instante previsto de todas las ejecuciones de este 'tick', según el reloj del sistema.
+            long intendedMillis = originMillis + TimeUnit.NANOSECONDS.toMillis(scheduledNanos - originNanos);
+
+            Slot newSlot;
+            while ((newSlot = incoming.poll()) != null) {
+                slots.add(newSlot);
+            }
+
+            int i = 0;
+            while (i < slots.size()) {
+                Slot slot = slots.get(i);
+                if (slot.startNanos - tickStart > 0) {
+                    // Aún no le toca empezar.
+                    i++;
+                    continue;
+                }
+
+                boolean remove = false;
+                // Lo que se ha retrasado este SmartDriver, por el retraso del 'tick' y por los que se han ejecutado antes que él.
+                schedulingLag.record(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - scheduledNanos));
+                slot.ssd.setIntendedTime(intendedMillis);
+                long runStart = System.nanoTime();
+                try {
+                    slot.ssd.run();
+                } catch (RuntimeException ex) {
+                    // Se mantiene el comportamiento de una tarea periódica: si el SmartDriver lanza una excepción, deja de ejecutarse.
+                    remove = true;
+                    if (!slot.ssd.isFinished()) {
+                        LOG.log(Level.SEVERE, "Shard.run() - Error en la ejecución del SmartDriver: " + slot.ssd.getSha() + ". Se retira de la simulación", ex);
+                    }
+                }
+                runDuration.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - runStart));
+
+                if (remove || slot.ssd.isFinished()) {
+                    // Lo sustituimos por el último, para no desplazar la lista.
+                    int last = slots.size() - 1;
+                    slots.set(i, slots.get(last));
+                    slots.remove(last);
+                    activeSmartDrivers.decrementAndGet();
+                } else {
+                    i++;
+                }
+            }
+
+            long tickEnd = System.nanoTime();
+            tickDuration.record(TimeUnit.NANOSECONDS.toMillis(tickEnd - tickStart));
+            completedTicks = ticks;
+            if (tickEnd - scheduledNanos > periodNanos) {
+                // El 'tick' no ha terminado dentro de su periodo.
+                overruns.incrementAndGet();
+                pendingOverruns++;
+                if (tickEnd - lastOverrunReport >= OVERRUN_REPORT_INTERVAL_NS) {
+                    LOG.log(Level.WARNING, "Shard.run() - El shard {0} no ha completado {1} ticks dentro de su periodo de {2} ms. Último tick: {3} ms de ejecución, {4} ms de retraso, {5} SmartDrivers", new Object[]{index, pendingOverruns, periodMs, TimeUnit.NANOSECONDS.toMillis(tickEnd - tickStart), TimeUnit.NANOSECONDS.toMillis(tickStart - scheduledNanos), slots.size()});
+                    pendingOverruns = 0;
+                    lastOverrunReport = tickEnd;
+                }
+            }
+        }
+    }
+}
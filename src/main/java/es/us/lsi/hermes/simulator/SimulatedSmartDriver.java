@@ -1,30 +1,28 @@
 package es.us.lsi.hermes.simulator;
 
-import com.google.gson.Gson;
+import es.us.lsi.hermes.analysis.SectionStatistics;
 import es.us.lsi.hermes.csv.CSVEvent;
 import es.us.lsi.hermes.csv.CSVSmartDriverStatus;
 import es.us.lsi.hermes.location.LocationLog;
+import es.us.lsi.hermes.location.PathCursor;
 import es.us.lsi.hermes.location.detail.LocationLogDetail;
 import es.us.lsi.hermes.simulator.kafka.Kafka;
+import es.us.lsi.hermes.simulator.kafka.KafkaProducerPool;
+import es.us.lsi.hermes.simulator.ztreamy.ZtreamyCallback;
+import es.us.lsi.hermes.simulator.ztreamy.ZtreamyPublisherPool;
 import es.us.lsi.hermes.smartDriver.DataSection;
-import es.us.lsi.hermes.smartDriver.RoadSection;
+import es.us.lsi.hermes.smartDriver.RoadSections;
 import es.us.lsi.hermes.util.Constants;
 import es.us.lsi.hermes.util.HermesException;
-import es.us.lsi.hermes.util.Util;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
-import java.net.URL;
 import java.security.SecureRandom;
 import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.Collections;
-import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
-import java.util.Properties;
 import java.util.concurrent.ThreadLocalRandom;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -32,7 +30,6 @@ import javax.ws.rs.core.MediaType;
 import org.apache.commons.codec.binary.Hex;
 import org.apache.commons.codec.digest.DigestUtils;
 import org.apache.commons.lang.time.DurationFormatUtils;
-import org.apache.commons.math3.stat.descriptive.DescriptiveStatistics;
 import org.apache.kafka.clients.producer.Callback;
 import org.apache.kafka.clients.producer.KafkaProducer;
 import org.apache.kafka.clients.producer.ProducerRecord;
@@ -44,8 +41,6 @@ import org.supercsv.cellprocessor.ift.CellProcessor;
 import org.supercsv.io.CsvBeanWriter;
 import org.supercsv.io.ICsvBeanWriter;
 import org.supercsv.prefs.CsvPreference;
-import ztreamy.JSONSerializer;
-import ztreamy.PublisherHC;
 
 public class SimulatedSmartDriver implements Runnable, ISimulatedSmartDriverObserver {
 
@@ -66,9 +61,14 @@ public class SimulatedSmartDriver implements Runnable, ISimulatedSmartDriverObse
     private boolean relaxing; // Indicará si el usuario está relajándose tras una carga de estrés.
     private static final double MIN_SPEED = 10.0d; // Velocidad mínima de los SmartDrivers.
 
-    // Aunque sólo tengamos 2 tipos de eventos, 'Vehicle Location' y 'Data Section', internamente distinguimos entre cuando es un envío normal o cuando es una repetición de un envío previo.
+    // Tipos de eventos que envía el SmartDriver. Los reintentos de los envíos fallidos los realiza 'RetryScheduler'.
     public static enum Event_Type {
-        NORMAL_VEHICLE_LOCATION, RECOVERED_VEHICLE_LOCATION, NORMAL_DATA_SECTION, RECOVERED_DATA_SECTION
+        NORMAL_VEHICLE_LOCATION, NORMAL_DATA_SECTION;
+
+        // Tipo de los eventos que se envían al 'topic' de Kafka indicado.
+        public static Event_Type fromTopic(String topic) {
+            return Kafka.TOPIC_VEHICLE_LOCATION.equals(topic) ? NORMAL_VEHICLE_LOCATION : NORMAL_DATA_SECTION;
+        }
     };
 
     // Elementos de Google Maps para el coche y su zona de influencia.
@@ -77,33 +77,41 @@ public class SimulatedSmartDriver implements Runnable, ISimulatedSmartDriverObse
 
     // Tiempo de simulación transcurrido en segundos del SmartDriver.
     private int elapsedSeconds;
+    // Instante en el que debería haberse ejecutado el 'tick' actual según su planificación. Será 0 si el motor no lo indica.
+    private long intendedTime;
 
     // Indicará si el vehículo se ha movido.
     private boolean locationChanged;
 
     // Ztreamy
-    private PublisherHC publisher;
+    private final ZtreamyPublisherPool ztreamyPublisherPool;
 
     // Kafka
-    private long smartDriverKafkaRecordId;
-    private KafkaProducer<Long, String> smartDriverKafkaProducer;
-    // Lista de hitos del recorrido por las que pasará el SmartDriver.
-    private List<LocationLogDetail> localLocationLogDetailList;
-
-    private int currentPosition;
-    private boolean finished;
+    private final KafkaProducerPool kafkaProducerPool;
+    private final KafkaProducer<Long, ExtendedEvent[]> kafkaProducer;
+
+    // Agrupación de eventos con los del resto de SmartDrivers. Será nulo si cada evento se envía por separado.
+    private final EventBatcher eventBatcher;
+    private final EventBatcher.DeliveryListener deliveryListener;
+    // Recorrido del SmartDriver por los hitos del trayecto, que se comparten con el resto de SmartDrivers del mismo trayecto.
+    private final PathCursor cursor;
+    // Intervalo RR y ritmo cardíaco del SmartDriver en su posición actual, que varían con el estrés.
+    private int currentRrTime;
+    private int currentHeartRate;
+
+    private volatile boolean finished;
+    // Indicará que debe retirarse de la simulación en su siguiente ejecución.
+    private volatile boolean retireRequested;
     private final LocationLog ll;
     private double sectionDistance;
     private double cummulativePositiveSpeeds;
-    private final List<RoadSection> roadSectionList;
+    // Tramos de la sección actual. Se reutiliza en todas las secciones.
+    private final RoadSections.Builder roadSections;
+    // Resumen estadístico de la sección actual, que se actualiza con cada tramo.
+    private final SectionStatistics sectionStatistics;
     private int ztreamySecondsCount;
-    private int ztreamySecondsBetweenRetries;
     private final int minRrTime;
 
-    // Listas con los 'Vehicle Location' y 'Data Section' que han fallado en su envío correspondiente, para poder reintentar su envío.
-    private final List<ExtendedEvent> pendingVehicleLocations;
-    private final List<ExtendedEvent> pendingDataSections;
-
     // Conjunto de eventos enviados con su marca de tiempo del SmartDriver, para el envío del CSV adjunto al terminar la simulación.
     private final List<CSVEvent> csvEventList;
 
@@ -141,24 +149,30 @@ public class SimulatedSmartDriver implements Runnable, ISimulatedSmartDriverObse
      * información de la simulación.
      * @param retries Indicará el número de reintentos de envío de una trama
      * fallida, antes de descartarla.
+     * @param kafkaProducerPool 'Producers' de Kafka de la simulación. Sólo se
+     * usará si el servidor de tramas es Kafka.
+     * @param ztreamyPublisherPool Publicación en Ztreamy de la simulación.
+     * Sólo se usará si el servidor de tramas es Ztreamy.
+     * @param eventBatcher Agrupación de los eventos de todos los SmartDrivers.
+     * Si es nulo, cada evento se enviará por separado.
      *
      * @throws MalformedURLException
      * @throws HermesException
      */
-    public SimulatedSmartDriver(int id, LocationLog ll, Marker pathMarker, Circle pathCircle, boolean randomBehaviour, boolean monitorize, boolean infiniteSimulation, int streamServer, int retries) throws MalformedURLException, HermesException {
+    public SimulatedSmartDriver(int id, LocationLog ll, Marker pathMarker, Circle pathCircle, boolean randomBehaviour, boolean monitorize, boolean infiniteSimulation, int streamServer, int retries, KafkaProducerPool kafkaProducerPool, ZtreamyPublisherPool ztreamyPublisherPool, EventBatcher eventBatcher) throws MalformedURLException, HermesException {
         this.id = id;
         this.ll = ll;
         this.pathMarker = pathMarker;
         this.pathCircle = pathCircle;
         this.elapsedSeconds = 0;
         this.locationChanged = false;
-        this.currentPosition = 0;
         this.finished = false;
+        this.retireRequested = false;
         this.sectionDistance = 0.0d;
-        this.roadSectionList = new ArrayList();
+        this.roadSections = new RoadSections.Builder();
+        this.sectionStatistics = new SectionStatistics(HIGH_ACCELERATION_THRESHOLD, HIGH_DECELERATION_THRESHOLD, SimulatorController.EXACT_SECTION_STATISTICS);
         this.cummulativePositiveSpeeds = 0.0d;
         this.ztreamySecondsCount = 0;
-        this.ztreamySecondsBetweenRetries = 0;
         this.stressLoad = 0; // Suponemos que inicialmente no está estresado.
         int age = ThreadLocalRandom.current().nextInt(18, 65 + 1); // Simularemos conductores de distintas edades (entre 18 y 65 años), para establecer el ritmo cardíaco máximo en la simulación.
         this.minRrTime = (int) Math.ceil(60000.0d / (220 - age)); // Mínimo R-R, que establecerá el ritmo cardíaco máximo.
@@ -169,54 +183,49 @@ public class SimulatedSmartDriver implements Runnable, ISimulatedSmartDriverObse
         this.infiniteSimulation = infiniteSimulation;
 //        // TODO: Probar otros timeouts más altos.
 //        this.surroundingVehiclesConsumer = new SurroundingVehiclesConsumer(Long.parseLong(Kafka.getKafkaProperties().getProperty("consumer.poll.timeout.ms", "1000")), sha, this);
-        this.pendingVehicleLocations = new ArrayList<>();
-        this.pendingDataSections = new ArrayList<>();
-
-        this.localLocationLogDetailList = new ArrayList<>();
 
         // Comprobamos si se quiere un comportamiento aleatorio.
         if (randomBehaviour) {
             double speedRandomFactor = 0.5d + (RANDOM.nextDouble() * 1.0d);
             double hrRandomFactor = 0.9d + (RANDOM.nextDouble() * 0.2d);
-
-            for (LocationLogDetail lld : ll.getLocationLogDetailList()) {
-                // Aplicamos la variación aleatoria de la velocidad.
-                double newSpeed = lld.getSpeed() * speedRandomFactor;
-                // Aplicamos la variación aleatoria del ritmo cardíaco.
-                int newHr = (int) (lld.getHeartRate() * hrRandomFactor);
-                // No habrá ninguna velocidad inferior a la indicada como mínimo.
-                if (newSpeed < MIN_SPEED) {
-                    localLocationLogDetailList.add(new LocationLogDetail(lld.getLatitude(), lld.getLongitude(), MIN_SPEED, newHr, lld.getRrTime(), (int) (Math.ceil(lld.getSecondsToBeHere() * (lld.getSpeed() / MIN_SPEED)))));
-                } else {
-                    localLocationLogDetailList.add(new LocationLogDetail(lld.getLatitude(), lld.getLongitude(), newSpeed, newHr, lld.getRrTime(), (int) (Math.ceil(lld.getSecondsToBeHere() / speedRandomFactor))));
-                }
-            }
+            this.cursor = new PathCursor(ll.getPackedPath(), speedRandomFactor, hrRandomFactor, MIN_SPEED);
         } else {
-            // No habrá ninguna velocidad inferior a la indicada como mínimo.
-            for (LocationLogDetail lld : ll.getLocationLogDetailList()) {
-                if (lld.getSpeed() < MIN_SPEED) {
-                    localLocationLogDetailList.add(new LocationLogDetail(lld.getLatitude(), lld.getLongitude(), MIN_SPEED, lld.getHeartRate(), lld.getRrTime(), (int) (Math.ceil(lld.getSecondsToBeHere() * (lld.getSpeed() / MIN_SPEED)))));
-                } else {
-                    localLocationLogDetailList.add(new LocationLogDetail(lld.getLatitude(), lld.getLongitude(), lld.getSpeed(), lld.getHeartRate(), lld.getRrTime(), lld.getSecondsToBeHere()));
-                }
-            }
+            this.cursor = new PathCursor(ll.getPackedPath(), 1.0d, 1.0d, MIN_SPEED);
         }
+        this.currentRrTime = cursor.getRrTime(0);
+        this.currentHeartRate = cursor.getHeartRate(0);
         this.csvEventList = new ArrayList<>();
         this.csvStatusList = new ArrayList<>();
 //        this.kafkaRecordId = 0;
         this.streamServer = streamServer;
+        this.kafkaProducerPool = kafkaProducerPool;
+        this.ztreamyPublisherPool = ztreamyPublisherPool;
+        this.eventBatcher = eventBatcher;
+        this.deliveryListener = new EventBatcher.DeliveryListener() {
+            @Override
+            public void onDelivered(ExtendedEvent event, long delay, int batchSize) {
+                currentDelay = delay;
+                // Registramos el retraso máximo.
+                if (currentDelay > maxDelay) {
+                    maxDelay = currentDelay;
+                }
+                if (SimulatedSmartDriver.this.monitorize && batchSize >= 0) {
+                    // Registramos el estado del SmartDriver, con el tamaño del lote en el que se envió el evento.
+                    csvStatusList.add(new CSVSmartDriverStatus(SimulatedSmartDriver.this.id, System.currentTimeMillis(), currentDelay, batchSize));
+                }
+                if (VEHICLE_LOCATION.equals(event.getEventType())) {
+                    locationChanged = false;
+                }
+            }
+        };
         switch (streamServer) {
             case 0:
-                if (SimulatorController.kafkaProducerPerSmartDriver) {
-                    // Inicializamos el 'kafkaProducer' de Kafka.
-                    Properties kafkaProperties = Kafka.getKafkaProducerProperties();
-                    kafkaProperties.setProperty("client.id", sha);
-                    this.smartDriverKafkaProducer = new KafkaProducer<>(kafkaProperties);
-                }
+                // Obtenemos el 'producer' de Kafka que tiene asignado este SmartDriver. Será siempre el mismo durante toda la simulación.
+                this.kafkaProducer = kafkaProducerPool.getProducer(sha);
                 break;
             case 1:
-                // Inicializamos el 'publisher' de Ztreamy.
-                this.publisher = new PublisherHC(new URL(SimulatorController.ZTREAMY_URL), new JSONSerializer());
+                // Los eventos se publican en Ztreamy a través de las conexiones compartidas por todos los SmartDrivers.
+                this.kafkaProducer = null;
                 break;
             default:
                 throw new IllegalArgumentException("Invalid Stream Server option");
@@ -228,36 +237,27 @@ public class SimulatedSmartDriver implements Runnable, ISimulatedSmartDriverObse
         return sha;
     }
 
-    private void decreasePendingVehicleLocationsRetries() {
-        int total = pendingVehicleLocations.size();
-        for (int i = total - 1; i >= 0; i--) {
-            ExtendedEvent ee = pendingVehicleLocations.get(i);
-            if (ee.getRetries() > 0) {
-                ee.decreaseRetries();
-            } else {
-                pendingVehicleLocations.remove(i);
-            }
-        }
-        int discarded = total - pendingVehicleLocations.size();
-        if (discarded > 0) {
-            LOG.log(Level.INFO, "Se han descartado: {0} 'Vehicle Location' por alcanzar el máximo número de reintentos de envío", discarded);
-        }
+    /**
+     * Indica el instante en el que debería ejecutarse el siguiente 'run()'
+     * según la planificación del SmartDriver, aunque se ejecute más tarde.
+     *
+     * @param intendedTime Milisegundos desde 'epoch'.
+     */
+    void setIntendedTime(long intendedTime) {
+        this.intendedTime = intendedTime;
     }
 
-    private void decreasePendingDataSectionsRetries() {
-        int total = pendingDataSections.size();
-        for (int i = total - 1; i >= 0; i--) {
-            ExtendedEvent ee = pendingDataSections.get(i);
-            if (ee.getRetries() > 0) {
-                ee.decreaseRetries();
-            } else {
-                pendingDataSections.remove(i);
-            }
-        }
-        int discarded = total - pendingDataSections.size();
-        if (discarded > 0) {
-            LOG.log(Level.INFO, "Se han descartado: {0} 'Data Section' por alcanzar el máximo número de reintentos de envío", discarded);
-        }
+    /**
+     * Solicita que el SmartDriver se retire de la simulación. Lo hará en su
+     * siguiente ejecución, desde su propio hilo.
+     */
+    void retire() {
+        retireRequested = true;
+    }
+
+    // Instante desde el que se mide el retraso de un envío: el previsto en carga de lazo abierto, o el real.
+    private long getSendStartTime() {
+        return SimulatorController.OPEN_LOOP_LOAD && intendedTime > 0 ? intendedTime : System.currentTimeMillis();
     }
 
 //    public void startConsumer() {
@@ -268,25 +268,30 @@ public class SimulatedSmartDriver implements Runnable, ISimulatedSmartDriverObse
         if (!finished) {
             // Lo primero que comprobamos es si se ha cumplido el tiempo máximo de simulación.
             // Cada hilo comprobará el tiempo que lleva ejecutándose.
-            if ((System.currentTimeMillis() - SimulatorController.startSimulationTime) >= SimulatorController.MAX_SIMULATION_TIME) {
+            if ((SimulatorController.getSimulationTime() - SimulatorController.startSimulationTime) >= SimulatorController.MAX_SIMULATION_TIME) {
                 // Se ha cumplido el tiempo, paramos la ejecución.
                 finish();
+            } else if (retireRequested) {
+                // Se retira de la simulación antes de llegar a su destino.
+                pathMarker.setVisible(false);
+                SimulatorController.smartDriverHasFinished(this.getSha());
+                if (monitorize) {
+                    SimulatorController.addCSVEvents(csvEventList);
+                }
+                finish();
             } else {
 
-                LocationLogDetail currentLocationLogDetail = localLocationLogDetailList.get(currentPosition);
-
                 double distance;
-                double bearing;
                 // Por defecto, en la simulación se tiende al estado relajado.
                 relaxing = true;
 
-                LOG.log(Level.FINE, "SimulatedSmartDriver.run() - El usuario de SmartDriver se encuentra en: ({0}, {1})", new Object[]{currentLocationLogDetail.getLatitude(), currentLocationLogDetail.getLongitude()});
-                LOG.log(Level.FINE, "SimulatedSmartDriver.run() - Elemento actual: {0} de {1}", new Object[]{currentPosition, localLocationLogDetailList.size()});
+                LOG.log(Level.FINE, "SimulatedSmartDriver.run() - El usuario de SmartDriver se encuentra en: ({0}, {1})", new Object[]{cursor.getLatitude(), cursor.getLongitude()});
+                LOG.log(Level.FINE, "SimulatedSmartDriver.run() - Elemento actual: {0} de {1}", new Object[]{cursor.getPosition(), cursor.size()});
 
                 // Comprobamos si ha pasado suficiente tiempo como para pasar a la siguiente localización.
-                if (elapsedSeconds >= currentLocationLogDetail.getSecondsToBeHere()) {
+                if (elapsedSeconds >= cursor.getSecondsToBeHere()) {
                     // Comprobamos si hemos llegado al destino.
-                    if (currentPosition == localLocationLogDetailList.size() - 1) {
+                    if (cursor.isAtEnd()) {
                         if (!infiniteSimulation) {
                             // Si hemos llegado, hacemos invisible el marker del mapa.
                             pathMarker.setVisible(false);
@@ -294,63 +299,50 @@ public class SimulatedSmartDriver implements Runnable, ISimulatedSmartDriverObse
                             SimulatorController.smartDriverHasFinished(this.getSha());
 
                             LOG.log(Level.FINE, "SimulatedSmartDriver.run() - El usuario ha llegado a su destino en: {0}", DurationFormatUtils.formatDuration(elapsedSeconds * 1000l, "HH:mm:ss", true));
-                            SimulatorController.addFinallyPending(pendingVehicleLocations.size() + pendingDataSections.size());
                             if (monitorize) {
                                 SimulatorController.addCSVEvents(csvEventList);
                             }
                             finish();
                         } else {
                             // Hemos llegado al final, pero es una simulación infinita. Le damos la vuelta al recorrido y seguimos.
-                            Collections.reverse(localLocationLogDetailList);
-                            int size = localLocationLogDetailList.size();
-                            for (int i = 0; i < size / 2; i++) {
-                                LocationLogDetail lld1 = localLocationLogDetailList.get(i);
-                                LocationLogDetail lld2 = localLocationLogDetailList.get(size - 1 - i);
-                                int stbh1 = lld1.getSecondsToBeHere();
-                                lld1.setSecondsToBeHere(lld2.getSecondsToBeHere());
-                                lld2.setSecondsToBeHere(stbh1);
-                            }
-                            currentPosition = 0;
+                            cursor.reverse();
                             elapsedSeconds = 0;
                         }
                     } else {
                         // No hemos llegado al destino, avanzamos de posición.
-                        int previousPosition = currentPosition;
-                        for (int i = currentPosition; i < localLocationLogDetailList.size(); i++) {
-                            currentPosition = i;
-                            if (localLocationLogDetailList.get(i).getSecondsToBeHere() > elapsedSeconds) {
-                                break;
-                            }
-                        }
+                        int previousSecondsToBeHere = cursor.getSecondsToBeHere();
+                        int previousPosition = cursor.advance(elapsedSeconds);
+                        int currentPosition = cursor.getPosition();
 
                         LOG.log(Level.FINE, "SimulatedSmartDriver.run() - Avanzamos de posición: {0}", currentPosition);
-                        currentLocationLogDetail = localLocationLogDetailList.get(currentPosition);
-                        LOG.log(Level.FINE, "SimulatedSmartDriver.run() - El usuario de SmartDriver se encuentra en: ({0}, {1})", new Object[]{currentLocationLogDetail.getLatitude(), currentLocationLogDetail.getLongitude()});
+                        double currentLatitude = cursor.getLatitude(currentPosition);
+                        double currentLongitude = cursor.getLongitude(currentPosition);
+                        double currentSpeed = cursor.getSpeed(currentPosition);
+                        LOG.log(Level.FINE, "SimulatedSmartDriver.run() - El usuario de SmartDriver se encuentra en: ({0}, {1})", new Object[]{currentLatitude, currentLongitude});
 
                         // Modificamos el 'marker' de Google Maps.
-                        LatLng newPosition = new LatLng(currentLocationLogDetail.getLatitude(), currentLocationLogDetail.getLongitude());
+                        LatLng newPosition = new LatLng(currentLatitude, currentLongitude);
                         pathMarker.setLatlng(newPosition);
                         pathCircle.setCenter(newPosition);
-                        LocationLogDetail previousLocationLogDetail = localLocationLogDetailList.get(previousPosition);
-
-                        // Calculamos la distancia recorrida.
-                        distance = Util.distanceHaversine(previousLocationLogDetail.getLatitude(), previousLocationLogDetail.getLongitude(), currentLocationLogDetail.getLatitude(), currentLocationLogDetail.getLongitude());
+                        double previousSpeed = cursor.getSpeed(previousPosition);
+                        // El intervalo RR de la posición anterior es el que tenía el SmartDriver al llegar a ella.
+                        int previousRrTime = currentRrTime;
+                        currentRrTime = cursor.getRrTime(currentPosition);
 
-                        // Calculamos la orientación para simular estrés al entrar en una curva.
-                        bearing = Util.bearing(previousLocationLogDetail.getLatitude(), previousLocationLogDetail.getLongitude(), currentLocationLogDetail.getLatitude(), currentLocationLogDetail.getLongitude());
+                        // Calculamos la distancia recorrida, que viene precalculada en el trayecto.
+                        distance = cursor.getDistance(previousPosition, currentPosition);
 
                         // TODO: ¿Criterios que puedan alterar el estrés? 
                         if (previousPosition > 1) {
-                            LocationLogDetail antePreviousLocationLogDetail = localLocationLogDetailList.get(previousPosition - 1);
-                            double previousBearing = Util.bearing(antePreviousLocationLogDetail.getLatitude(), antePreviousLocationLogDetail.getLongitude(), previousLocationLogDetail.getLatitude(), previousLocationLogDetail.getLongitude());
-                            double bearingDiff = Math.abs(bearing - previousBearing);
+                            // Comparamos la orientación del tramo por el que se llegó a la posición anterior con la del recorrido hasta la actual, para simular estrés al entrar en una curva.
+                            double bearingDiff = cursor.getBearingDelta(previousPosition, currentPosition);
 
                             // Si hay una desviación brusca de la trayectoria, suponemos una componente de estrés.
                             stressForDeviation(bearingDiff);
 
                         }
 
-                        double speedDiff = Math.abs(currentLocationLogDetail.getSpeed() - previousLocationLogDetail.getSpeed());
+                        double speedDiff = Math.abs(currentSpeed - previousSpeed);
 
                         // Si hay un salto grande de velocidad, suponemos una componente de estrés.
                         stressForSpeed(speedDiff);
@@ -364,13 +356,13 @@ public class SimulatedSmartDriver implements Runnable, ISimulatedSmartDriverObse
                             // Si se está calmando, le subimos el intervalo RR y si se está estresando, le bajamos el intervalo RR.
                             if (relaxing) {
                                 if (stressLoad > 0) {
-                                    currentLocationLogDetail.setRrTime(previousLocationLogDetail.getRrTime() - ((previousLocationLogDetail.getRrTime() - currentLocationLogDetail.getRrTime()) / stressLoad));
+                                    currentRrTime = previousRrTime - ((previousRrTime - currentRrTime) / stressLoad);
                                 }
                             } else if (stressLoad < 5) {
-                                currentLocationLogDetail.setRrTime(previousLocationLogDetail.getRrTime() - (minRrTime / stressLoad));
+                                currentRrTime = previousRrTime - (minRrTime / stressLoad);
                             } else {
                                 // Establecemos un mínimo R-R en función de la edad del conductor.
-                                currentLocationLogDetail.setRrTime(minRrTime);
+                                currentRrTime = minRrTime;
                             }
 
                             if (stressLoad < 5) {
@@ -384,33 +376,31 @@ public class SimulatedSmartDriver implements Runnable, ISimulatedSmartDriverObse
                         }
 
                         // Calculamos el ritmo cardíaco a partir del intervalo RR.
-                        currentLocationLogDetail.setHeartRate((int) Math.ceil(60.0d / (currentLocationLogDetail.getRrTime() / 1000.0d)));
+                        currentHeartRate = (int) Math.ceil(60.0d / (currentRrTime / 1000.0d));
 
                         // Acumulamos la distancia recorrida.
                         sectionDistance += distance;
 
                         // Hacemos el análisis del PKE (Positive Kinetic Energy)
-                        cummulativePositiveSpeeds += analyzePKE(currentLocationLogDetail, previousLocationLogDetail);
+                        cummulativePositiveSpeeds += analyzePKE(currentSpeed, previousSpeed);
+
+                        int currentSecondsToBeHere = cursor.getSecondsToBeHere();
 
                         // Información.
-                        pathMarker.setTitle(currentLocationLogDetail.getMarkerTitle());
-
-                        // Creamos un elementos de tipo 'RoadSection', para añadirlo al 'DataSection' que se envía a 'Ztreamy' cada 500 metros.
-                        RoadSection rs = new RoadSection();
-                        rs.setTime(System.currentTimeMillis());
-                        rs.setLatitude(currentLocationLogDetail.getLatitude());
-                        rs.setLongitude(currentLocationLogDetail.getLongitude());
-                        int tDiff = (currentLocationLogDetail.getSecondsToBeHere() - previousLocationLogDetail.getSecondsToBeHere());
+                        pathMarker.setTitle(LocationLogDetail.getMarkerTitle(currentLatitude, currentLongitude, currentSpeed, currentHeartRate, currentSecondsToBeHere));
+
+                        // Añadimos el tramo al 'DataSection' que se envía a 'Ztreamy' cada 500 metros.
+                        long rsTime = SimulatorController.getSimulationTime();
+                        double rsSpeed;
+                        int tDiff = (currentSecondsToBeHere - previousSecondsToBeHere);
                         if (tDiff > 0) {
-                            rs.setSpeed(distance * 3.6 / tDiff);
+                            rsSpeed = distance * 3.6 / tDiff;
                         } else {
-                            rs.setSpeed(previousLocationLogDetail.getSpeed());
+                            rsSpeed = previousSpeed;
                         }
-                        rs.setHeartRate(currentLocationLogDetail.getHeartRate());
-                        rs.setRrTime(currentLocationLogDetail.getRrTime());
-                        rs.setAccuracy(0);
 
-                        roadSectionList.add(rs);
+                        roadSections.add(rsTime, currentLatitude, currentLongitude, rsSpeed, 0, currentRrTime);
+                        sectionStatistics.add(rsTime, rsSpeed, currentHeartRate, currentRrTime);
 
                         // Hemos cambiado de localización.
                         locationChanged = true;
@@ -419,149 +409,20 @@ public class SimulatedSmartDriver implements Runnable, ISimulatedSmartDriverObse
 
                 if (locationChanged && isTimeToSend()) {
                     // Sólo si cambiamos de posición y han pasado más de 10 segundos, se envía información a 'Ztreamy'.
-                    sendEvery10SecondsIfLocationChanged(currentLocationLogDetail);
-                } else if (SimulatorController.retryOnFail && !pendingVehicleLocations.isEmpty()) {
-
-                    // Vemos si ha pasado suficiente tiempo entre reintentos.
-                    if (isTimeToRetry()) {
-                        /////////////////////////////////////////////////////
-                        // REINTENTO DE ENVÍO DE VEHICLE LOCATION FALLIDOS //
-                        /////////////////////////////////////////////////////
-
-                        // Aprovechamos que no toca envío de 'Vehicle Location' para probar a enviar los que hubieran fallado.
-                        SimulatorController.increaseSends();
-                        ExtendedEvent[] events = new ExtendedEvent[pendingVehicleLocations.size()];
-
-                        switch (streamServer) {
-                            case 0:
-                                // Kafka
-                                try {
-                                    String json = new Gson().toJson(events);
-                                    long id = SimulatorController.getNextKafkaRecordId();
-                                    if (SimulatorController.kafkaProducerPerSmartDriver) {
-                                        smartDriverKafkaProducer.send(new ProducerRecord<>(Kafka.TOPIC_VEHICLE_LOCATION,
-                                                smartDriverKafkaRecordId,
-                                                json
-                                        ), new KafkaCallBack(System.currentTimeMillis(), smartDriverKafkaRecordId, events, Event_Type.RECOVERED_VEHICLE_LOCATION));
-                                        smartDriverKafkaRecordId++;
-                                    } else {
-                                        SimulatorController.getKafkaProducer().send(new ProducerRecord<>(Kafka.TOPIC_VEHICLE_LOCATION,
-                                                id,
-                                                json
-                                        ), new KafkaCallBack(System.currentTimeMillis(), id, events, Event_Type.RECOVERED_VEHICLE_LOCATION));
-                                    }
-                                } catch (Exception ex) {
-                                    LOG.log(Level.SEVERE, "*Reintento* - Error: {0} - No se han podido reenviar los {1} 'Vehicle Location' pendientes", new Object[]{ex.getMessage(), pendingVehicleLocations.size()});
-                                    SimulatorController.logCurrentStatus();
-                                } finally {
-                                    ztreamySecondsBetweenRetries = 0;
-                                }
-                                break;
-                            case 1:
-                                // Ztreamy
-                                try {
-                                    int result = publisher.publish(pendingVehicleLocations.toArray(events), true);
-                                    if (result == HttpURLConnection.HTTP_OK) {
-                                        SimulatorController.addRecovered(events.length);
-                                        LOG.log(Level.INFO, "*Reintento* - {0} 'Vehicle Location' pendientes enviadas correctamante. SmartDriver: {1}", new Object[]{events.length, ll.getPerson().getEmail()});
-                                        pendingVehicleLocations.clear();
-                                    } else {
-                                        LOG.log(Level.SEVERE, "*Reintento* - Error SEND (Not OK): No se han podido reenviar los {0} 'Vehicle Location' pendientes", events.length);
-                                        SimulatorController.logCurrentStatus();
-                                        if (retries != -1) {
-                                            decreasePendingVehicleLocationsRetries();
-                                        }
-                                        reconnectPublisher();
-                                    }
-                                } catch (IOException ex) {
-                                    LOG.log(Level.SEVERE, "*Reintento* - Error: {0} - No se han podido reenviar los {1} 'Vehicle Location' pendientes", new Object[]{ex.getMessage(), pendingVehicleLocations.size()});
-                                    SimulatorController.logCurrentStatus();
-                                    reconnectPublisher();
-                                } finally {
-                                    ztreamySecondsBetweenRetries = 0;
-                                }
-                                break;
-                            default:
-                                throw new IllegalArgumentException("Invalid Stream Server option");
-                        }
-                    }
+                    long sendStart = System.nanoTime();
+                    sendEvery10SecondsIfLocationChanged();
+                    SimulatorController.recordSendDuration(Event_Type.NORMAL_VEHICLE_LOCATION, System.nanoTime() - sendStart);
                 }
 
                 // Se enviará un resumen cada 500 metros.
                 if (sectionDistance >= ZTREAMY_SEND_INTERVAL_METERS) {
+                    long sendStart = System.nanoTime();
                     sendDataSection();
-                } else if (SimulatorController.retryOnFail && !pendingDataSections.isEmpty()) {
-
-                    // Vemos si ha pasado suficiente tiempo entre reintentos.
-                    if (isTimeToRetry()) {
-                        /////////////////////////////////////////////////
-                        // REINTENTO DE ENVÍO DE DATA SECTION FALLIDOS //
-                        /////////////////////////////////////////////////
-
-                        // Aprovechamos que no toca envío de 'Data Section' para probar a enviar los que hubieran fallado.
-                        SimulatorController.increaseSends();
-                        ExtendedEvent[] events = new ExtendedEvent[pendingDataSections.size()];
-
-                        switch (streamServer) {
-                            case 0:
-                                // Kafka
-                                try {
-                                    String json = new Gson().toJson(events);
-                                    long id = SimulatorController.getNextKafkaRecordId();
-                                    if (SimulatorController.kafkaProducerPerSmartDriver) {
-                                        smartDriverKafkaProducer.send(new ProducerRecord<>(Kafka.TOPIC_DATA_SECTION,
-                                                smartDriverKafkaRecordId,
-                                                json
-                                        ), new KafkaCallBack(System.currentTimeMillis(), smartDriverKafkaRecordId, events, Event_Type.RECOVERED_DATA_SECTION));
-                                        smartDriverKafkaRecordId++;
-                                    } else {
-                                        SimulatorController.getKafkaProducer().send(new ProducerRecord<>(Kafka.TOPIC_DATA_SECTION,
-                                                id,
-                                                json
-                                        ), new KafkaCallBack(System.currentTimeMillis(), id, events, Event_Type.RECOVERED_DATA_SECTION));
-                                    }
-                                } catch (Exception ex) {
-                                    LOG.log(Level.SEVERE, "*Reintento* - Error: {0} - No se han podido reenviar los {1} 'Data Section' pendientes", new Object[]{ex.getMessage(), pendingDataSections.size()});
-                                    SimulatorController.logCurrentStatus();
-                                } finally {
-                                    ztreamySecondsBetweenRetries = 0;
-                                }
-                                break;
-                            case 1:
-                                // ZTreamy
-                                try {
-                                    int result = publisher.publish(pendingDataSections.toArray(events), true);
-                                    if (result == HttpURLConnection.HTTP_OK) {
-                                        SimulatorController.addRecovered(events.length);
-                                        LOG.log(Level.INFO, "*Reintento* - {0} 'Data Section' pendientes enviados correctamante. SmartDriver: {1}", new Object[]{events.length, ll.getPerson().getEmail()});
-                                        pendingDataSections.clear();
-                                    } else {
-                                        LOG.log(Level.SEVERE, "*Reintento* - Error SEND (Not OK): No se han podido reenviar los {0} 'Data Section' pendientes", events.length);
-                                        SimulatorController.logCurrentStatus();
-                                        if (retries != -1) {
-                                            decreasePendingDataSectionsRetries();
-                                        }
-                                        reconnectPublisher();
-                                    }
-                                } catch (IOException ex) {
-                                    LOG.log(Level.SEVERE, "*Reintento* - Error: {0} - No se han podido reenviar los {1} 'Data Section' pendientes", new Object[]{ex.getMessage(), pendingDataSections.size()});
-                                    SimulatorController.logCurrentStatus();
-                                    reconnectPublisher();
-                                } finally {
-                                    ztreamySecondsBetweenRetries = 0;
-                                }
-                                break;
-                            default:
-                                throw new IllegalArgumentException("Invalid Stream Server option");
-                        }
-                    }
+                    SimulatorController.recordSendDuration(Event_Type.NORMAL_DATA_SECTION, System.nanoTime() - sendStart);
                 }
 
                 elapsedSeconds++;
                 ztreamySecondsCount++;
-                if (!pendingVehicleLocations.isEmpty() || !pendingDataSections.isEmpty()) {
-                    ztreamySecondsBetweenRetries++;
-                }
                 LOG.log(Level.FINE, "SimulatedSmartDriver.run() - Tiempo de simulación transcurrido: {0}", DurationFormatUtils.formatDuration(elapsedSeconds * 1000l, "HH:mm:ss", true));
             }
         } else {
@@ -617,52 +478,50 @@ public class SimulatedSmartDriver implements Runnable, ISimulatedSmartDriverObse
         return ztreamySecondsCount >= ZTREAMY_SEND_INTERVAL_SECONDS;
     }
 
-    private boolean isTimeToRetry() {
-        return ztreamySecondsBetweenRetries >= SimulatorController.secondsBetweenRetries;
-    }
-
-    private void sendEvery10SecondsIfLocationChanged(LocationLogDetail currentLocationLogDetail) {
+    private void sendEvery10SecondsIfLocationChanged() {
         // Creamos un objeto de tipo 'Location' de los que 'SmartDriver' envía al servidor de tramas.
         es.us.lsi.hermes.smartDriver.Location smartDriverLocation = new es.us.lsi.hermes.smartDriver.Location();
-        smartDriverLocation.setLatitude(currentLocationLogDetail.getLatitude());
-        smartDriverLocation.setLongitude(currentLocationLogDetail.getLongitude());
-        smartDriverLocation.setSpeed(currentLocationLogDetail.getSpeed());
+        smartDriverLocation.setLatitude(cursor.getLatitude());
+        smartDriverLocation.setLongitude(cursor.getLongitude());
+        smartDriverLocation.setSpeed(cursor.getSpeed());
         smartDriverLocation.setAccuracy(0);
         smartDriverLocation.setScore(0);
         // Asignamos el momento actual del envío de la trama a Ztreamy al LocationLogDetail.
-        smartDriverLocation.setTimeStamp(Constants.dfISO8601.format(new Date()));
+        smartDriverLocation.setTimeStamp(Constants.dfISO8601.format(SimulatorController.getSimulationTime()));
 
         HashMap<String, Object> bodyObject = new HashMap<>();
         bodyObject.put("Location", smartDriverLocation);
-        SimulatorController.increaseGenerated();
+        SimulatorController.increaseGenerated(streamServer, Event_Type.NORMAL_VEHICLE_LOCATION);
 
-        ExtendedEvent event = new ExtendedEvent(sha, MediaType.APPLICATION_JSON, Constants.SIMULATOR_APPLICATION_ID, VEHICLE_LOCATION, bodyObject, retries);
+        ExtendedEvent event = createEvent(VEHICLE_LOCATION, bodyObject);
 
-        SimulatorController.increaseSends();
+        SimulatorController.increaseSends(streamServer, Event_Type.NORMAL_VEHICLE_LOCATION);
+        if (eventBatcher != null) {
+            // Se enviará junto con los eventos del resto de SmartDrivers.
+            eventBatcher.add(Kafka.TOPIC_VEHICLE_LOCATION, event, deliveryListener, SimulatorController.OPEN_LOOP_LOAD ? intendedTime : 0);
+            // Iniciamos el contador de tiempo para el siguiente envío.
+            ztreamySecondsCount = 0;
+            if (monitorize) {
+                csvEventList.add(new CSVEvent(event.getEventId(), event.getTimestamp()));
+            }
+            return;
+        }
         switch (streamServer) {
             case 0:
                 // Kafka
                 try {
-                    String json = new Gson().toJson(event);
-                    long id = SimulatorController.getNextKafkaRecordId();
-                    if (SimulatorController.kafkaProducerPerSmartDriver) {
-                        smartDriverKafkaProducer.send(new ProducerRecord<>(Kafka.TOPIC_VEHICLE_LOCATION,
-                                smartDriverKafkaRecordId,
-                                json
-                        ), new KafkaCallBack(System.currentTimeMillis(), smartDriverKafkaRecordId, new ExtendedEvent[]{event}, Event_Type.NORMAL_VEHICLE_LOCATION));
-                        smartDriverKafkaRecordId++;
-                    } else {
-                        SimulatorController.getKafkaProducer().send(new ProducerRecord<>(Kafka.TOPIC_VEHICLE_LOCATION,
-                                id,
-                                json
-                        ), new KafkaCallBack(System.currentTimeMillis(), id, new ExtendedEvent[]{event}, Event_Type.NORMAL_VEHICLE_LOCATION));
-                    }
+                    ExtendedEvent[] events = new ExtendedEvent[]{event};
+                    long id = kafkaProducerPool.nextRecordId();
+                    kafkaProducer.send(new ProducerRecord<>(Kafka.TOPIC_VEHICLE_LOCATION,
+                            id,
+                            events
+                    ), new KafkaCallBack(getSendStartTime(), id, events, Event_Type.NORMAL_VEHICLE_LOCATION));
                 } catch (Exception ex) {
                     if (!finished) {
-                        SimulatorController.increaseErrors();
+                        SimulatorController.increaseErrors(streamServer, Event_Type.NORMAL_VEHICLE_LOCATION);
                         if (SimulatorController.retryOnFail) {
                             // Si ha fallado, almacenamos el 'Vehicle Location' que se debería haber enviado y lo intentamos luego.
-                            pendingVehicleLocations.add(event);
+                            SimulatorController.scheduleRetry(streamServer, Kafka.TOPIC_VEHICLE_LOCATION, new ExtendedEvent[]{event});
                         }
                         LOG.log(Level.SEVERE, "sendEvery10SecondsIfLocationChanged() - Error desconocido: {0}", ex.getMessage());
                         SimulatorController.logCurrentStatus();
@@ -678,45 +537,8 @@ public class SimulatedSmartDriver implements Runnable, ISimulatedSmartDriverObse
             case 1:
                 // Ztreamy
                 try {
-                    int result = publisher.publish(event, true);
-                    if (result == HttpURLConnection.HTTP_OK) {
-                        SimulatorController.increaseOkSends();
-                        LOG.log(Level.FINE, "sendEvery10SecondsIfLocationChanged() - Localización de trayecto simulado enviada correctamante. SmartDriver: {0}", ll.getPerson().getEmail());
-                        locationChanged = false;
-                    } else {
-                        SimulatorController.increaseNoOkSends();
-                        if (SimulatorController.retryOnFail) {
-                            // Si ha fallado, almacenamos el 'Vehicle Location' que se debería haber enviado y lo intentamos luego.
-                            pendingVehicleLocations.add(event);
-                        }
-                        LOG.log(Level.SEVERE, "sendEvery10SecondsIfLocationChanged() - Error SEND (Not OK)");
-                        SimulatorController.logCurrentStatus();
-                        reconnectPublisher();
-                    }
-                } catch (MalformedURLException ex) {
-                    LOG.log(Level.SEVERE, "sendEvery10SecondsIfLocationChanged() - Error en la URL", ex);
-                } catch (IOException ex) {
-                    if (!finished) {
-                        SimulatorController.increaseErrors();
-                        if (SimulatorController.retryOnFail) {
-                            // Si ha fallado, almacenamos el 'Vehicle Location' que se debería haber enviado y lo intentamos luego.
-                            pendingVehicleLocations.add(event);
-                        }
-                        LOG.log(Level.SEVERE, "sendEvery10SecondsIfLocationChanged() - Error I/O: {0}", ex.getMessage());
-                        SimulatorController.logCurrentStatus();
-                        reconnectPublisher();
-                    }
-                } catch (Exception ex) {
-                    if (!finished) {
-                        SimulatorController.increaseErrors();
-                        if (SimulatorController.retryOnFail) {
-                            // Si ha fallado, almacenamos el 'Vehicle Location' que se debería haber enviado y lo intentamos luego.
-                            pendingVehicleLocations.add(event);
-                        }
-                        LOG.log(Level.SEVERE, "sendEvery10SecondsIfLocationChanged() - Error desconocido: {0}", ex.getMessage());
-                        SimulatorController.logCurrentStatus();
-                        reconnectPublisher();
-                    }
+                    // No se espera la respuesta: el resultado se procesa en 'ZtreamyCallBack'.
+                    ztreamyPublisherPool.publish(new ExtendedEvent[]{event}, new ZtreamyCallBack(getSendStartTime(), new ExtendedEvent[]{event}, Event_Type.NORMAL_VEHICLE_LOCATION));
                 } finally {
                     // Iniciamos el contador de tiempo para el siguiente envío.
                     ztreamySecondsCount = 0;
@@ -731,104 +553,70 @@ public class SimulatedSmartDriver implements Runnable, ISimulatedSmartDriverObse
         // Creamos un objeto de tipo 'DataSection' de los que 'SmartDriver' envía al servidor de tramas.
         DataSection dataSection = new DataSection();
 
-        DescriptiveStatistics speedStats = new DescriptiveStatistics();
-        DescriptiveStatistics heartRateStats = new DescriptiveStatistics();
-        DescriptiveStatistics rrStats = new DescriptiveStatistics();
-        DescriptiveStatistics accelerationStats = new DescriptiveStatistics();
-        DescriptiveStatistics decelerationStats = new DescriptiveStatistics();
-        RoadSection rdPrevious = roadSectionList.get(0);
-        speedStats.addValue(rdPrevious.getSpeed());
-        rrStats.addValue(rdPrevious.getRrTime());
-        int numHighAccelerations = 0;
-        int numHighDecelerations = 0;
-
-        for (int i = 1; i < roadSectionList.size(); i++) {
-            RoadSection rs = roadSectionList.get(i);
-            speedStats.addValue(rs.getSpeed());
-
-            double vDiff = (rs.getSpeed() - rdPrevious.getSpeed()) / 3.6d; // Diferencia de velocidades pasadas a m/s.
-            double tDiff = (rs.getTime() - rdPrevious.getTime()) / 1000.0; // Diferencia de tiempos en segundos.
-            double acceleration = tDiff > 0.0d ? vDiff / tDiff : 0.0d; // Aceleración o deceleración en m/s2.
-
-            if (acceleration > 0.0d) {
-                accelerationStats.addValue(acceleration);
-                if (acceleration > HIGH_ACCELERATION_THRESHOLD) {
-                    numHighAccelerations++;
-                }
-            } else if (acceleration < 0.0d) {
-                decelerationStats.addValue(acceleration);
-                if (numHighDecelerations < HIGH_DECELERATION_THRESHOLD) {
-                    numHighDecelerations++;
-                }
-            }
-
-            heartRateStats.addValue(rs.getHeartRate());
-            rrStats.addValue(rs.getRrTime());
-
-            rdPrevious = rs;
-        }
-        dataSection.setAverageAcceleration(accelerationStats.getN() > 0 ? (!Double.isNaN(accelerationStats.getMean()) ? accelerationStats.getMean() : 0.0d) : 0.0d);
-        dataSection.setAverageDeceleration(decelerationStats.getN() > 0 ? (!Double.isNaN(decelerationStats.getMean()) ? decelerationStats.getMean() : 0.0d) : 0.0d);
-        dataSection.setAverageHeartRate(heartRateStats.getN() > 0 ? (!Double.isNaN(heartRateStats.getMean()) ? heartRateStats.getMean() : 0.0d) : 0.0d);
-        dataSection.setAverageRR(rrStats.getN() > 0 ? (!Double.isNaN(rrStats.getMean()) ? rrStats.getMean() : 0.0d) : 0.0d);
-        dataSection.setAverageSpeed(speedStats.getN() > 0 ? (!Double.isNaN(speedStats.getMean()) ? speedStats.getMean() : 0.0d) : 0.0d);
-        dataSection.setNumHighAccelerations(numHighAccelerations);
-        dataSection.setNumHighDecelerations(numHighDecelerations);
-        dataSection.setMaxSpeed(speedStats.getN() > 0 ? speedStats.getMax() : 0.0d);
-        dataSection.setMedianSpeed(speedStats.getN() > 0 ? (!Double.isNaN(speedStats.getPercentile(50)) ? speedStats.getPercentile(50) : 0.0d) : 0.0d);
-        dataSection.setMinSpeed(speedStats.getN() > 0 ? speedStats.getMin() : 0.0d);
+        // El resumen de la sección se ha ido calculando según se añadían sus tramos.
+        dataSection.setAverageAcceleration(sectionStatistics.getAverageAcceleration());
+        dataSection.setAverageDeceleration(sectionStatistics.getAverageDeceleration());
+        dataSection.setAverageHeartRate(sectionStatistics.getAverageHeartRate());
+        dataSection.setAverageRR(sectionStatistics.getAverageRR());
+        dataSection.setAverageSpeed(sectionStatistics.getAverageSpeed());
+        dataSection.setNumHighAccelerations(sectionStatistics.getNumHighAccelerations());
+        dataSection.setNumHighDecelerations(sectionStatistics.getNumHighDecelerations());
+        dataSection.setMaxSpeed(sectionStatistics.getMaxSpeed());
+        dataSection.setMedianSpeed(sectionStatistics.getMedianSpeed());
+        dataSection.setMinSpeed(sectionStatistics.getMinSpeed());
         dataSection.setPke(sectionDistance > 0.0d ? (cummulativePositiveSpeeds / sectionDistance) : 0.0d);
-        List<Integer> rrSectionList = new ArrayList();
-        for (double rr : rrStats.getValues()) {
-            rrSectionList.add((int) rr);
-        }
-        dataSection.setRrSection(rrSectionList);
-        dataSection.setStandardDeviationHeartRate(heartRateStats.getN() > 0 ? (!Double.isNaN(heartRateStats.getStandardDeviation()) ? heartRateStats.getStandardDeviation() : 0.0d) : 0.0d);
-        dataSection.setStandardDeviationRR(rrStats.getN() > 0 ? (!Double.isNaN(rrStats.getStandardDeviation()) ? rrStats.getStandardDeviation() : 0.0d) : 0.0d);
-        dataSection.setStandardDeviationSpeed(speedStats.getN() > 0 ? (!Double.isNaN(speedStats.getStandardDeviation()) ? speedStats.getStandardDeviation() : 0.0d) : 0.0d);
+        // Copia de los tramos, ya que el 'Builder' se reutiliza para la siguiente sección aunque ésta haya que reintentarla.
+        RoadSections sectionRoadSections = roadSections.build();
+        dataSection.setRrSection(sectionRoadSections.getRrTimes());
+        dataSection.setStandardDeviationHeartRate(sectionStatistics.getStandardDeviationHeartRate());
+        dataSection.setStandardDeviationRR(sectionStatistics.getStandardDeviationRR());
+        dataSection.setStandardDeviationSpeed(sectionStatistics.getStandardDeviationSpeed());
 
         // Asignamos la lista de datos del tramo.
-        dataSection.setRoadSection(roadSectionList);
+        dataSection.setRoadSection(sectionRoadSections);
 
         HashMap<String, Object> bodyObject = new HashMap<>();
         bodyObject.put(DATA_SECTION, dataSection);
-        SimulatorController.increaseGenerated();
+        SimulatorController.increaseGenerated(streamServer, Event_Type.NORMAL_DATA_SECTION);
 
-        ExtendedEvent event = new ExtendedEvent(sha, MediaType.APPLICATION_JSON, Constants.SIMULATOR_APPLICATION_ID, DATA_SECTION, bodyObject, retries);
+        ExtendedEvent event = createEvent(DATA_SECTION, bodyObject);
         csvEventList.add(new CSVEvent(event.getEventId(), event.getTimestamp()));
 
-        SimulatorController.increaseSends();
+        SimulatorController.increaseSends(streamServer, Event_Type.NORMAL_DATA_SECTION);
+        if (eventBatcher != null) {
+            // Se enviará junto con los eventos del resto de SmartDrivers.
+            eventBatcher.add(Kafka.TOPIC_DATA_SECTION, event, deliveryListener, SimulatorController.OPEN_LOOP_LOAD ? intendedTime : 0);
+            // Reiniciamos los acumulados.
+            roadSections.clear();
+            sectionStatistics.clear();
+            cummulativePositiveSpeeds = 0.0d;
+            sectionDistance = 0.0d;
+            return;
+        }
         switch (streamServer) {
             case 0:
                 // Kafka
                 try {
-                    String json = new Gson().toJson(event);
-                    long id = SimulatorController.getNextKafkaRecordId();
-                    if (SimulatorController.kafkaProducerPerSmartDriver) {
-                        smartDriverKafkaProducer.send(new ProducerRecord<>(Kafka.TOPIC_DATA_SECTION,
-                                smartDriverKafkaRecordId,
-                                json
-                        ), new KafkaCallBack(System.currentTimeMillis(), smartDriverKafkaRecordId, new ExtendedEvent[]{event}, Event_Type.NORMAL_DATA_SECTION));
-                        smartDriverKafkaRecordId++;
-                    } else {
-                        SimulatorController.getKafkaProducer().send(new ProducerRecord<>(Kafka.TOPIC_DATA_SECTION,
-                                id,
-                                json
-                        ), new KafkaCallBack(System.currentTimeMillis(), id, new ExtendedEvent[]{event}, Event_Type.NORMAL_DATA_SECTION));
-                    }
+                    ExtendedEvent[] events = new ExtendedEvent[]{event};
+                    long id = kafkaProducerPool.nextRecordId();
+                    kafkaProducer.send(new ProducerRecord<>(Kafka.TOPIC_DATA_SECTION,
+                            id,
+                            events
+                    ), new KafkaCallBack(getSendStartTime(), id, events, Event_Type.NORMAL_DATA_SECTION));
                 } catch (Exception ex) {
                     if (!finished) {
-                        SimulatorController.increaseErrors();
+                        SimulatorController.increaseErrors(streamServer, Event_Type.NORMAL_DATA_SECTION);
                         if (SimulatorController.retryOnFail) {
                             // Si ha fallado, almacenamos el 'Data Section' que se debería haber enviado y lo intentamos luego.
-                            pendingDataSections.add(event);
+                            SimulatorController.scheduleRetry(streamServer, Kafka.TOPIC_DATA_SECTION, new ExtendedEvent[]{event});
                         }
-                        LOG.log(Level.SEVERE, "sendDataSectionToZtreamy() - Error desconocido: {0} - Primera trama de la sección: {1} - Enviada a las: {2}", new Object[]{ex.getMessage(), dataSection.getRoadSection().get(0).getTimeStamp(), Constants.dfISO8601.format(System.currentTimeMillis())});
+                        LOG.log(Level.SEVERE, "sendDataSectionToZtreamy() - Error desconocido: {0} - Primera trama de la sección: {1} - Enviada a las: {2}", new Object[]{ex.getMessage(), dataSection.getRoadSection().getTimeStamp(0), Constants.dfISO8601.format(System.currentTimeMillis())});
                         SimulatorController.logCurrentStatus();
                     }
                 } finally {
                     // Reiniciamos los acumulados.
-                    roadSectionList.clear();
+                    roadSections.clear();
+                    sectionStatistics.clear();
                     cummulativePositiveSpeeds = 0.0d;
                     sectionDistance = 0.0d;
                 }
@@ -836,48 +624,12 @@ public class SimulatedSmartDriver implements Runnable, ISimulatedSmartDriverObse
             case 1:
                 // Ztreamy
                 try {
-                    int result = publisher.publish(event, true);
-
-                    if (result == HttpURLConnection.HTTP_OK) {
-                        SimulatorController.increaseOkSends();
-                        LOG.log(Level.FINE, "sendDataSectionToZtreamy() - Datos de sección de trayecto simulado enviada correctamante. SmartDriver: {0}", ll.getPerson().getEmail());
-                    } else {
-                        SimulatorController.increaseNoOkSends();
-                        if (SimulatorController.retryOnFail) {
-                            // Si ha fallado, almacenamos el 'Data Section' que se debería haber enviado y lo intentamos luego.
-                            pendingDataSections.add(event);
-                        }
-                        LOG.log(Level.SEVERE, "sendDataSectionToZtreamy() - Error SEND (Not OK): Primera trama de la sección: {0} - Enviada a las: {1}", new Object[]{dataSection.getRoadSection().get(0).getTimeStamp(), Constants.dfISO8601.format(System.currentTimeMillis())});
-                        SimulatorController.logCurrentStatus();
-                        reconnectPublisher();
-                    }
-                } catch (MalformedURLException ex) {
-                    LOG.log(Level.SEVERE, "sendDataSectionToZtreamy() - Error en la URL", ex);
-                } catch (IOException ex) {
-                    if (!finished) {
-                        SimulatorController.increaseErrors();
-                        if (SimulatorController.retryOnFail) {
-                            // Si ha fallado, almacenamos el 'Data Section' que se debería haber enviado y lo intentamos luego.
-                            pendingDataSections.add(event);
-                        }
-                        LOG.log(Level.SEVERE, "sendDataSectionToZtreamy() - Error I/O: {0} - Primera trama de la sección: {1} - Enviada a las: {2}", new Object[]{ex.getMessage(), dataSection.getRoadSection().get(0).getTimeStamp(), Constants.dfISO8601.format(System.currentTimeMillis())});
-                        SimulatorController.logCurrentStatus();
-                        reconnectPublisher();
-                    }
-                } catch (Exception ex) {
-                    if (!finished) {
-                        SimulatorController.increaseErrors();
-                        if (SimulatorController.retryOnFail) {
-                            // Si ha fallado, almacenamos el 'Data Section' que se debería haber enviado y lo intentamos luego.
-                            pendingDataSections.add(event);
-                        }
-                        LOG.log(Level.SEVERE, "sendDataSectionToZtreamy() - Error desconocido: {0} - Primera trama de la sección: {1} - Enviada a las: {2}", new Object[]{ex.getMessage(), dataSection.getRoadSection().get(0).getTimeStamp(), Constants.dfISO8601.format(System.currentTimeMillis())});
-                        SimulatorController.logCurrentStatus();
-                        reconnectPublisher();
-                    }
+                    // No se espera la respuesta: el resultado se procesa en 'ZtreamyCallBack'.
+                    ztreamyPublisherPool.publish(new ExtendedEvent[]{event}, new ZtreamyCallBack(getSendStartTime(), new ExtendedEvent[]{event}, Event_Type.NORMAL_DATA_SECTION));
                 } finally {
                     // Reiniciamos los acumulados.
-                    roadSectionList.clear();
+                    roadSections.clear();
+                    sectionStatistics.clear();
                     cummulativePositiveSpeeds = 0.0d;
                     sectionDistance = 0.0d;
                 }
@@ -887,10 +639,18 @@ public class SimulatedSmartDriver implements Runnable, ISimulatedSmartDriverObse
         }
     }
 
-    private double analyzePKE(LocationLogDetail lld, LocationLogDetail lldPrev) {
+    private ExtendedEvent createEvent(String eventType, HashMap<String, Object> bodyObject) {
+        if (SimulatorController.isVirtualTime()) {
+            // La marca temporal del evento será la del reloj de la simulación.
+            return new ExtendedEvent(sha, MediaType.APPLICATION_JSON, Constants.SIMULATOR_APPLICATION_ID, eventType, bodyObject, retries, SimulatorController.getSimulationTime());
+        }
+        return new ExtendedEvent(sha, MediaType.APPLICATION_JSON, Constants.SIMULATOR_APPLICATION_ID, eventType, bodyObject, retries);
+    }
+
+    private double analyzePKE(double currentSpeed, double previousSpeed) {
         // Convertimos los Km/h en m/s.
-        double currentSpeedMS = lld.getSpeed() / 3.6d;
-        double previousSpeedMS = lldPrev.getSpeed() / 3.6d;
+        double currentSpeedMS = currentSpeed / 3.6d;
+        double previousSpeedMS = previousSpeed / 3.6d;
 
         double speedDifference = currentSpeedMS - previousSpeedMS;
         // Analizamos la diferencia de velocidad.
@@ -902,17 +662,6 @@ public class SimulatedSmartDriver implements Runnable, ISimulatedSmartDriverObse
         return 0.0d;
     }
 
-    private void reconnectPublisher() {
-        publisher.close();
-        try {
-            this.publisher = new PublisherHC(new URL(SimulatorController.ZTREAMY_URL), new JSONSerializer());
-        } catch (MalformedURLException e) {
-            // No puede pasar, porque habría pasado también en el constructor
-            // y no lo ha hecho.
-        }
-        LOG.log(Level.FINE, "reconnectPublisher() - Publisher reconnected");
-    }
-
     @Override
     public void updateCircle(String color) {
         pathCircle.setStrokeColor("#FF0000");
@@ -921,31 +670,14 @@ public class SimulatedSmartDriver implements Runnable, ISimulatedSmartDriverObse
 
     public void finish() {
         finished = true;
-        try {
-            if (SimulatorController.kafkaProducerPerSmartDriver) {
-                // Si tuviera un 'producer' de Kafka, lo cerramos.
-                if (smartDriverKafkaProducer != null) {
-                    smartDriverKafkaProducer.flush();
-                    smartDriverKafkaProducer.close();
-                    // FIXME: Algunas veces salta una excepción de tipo 'java.lang.InterruptedException'.
-                    // Es un 'bug' que aún está en estado aabierto en Kafka.
-                    // https://issues.streamsets.com/browse/SDC-4925
-                }
-            }
-            // Si tuviera un 'publisher' de Ztreamy, lo cerramos.
-            if (publisher != null) {
-                publisher.close();
-            }
-        } catch (Exception ex) {
-        } finally {
-            if (monitorize) {
-                // Creamos un archivo temporal para el CSV con la información del SmartDriver.
-                String statusFileName = Constants.dfFile.format(System.currentTimeMillis());
-                String statusFileNameCSV = statusFileName + "_smartDriver_status.csv";
-                LOG.log(Level.INFO, "generateZippedCSV() - Generando archivo CSV con la información del SmartDriver: {0}", statusFileNameCSV);
-                File statusFile = new File(SimulatorController.getTempFolder().toUri().getPath(), statusFileNameCSV);
-                createStatusDataFile(CsvPreference.EXCEL_NORTH_EUROPE_PREFERENCE, false, statusFile);
-            }
+        // El 'producer' de Kafka y las conexiones con Ztreamy son compartidos, así que los cierra el controlador al terminar la simulación.
+        if (monitorize) {
+            // Creamos un archivo temporal para el CSV con la información del SmartDriver.
+            String statusFileName = Constants.dfFile.format(System.currentTimeMillis());
+            String statusFileNameCSV = statusFileName + "_smartDriver_status.csv";
+            LOG.log(Level.INFO, "generateZippedCSV() - Generando archivo CSV con la información del SmartDriver: {0}", statusFileNameCSV);
+            File statusFile = new File(SimulatorController.getTempFolder().toUri().getPath(), statusFileNameCSV);
+            createStatusDataFile(CsvPreference.EXCEL_NORTH_EUROPE_PREFERENCE, false, statusFile);
         }
     }
 
@@ -953,6 +685,10 @@ public class SimulatedSmartDriver implements Runnable, ISimulatedSmartDriverObse
         return maxDelay;
     }
 
+    public boolean isFinished() {
+        return finished;
+    }
+
     private void createStatusDataFile(CsvPreference csvPreference, boolean ignoreHeaders, File file) {
         ICsvBeanWriter beanWriter = null;
 
@@ -1025,7 +761,7 @@ public class SimulatedSmartDriver implements Runnable, ISimulatedSmartDriverObse
         public void onCompletion(RecordMetadata metadata, Exception exception) {
             if (metadata != null) {
                 currentDelay = System.currentTimeMillis() - startTime;
-                SimulatorController.setCurrentSmartDriversDelay(currentDelay);
+                SimulatorController.recordDelay(type, currentDelay);
                 // Registramos el retraso máximo.
                 if (currentDelay > maxDelay) {
                     maxDelay = currentDelay;
@@ -1038,19 +774,13 @@ public class SimulatedSmartDriver implements Runnable, ISimulatedSmartDriverObse
 
                 LOG.log(Level.FINE, "onCompletion() - Mensaje recibido correctamente en Kafka\n - Key: {0}\n - Número de eventos: {1}\n - Partición: {2}\n - Offset: {3}\n - Tiempo transcurrido: {4} ms", new Object[]{key, events.length, metadata.partition(), metadata.offset(), currentDelay});
                 switch (type) {
-                    case RECOVERED_VEHICLE_LOCATION:
-                    case RECOVERED_DATA_SECTION:
-                        SimulatorController.addRecovered(events.length);
-                        LOG.log(Level.INFO, "*Reintento* - {0} Eventos pendientes {1} recibidos correctamante. SmartDriver: {2}", new Object[]{events.length, type.name(), ll.getPerson().getEmail()});
-                        pendingVehicleLocations.clear();
-                        break;
                     case NORMAL_VEHICLE_LOCATION:
-                        SimulatorController.increaseOkSends();
+                        SimulatorController.increaseOkSends(streamServer, type);
                         LOG.log(Level.FINE, "onCompletion() - Localización de trayecto simulado recibida correctamante. SmartDriver: {0}", ll.getPerson().getEmail());
                         locationChanged = false;
                         break;
                     case NORMAL_DATA_SECTION:
-                        SimulatorController.increaseOkSends();
+                        SimulatorController.increaseOkSends(streamServer, type);
                         LOG.log(Level.FINE, "onCompletion() - Datos de sección de trayecto simulado recibidos correctamante. SmartDriver: {0}", ll.getPerson().getEmail());
                         break;
                     default:
@@ -1060,30 +790,18 @@ public class SimulatedSmartDriver implements Runnable, ISimulatedSmartDriverObse
                 LOG.log(Level.SEVERE, "onCompletion() - No se ha podido enviar a Kafka", exception);
                 SimulatorController.logCurrentStatus();
                 switch (type) {
-                    case RECOVERED_VEHICLE_LOCATION:
-                        if (retries != -1) {
-                            // Los elementos ya están en la lista de pendientes, le restamos un reintento.
-                            decreasePendingVehicleLocationsRetries();
-                        }
-                        break;
-                    case RECOVERED_DATA_SECTION:
-                        if (retries != -1) {
-                            // Los elementos ya están en la lista de pendientes, le restamos un reintento.
-                            decreasePendingDataSectionsRetries();
-                        }
-                        break;
                     case NORMAL_VEHICLE_LOCATION:
-                        SimulatorController.increaseErrors();
+                        SimulatorController.increaseErrors(streamServer, type);
                         if (SimulatorController.retryOnFail) {
                             // Si ha fallado, almacenamos el 'Vehicle Location' que se debería haber enviado y lo intentamos luego.
-                            pendingVehicleLocations.addAll(Arrays.asList(events));
+                            SimulatorController.scheduleRetry(streamServer, Kafka.TOPIC_VEHICLE_LOCATION, events);
                         }
                         break;
                     case NORMAL_DATA_SECTION:
-                        SimulatorController.increaseErrors();
+                        SimulatorController.increaseErrors(streamServer, type);
                         if (SimulatorController.retryOnFail) {
-                            // Si ha fallado, almacenamos el 'Vehicle Location' que se debería haber enviado y lo intentamos luego.
-                            pendingDataSections.addAll(Arrays.asList(events));
+                            // Si ha fallado, almacenamos el 'Data Section' que se debería haber enviado y lo intentamos luego.
+                            SimulatorController.scheduleRetry(streamServer, Kafka.TOPIC_DATA_SECTION, events);
                         }
                         break;
                     default:
@@ -1092,4 +810,58 @@ public class SimulatedSmartDriver implements Runnable, ISimulatedSmartDriverObse
             }
         }
     }
+
+    class ZtreamyCallBack implements ZtreamyCallback {
+
+        private final long startTime;
+        private final ExtendedEvent[] events;
+        private final Event_Type type;
+
+        public ZtreamyCallBack(long startTime, ExtendedEvent[] events, Event_Type type) {
+            this.startTime = startTime;
+            this.events = events;
+            this.type = type;
+        }
+
+        @Override
+        public void onCompletion(int statusCode, Exception exception) {
+            if (statusCode == HttpURLConnection.HTTP_OK) {
+                currentDelay = System.currentTimeMillis() - startTime;
+                SimulatorController.recordDelay(type, currentDelay);
+                // Registramos el retraso máximo.
+                if (currentDelay > maxDelay) {
+                    maxDelay = currentDelay;
+                }
+                SimulatorController.increaseOkSends(streamServer, type);
+                switch (type) {
+                    case NORMAL_VEHICLE_LOCATION:
+                        LOG.log(Level.FINE, "onCompletion() - Localización de trayecto simulado enviada correctamante. SmartDriver: {0}", ll.getPerson().getEmail());
+                        locationChanged = false;
+                        break;
+                    case NORMAL_DATA_SECTION:
+                        LOG.log(Level.FINE, "onCompletion() - Datos de sección de trayecto simulado enviada correctamante. SmartDriver: {0}", ll.getPerson().getEmail());
+                        break;
+                    default:
+                        break;
+                }
+                return;
+            }
+
+            if (exception == null) {
+                SimulatorController.increaseNoOkSends(streamServer, type);
+                LOG.log(Level.SEVERE, "onCompletion() - Error SEND (Not OK): {0}", statusCode);
+            } else if (!finished) {
+                SimulatorController.increaseErrors(streamServer, type);
+                LOG.log(Level.SEVERE, "onCompletion() - Error I/O: {0}", exception.getMessage());
+            } else {
+                // El SmartDriver ya ha terminado, el error se debe al cierre de las conexiones.
+                return;
+            }
+            SimulatorController.logCurrentStatus();
+            if (SimulatorController.retryOnFail) {
+                // Si ha fallado, almacenamos los eventos que se deberían haber enviado y los intentamos luego.
+                SimulatorController.scheduleRetry(streamServer, type == Event_Type.NORMAL_VEHICLE_LOCATION ? Kafka.TOPIC_VEHICLE_LOCATION : Kafka.TOPIC_DATA_SECTION, events);
+            }
+        }
+    }
 }
@@ -1,62 +1,75 @@
 package es.us.lsi.hermes.simulator;
 
-import com.google.gson.FieldNamingPolicy;
-import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
-import com.google.gson.JsonSyntaxException;
-import com.google.gson.reflect.TypeToken;
 import es.us.lsi.hermes.analysis.Vehicle;
 import es.us.lsi.hermes.csv.CSVEvent;
+import es.us.lsi.hermes.analysis.LatencyHistogram;
 import es.us.lsi.hermes.csv.CSVSimulatorStatus;
 import es.us.lsi.hermes.location.detail.LocationLogDetail;
-import es.us.lsi.hermes.google.directions.GeocodedWaypoints;
-import es.us.lsi.hermes.google.directions.Leg;
+import es.us.lsi.hermes.google.directions.DecodedPolyline;
+import es.us.lsi.hermes.google.directions.DirectionsReader;
+import es.us.lsi.hermes.google.directions.DirectionsRoute;
 import es.us.lsi.hermes.google.directions.Location;
-import es.us.lsi.hermes.google.directions.PolylineDecoder;
-import es.us.lsi.hermes.google.directions.Route;
 import es.us.lsi.hermes.location.LocationLog;
-import es.us.lsi.hermes.openStreetMap.PositionSimulatedSpeed;
+import es.us.lsi.hermes.location.PackedPath;
+import es.us.lsi.hermes.location.RouteCache;
+import es.us.lsi.hermes.metrics.AllocationRateGauge;
+import es.us.lsi.hermes.metrics.Gauge;
+import es.us.lsi.hermes.metrics.MetricsRegistry;
+import es.us.lsi.hermes.metrics.StripedCounter;
+import es.us.lsi.hermes.openStreetMap.OfflineRouter;
+import es.us.lsi.hermes.openStreetMap.RoadNetwork;
+import es.us.lsi.hermes.openStreetMap.SimulatedPath;
+import es.us.lsi.hermes.openStreetMap.SimulatedPathReader;
 import es.us.lsi.hermes.person.Person;
+import es.us.lsi.hermes.simulator.kafka.ExtendedEventSerializer;
 import es.us.lsi.hermes.simulator.kafka.Kafka;
+import es.us.lsi.hermes.simulator.kafka.KafkaProducerPool;
+import es.us.lsi.hermes.simulator.ztreamy.ZtreamyPublisherPool;
 import es.us.lsi.hermes.util.Constants;
 import es.us.lsi.hermes.util.Email;
 import es.us.lsi.hermes.util.HermesException;
 import es.us.lsi.hermes.util.HermesSimulatorConfig;
 import es.us.lsi.hermes.util.JsfUtil;
 import es.us.lsi.hermes.util.MessageBundle;
+import es.us.lsi.hermes.util.TokenBucket;
 import es.us.lsi.hermes.util.Util;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.Serializable;
-import java.lang.reflect.Type;
 import java.net.MalformedURLException;
-import java.net.URL;
 import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
 import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.text.MessageFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
+import java.util.EnumMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.Queue;
 import java.util.Random;
 import java.util.ResourceBundle;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
-import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.enterprise.context.ApplicationScoped;
 import javax.inject.Inject;
 import javax.inject.Named;
@@ -65,9 +78,7 @@ import net.lingala.zip4j.core.ZipFile;
 import net.lingala.zip4j.exception.ZipException;
 import net.lingala.zip4j.model.ZipParameters;
 import net.lingala.zip4j.util.Zip4jConstants;
-import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang.time.DurationFormatUtils;
-import org.apache.kafka.clients.producer.KafkaProducer;
 import org.primefaces.context.RequestContext;
 import org.primefaces.event.CloseEvent;
 import org.primefaces.event.SlideEndEvent;
@@ -77,6 +88,7 @@ import org.primefaces.model.map.DefaultMapModel;
 import org.primefaces.model.map.LatLng;
 import org.primefaces.model.map.MapModel;
 import org.primefaces.model.map.Marker;
+import org.primefaces.model.map.Overlay;
 import org.primefaces.model.map.Polyline;
 import org.supercsv.cellprocessor.ift.CellProcessor;
 import org.supercsv.io.CsvBeanWriter;
@@ -106,34 +118,128 @@ public class SimulatorController implements Serializable, ISimulatorControllerOb
     // Máximo retardo para iniciar la ruta, en milisegundos:
     private static final int MAX_INITIAL_DELAY = 60000;
 
-    // Paquetes de peticiones en la generación de trayectos. Google ha limitado más el número de peticiones por segundo.
-    private static final int REQUEST_PACK_SIZE = 10;
-
     // Número máximo de hilos en el simulador.
     private static final int MAX_THREADS = Integer.parseInt(HermesSimulatorConfig.getHermesSimulatorProperties().getProperty("max.threads", "10000"));
     // Tiempo máximo de simulación.
     public static final long MAX_SIMULATION_TIME = Long.parseLong(HermesSimulatorConfig.getHermesSimulatorProperties().getProperty("max.simulation.time.ms", "14400000"));
 
     private static final int STATUS_SAMPLING_INTERVAL = Integer.parseInt(HermesSimulatorConfig.getHermesSimulatorProperties().getProperty("status.sampling.interval.s", "2"));
+    // Número de grupos en los que se reparten los SmartDrivers para su ejecución. Si es 0, se usará uno por cada núcleo disponible.
+    private static final int TICK_ENGINE_SHARDS = Integer.parseInt(HermesSimulatorConfig.getHermesSimulatorProperties().getProperty("tick.engine.shards", "0"));
+    // Número de 'producers' de Kafka que comparten los SmartDrivers. Si es 0, se usará uno por cada núcleo disponible.
+    private static final int KAFKA_PRODUCER_POOL_SIZE = Integer.parseInt(HermesSimulatorConfig.getHermesSimulatorProperties().getProperty("kafka.producer.pool.size", "0"));
+    // Indicará si el resumen de cada 'Data Section' se calcula de forma exacta, guardando todos los valores, o incremental.
+    static final boolean EXACT_SECTION_STATISTICS = Boolean.parseBoolean(HermesSimulatorConfig.getHermesSimulatorProperties().getProperty("data.section.exact.statistics", "false"));
+    // Formato de los eventos enviados a Kafka: 'JSON', compatible con los consumidores existentes, o 'BINARY'.
+    private static final ExtendedEventSerializer.Format KAFKA_SERIALIZATION_FORMAT = ExtendedEventSerializer.Format.valueOf(HermesSimulatorConfig.getHermesSimulatorProperties().getProperty("kafka.serialization.format", "JSON").trim().toUpperCase());
+    // Espera máxima entre reintentos de un envío fallido, en milisegundos. La espera se duplica en cada reintento hasta llegar a ésta.
+    private static final long RETRY_MAX_BACKOFF = TimeUnit.SECONDS.toMillis(Long.parseLong(HermesSimulatorConfig.getHermesSimulatorProperties().getProperty("retry.max.backoff.s", "300")));
+    // Número máximo de reintentos por segundo de todos los SmartDrivers. Si es 0, no se limita.
+    private static final double RETRY_MAX_RATE = Double.parseDouble(HermesSimulatorConfig.getHermesSimulatorProperties().getProperty("retry.max.rate", "50"));
+    // Número máximo de envíos pendientes de reintento en memoria. Los demás se guardan en disco. Si es 0, no se limita.
+    private static final int RETRY_MEMORY_MAX_ENTRIES = Integer.parseInt(HermesSimulatorConfig.getHermesSimulatorProperties().getProperty("retry.memory.max.entries", "100000"));
+    // Tamaño en bytes de cada fichero en el que se guardan los envíos pendientes de reintento que no caben en memoria.
+    private static final int RETRY_JOURNAL_SEGMENT_SIZE = Integer.parseInt(HermesSimulatorConfig.getHermesSimulatorProperties().getProperty("retry.journal.segment.mb", "64")) * 1024 * 1024;
+    // Indicará si los eventos de todos los SmartDrivers se agrupan en lotes antes de enviarlos.
+    private static final boolean EVENT_BATCHING_ENABLED = Boolean.parseBoolean(HermesSimulatorConfig.getHermesSimulatorProperties().getProperty("event.batching.enabled", "false"));
+    // Tiempo máximo en milisegundos que se acumulan los eventos de un lote.
+    private static final long EVENT_BATCHING_WINDOW = Long.parseLong(HermesSimulatorConfig.getHermesSimulatorProperties().getProperty("event.batching.window.ms", "500"));
+    // Número máximo de eventos de un lote.
+    private static final int EVENT_BATCHING_MAX_EVENTS = Integer.parseInt(HermesSimulatorConfig.getHermesSimulatorProperties().getProperty("event.batching.max.events", "500"));
+    // Número máximo de bytes de los eventos serializados de un lote. Debe ser menor que el 'max.request.size' de los 'producers' de Kafka.
+    private static final int EVENT_BATCHING_MAX_BYTES = Integer.parseInt(HermesSimulatorConfig.getHermesSimulatorProperties().getProperty("event.batching.max.bytes", "900000"));
+    // Indicará si el retraso de los envíos se mide desde el instante en el que le correspondía a cada SmartDriver según su planificación (lazo abierto),
+    // en lugar de desde que realmente se envían, para que los retrasos de la propia simulación cuando no da abasto no se oculten.
+    static final boolean OPEN_LOOP_LOAD = Boolean.parseBoolean(HermesSimulatorConfig.getHermesSimulatorProperties().getProperty("load.open.loop", "false"));
+    // Indicará si se busca el punto de saturación del servidor de tramas, añadiendo SmartDrivers por escalones mientras se cumplan los objetivos de servicio.
+    private static final boolean SATURATION_SEARCH_ENABLED = Boolean.parseBoolean(HermesSimulatorConfig.getHermesSimulatorProperties().getProperty("saturation.search.enabled", "false"));
+    // Número de SmartDrivers de cada escalón al principio de la búsqueda y mínimo al que se puede reducir.
+    private static final int SATURATION_STEP_SMARTDRIVERS = Integer.parseInt(HermesSimulatorConfig.getHermesSimulatorProperties().getProperty("saturation.step.drivers", "500"));
+    private static final int SATURATION_MIN_STEP_SMARTDRIVERS = Integer.parseInt(HermesSimulatorConfig.getHermesSimulatorProperties().getProperty("saturation.min.step.drivers", "50"));
+    // Duración de cada escalón en milisegundos.
+    private static final long SATURATION_STEP_DURATION = TimeUnit.SECONDS.toMillis(Long.parseLong(HermesSimulatorConfig.getHermesSimulatorProperties().getProperty("saturation.step.duration.s", "120")));
+    // Objetivos de servicio: p99 del retraso de los envíos, proporción de envíos fallidos y p99 del retraso de planificación de los SmartDrivers.
+    private static final long SATURATION_SLO_DELAY_P99 = Long.parseLong(HermesSimulatorConfig.getHermesSimulatorProperties().getProperty("saturation.slo.delay.p99.ms", "2000"));
+    private static final double SATURATION_SLO_FAILURE_RATE = Double.parseDouble(HermesSimulatorConfig.getHermesSimulatorProperties().getProperty("saturation.slo.failure.rate", "0.01"));
+    private static final long SATURATION_SLO_SCHEDULING_LAG_P99 = Long.parseLong(HermesSimulatorConfig.getHermesSimulatorProperties().getProperty("saturation.slo.scheduling.lag.p99.ms", "1000"));
+    // Número máximo de conexiones con Ztreamy que comparten los SmartDrivers.
+    private static final int ZTREAMY_MAX_CONNECTIONS = Integer.parseInt(HermesSimulatorConfig.getHermesSimulatorProperties().getProperty("ztreamy.max.connections", "20"));
+    // Número máximo de peticiones a Ztreamy en curso. Las publicaciones que lo superen fallan sin esperar.
+    private static final int ZTREAMY_MAX_IN_FLIGHT = Integer.parseInt(HermesSimulatorConfig.getHermesSimulatorProperties().getProperty("ztreamy.max.in.flight", "1000"));
+    // Tiempo máximo en milisegundos para conectar con Ztreamy y para recibir su respuesta.
+    private static final int ZTREAMY_TIMEOUT = Integer.parseInt(HermesSimulatorConfig.getHermesSimulatorProperties().getProperty("ztreamy.timeout.ms", "10000"));
+
+    // Retraso del motor respecto al reloj del sistema a partir del cual se considera que se está quedando atrás, en milisegundos.
+    private static final long ENGINE_BEHIND_ALERT = Long.parseLong(HermesSimulatorConfig.getHermesSimulatorProperties().getProperty("engine.behind.alert.ms", "1000"));
+
+    // Directorio en el que se guardan los trayectos ya construidos, para reutilizarlos en otras simulaciones. Vacío para no guardarlos.
+    private static final String ROUTE_CACHE_DIR = HermesSimulatorConfig.getHermesSimulatorProperties().getProperty("route.cache.dir", "").trim();
+    // Tamaño máximo de los trayectos guardados, en bytes. Al superarlo se borran los más antiguos.
+    private static final long ROUTE_CACHE_MAX_SIZE = Long.parseLong(HermesSimulatorConfig.getHermesSimulatorProperties().getProperty("route.cache.max.mb", "500")) * 1024 * 1024;
+    // Indica si se reutilizan trayectos guardados en lugar de pedirlos al servicio de rutas.
+    private static final boolean ROUTE_CACHE_REUSE = Boolean.parseBoolean(HermesSimulatorConfig.getHermesSimulatorProperties().getProperty("route.cache.reuse", "false"));
+
+    // Extracto local de OpenStreetMap en XML ('.osm' u '.osm.gz') con el que se calculan los trayectos sin conexión.
+    private static final String OSM_EXTRACT_FILE = HermesSimulatorConfig.getHermesSimulatorProperties().getProperty("osm.extract.file", "").trim();
+    // Límites del ritmo de peticiones a los servicios de rutas, en peticiones por segundo. Se admiten ráfagas de hasta 1 segundo.
+    private static final TokenBucket GOOGLE_ROUTE_LIMITER = createRouteLimiter("route.fetch.google.rate", "10");
+    private static final TokenBucket OPENSTREETMAP_ROUTE_LIMITER = createRouteLimiter("route.fetch.openstreetmap.rate", "20");
+    // Número máximo de intentos de cada trayecto pedido a un servicio de rutas. Cada reintento es con nuevos puntos aleatorios.
+    private static final int ROUTE_FETCH_MAX_ATTEMPTS = Integer.parseInt(HermesSimulatorConfig.getHermesSimulatorProperties().getProperty("route.fetch.max.attempts", "5"));
+    // Número de pares de puntos aleatorios que se prueban para cada trayecto calculado sin conexión.
+    private static final int OFFLINE_ROUTE_ATTEMPTS = 10;
+    // Coordenadas de las rutas de Google decodificadas. Se reutilizan en cada hilo del 'pool' de procesado de respuestas.
+    private static final ThreadLocal<DecodedPolyline> DECODED_POLYLINE = new ThreadLocal<DecodedPolyline>() {
+        @Override
+        protected DecodedPolyline initialValue() {
+            return new DecodedPolyline();
+        }
+    };
+
+    // Nombres de los histogramas del motor de simulación. Cada nombre indica su unidad.
+    private static final String SCHEDULING_LAG_METRIC_NAME = "schedulingLagMs";
+    private static final String TICK_DURATION_METRIC_NAME = "tickDurationMs";
+    private static final String RUN_DURATION_METRIC_NAME = "runDurationUs";
+    // Nombre del MBean con el que se publican las métricas por JMX.
+    private static final String METRICS_MBEAN_NAME = "es.us.lsi.hermes:type=Simulator,name=Metrics";
+    // Métricas de la simulación.
+    private static final MetricsRegistry METRICS = new MetricsRegistry();
+
+    // Contadores de los envíos de tramas.
+    private static enum Counter_Type {
+        // Número de tramas generadas.
+        GENERATED("generated"),
+        // Número de envíos que se han realizado, ya sean correctos o fallidos.
+        SENT("sent"),
+        // Número de tramas enviadas correctamente.
+        OK("ok"),
+        // Número de tramas enviadas con recepción de 'no OK'.
+        NOT_OK("notOk"),
+        // Número de errores contabilizados al enviar las tramas, distintos de los 'no OK'.
+        ERRORS("errors"),
+        // Número de tramas enviadas con recepción de 'no OK' o erróneas, que se han podido reenviar.
+        RECOVERED("recovered"),
+        // Número de tramas que no se han podido reenviar porque ha terminado la simulación de cada trayecto.
+        FINALLY_PENDING("finallyPending");
+
+        private final String metricName;
+
+        private Counter_Type(String metricName) {
+            this.metricName = metricName;
+        }
 
-    // Número de tramas de Ztreamy generadas.
-    private static final AtomicInteger GENERATED = new AtomicInteger(0);
-    // Número de errores contabilizados al enviar las tramas a Ztreamy, distintos de los 'no OK'.
-    private static final AtomicInteger ERRORS = new AtomicInteger(0);
-    // Número de tramas enviadas a Ztreamy correctamente.
-    private static final AtomicInteger OK = new AtomicInteger(0);
-    // Número de tramas enviadas a Ztreamy con recepción de 'no OK'.
-    private static final AtomicInteger NOT_OK = new AtomicInteger(0);
-    // Número de tramas enviadas a Ztreamy con recepción de 'no OK' o erróneas, que se han podido reenviar.
-    private static final AtomicInteger RECOVERED = new AtomicInteger(0);
-    // Número de tramas enviadas a Ztreamy que no se han podido reenviar porque ha terminado la simulación de cada trayecto.
-    private static final AtomicInteger FINALLY_PENDING = new AtomicInteger(0);
-    // Número de envíos que se han realizado, ya sean correctos o fallidos.
-    private static final AtomicInteger SENT = new AtomicInteger(0);
-
-    // Ratio de ejecución para la simulación.
+        public String getMetricName() {
+            return metricName;
+        }
+    };
+    // Contadores totales de la simulación, por tipo de contador.
+    private static final StripedCounter[] TOTAL_COUNTERS = new StripedCounter[Counter_Type.values().length];
+    // Contadores de cada servidor de tramas y tipo de evento: [servidor de tramas][tipo de evento][tipo de contador].
+    private static final StripedCounter[][][] SPLIT_COUNTERS = new StripedCounter[2][SimulatedSmartDriver.Event_Type.values().length][Counter_Type.values().length];
+
+    // Ratio de ejecución para la simulación. 'FAST_FORWARD' no depende del reloj del sistema: se simula por eventos discretos.
     private static enum Time_Rate {
-        X1(1000), X10(100), X100(10), X1000(1);
+        X1(1000), X10(100), X100(10), X1000(1), FAST_FORWARD(0);
         private final int milliseconds;
 
         Time_Rate(int ms) {
@@ -149,7 +255,7 @@ public class SimulatorController implements Serializable, ISimulatorControllerOb
 
     // Mecanismos de generación de trayectos.
     public static enum Paths_Generation_Method {
-        GOOGLE, OPENSTREETMAP
+        GOOGLE, OPENSTREETMAP, OPENSTREETMAP_OFFLINE
     };
     private static Paths_Generation_Method pathsGenerationMethod = Paths_Generation_Method.GOOGLE;
 
@@ -171,6 +277,8 @@ public class SimulatorController implements Serializable, ISimulatorControllerOb
     static boolean interpolate = true;
 
     private static MapModel simulatedMapModel;
+    // 'Markers' y círculos de los SmartDrivers añadidos durante la simulación desde otros hilos. 'DefaultMapModel' no es 'thread-safe', así que los añade 'updateMapGUI()'.
+    private static final Queue<Overlay> PENDING_OVERLAYS = new ConcurrentLinkedQueue<>();
     private static ArrayList<LocationLog> locationLogList;
 
     private static int simulatedSmartDrivers = 1;
@@ -202,9 +310,115 @@ public class SimulatorController implements Serializable, ISimulatorControllerOb
     private static AtomicLong maxSmartDriversDelay;
     // Registrará el retraso actual de entre todos los SmartDrivers.
     private static AtomicLong currentSmartDriversDelay;
+    // Retrasos de los envíos confirmados por tipo de evento, desde el último muestreo del estado.
+    private static final Map<SimulatedSmartDriver.Event_Type, LatencyHistogram> DELAY_HISTOGRAMS = new EnumMap<>(SimulatedSmartDriver.Event_Type.class);
+    // Retrasos acumulados de toda la simulación por tipo de evento. Sólo se actualizan al muestrear el estado.
+    private static final Map<SimulatedSmartDriver.Event_Type, LatencyHistogram.Snapshot> TOTAL_DELAYS = new EnumMap<>(SimulatedSmartDriver.Event_Type.class);
+    // Duración de los envíos de cada SmartDriver, en microsegundos: [vía de envío][tipo de evento]. Las vías son Kafka, Ztreamy y el agrupador de eventos.
+    private static final LatencyHistogram[][] SEND_DURATIONS = new LatencyHistogram[3][SimulatedSmartDriver.Event_Type.values().length];
+    private static final String[] SEND_PATHS = {"KAFKA", "ZTREAMY", "BATCH"};
+    // Indicará si el motor se está quedando atrás respecto al reloj del sistema.
+    private static volatile boolean engineFallingBehind = false;
+    // Retrasos de planificación de los SmartDrivers acumulados de toda la simulación.
+    private static LatencyHistogram.Snapshot totalSchedulingLag = LatencyHistogram.Snapshot.empty();
+
+    static {
+        for (SimulatedSmartDriver.Event_Type type : SimulatedSmartDriver.Event_Type.values()) {
+            DELAY_HISTOGRAMS.put(type, METRICS.histogram(getDelayMetricName(type)));
+            TOTAL_DELAYS.put(type, LatencyHistogram.Snapshot.empty());
+            for (int path = 0; path < SEND_PATHS.length; path++) {
+                SEND_DURATIONS[path][type.ordinal()] = METRICS.histogram(getSendDurationMetricName(path, type));
+            }
+        }
+        for (Counter_Type counter : Counter_Type.values()) {
+            TOTAL_COUNTERS[counter.ordinal()] = METRICS.counter(counter.getMetricName());
+            // Por ejemplo: 'ok{server=KAFKA,type=NORMAL_VEHICLE_LOCATION}'.
+            for (int server = 0; server < SPLIT_COUNTERS.length; server++) {
+                for (SimulatedSmartDriver.Event_Type type : SimulatedSmartDriver.Event_Type.values()) {
+                    SPLIT_COUNTERS[server][type.ordinal()][counter.ordinal()] = METRICS.counter(counter.getMetricName() + "{server=" + Stream_Server.values()[server].name() + ",type=" + type.name() + "}");
+                }
+            }
+        }
+        METRICS.gauge("activeSmartDrivers", new Gauge() {
+            @Override
+            public long getValue() {
+                ISimulationEngine engine = simulationEngine;
+                return engine != null ? engine.getActiveSmartDrivers() : 0;
+            }
+        });
+        METRICS.gauge("maxSmartDriversDelay", new Gauge() {
+            @Override
+            public long getValue() {
+                AtomicLong delay = maxSmartDriversDelay;
+                return delay != null ? delay.get() : 0;
+            }
+        });
+        METRICS.gauge("currentSmartDriversDelay", new Gauge() {
+            @Override
+            public long getValue() {
+                AtomicLong delay = currentSmartDriversDelay;
+                return delay != null ? delay.get() : 0;
+            }
+        });
+        METRICS.gauge("retryBacklog", new Gauge() {
+            @Override
+            public long getValue() {
+                RetryScheduler scheduler = retryScheduler;
+                return scheduler != null ? scheduler.getBacklog() : 0;
+            }
+        });
+        METRICS.gauge("ztreamyInFlight", new Gauge() {
+            @Override
+            public long getValue() {
+                ZtreamyPublisherPool pool = ztreamyPublisherPool;
+                return pool != null ? pool.getInFlight() : 0;
+            }
+        });
+        METRICS.gauge("jvmAllocationRate", new AllocationRateGauge());
+        METRICS.gauge("engineBehindMs", new Gauge() {
+            @Override
+            public long getValue() {
+                ISimulationEngine engine = simulationEngine;
+                return engine != null ? engine.getBehindMillis() : 0;
+            }
+        });
+        METRICS.gauge("engineFallingBehind", new Gauge() {
+            @Override
+            public long getValue() {
+                ISimulationEngine engine = simulationEngine;
+                return engine != null && engine.getBehindMillis() >= ENGINE_BEHIND_ALERT ? 1 : 0;
+            }
+        });
+        METRICS.gauge("threadPoolQueue{pool=pathRequest}", new Gauge() {
+            @Override
+            public long getValue() {
+                return PathRequestWebService.getQueuedTasks();
+            }
+        });
+        METRICS.gauge("threadPoolActive{pool=pathRequest}", new Gauge() {
+            @Override
+            public long getValue() {
+                return PathRequestWebService.getActiveTasks();
+            }
+        });
+        METRICS.gauge("threadPoolQueue{pool=trackRequest}", new Gauge() {
+            @Override
+            public long getValue() {
+                return TrackRequestWebService.getQueuedTasks();
+            }
+        });
+        METRICS.gauge("threadPoolActive{pool=trackRequest}", new Gauge() {
+            @Override
+            public long getValue() {
+                return TrackRequestWebService.getActiveTasks();
+            }
+        });
+    }
 
     // Directorio temporal para almacenar los archivos generados.
     private static Path tempFolder;
+    private static RouteCache routeCache;
+    private static OfflineRouter offlineRouter;
 
     @Inject
     @MessageBundle
@@ -225,7 +439,7 @@ public class SimulatorController implements Serializable, ISimulatorControllerOb
     // Por defecto, establecemos que el inicio de los usuarios siga una progresión lineal.
     private static SmartDrivers_Starting_Mode startingMode = SmartDrivers_Starting_Mode.LINEAL;
 
-    private static ScheduledThreadPoolExecutor threadPool;
+    private static ISimulationEngine simulationEngine;
 
     private static List<String> markersToRemove;
 
@@ -235,11 +449,19 @@ public class SimulatorController implements Serializable, ISimulatorControllerOb
     private static int retries = 5;
 
     private static boolean infiniteSimulation = false;
-    static boolean kafkaProducerPerSmartDriver = true;
 
     // Kafka
-    private static AtomicLong kafkaRecordId;
-    private static volatile KafkaProducer<Long, String> kafkaProducer;
+    private static volatile KafkaProducerPool kafkaProducerPool;
+
+    // Reintentos de los envíos fallidos de todos los SmartDrivers.
+    private static volatile ZtreamyPublisherPool ztreamyPublisherPool;
+    private static volatile RetryScheduler retryScheduler;
+    // Agrupación en lotes de los eventos de todos los SmartDrivers. Será nulo si no se agrupan.
+    private static volatile EventBatcher eventBatcher;
+    // Búsqueda del punto de saturación. Será nulo si no se busca.
+    private static volatile SaturationSearch saturationSearch;
+    // Identificador del siguiente SmartDriver que se añada durante la simulación.
+    private static int nextSmartDriverId;
     private static Properties kafkaProperties;
 
     public SimulatorController() {
@@ -248,8 +470,9 @@ public class SimulatorController implements Serializable, ISimulatorControllerOb
     @PostConstruct
     public void init() {
         LOG.log(Level.INFO, "init() - Inicialización del controlador del simulador");
-        // Iniciamos el 'pool' de hilos de ejecución para los SmartDrivers.
-        initThreadPool();
+        METRICS.registerMBean(METRICS_MBEAN_NAME);
+        // Iniciamos el motor de ejecución de los SmartDrivers.
+        initSimulationEngine();
 
         // Establecemos la posición del mapa donde se generarán los recorridos en Sevilla.
         marker = new Marker(new LatLng(SEVILLE.getLat(), SEVILLE.getLng()));
@@ -262,15 +485,24 @@ public class SimulatorController implements Serializable, ISimulatorControllerOb
         initNoGuiScheduledSimulation();
 
         markersToRemove = new ArrayList<>();
-        kafkaRecordId = new AtomicLong(0);
         kafkaProperties = Kafka.getKafkaProducerProperties();
     }
 
-    private void initThreadPool() {
-        threadPool = new ScheduledThreadPoolExecutor(100);
-        threadPool.setContinueExistingPeriodicTasksAfterShutdownPolicy(false);
-        threadPool.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
-        threadPool.setRemoveOnCancelPolicy(true);
+    private void initSimulationEngine() {
+        if (timeRate.equals(Time_Rate.FAST_FORWARD)) {
+            // La simulación avanza con un reloj virtual, tan rápido como se puedan hacer los envíos.
+            simulationEngine = new DiscreteEventEngine();
+        } else {
+            simulationEngine = new ShardedTickEngine(TICK_ENGINE_SHARDS, timeRate.getMilliseconds());
+        }
+        METRICS.histogram(SCHEDULING_LAG_METRIC_NAME, simulationEngine.getSchedulingLag());
+        METRICS.histogram(TICK_DURATION_METRIC_NAME, simulationEngine.getTickDuration());
+        METRICS.histogram(RUN_DURATION_METRIC_NAME, simulationEngine.getRunDuration());
+    }
+
+    @PreDestroy
+    public void destroy() {
+        METRICS.unregisterMBean();
     }
 
     private void initNoGuiScheduledSimulation() {
@@ -319,6 +551,9 @@ public class SimulatorController implements Serializable, ISimulatorControllerOb
         if (NoGuiScheduledSimulation.getRetries() != null) {
             setRetries(NoGuiScheduledSimulation.getRetries());
         }
+        if (NoGuiScheduledSimulation.getSimulationSpeed() != null) {
+            setSimulatedSpeed(NoGuiScheduledSimulation.getSimulationSpeed());
+        }
         generateSimulatedPaths();
         if (scheduledDate != null) {
             scheduledSimulation();
@@ -343,83 +578,40 @@ public class SimulatorController implements Serializable, ISimulatorControllerOb
         simulatedMapModel.getMarkers().clear();
         locationLogList = new ArrayList<>();
 
+        // Si se quieren reutilizar trayectos guardados, sólo se piden los que falten.
+        int requestedPathsAmount = pathsAmount;
+        RouteCache cache = getRouteCache();
+        if (cache != null && ROUTE_CACHE_REUSE) {
+            for (LocationLog ll : cache.getRandom(getRouteCacheProvider(), pathsAmount)) {
+                addCachedPathOverlays(ll.getPackedPath());
+                Person person = createSimPerson();
+                ll.setPerson(person);
+                ll.setFilename(person.getFullName());
+                locationLogList.add(ll);
+            }
+            requestedPathsAmount -= locationLogList.size();
+            LOG.log(Level.INFO, "generateSimulatedPaths() - Trayectos reutilizados: {0}", locationLogList.size());
+        }
+
         // Lista con las tareas de petición de rutas.
-        List<Callable<String>> pathRequestTaskList = new ArrayList<>();
+        List<PathRequest> pathRequestTaskList = new ArrayList<>();
 
         // Crearemos tantas tareas como trayectos se quieran generar.
-        for (int i = 0; i < pathsAmount; i++) {
-            final Location destination = getRandomLocation(SEVILLE.getLat(), SEVILLE.getLng(), distanceFromSevilleCenter);
-            final Location origin = getRandomLocation(destination.getLat(), destination.getLng(), distance);
-
-            // Tarea para la petición de un trayecto.
-            Callable callable = new Callable() {
-                @Override
-                public String call() {
-                    String jsonPath = null;
-                    Location o = origin;
-                    Location d = destination;
-                    while (jsonPath == null) {
-                        try {
-                            if (pathsGenerationMethod.equals(Paths_Generation_Method.GOOGLE)) {
-                                /////////////////
-                                // GOOGLE MAPS //
-                                /////////////////
-
-                                jsonPath = IOUtils.toString(new URL("https://maps.googleapis.com/maps/api/directions/json?origin=" + o.getLat() + "," + o.getLng() + "&destination=" + d.getLat() + "," + d.getLng()), "UTF-8");
-                            } else if (pathsGenerationMethod.equals(Paths_Generation_Method.OPENSTREETMAP)) {
-                                ///////////////////
-                                // OPENSTREETMAP //
-                                ///////////////////
-
-                                jsonPath = IOUtils.toString(new URL("http://cronos.lbd.org.es/hermes/api/smartdriver/network/simulate?fromLat=" + o.getLat() + "&fromLng=" + o.getLng() + "&toLat=" + d.getLat() + "&toLng=" + d.getLng() + "&speedFactor=1.0"), "UTF-8");
-                            }
-                        } catch (IOException ex) {
-                            LOG.log(Level.SEVERE, "generateSimulatedPaths() - " + pathsGenerationMethod.name() + " - Error I/O: {0}", ex.getMessage());
-                            // Generamos nuevos puntos aleatorios hasta que sean aceptados.
-                            o = getRandomLocation(SEVILLE.getLat(), SEVILLE.getLng(), distanceFromSevilleCenter);
-                            d = getRandomLocation(origin.getLat(), origin.getLng(), distance);
-                        }
-                    }
+        for (int i = 0; i < requestedPathsAmount; i++) {
+            Location destination = getRandomLocation(SEVILLE.getLat(), SEVILLE.getLng(), distanceFromSevilleCenter);
+            Location origin = getRandomLocation(destination.getLat(), destination.getLng(), distance);
 
-                    return jsonPath;
-                }
-            };
-
-            // Añadimos la tarea al listado de peticiones.            
-            pathRequestTaskList.add(callable);
+            // Añadimos la tarea al listado de peticiones.
+            pathRequestTaskList.add(new PathRequest(origin, destination));
         }
 
-        // Tomamos la marca de tiempo actual. Nos servirá para espaciar las peticiones de trayectos a Google, ya que no se pueden hacer más de 10 peticiones por segundo con la cuenta gratuita.
-        // Aplicamos el mismo criterio para OpenStreetMap, aunque no sea necesario en principio.
-        long timeMark = System.currentTimeMillis();
-        // Ejecutamos el listado de tareas, que se dividirá en los hilos y con las condiciones que haya configurados en 'PathRequestWebService'.
-        for (int i = 0; i <= pathRequestTaskList.size(); i += REQUEST_PACK_SIZE) {
-            if (i > 0) {
-                long elapsedTime = System.currentTimeMillis() - timeMark;
-                if (elapsedTime < 1500) {
-                    try {
-                        // Antes de hacer la siguiente petición, esperamos 1,5 segundos, para cumplir las restricciones de Google.
-                        Thread.sleep(1500 - elapsedTime);
-                    } catch (InterruptedException ex) {
-                    } finally {
-                        timeMark = System.currentTimeMillis();
-                    }
-                }
-                requestPaths(pathRequestTaskList.subList(i - REQUEST_PACK_SIZE, i));
-            }
-        }
-        int remaining = pathRequestTaskList.size() % REQUEST_PACK_SIZE;
-        if (remaining != 0) {
-            try {
-                // Antes de hacer la siguiente petición, esperamos 1 segundo, para cumplir las restricciones de Google.
-                Thread.sleep(1000);
-            } catch (InterruptedException ex) {
-            }
-            requestPaths(pathRequestTaskList.subList(pathRequestTaskList.size() - remaining, pathRequestTaskList.size()));
+        if (pathsGenerationMethod.equals(Paths_Generation_Method.OPENSTREETMAP_OFFLINE)) {
+            // Los trayectos se calculan en local, así que no hay que espaciar las peticiones.
+            generateOfflinePaths(pathRequestTaskList);
+        } else {
+            requestPaths(pathRequestTaskList);
         }
 
-        // Paramos el 'listener'
-        PathRequestWebService.shutdown();
         LOG.log(Level.INFO, "generateSimulatedPaths() - Trayectos generados: {0}", locationLogList.size());
         currentState = State.READY_TO_SIMULATE;
         if (locationLogList.size() < pathsAmount) {
@@ -437,117 +629,76 @@ public class SimulatorController implements Serializable, ISimulatorControllerOb
         }
     }
 
-    private void requestPaths(List<Callable<String>> pathRequestTaskSublist) {
-        try {
-            List<Future<String>> futureTaskList = PathRequestWebService.submitAllTask(pathRequestTaskSublist);
-            for (Future<String> future : futureTaskList) {
-                // Creamos un objeto de localizaciones de 'SmartDriver'.
-                LocationLog ll = new LocationLog();
-
-                // Procesamos el JSON de respuesta, en función de la plataforma a la que le hayamos hecho la petición.
-                try {
-                    String json = future.get();
-
-                    if (pathsGenerationMethod.equals(Paths_Generation_Method.GOOGLE)) {
-                        /////////////////
-                        // GOOGLE MAPS //
-                        /////////////////
-
-                        // Procesamos el JSON obtenido de Google Maps para crear una trayectoria de SmartDriver.
-                        Gson gson = new GsonBuilder()
-                                .setFieldNamingPolicy(FieldNamingPolicy.LOWER_CASE_WITH_UNDERSCORES)
-                                .create();
-                        GeocodedWaypoints gcwp = gson.fromJson(json, GeocodedWaypoints.class
-                        );
-                        createPathGoogleMaps(gcwp, ll);
+    private void generateOfflinePaths(List<PathRequest> pathRequestTaskList) {
+        final OfflineRouter router = getOfflineRouter();
+        if (router == null) {
+            return;
+        }
 
-                    } else {
-                        ///////////////////
-                        // OPENSTREETMAP //
-                        ///////////////////
-
-                        // Procesamos el JSON obtenido de OpenStreetMap con las localizaciones y las velocidades de SmartDriver.
-                        Type listType = new TypeToken<ArrayList<PositionSimulatedSpeed>>() {
-                        }.getType();
-                        List<PositionSimulatedSpeed> pssList = new Gson().fromJson(json, listType);
-                        createPathOpenStreetMaps(pssList, ll);
+        // El cálculo de los trayectos sólo depende de la CPU, así que usamos un hilo por procesador.
+        ExecutorService executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        try {
+            List<Callable<GeneratedPath>> routeTaskList = new ArrayList<>(pathRequestTaskList.size());
+            for (final PathRequest request : pathRequestTaskList) {
+                routeTaskList.add(new Callable<GeneratedPath>() {
+                    @Override
+                    public GeneratedPath call() {
+                        return request.route(router);
                     }
-                } catch (InterruptedException | ExecutionException | JsonSyntaxException ex) {
-                    LOG.log(Level.SEVERE, "Error al decodificar el JSON de la ruta", ex);
-                }
-
-                // Si no fuera un trayecto válido, lo ignoramos y pasamos al siguiente
-                if (ll.getLocationLogDetailList() == null || ll.getLocationLogDetailList().isEmpty()) {
-                    continue;
-                }
-
-                // Vemos si se quiere interpolación, para asegurar que haya una localización al menos cada 2.77m, que sería el caso de que un conductor
-                // fuera a la velocidad mínima asignada en las simulaciones (10Km/h)
-                if (SimulatorController.interpolate) {
-                    // Haremos una interpolación lineal para que haya un punto cada 2.77m.
-                    ll.setLocationLogDetailList(interpolateLocationLogDetailList(ll.getLocationLogDetailList()));
+                });
+            }
+            for (Future<GeneratedPath> future : executor.invokeAll(routeTaskList)) {
+                try {
+                    addGeneratedPath(future.get());
+                } catch (ExecutionException ex) {
+                    LOG.log(Level.SEVERE, "Error al calcular la ruta", ex);
                 }
+            }
+        } catch (InterruptedException ex) {
+            LOG.log(Level.SEVERE, "Error al calcular la ruta", ex);
+            Thread.currentThread().interrupt();
+        } finally {
+            executor.shutdown();
+        }
+    }
 
-                // Creamos un usuario simulado, al que le asignaremos el trayecto.
-                Person person = createSimPerson();
-                ll.setPerson(person);
-                ll.setFilename(person.getFullName());
-
-                locationLogList.add(ll);
+    private void requestPaths(List<PathRequest> pathRequestTaskList) {
+        // Las peticiones se espacian según la cuota del servicio de rutas, mientras se procesan las respuestas que van llegando.
+        TokenBucket limiter = pathsGenerationMethod.equals(Paths_Generation_Method.GOOGLE) ? GOOGLE_ROUTE_LIMITER : OPENSTREETMAP_ROUTE_LIMITER;
+        try {
+            for (GeneratedPath path : PathRequestWebService.getRouteFetchPipeline().fetchAll(pathRequestTaskList, limiter, ROUTE_FETCH_MAX_ATTEMPTS)) {
+                addGeneratedPath(path);
             }
         } catch (InterruptedException ex) {
             LOG.log(Level.SEVERE, "Error al obtener el JSON de la ruta", ex);
+            Thread.currentThread().interrupt();
         }
     }
 
-    private List<LocationLogDetail> interpolateLocationLogDetailList(List<LocationLogDetail> lldList) {
-        List<LocationLogDetail> interpolatedLocationLogDetailList = new ArrayList<>();
+    // Añade un trayecto generado a los de la simulación y lo dibuja en el mapa.
+    private void addGeneratedPath(GeneratedPath path) {
+        // Si no se hubiera podido obtener, lo ignoramos.
+        if (path == null) {
+            return;
+        }
 
-        for (int i = 0; i < lldList.size() - 1; i++) {
-            interpolatedLocationLogDetailList.addAll(interpolateBetween(lldList.get(i), lldList.get(i + 1)));
+        for (Overlay overlay : path.overlays) {
+            simulatedMapModel.addOverlay(overlay);
         }
 
-        return interpolatedLocationLogDetailList;
+        // Creamos un usuario simulado, al que le asignaremos el trayecto.
+        LocationLog ll = path.locationLog;
+        Person person = createSimPerson();
+        ll.setPerson(person);
+        ll.setFilename(person.getFullName());
+
+        locationLogList.add(ll);
     }
 
     public void configChanged() {
         currentState = State.CONFIG_CHANGED;
     }
 
-    private List<LocationLogDetail> interpolateBetween(LocationLogDetail lld1, LocationLogDetail lld2) {
-        List<LocationLogDetail> lldListBetween = new ArrayList<>();
-
-        double pointsDistance = Util.distanceHaversine(lld1.getLatitude(), lld1.getLongitude(), lld2.getLatitude(), lld2.getLongitude());
-
-        // Dividimos entre 2.5 para tener incluso más precisión.
-        int numberOfInnerLocations = (int) Math.ceil(pointsDistance / 2.5);
-
-        double latitudeFragment = (lld2.getLatitude() - lld1.getLatitude()) / numberOfInnerLocations;
-        double longitudeFragment = (lld2.getLongitude() - lld1.getLongitude()) / numberOfInnerLocations;
-        double heartRateFragment = (lld2.getHeartRate() - lld1.getHeartRate()) / numberOfInnerLocations;
-        double rrFragment = (lld2.getRrTime() - lld1.getRrTime()) / numberOfInnerLocations;
-        double speedFragment = (lld2.getSpeed() - lld1.getSpeed()) / numberOfInnerLocations;
-        double secondsToBeHereFragment = (lld2.getSecondsToBeHere() - lld1.getSecondsToBeHere()) / numberOfInnerLocations;
-
-        for (int i = 0; i < numberOfInnerLocations; i++) {
-            LocationLogDetail lld = new LocationLogDetail();
-
-            lld.setLocationLog(lld1.getLocationLog());
-            lld.setLatitude(i * latitudeFragment + lld1.getLatitude());
-            lld.setLongitude(i * longitudeFragment + lld1.getLongitude());
-            lld.setSpeed(i * speedFragment + lld1.getSpeed());
-            lld.setHeartRate((int) (i * heartRateFragment + lld1.getHeartRate()));
-            lld.setRrTime((int) (i * rrFragment + lld1.getRrTime()));
-            lld.setSecondsToBeHere((int) (i * secondsToBeHereFragment + lld1.getSecondsToBeHere()));
-
-            lldListBetween.add(lld);
-        }
-
-        lldListBetween.add(lld2);
-
-        return lldListBetween;
-    }
-
     private Person createSimPerson() {
         Person person = new Person();
         String name = "Sim_" + System.currentTimeMillis();
@@ -561,8 +712,8 @@ public class SimulatorController implements Serializable, ISimulatorControllerOb
         return simulatedMapModel;
     }
 
-    private void createPathOpenStreetMaps(List<PositionSimulatedSpeed> pssList, LocationLog ll) {
-        if (pssList != null && !pssList.isEmpty()) {
+    private void createPathOpenStreetMaps(SimulatedPath simulatedPath, LocationLog ll, List<Overlay> overlays) {
+        if (simulatedPath != null && !simulatedPath.isEmpty()) {
             Polyline polyline = new Polyline();
             polyline.setStrokeWeight(4);
             polyline.setStrokeOpacity(0.7);
@@ -572,82 +723,63 @@ public class SimulatorController implements Serializable, ISimulatorControllerOb
             // Hacemos que las rutas sean variaciones de azul.
             polyline.setStrokeColor("#2222" + String.format("%02x", rand.nextInt(0x100)));
 
-            // Listado de posiciones que componen el trayecto de SmartDriver.
-            ArrayList<LocationLogDetail> locationLogDetailList = new ArrayList<>();
+            // Posiciones que componen el trayecto de SmartDriver.
+            PackedPath.Builder pathBuilder = new PackedPath.Builder(simulatedPath.size());
 
             double pathDistance = 0.0d;
             int pathDurationInSeconds = 0;
 
-            // Posición anterior en el trayecto.
-            PositionSimulatedSpeed previous = pssList.get(0);
-
-            // Analizamos la información obtenida de la consulta a OpenStreetMap.
-            for (PositionSimulatedSpeed pss : pssList) {
-                List<Double> currentCoordinates = pss.getPosition().getCoordinates();
-                // Comprobamos que vengan las coordenadas.
-                if (currentCoordinates == null || currentCoordinates.isEmpty() || currentCoordinates.size() < 2) {
-                    continue;
-                }
+            // Analizamos la información obtenida de la consulta a OpenStreetMap. La primera posición hace de posición anterior.
+            for (int i = 0; i < simulatedPath.size(); i++) {
+                int previous = Math.max(i - 1, 0);
+                double speed = simulatedPath.getSpeed(i);
 
                 // Añadimos un nuevo punto en la polilínea que se dibujará por pantalla.
-                LatLng latlng = new LatLng(currentCoordinates.get(1), currentCoordinates.get(0));
+                LatLng latlng = new LatLng(simulatedPath.getLatitude(i), simulatedPath.getLongitude(i));
                 polyline.getPaths().add(latlng);
 
-                // Creamos un nodo del trayecto, como si usásemos SmartDriver.
-                LocationLogDetail lld = new LocationLogDetail();
-                lld.setLocationLog(ll);
-                lld.setLatitude(currentCoordinates.get(1)); // La posición 1 es la latitud.
-                lld.setLongitude(currentCoordinates.get(0)); // La posición 0 es la longitud.
-                lld.setSpeed(pss.getSpeed());
-                lld.setRrTime(RR_TIME);
-                lld.setHeartRate((int) Math.ceil(60.0d / (RR_TIME / 1000.0d)));
-
                 // Si ha variado el límite de velocidad respecto al anterior, añadimos un 'marker' con el límite de velocidad.
-                if (!previous.getSpeed().equals(pss.getSpeed())) {
+                if (simulatedPath.getSpeed(previous) != speed) {
                     Marker m = new Marker(latlng);
                     m.setVisible(true);
                     m.setDraggable(false);
 
-                    m.setIcon("resources/img/" + (Math.round(pss.getSpeed())) + ".png");
-                    simulatedMapModel.addOverlay(m);
+                    m.setIcon("resources/img/" + (Math.round(speed)) + ".png");
+                    overlays.add(m);
                 }
 
-                List<Double> previousCoordinates = previous.getPosition().getCoordinates();
                 // Calculamos la distancia en metros entre los puntos previo y actual, así como el tiempo necesario para recorrer dicha distancia.
-                Double pointDistance = Util.distanceHaversine(previousCoordinates.get(1), previousCoordinates.get(0), currentCoordinates.get(1), currentCoordinates.get(0));
+                double pointDistance = Util.distanceHaversine(simulatedPath.getLatitude(previous), simulatedPath.getLongitude(previous), simulatedPath.getLatitude(i), simulatedPath.getLongitude(i));
                 pathDistance += pointDistance;
 
                 // Convertimos los Km/h en m/s.
-                double currentSpeedMS = lld.getSpeed() / 3.6d;
+                double currentSpeedMS = speed / 3.6d;
 
                 // Añadimos los segundos correspondientes a la distancia recorrida entre puntos.
                 int pointDuration = (int) Math.ceil(pointDistance / currentSpeedMS);
-                // Añadimos los segundos correspondientes a la distancia recorrida entre puntos.
                 // Indicamos cuántos segundos deben pasar para estar en esta posición.
                 pathDurationInSeconds += pointDuration;
-                lld.setSecondsToBeHere(pathDurationInSeconds);
-
-                locationLogDetailList.add(lld);
 
-                // Asignamos el actual al anterior, para poder seguir calculando las distancias y tiempos respecto al punto previo.
-                previous = pss;
+                // Creamos un nodo del trayecto, como si usásemos SmartDriver.
+                pathBuilder.add(simulatedPath.getLatitude(i), simulatedPath.getLongitude(i), speed, (int) Math.ceil(60.0d / (RR_TIME / 1000.0d)), RR_TIME, pathDurationInSeconds);
             }
 
-            simulatedMapModel.addOverlay(polyline);
+            overlays.add(polyline);
 
             // Asignamos un 'marker' con la posición inicial y final de cada trayecto.
-            createStartAndEndMarkers(locationLogDetailList.get(0), locationLogDetailList.get(locationLogDetailList.size() - 1));
+            createStartAndEndMarkers(pathBuilder, overlays);
 
-            // Asignamos el listado de posiciones.
-            ll.setLocationLogDetailList(locationLogDetailList);
+            // Asignamos las posiciones.
+            ll.setPackedPath(pathBuilder.build());
 
             ll.setDistance(pathDistance);
             ll.setDuration(pathDurationInSeconds);
         }
     }
 
-    private void createPathGoogleMaps(GeocodedWaypoints gcwp, LocationLog ll) {
-        if (gcwp.getRoutes() != null) {
+    private void createPathGoogleMaps(DirectionsRoute route, DecodedPolyline points, LocationLog ll, List<Overlay> overlays) {
+        // Nuestra petición sólo devolverá una ruta, con un solo tramo.
+        if (route != null && !points.isEmpty()) {
             Polyline polyline = new Polyline();
             polyline.setStrokeWeight(4);
             polyline.setStrokeOpacity(0.7);
@@ -656,95 +788,289 @@ public class SimulatorController implements Serializable, ISimulatorControllerOb
             // Hacemos que las rutas sean variaciones de verde.
             polyline.setStrokeColor("#22" + String.format("%02x", rand.nextInt(0x100)) + "22");
 
-            // Listado de posiciones que componen el trayecto de SmartDriver.
-            ArrayList<LocationLogDetail> locationLogDetailList = new ArrayList<>();
-
-            // Analizamos la información obtenida de la consulta a Google Directions.
-            // Nuestra petición sólo devolverá una ruta.
-            if (gcwp.getRoutes() != null && !gcwp.getRoutes().isEmpty()) {
-                Route r = gcwp.getRoutes().get(0);
-                // Comprobamos que traiga información de la ruta.
-                if (r.getLegs() != null) {
-                    Leg l = r.getLegs().get(0);
+            // Posiciones que componen el trayecto de SmartDriver.
+            PackedPath.Builder pathBuilder = new PackedPath.Builder(points.size());
 
-                    double speed;
-                    double pathDistance = 0.0d;
-                    int pathDurationInSeconds = 0;
-
-                    ArrayList<Location> locationList = PolylineDecoder.decodePoly(r.getOverviewPolyline().getPoints());
-                    // Posición anterior en el trayecto.
-                    Location previous = locationList.get(0);
+            double speed;
+            double pathDistance = 0.0d;
+            int pathDurationInSeconds = 0;
 
-                    // FIXME: ¿Interpolación de velocidades? Otra opción es consultar a Google Distance Matrix para consultar el tiempo que se tarda entre 2 puntos (le afecta el tráfico) y sacar la velocidad.
+            // Analizamos la información obtenida de la consulta a Google Directions. La primera posición hace de posición anterior.
+            // FIXME: ¿Interpolación de velocidades? Otra opción es consultar a Google Distance Matrix para consultar el tiempo que se tarda entre 2 puntos (le afecta el tráfico) y sacar la velocidad.
 //                PolynomialFunction p = new PolynomialFunction(new double[]{speed, averagePolylineSpeed,});
-                    for (int i = 0; i < locationList.size(); i++) {
-                        Location location = locationList.get(i);
-
-                        // Añadimos un nuevo punto en la polilínea que se dibujará por pantalla.
-                        LatLng latlng = new LatLng(location.getLat(), location.getLng());
-                        polyline.getPaths().add(latlng);
-
-                        // Creamos un nodo del trayecto, como si usásemos SmartDriver.
-                        LocationLogDetail lld = new LocationLogDetail();
-                        lld.setLocationLog(ll);
-                        lld.setLatitude(location.getLat());
-                        lld.setLongitude(location.getLng());
-                        lld.setRrTime(RR_TIME);
-                        lld.setHeartRate((int) Math.ceil(60.0d / (RR_TIME / 1000.0d)));
-
-                        // Calculamos la distancia en metros entre los puntos previo y actual, así como el tiempo necesario para recorrer dicha distancia.
-                        Double pointDistance = Util.distanceHaversine(previous.getLat(), previous.getLng(), location.getLat(), location.getLng());
-                        pathDistance += pointDistance;
-                        // Calculamos el tiempo en segundos que tarda en recorrer la distancia entre los puntos.
-                        int pointDuration = (int) Math.ceil(l.getDuration().getValue() * pointDistance / l.getDistance().getValue());
-
-                        // Convertimos la velocidad a Km/h.
-                        speed = pointDuration > 0 ? pointDistance * 3.6 / pointDuration : 0.0d;
-                        lld.setSpeed(speed);
-
-                        // Añadimos los segundos correspondientes a la distancia recorrida entre puntos.
-                        pathDurationInSeconds += pointDuration;
-                        // Indicamos cuántos segundos deben pasar para estar en esta posición.
-                        lld.setSecondsToBeHere(pathDurationInSeconds);
-
-                        locationLogDetailList.add(lld);
-
-                        // Asignamos el actual al anterior, para poder seguir calculando las distancias y tiempos respecto al punto previo.
-                        previous = location;
-                    }
+            for (int i = 0; i < points.size(); i++) {
+                int previous = Math.max(i - 1, 0);
+                double lat = points.getLatitude(i);
+                double lng = points.getLongitude(i);
 
-                    simulatedMapModel.addOverlay(polyline);
+                // Añadimos un nuevo punto en la polilínea que se dibujará por pantalla.
+                polyline.getPaths().add(new LatLng(lat, lng));
 
-                    // Asignamos un 'marker' con la posición inicial y final de cada trayecto.
-                    createStartAndEndMarkers(locationLogDetailList.get(0), locationLogDetailList.get(locationLogDetailList.size() - 1));
+                // Calculamos la distancia en metros entre los puntos previo y actual, así como el tiempo necesario para recorrer dicha distancia.
+                double pointDistance = Util.distanceHaversine(points.getLatitude(previous), points.getLongitude(previous), lat, lng);
+                pathDistance += pointDistance;
+                // Calculamos el tiempo en segundos que tarda en recorrer la distancia entre los puntos.
+                int pointDuration = (int) Math.ceil(route.getDuration() * pointDistance / route.getDistance());
 
-                    // Asignamos el listado de posiciones.
-                    ll.setLocationLogDetailList(locationLogDetailList);
+                // Convertimos la velocidad a Km/h.
+                speed = pointDuration > 0 ? pointDistance * 3.6 / pointDuration : 0.0d;
 
-                    ll.setDistance(pathDistance);
-                    ll.setDuration(pathDurationInSeconds);
-                }
+                // Añadimos los segundos correspondientes a la distancia recorrida entre puntos.
+                pathDurationInSeconds += pointDuration;
+
+                // Creamos un nodo del trayecto, como si usásemos SmartDriver, indicando cuántos segundos deben pasar para estar en esta posición.
+                pathBuilder.add(lat, lng, speed, (int) Math.ceil(60.0d / (RR_TIME / 1000.0d)), RR_TIME, pathDurationInSeconds);
             }
+
+            overlays.add(polyline);
+
+            // Asignamos un 'marker' con la posición inicial y final de cada trayecto.
+            createStartAndEndMarkers(pathBuilder, overlays);
+
+            // Asignamos las posiciones.
+            ll.setPackedPath(pathBuilder.build());
+
+            ll.setDistance(pathDistance);
+            ll.setDuration(pathDurationInSeconds);
         }
     }
 
-    private void createStartAndEndMarkers(LocationLogDetail startPosition, LocationLogDetail endPosition) {
-        LatLng startLatLng = new LatLng(startPosition.getLatitude(), startPosition.getLongitude());
+    private void createStartAndEndMarkers(PackedPath.Builder pathBuilder, List<Overlay> overlays) {
+        int last = pathBuilder.size() - 1;
+        createStartAndEndMarkers(new LatLng(pathBuilder.getLatitude(0), pathBuilder.getLongitude(0)), new LatLng(pathBuilder.getLatitude(last), pathBuilder.getLongitude(last)), overlays);
+    }
 
+    private void createStartAndEndMarkers(LatLng startLatLng, LatLng endLatLng, List<Overlay> overlays) {
         Marker startMarker = new Marker(startLatLng);
         startMarker.setVisible(true);
         startMarker.setDraggable(false);
         startMarker.setTitle(bundle.getString("Home"));
         startMarker.setIcon(MARKER_START_ICON_PATH);
-        simulatedMapModel.addOverlay(startMarker);
+        overlays.add(startMarker);
 
-        LatLng endLatLng = new LatLng(endPosition.getLatitude(), endPosition.getLongitude());
         Marker endMarker = new Marker(endLatLng);
         endMarker.setVisible(true);
         endMarker.setDraggable(false);
         endMarker.setTitle(bundle.getString("Workplace"));
         endMarker.setIcon(MARKER_FINISH_ICON_PATH);
-        simulatedMapModel.addOverlay(endMarker);
+        overlays.add(endMarker);
+    }
+
+    private void addCachedPathOverlays(PackedPath path) {
+        Polyline polyline = new Polyline();
+        polyline.setStrokeWeight(4);
+        polyline.setStrokeOpacity(0.7);
+
+        // Hacemos que los trayectos reutilizados sean variaciones de gris.
+        int shade = ThreadLocalRandom.current().nextInt(0x40, 0xc0);
+        polyline.setStrokeColor(String.format("#%02x%02x%02x", shade, shade, shade));
+
+        // Los trayectos interpolados tienen muchos más puntos de los necesarios para dibujarlos, así que tomamos uno cada 2 segundos de trayecto.
+        int lastSeconds = Integer.MIN_VALUE;
+        for (int i = 0; i < path.size(); i++) {
+            if (path.getSecondsToBeHere(i) - lastSeconds >= 2 || i == path.size() - 1) {
+                polyline.getPaths().add(new LatLng(path.getLatitude(i), path.getLongitude(i)));
+                lastSeconds = path.getSecondsToBeHere(i);
+            }
+        }
+        simulatedMapModel.addOverlay(polyline);
+
+        int last = path.size() - 1;
+        List<Overlay> markers = new ArrayList<>(2);
+        createStartAndEndMarkers(new LatLng(path.getLatitude(0), path.getLongitude(0)), new LatLng(path.getLatitude(last), path.getLongitude(last)), markers);
+        for (Overlay marker : markers) {
+            simulatedMapModel.addOverlay(marker);
+        }
+    }
+
+    private static TokenBucket createRouteLimiter(String property, String defaultRate) {
+        double rate = Double.parseDouble(HermesSimulatorConfig.getHermesSimulatorProperties().getProperty(property, defaultRate));
+        return new TokenBucket(rate, (int) Math.max(1.0d, rate));
+    }
+
+    /**
+     * Almacén de trayectos ya construidos. Se crea con la primera petición.
+     *
+     * @return Almacén de trayectos o nulo si no está configurado o no se ha
+     * podido crear.
+     */
+    private static synchronized RouteCache getRouteCache() {
+        if (routeCache == null && !ROUTE_CACHE_DIR.isEmpty()) {
+            try {
+                routeCache = new RouteCache(Paths.get(ROUTE_CACHE_DIR), ROUTE_CACHE_MAX_SIZE);
+                LOG.log(Level.INFO, "getRouteCache() - Directorio de trayectos guardados: {0}", ROUTE_CACHE_DIR);
+            } catch (IOException | InvalidPathException ex) {
+                LOG.log(Level.SEVERE, "getRouteCache() - No se ha podido crear el directorio de trayectos guardados: {0} - {1}", new Object[]{ROUTE_CACHE_DIR, ex.getMessage()});
+            }
+        }
+        return routeCache;
+    }
+
+    /**
+     * Cálculo de trayectos sobre la red de carreteras del extracto local de
+     * OpenStreetMap. La red se carga con la primera petición y se conserva
+     * para las siguientes simulaciones.
+     *
+     * @return Cálculo de trayectos o nulo si no hay extracto configurado o no
+     * se ha podido cargar.
+     */
+    private static synchronized OfflineRouter getOfflineRouter() {
+        if (offlineRouter == null) {
+            if (OSM_EXTRACT_FILE.isEmpty()) {
+                LOG.log(Level.SEVERE, "getOfflineRouter() - No se ha configurado el extracto de OpenStreetMap en 'osm.extract.file'");
+                return null;
+            }
+            try {
+                offlineRouter = new OfflineRouter(RoadNetwork.load(Paths.get(OSM_EXTRACT_FILE)));
+            } catch (IOException | InvalidPathException ex) {
+                LOG.log(Level.SEVERE, "getOfflineRouter() - No se ha podido cargar el extracto de OpenStreetMap: {0} - {1}", new Object[]{OSM_EXTRACT_FILE, ex.getMessage()});
+            }
+        }
+        return offlineRouter;
+    }
+
+    // Los trayectos guardados dependen del servicio que los generó, de si se han interpolado y de las distancias con las que se eligen sus extremos.
+    private String getRouteCacheProvider() {
+        return pathsGenerationMethod.name() + (interpolate ? "_INTERPOLATED" : "") + "_" + distance + "KM_" + distanceFromSevilleCenter + "KM";
+    }
+
+    /**
+     * Petición de un trayecto. Si el servicio de rutas no lo acepta, se vuelve
+     * a pedir con nuevos puntos aleatorios, así que el origen y el destino son
+     * los del trayecto finalmente obtenido.
+     */
+    private class PathRequest implements RouteFetchPipeline.RouteFetch<GeneratedPath> {
+
+        private Location origin;
+        private Location destination;
+
+        PathRequest(Location origin, Location destination) {
+            this.origin = origin;
+            this.destination = destination;
+        }
+
+        @Override
+        public String getUrl(int attempt) {
+            if (attempt > 0) {
+                // Generamos nuevos puntos aleatorios hasta que sean aceptados.
+                changeEndpoints();
+            }
+            if (pathsGenerationMethod.equals(Paths_Generation_Method.GOOGLE)) {
+                /////////////////
+                // GOOGLE MAPS //
+                /////////////////
+
+                return "https://maps.googleapis.com/maps/api/directions/json?origin=" + origin.getLat() + "," + origin.getLng() + "&destination=" + destination.getLat() + "," + destination.getLng();
+            } else {
+                ///////////////////
+                // OPENSTREETMAP //
+                ///////////////////
+
+                return "http://cronos.lbd.org.es/hermes/api/smartdriver/network/simulate?fromLat=" + origin.getLat() + "&fromLng=" + origin.getLng() + "&toLat=" + destination.getLat() + "&toLng=" + destination.getLng() + "&speedFactor=1.0";
+            }
+        }
+
+        @Override
+        public GeneratedPath process(InputStream response) throws IOException {
+            // Creamos un objeto de localizaciones de 'SmartDriver'.
+            LocationLog ll = new LocationLog();
+            List<Overlay> overlays = new ArrayList<>();
+
+            // Procesamos el JSON de respuesta a medida que se lee, en función de la plataforma a la que le hayamos hecho la petición.
+            if (pathsGenerationMethod.equals(Paths_Generation_Method.GOOGLE)) {
+                /////////////////
+                // GOOGLE MAPS //
+                /////////////////
+
+                // Sólo necesitamos las coordenadas de la ruta y la distancia y duración del trayecto.
+                DecodedPolyline points = DECODED_POLYLINE.get();
+                createPathGoogleMaps(DirectionsReader.read(response, points), points, ll, overlays);
+            } else {
+                ///////////////////
+                // OPENSTREETMAP //
+                ///////////////////
+
+                // Localizaciones y velocidades de SmartDriver.
+                createPathOpenStreetMaps(SimulatedPathReader.read(response), ll, overlays);
+            }
+
+            return completePath(ll, overlays);
+        }
+
+        /**
+         * Calcula el trayecto en local. Si no hay trayecto posible entre los
+         * puntos, se vuelve a intentar con nuevos puntos aleatorios.
+         *
+         * @param router Cálculo de trayectos sobre la red de carreteras.
+         * @return Trayecto o nulo si no se ha podido calcular.
+         */
+        GeneratedPath route(OfflineRouter router) {
+            for (int attempt = 0; attempt < OFFLINE_ROUTE_ATTEMPTS; attempt++) {
+                if (attempt > 0) {
+                    changeEndpoints();
+                }
+                SimulatedPath simulatedPath = router.route(origin.getLat(), origin.getLng(), destination.getLat(), destination.getLng());
+                if (simulatedPath != null) {
+                    LocationLog ll = new LocationLog();
+                    List<Overlay> overlays = new ArrayList<>();
+                    createPathOpenStreetMaps(simulatedPath, ll, overlays);
+                    GeneratedPath path = completePath(ll, overlays);
+                    if (path != null) {
+                        return path;
+                    }
+                }
+            }
+            LOG.log(Level.WARNING, "route() - No se ha podido calcular un trayecto en {0} intentos", OFFLINE_ROUTE_ATTEMPTS);
+            return null;
+        }
+
+        private void changeEndpoints() {
+            destination = getRandomLocation(SEVILLE.getLat(), SEVILLE.getLng(), distanceFromSevilleCenter);
+            origin = getRandomLocation(destination.getLat(), destination.getLng(), distance);
+        }
+
+        // Interpola el trayecto, si se ha pedido, y lo guarda para poder reutilizarlo.
+        private GeneratedPath completePath(LocationLog ll, List<Overlay> overlays) {
+            // Si no fuera un trayecto válido, lo ignoramos.
+            if (ll.getPackedPath() == null || ll.getPackedPath().isEmpty()) {
+                return null;
+            }
+
+            // Vemos si se quiere interpolación, para asegurar que haya una localización al menos cada 2.77m, que sería el caso de que un conductor
+            // fuera a la velocidad mínima asignada en las simulaciones (10Km/h)
+            if (SimulatorController.interpolate) {
+                // Haremos una interpolación lineal para que haya un punto cada 2.77m. Dividimos entre 2.5 para tener incluso más precisión.
+                ll.setPackedPath(ll.getPackedPath().interpolate(2.5d));
+                if (ll.getPackedPath().isEmpty()) {
+                    return null;
+                }
+            }
+
+            // Guardamos el trayecto ya construido, para poder reutilizarlo en otras simulaciones.
+            RouteCache cache = getRouteCache();
+            if (cache != null) {
+                cache.put(getRouteCacheProvider(), origin.getLat(), origin.getLng(), destination.getLat(), destination.getLng(), ll);
+            }
+
+            return new GeneratedPath(ll, overlays);
+        }
+    }
+
+    /**
+     * Trayecto generado, con lo que hay que dibujar de él en el mapa. Se
+     * construye en los hilos de procesado y se añade a la simulación desde el
+     * hilo que ha pedido los trayectos, porque el mapa no admite cambios desde
+     * varios hilos a la vez.
+     */
+    private static final class GeneratedPath {
+
+        private final LocationLog locationLog;
+        private final List<Overlay> overlays;
+
+        GeneratedPath(LocationLog locationLog, List<Overlay> overlays) {
+            this.locationLog = locationLog;
+            this.overlays = overlays;
+        }
     }
 
     private Location getRandomLocation(double latitude, double longitude, int radius) {
@@ -866,7 +1192,13 @@ public class SimulatorController implements Serializable, ISimulatorControllerOb
 
     public synchronized void updateMapGUI() {
         RequestContext context = RequestContext.getCurrentInstance();
-        if (!threadPool.getQueue().isEmpty()) {
+        if (!simulationEngine.isEmpty()) {
+            // Añadimos los SmartDrivers que se hayan incorporado a la simulación en curso.
+            Overlay overlay;
+            while ((overlay = PENDING_OVERLAYS.poll()) != null) {
+                addSmartDriverOverlay(overlay);
+            }
+
             if (enableGUI) {
                 for (Marker m : simulatedMapModel.getMarkers()) {
                     LOG.log(Level.FINE, "updateMapGUI() - Id del marker: {0}", m.getId());
@@ -946,11 +1278,31 @@ public class SimulatorController implements Serializable, ISimulatorControllerOb
         statusMonitorScheduler = scheduledExecutorService.scheduleAtFixedRate(new Runnable() {
             @Override
             public void run() {
-                csvStatusList.add(new CSVSimulatorStatus(System.currentTimeMillis(), GENERATED.intValue(), SENT.intValue(), OK.intValue(), NOT_OK.intValue(), ERRORS.intValue(), RECOVERED.intValue(), FINALLY_PENDING.intValue(), threadPool.getQueue().size(), maxSmartDriversDelay.get(), currentSmartDriversDelay.get()));
+                LatencyHistogram.Snapshot vehicleLocationDelays = sampleDelays(SimulatedSmartDriver.Event_Type.NORMAL_VEHICLE_LOCATION);
+                LatencyHistogram.Snapshot dataSectionDelays = sampleDelays(SimulatedSmartDriver.Event_Type.NORMAL_DATA_SECTION);
+                LatencyHistogram.Snapshot schedulingLag = sampleSchedulingLag();
+                LatencyHistogram.Snapshot tickDuration = METRICS.sampleHistogram(TICK_DURATION_METRIC_NAME);
+                LatencyHistogram.Snapshot runDuration = METRICS.sampleHistogram(RUN_DURATION_METRIC_NAME);
+                for (int path = 0; path < SEND_PATHS.length; path++) {
+                    for (SimulatedSmartDriver.Event_Type type : SimulatedSmartDriver.Event_Type.values()) {
+                        METRICS.sampleHistogram(getSendDurationMetricName(path, type));
+                    }
+                }
+                long engineBehind = simulationEngine.getBehindMillis();
+                checkEngineFallingBehind(engineBehind);
+                csvStatusList.add(new CSVSimulatorStatus(System.currentTimeMillis(), getCount(Counter_Type.GENERATED), getCount(Counter_Type.SENT), getCount(Counter_Type.OK), getCount(Counter_Type.NOT_OK), getCount(Counter_Type.ERRORS), getCount(Counter_Type.RECOVERED), getCount(Counter_Type.FINALLY_PENDING), simulationEngine.getActiveSmartDrivers(), maxSmartDriversDelay.get(), currentSmartDriversDelay.get(),
+                        vehicleLocationDelays, dataSectionDelays, schedulingLag,
+                        getCount(Counter_Type.SENT, SimulatedSmartDriver.Event_Type.NORMAL_VEHICLE_LOCATION), getCount(Counter_Type.OK, SimulatedSmartDriver.Event_Type.NORMAL_VEHICLE_LOCATION), getFailedCount(SimulatedSmartDriver.Event_Type.NORMAL_VEHICLE_LOCATION),
+                        getCount(Counter_Type.SENT, SimulatedSmartDriver.Event_Type.NORMAL_DATA_SECTION), getCount(Counter_Type.OK, SimulatedSmartDriver.Event_Type.NORMAL_DATA_SECTION), getFailedCount(SimulatedSmartDriver.Event_Type.NORMAL_DATA_SECTION),
+                        tickDuration, runDuration, engineBehind));
+                SaturationSearch search = saturationSearch;
+                if (search != null) {
+                    search.onSample(vehicleLocationDelays.merge(dataSectionDelays), schedulingLag, getCount(Counter_Type.SENT), getCount(Counter_Type.OK), getCount(Counter_Type.NOT_OK) + getCount(Counter_Type.ERRORS));
+                }
                 // Cada vez que registramos el retraso actual en el CSV, lo inicializamos.
                 currentSmartDriversDelay.set(0);
                 // Comprobamos si han terminado todos los hilos de ejecución.
-                if (threadPool.getQueue().isEmpty()) {
+                if (simulationEngine.isEmpty()) {
                     finishSimulation(false);
                 }
             }
@@ -960,7 +1312,7 @@ public class SimulatorController implements Serializable, ISimulatorControllerOb
 
     public void simulate() {
         // Si el temporizador está instanciado, es que hay una simulación en marcha y se quiere parar.
-        if (!threadPool.getQueue().isEmpty()) {
+        if (!simulationEngine.isEmpty()) {
             finishSimulation(true);
         } else {
             String pattern = bundle.getString("LimitedSimulationTime");
@@ -1001,13 +1353,28 @@ public class SimulatorController implements Serializable, ISimulatorControllerOb
     private void executeSimulation() {
         currentState = State.SIMULATING;
 
-        kafkaProducer = new KafkaProducer<>(kafkaProperties);
         resetSimulation();
+        if (streamServer.ordinal() % 2 == 0) {
+            kafkaProducerPool = new KafkaProducerPool(KAFKA_PRODUCER_POOL_SIZE, kafkaProperties, KAFKA_SERIALIZATION_FORMAT);
+        } else {
+            // Con el reloj virtual, la simulación espera a Ztreamy en lugar de dar por fallidos los envíos que no admite.
+            ztreamyPublisherPool = new ZtreamyPublisherPool(ZTREAMY_URL, ZTREAMY_MAX_CONNECTIONS, ZTREAMY_MAX_IN_FLIGHT, ZTREAMY_TIMEOUT, simulationEngine.isVirtualTime() ? ZTREAMY_TIMEOUT : 0);
+        }
         createTempFolder();
+        if (retryOnFail) {
+            // Los reintentos que no quepan en memoria se guardan en el directorio temporal, antes de generar el ZIP se borran.
+            retryScheduler = new RetryScheduler(streamServer.ordinal() % 2, kafkaProducerPool, ztreamyPublisherPool, retries, TimeUnit.SECONDS.toMillis(secondsBetweenRetries), RETRY_MAX_BACKOFF, RETRY_MAX_RATE,
+                    RETRY_MEMORY_MAX_ENTRIES, tempFolder != null ? tempFolder.resolve("retries") : null, RETRY_JOURNAL_SEGMENT_SIZE);
+            retryScheduler.start();
+        }
+        if (EVENT_BATCHING_ENABLED) {
+            eventBatcher = new EventBatcher(streamServer.ordinal() % 2, kafkaProducerPool, ztreamyPublisherPool, EVENT_BATCHING_WINDOW, EVENT_BATCHING_MAX_EVENTS, EVENT_BATCHING_MAX_BYTES);
+            eventBatcher.start();
+        }
         startSimulationTime = System.currentTimeMillis();
         LOG.log(Level.INFO, "executeSimulation() - Comienzo de la simulación: {0}", Constants.dfISO8601.format(startSimulationTime));
         LOG.log(Level.INFO, "executeSimulation() - Envío de tramas a: {0}", Stream_Server.values()[streamServer.ordinal() % 2].name());
-        LOG.log(Level.INFO, "executeSimulation() - Condiciones:\n-> Velocidad de simulación: {0}. Ejecución en tiempo real: {1}\n-> ¿Reenviar tramas fallidas?: {2}\n-> Segundos entre reintentos={3}\n-> Modo de inicio de los SmartDrivers={4}", new Object[]{timeRate.name(), timeRate.equals(Time_Rate.X1), retryOnFail, secondsBetweenRetries, startingMode.name()});
+        LOG.log(Level.INFO, "executeSimulation() - Condiciones:\n-> Velocidad de simulación: {0}. Ejecución en tiempo real: {1}\n-> ¿Reenviar tramas fallidas?: {2}\n-> Segundos entre reintentos={3}\n-> Modo de inicio de los SmartDrivers={4}\n-> Carga de lazo abierto={5}", new Object[]{timeRate.name(), timeRate.equals(Time_Rate.X1), retryOnFail, secondsBetweenRetries, startingMode.name(), OPEN_LOOP_LOAD});
         LOG.log(Level.INFO, "executeSimulation() - Se inicia el consumidor de análisis de vehículos cercanos");
         surroundingVehiclesConsumer = new SurroundingVehiclesConsumer(this);
         surroundingVehiclesConsumer.start();
@@ -1017,23 +1384,46 @@ public class SimulatorController implements Serializable, ISimulatorControllerOb
             int id = 0;
             for (int i = 0; i < locationLogList.size(); i++) {
                 LocationLog ll = locationLogList.get(i);
-                LocationLogDetail smartDriverPosition = ll.getLocationLogDetailList().get(0);
-                LatLng latLng = new LatLng(smartDriverPosition.getLatitude(), smartDriverPosition.getLongitude());
+                PackedPath path = ll.getPackedPath();
+                LatLng latLng = new LatLng(path.getLatitude(0), path.getLongitude(0));
+                String markerTitle = LocationLogDetail.getMarkerTitle(path.getLatitude(0), path.getLongitude(0), path.getSpeed(0), path.getHeartRate(0), path.getSecondsToBeHere(0));
 
                 // Para el caso del modo de inicio LINEAL, si hay más de 10 SmartDrivers, se toma el 10% para repartir su inicio durante 50 segundos.
                 int smartDriversBunch = simulatedSmartDrivers > 10 ? (int) (simulatedSmartDrivers * 0.10) : 1;
 
                 LOG.log(Level.FINE, "executeSimulation() - Cada 10 segundos, se iniciarán {0} SmartDrivers en el trayecto {1}", new Object[]{smartDriversBunch, i});
-                initSimulatedSmartDriver(id, smartDriverPosition.getMarkerTitle(), ll, latLng, smartDriversBunch);
+                initSimulatedSmartDriver(id, markerTitle, ll, latLng, smartDriversBunch);
                 id++;
                 startStatusMonitorTimer();
 
                 for (int j = 1; j < simulatedSmartDrivers; j++) {
-                    initSimulatedSmartDriver(id, smartDriverPosition.getMarkerTitle(), ll, latLng, smartDriversBunch);
+                    initSimulatedSmartDriver(id, markerTitle, ll, latLng, smartDriversBunch);
                     id++;
                 }
             }
 
+            nextSmartDriverId = id;
+            simulationEngine.start();
+
+            if (SATURATION_SEARCH_ENABLED) {
+                if (simulationEngine.isVirtualTime()) {
+                    LOG.log(Level.WARNING, "executeSimulation() - La búsqueda del punto de saturación necesita el reloj real. No se realizará");
+                } else {
+                    saturationSearch = new SaturationSearch(new SaturationSearch.LoadControl() {
+                        @Override
+                        public int getActiveSmartDrivers() {
+                            return simulationEngine.getActiveSmartDrivers();
+                        }
+
+                        @Override
+                        public List<SimulatedSmartDriver> addSmartDrivers(int amount) {
+                            return addSimulatedSmartDrivers(amount);
+                        }
+                    }, SATURATION_STEP_SMARTDRIVERS, SATURATION_MIN_STEP_SMARTDRIVERS, SATURATION_STEP_DURATION, MAX_THREADS, SATURATION_SLO_DELAY_P99, SATURATION_SLO_FAILURE_RATE, SATURATION_SLO_SCHEDULING_LAG_P99);
+                    saturationSearch.start(getCount(Counter_Type.SENT), getCount(Counter_Type.OK), getCount(Counter_Type.NOT_OK) + getCount(Counter_Type.ERRORS));
+                }
+            }
+
             LOG.log(Level.INFO, "executeSimulation() - Se activa el sistema de parada de emergencia, si la duración es mayor a: {0}", DurationFormatUtils.formatDuration(MAX_SIMULATION_TIME, "HH:mm:ss", true));
             startShutdownTimer();
         } catch (Exception ex) {
@@ -1044,18 +1434,6 @@ public class SimulatorController implements Serializable, ISimulatorControllerOb
     }
 
     private void initSimulatedSmartDriver(int id, String title, LocationLog ll, LatLng latLng, int smartDriversBunch) throws MalformedURLException, HermesException {
-        Marker m = new Marker(latLng, title, null, MARKER_GREEN_CAR_ICON_PATH);
-        m.setVisible(true);
-        m.setDraggable(false);
-
-        Circle c = new Circle(latLng, 100);
-        c.setStrokeColor("#00FF00");
-        c.setFillColor("#00FF00");
-        c.setFillOpacity(0.2);
-
-        SimulatedSmartDriver ssd = new SimulatedSmartDriver(id, ll, m, c, randomizeEachSmartDriverBehaviour, monitorEachSmartDriver, infiniteSimulation, streamServer.ordinal() % 2, retries);
-        simulatedSmartDriverHashMap.put(ssd.getSha(), ssd);
-
         long delay = 0;
         // Aplicamos el modo de inicio seleccionado a los SmartDrivers que creamos.
         switch (startingMode) {
@@ -1079,18 +1457,77 @@ public class SimulatorController implements Serializable, ISimulatorControllerOb
         // Aplicamos un pequeño retraso más el aplicado por el modo se inicio.
         long totalDelay = 100 + id + delay;
         LOG.log(Level.FINE, "SmartDriver {0} con inicio en {1}", new Object[]{id, totalDelay});
-        threadPool.scheduleAtFixedRate(ssd, totalDelay, timeRate.getMilliseconds(), TimeUnit.MILLISECONDS);
+        List<Overlay> overlays = new ArrayList<>(2);
+        scheduleSimulatedSmartDriver(id, title, ll, latLng, totalDelay, overlays);
+        for (Overlay overlay : overlays) {
+            addSmartDriverOverlay(overlay);
+        }
+    }
+
+    // 'addOverlay()' asigna un identificador nuevo, pero los de los SmartDrivers deben ser su 'sha' para poder actualizarlos y retirarlos.
+    private static void addSmartDriverOverlay(Overlay overlay) {
+        String id = overlay.getId();
+        simulatedMapModel.addOverlay(overlay);
+        overlay.setId(id);
+    }
+
+    private SimulatedSmartDriver scheduleSimulatedSmartDriver(int id, String title, LocationLog ll, LatLng latLng, long delay, List<Overlay> overlays) throws MalformedURLException, HermesException {
+        Marker m = new Marker(latLng, title, null, MARKER_GREEN_CAR_ICON_PATH);
+        m.setVisible(true);
+        m.setDraggable(false);
+
+        Circle c = new Circle(latLng, 100);
+        c.setStrokeColor("#00FF00");
+        c.setFillColor("#00FF00");
+        c.setFillOpacity(0.2);
+
+        SimulatedSmartDriver ssd = new SimulatedSmartDriver(id, ll, m, c, randomizeEachSmartDriverBehaviour, monitorEachSmartDriver, infiniteSimulation, streamServer.ordinal() % 2, retries, kafkaProducerPool, ztreamyPublisherPool, eventBatcher);
+        simulatedSmartDriverHashMap.put(ssd.getSha(), ssd);
+        simulationEngine.schedule(ssd, delay);
 //                        ssd.startConsumer();
 
-        simulatedMapModel.addOverlay(m);
         m.setId(ssd.getSha());
-        simulatedMapModel.addOverlay(c);
+        overlays.add(m);
         c.setId(ssd.getSha());
+        overlays.add(c);
+        return ssd;
+    }
+
+    /**
+     * Añade SmartDrivers a una simulación en curso, repartidos entre los
+     * trayectos generados. Su inicio se reparte en los siguientes 10 segundos.
+     * Sus 'markers' se añaden al mapa en la siguiente actualización.
+     *
+     * @param amount Número de SmartDrivers a añadir.
+     * @return SmartDrivers añadidos.
+     */
+    private List<SimulatedSmartDriver> addSimulatedSmartDrivers(int amount) {
+        List<SimulatedSmartDriver> added = new ArrayList<>(amount);
+        if (locationLogList == null || locationLogList.isEmpty()) {
+            return added;
+        }
+        List<Overlay> overlays = new ArrayList<>(amount * 2);
+        try {
+            for (int i = 0; i < amount; i++) {
+                int id = nextSmartDriverId++;
+                LocationLog ll = locationLogList.get(id % locationLogList.size());
+                PackedPath path = ll.getPackedPath();
+                LatLng latLng = new LatLng(path.getLatitude(0), path.getLongitude(0));
+                String markerTitle = LocationLogDetail.getMarkerTitle(path.getLatitude(0), path.getLongitude(0), path.getSpeed(0), path.getHeartRate(0), path.getSecondsToBeHere(0));
+                added.add(scheduleSimulatedSmartDriver(id, markerTitle, ll, latLng, ThreadLocalRandom.current().nextInt(10000), overlays));
+            }
+        } catch (MalformedURLException | HermesException ex) {
+            LOG.log(Level.SEVERE, "addSimulatedSmartDrivers() - No se han podido añadir más SmartDrivers a la simulación", ex);
+        }
+        PENDING_OVERLAYS.addAll(overlays);
+        LOG.log(Level.INFO, "addSimulatedSmartDrivers() - Se han añadido {0} SmartDrivers. SmartDrivers activos: {1}", new Object[]{added.size(), simulationEngine.getActiveSmartDrivers()});
+        return added;
     }
 
     private void resetSimulation() {
 
         // Eliminamos los 'markers' de los SmartDrivers representados en el mapa.
+        PENDING_OVERLAYS.clear();
         removeCarMarkers();
         removeCarCircles();
 
@@ -1103,20 +1540,25 @@ public class SimulatorController implements Serializable, ISimulatorControllerOb
         }
 
         // Finalizamos todos los hilos de los SmartDrivers, si los hubiera.
-        if (threadPool != null) {
+        if (simulationEngine != null) {
+            if (simulationEngine.getOverruns() > 0) {
+                LOG.log(Level.WARNING, "resetSimulation() - Ticks que no se completaron dentro de su periodo durante la simulación: {0}", simulationEngine.getOverruns());
+            }
             LOG.log(Level.INFO, "resetSimulation() - Se envía señal de finalización a los hilos");
-            threadPool.shutdownNow();
+            simulationEngine.shutdownNow();
         }
 
-        initThreadPool();
+        initSimulationEngine();
         simulatedSmartDriverHashMap = new ConcurrentHashMap<>();
-        GENERATED.set(0);
-        OK.set(0);
-        NOT_OK.set(0);
-        RECOVERED.set(0);
-        ERRORS.set(0);
-        FINALLY_PENDING.set(0);
-        SENT.set(0);
+        saturationSearch = null;
+        nextSmartDriverId = 0;
+        // Contadores a 0 y se descartan los retrasos sin muestrear.
+        METRICS.reset();
+        for (SimulatedSmartDriver.Event_Type type : SimulatedSmartDriver.Event_Type.values()) {
+            TOTAL_DELAYS.put(type, LatencyHistogram.Snapshot.empty());
+        }
+        totalSchedulingLag = LatencyHistogram.Snapshot.empty();
+        engineFallingBehind = false;
         csvEventList = new ArrayList<>();
         csvStatusList = new ArrayList<>();
     }
@@ -1157,12 +1599,26 @@ public class SimulatorController implements Serializable, ISimulatorControllerOb
         }
     }
 
+    /**
+     * Instante actual de la simulación. En el modo 'FAST_FORWARD' es el del
+     * reloj virtual del motor de simulación.
+     *
+     * @return Milisegundos desde 'epoch'.
+     */
+    public static long getSimulationTime() {
+        return simulationEngine.currentTimeMillis();
+    }
+
+    public static boolean isVirtualTime() {
+        return simulationEngine.isVirtualTime();
+    }
+
     public static void smartDriverHasFinished(String id) {
-        LOG.log(Level.FINE, "smartDriverHasFinished() - Ha terminado el SmartDriver con id={0}, quedan {1} restantes", new Object[]{id, threadPool.getQueue().size()});
+        LOG.log(Level.FINE, "smartDriverHasFinished() - Ha terminado el SmartDriver con id={0}, quedan {1} restantes", new Object[]{id, simulationEngine.getActiveSmartDrivers()});
         SimulatedSmartDriver ssd = simulatedSmartDriverHashMap.remove(id);
         if (ssd.getMaxDelay() > maxSmartDriversDelay.get()) {
             maxSmartDriversDelay.set(ssd.getMaxDelay());
-            LOG.log(Level.FINE, "smartDriverHasFinished() - Quedan {0} restantes. Máximo retraso detectado hasta ahora: {0}", new Object[]{threadPool.getQueue().size(), maxSmartDriversDelay.get()});
+            LOG.log(Level.FINE, "smartDriverHasFinished() - Quedan {0} restantes. Máximo retraso detectado hasta ahora: {0}", new Object[]{simulationEngine.getActiveSmartDrivers(), maxSmartDriversDelay.get()});
         }
 
         removetCarMarkerAndCircle(id);
@@ -1173,6 +1629,26 @@ public class SimulatorController implements Serializable, ISimulatorControllerOb
             stopShutdownTimer();
             stopStatusMonitorTimer();
 
+            // Paramos los SmartDrivers, para que no generen eventos que ya no se enviarían.
+            if (simulationEngine != null) {
+                simulationEngine.shutdownNow();
+            }
+
+            if (eventBatcher != null) {
+                // Enviamos los últimos eventos acumulados.
+                eventBatcher.close();
+                eventBatcher = null;
+            }
+
+            if (retryScheduler != null) {
+                // Los envíos que no se hayan podido reintentar se quedan sin enviar.
+                addFinallyPending(retryScheduler.shutdown());
+                retryScheduler = null;
+            }
+
+            // Esperamos el resultado de los últimos envíos, para que cuenten en el resumen y no en la siguiente simulación.
+            closeStreamServerConnections();
+
             if (currentState.equals(State.SIMULATING)) {
                 if (interrupted) {
                     LOG.log(Level.SEVERE, "finishSimulation() - Se fuerza el fin de la simulación. Duración: {0}", DurationFormatUtils.formatDuration((System.currentTimeMillis() - startSimulationTime), "HH:mm:ss", true));
@@ -1180,12 +1656,21 @@ public class SimulatorController implements Serializable, ISimulatorControllerOb
                 }
                 LOG.log(Level.INFO, "finishSimulation() - Se para el consumidor de análisis de vehículos cercanos");
                 surroundingVehiclesConsumer.stopConsumer();
+                // Los retrasos confirmados desde el último muestreo también cuentan en el resumen.
+                for (SimulatedSmartDriver.Event_Type type : SimulatedSmartDriver.Event_Type.values()) {
+                    sampleDelays(type);
+                }
+                sampleSchedulingLag();
+                String delaySummary = getDelaySummary();
+                if (saturationSearch != null) {
+                    delaySummary += saturationSearch.getSummary();
+                }
                 String simulationSummary;
-                if (interrupted || ERRORS.get() > 0 || NOT_OK.get() > 0) {
-                    simulationSummary = MessageFormat.format("RESULTADO DE LA SIMULACION:\n\n-> Servidor de tramas={0}\n\n-> Tramas generadas={1}\n-> Envíos realizados={2}\n-> Oks={3}\n-> NoOks={4}\n-> Errores={5}\n-> Recuperados={6}\n-> No reenviados finalmente={7}\n-> Hilos restantes={8}\n-> Trayectos={9}\n-> Distancia={10}\n-> Instancias SmartDriver por trayecto={11}\n-> Reintentar fallidos={12}\n-> Segundos entre reintentos={13}\n-> Máximo retraso temporal={14}s\n\n", new Object[]{Stream_Server.values()[streamServer.ordinal() % 2].name(), GENERATED, SENT, OK, NOT_OK, ERRORS, RECOVERED, FINALLY_PENDING, threadPool.getQueue().size(), locationLogList.size(), distance, simulatedSmartDrivers, retryOnFail, secondsBetweenRetries, Constants.df2Decimals.format(maxSmartDriversDelay.get() / 1000.0d)});
+                if (interrupted || getCount(Counter_Type.ERRORS) > 0 || getCount(Counter_Type.NOT_OK) > 0) {
+                    simulationSummary = MessageFormat.format("RESULTADO DE LA SIMULACION:\n\n-> Servidor de tramas={0}\n\n-> Tramas generadas={1}\n-> Envíos realizados={2}\n-> Oks={3}\n-> NoOks={4}\n-> Errores={5}\n-> Recuperados={6}\n-> No reenviados finalmente={7}\n-> Hilos restantes={8}\n-> Trayectos={9}\n-> Distancia={10}\n-> Instancias SmartDriver por trayecto={11}\n-> Reintentar fallidos={12}\n-> Segundos entre reintentos={13}\n-> Máximo retraso temporal={14}s\n\n", new Object[]{Stream_Server.values()[streamServer.ordinal() % 2].name(), getCount(Counter_Type.GENERATED), getCount(Counter_Type.SENT), getCount(Counter_Type.OK), getCount(Counter_Type.NOT_OK), getCount(Counter_Type.ERRORS), getCount(Counter_Type.RECOVERED), getCount(Counter_Type.FINALLY_PENDING), simulationEngine.getActiveSmartDrivers(), locationLogList.size(), distance, simulatedSmartDrivers, retryOnFail, secondsBetweenRetries, Constants.df2Decimals.format(maxSmartDriversDelay.get() / 1000.0d)}) + delaySummary;
                     LOG.log(Level.SEVERE, "finishSimulation() - {0}", simulationSummary);
                 } else {
-                    simulationSummary = MessageFormat.format("RESULTADO DE LA SIMULACION:\n\nLos envíos se han realizado correctamente:\n\n-> Servidor de tramas={0}\n\n-> Tramas generadas={1}\n-> Oks={2}\n-> Hilos restantes={3}\n-> Trayectos={4}\n-> Distancia={5}\n-> Instancias SmartDriver por trayecto={6}\n-> Reintentar fallidos={7}\n-> Segundos entre reintentos={8}\n-> Máximo retraso temporal={9}s\n\n", new Object[]{Stream_Server.values()[streamServer.ordinal() % 2].name(), GENERATED, OK, threadPool.getQueue().size(), locationLogList.size(), distance, simulatedSmartDrivers, retryOnFail, secondsBetweenRetries, Constants.df2Decimals.format(maxSmartDriversDelay.get() / 1000.0d)});
+                    simulationSummary = MessageFormat.format("RESULTADO DE LA SIMULACION:\n\nLos envíos se han realizado correctamente:\n\n-> Servidor de tramas={0}\n\n-> Tramas generadas={1}\n-> Oks={2}\n-> Hilos restantes={3}\n-> Trayectos={4}\n-> Distancia={5}\n-> Instancias SmartDriver por trayecto={6}\n-> Reintentar fallidos={7}\n-> Segundos entre reintentos={8}\n-> Máximo retraso temporal={9}s\n\n", new Object[]{Stream_Server.values()[streamServer.ordinal() % 2].name(), getCount(Counter_Type.GENERATED), getCount(Counter_Type.OK), simulationEngine.getActiveSmartDrivers(), locationLogList.size(), distance, simulatedSmartDrivers, retryOnFail, secondsBetweenRetries, Constants.df2Decimals.format(maxSmartDriversDelay.get() / 1000.0d)}) + delaySummary;
                     LOG.log(Level.INFO, "finishSimulation() - {0}", simulationSummary);
                 }
 
@@ -1209,6 +1694,9 @@ public class SimulatorController implements Serializable, ISimulatorControllerOb
         } catch (MessagingException ex) {
             LOG.log(Level.SEVERE, "finishSimulation() - No se ha podido enviar el e-mail con los resultados de la simulación", ex.getCause());
         } finally {
+            // Por si no se han cerrado antes del resumen.
+            closeStreamServerConnections();
+
             if (interrupted) {
                 currentState = State.INTERRUPTED;
             } else {
@@ -1225,47 +1713,134 @@ public class SimulatorController implements Serializable, ISimulatorControllerOb
                 LOG.log(Level.INFO, "finishSimulation() - La siguiente simulación será a las: {0}", Constants.dfISO8601.format(scheduledDate));
                 scheduledSimulation();
             }
+        }
+    }
 
-            if (kafkaProducer != null) {
-                kafkaProducer.flush();
-                kafkaProducer.close();
-                // FIXME: Algunas veces salta una excepción de tipo 'java.lang.InterruptedException'.
-                // Es un 'bug' que aún está en estado aabierto en Kafka.
-                // https://issues.streamsets.com/browse/SDC-4925
-            }
+    /**
+     * Cierra las conexiones con el servidor de tramas, esperando a que se
+     * confirmen los envíos en curso. Los que fallen se cuentan como no
+     * reenviados finalmente, porque ya no hay reintentos.
+     */
+    private void closeStreamServerConnections() {
+        if (kafkaProducerPool != null) {
+            kafkaProducerPool.flush();
+            LOG.log(Level.INFO, "closeStreamServerConnections() - Métricas de los producers de Kafka:\n{0}", kafkaProducerPool.getMetricsSummary());
+            kafkaProducerPool.close();
+            kafkaProducerPool = null;
+        }
+
+        if (ztreamyPublisherPool != null) {
+            // Se espera la respuesta de las últimas peticiones a Ztreamy.
+            ztreamyPublisherPool.close();
+            ztreamyPublisherPool = null;
         }
     }
 
-    public static void increaseGenerated() {
-        GENERATED.incrementAndGet();
+    // Suma en el contador total y en el del servidor de tramas y el tipo de evento indicados.
+    // El servidor lo indica quien hizo el envío, porque 'streamServer' cambia al terminar la simulación y
+    // las respuestas de los últimos envíos pueden llegar después.
+    private static void count(int server, Counter_Type counter, SimulatedSmartDriver.Event_Type type, long amount) {
+        TOTAL_COUNTERS[counter.ordinal()].add(amount);
+        SPLIT_COUNTERS[server][type.ordinal()][counter.ordinal()].add(amount);
     }
 
-    public static void increaseOkSends() {
-        OK.incrementAndGet();
+    private static long getCount(Counter_Type counter) {
+        return TOTAL_COUNTERS[counter.ordinal()].sum();
     }
 
-    public static void increaseNoOkSends() {
-        NOT_OK.incrementAndGet();
+    // Valor del contador para el tipo de evento, en todos los servidores de tramas.
+    private static long getCount(Counter_Type counter, SimulatedSmartDriver.Event_Type type) {
+        long count = 0;
+        for (StripedCounter[][] server : SPLIT_COUNTERS) {
+            count += server[type.ordinal()][counter.ordinal()].sum();
+        }
+        return count;
     }
 
-    public static void addRecovered(int recovered) {
-        RECOVERED.addAndGet(recovered);
+    private static long getFailedCount(SimulatedSmartDriver.Event_Type type) {
+        return getCount(Counter_Type.NOT_OK, type) + getCount(Counter_Type.ERRORS, type);
     }
 
-    public static void increaseErrors() {
-        ERRORS.incrementAndGet();
+    public static void increaseGenerated(int server, SimulatedSmartDriver.Event_Type type) {
+        count(server, Counter_Type.GENERATED, type, 1);
     }
 
-    public static void addFinallyPending(int pending) {
-        FINALLY_PENDING.addAndGet(pending);
+    public static void increaseOkSends(int server, SimulatedSmartDriver.Event_Type type) {
+        count(server, Counter_Type.OK, type, 1);
     }
 
-    public static void increaseSends() {
-        SENT.incrementAndGet();
+    public static void increaseNoOkSends(int server, SimulatedSmartDriver.Event_Type type) {
+        count(server, Counter_Type.NOT_OK, type, 1);
+    }
+
+    public static void addRecovered(int server, SimulatedSmartDriver.Event_Type type, int recovered) {
+        count(server, Counter_Type.RECOVERED, type, recovered);
+    }
+
+    public static void increaseErrors(int server, SimulatedSmartDriver.Event_Type type) {
+        count(server, Counter_Type.ERRORS, type, 1);
+    }
+
+    public static void addFinallyPending(int server, SimulatedSmartDriver.Event_Type type, int pending) {
+        count(server, Counter_Type.FINALLY_PENDING, type, pending);
+    }
+
+    /**
+     * Suma eventos no reenviados de los que no se conoce el tipo, como los
+     * que quedan en el diario de reintentos al terminar la simulación. Sólo
+     * cuentan en el total.
+     *
+     * @param pending Número de eventos no reenviados.
+     */
+    public static void addFinallyPending(int pending) {
+        TOTAL_COUNTERS[Counter_Type.FINALLY_PENDING.ordinal()].add(pending);
+    }
+
+    public static void increaseSends(int server, SimulatedSmartDriver.Event_Type type) {
+        count(server, Counter_Type.SENT, type, 1);
+    }
+
+    /**
+     * Métricas de la simulación, para publicarlas.
+     *
+     * @return Registro de las métricas.
+     */
+    public static MetricsRegistry getMetrics() {
+        return METRICS;
+    }
+
+    /**
+     * Programa el reintento de un envío fallido de un SmartDriver.
+     *
+     * @param server Servidor de tramas del envío: 0 para Kafka y 1 para
+     * Ztreamy.
+     * @param topic 'Topic' de Kafka al que se enviarán los eventos.
+     * @param events Eventos del envío fallido.
+     */
+    public static void scheduleRetry(int server, String topic, ExtendedEvent[] events) {
+        RetryScheduler scheduler = retryScheduler;
+        if (scheduler != null) {
+            scheduler.schedule(topic, events);
+        } else {
+            // La simulación ya ha terminado.
+            addFinallyPending(server, SimulatedSmartDriver.Event_Type.fromTopic(topic), events.length);
+        }
     }
 
     public static void logCurrentStatus() {
-        LOG.log(Level.SEVERE, "logCurrentStatus() - ESTADO ACTUAL: Tramas generadas={0}|Envíos realizados={1}|Oks={2}|NoOks={3}|Errores={4}|Recuperados={5}|No reenviados finalmente={6}|Hilos restantes={7}|Máximo retraso temporal total={8}ms|Retraso temporal actual={9}ms", new Object[]{GENERATED.get(), SENT.get(), OK.get(), NOT_OK.get(), ERRORS.get(), RECOVERED.get(), FINALLY_PENDING.get(), threadPool.getQueue().size(), maxSmartDriversDelay.get(), currentSmartDriversDelay.get()});
+        LOG.log(Level.SEVERE, "logCurrentStatus() - ESTADO ACTUAL: Tramas generadas={0}|Envíos realizados={1}|Oks={2}|NoOks={3}|Errores={4}|Recuperados={5}|No reenviados finalmente={6}|Hilos restantes={7}|Máximo retraso temporal total={8}ms|Retraso temporal actual={9}ms", new Object[]{getCount(Counter_Type.GENERATED), getCount(Counter_Type.SENT), getCount(Counter_Type.OK), getCount(Counter_Type.NOT_OK), getCount(Counter_Type.ERRORS), getCount(Counter_Type.RECOVERED), getCount(Counter_Type.FINALLY_PENDING), simulationEngine.getActiveSmartDrivers(), maxSmartDriversDelay.get(), currentSmartDriversDelay.get()});
+        RetryScheduler scheduler = retryScheduler;
+        if (scheduler != null) {
+            LOG.log(Level.SEVERE, "logCurrentStatus() - Eventos pendientes de reintento: {0} (guardados en disco: {1})", new Object[]{scheduler.getBacklog(), scheduler.getSpilled()});
+        }
+        KafkaProducerPool pool = kafkaProducerPool;
+        if (pool != null) {
+            LOG.log(Level.SEVERE, "logCurrentStatus() - Métricas de los producers de Kafka:\n{0}", pool.getMetricsSummary());
+        }
+        ZtreamyPublisherPool ztreamyPool = ztreamyPublisherPool;
+        if (ztreamyPool != null) {
+            LOG.log(Level.SEVERE, "logCurrentStatus() - Peticiones a Ztreamy en curso: {0}", ztreamyPool.getInFlight());
+        }
     }
 
     public String getEmail() {
@@ -1476,9 +2051,6 @@ public class SimulatorController implements Serializable, ISimulatorControllerOb
             if (streamServer.ordinal() > 1) {
                 infiniteSimulation = false;
             }
-            if (streamServer.ordinal() % 2 != 0) {
-                kafkaProducerPerSmartDriver = false;
-            }
         } catch (Exception ex) {
             // Si no fuera un valor válido, establecemos un valor por defecto.
             streamServer = Stream_Server.KAFKA;
@@ -1568,14 +2140,6 @@ public class SimulatorController implements Serializable, ISimulatorControllerOb
         infiniteSimulation = is;
     }
 
-    public boolean isKafkaProducerPerSmartDriver() {
-        return kafkaProducerPerSmartDriver;
-    }
-
-    public void setKafkaProducerPerSmartDriver(boolean kppsd) {
-        kafkaProducerPerSmartDriver = kppsd;
-    }
-
     public boolean isRandomizeEachSmartDriverBehaviour() {
         return randomizeEachSmartDriverBehaviour;
     }
@@ -1584,26 +2148,88 @@ public class SimulatorController implements Serializable, ISimulatorControllerOb
         randomizeEachSmartDriverBehaviour = r;
     }
 
-    public static void setCurrentSmartDriversDelay(long c) {
+    private static void setCurrentSmartDriversDelay(long c) {
         if (c > currentSmartDriversDelay.get()) {
             currentSmartDriversDelay.set(c);
         }
     }
 
-    public int getRetries() {
-        return retries;
+    /**
+     * Registra el retraso de un envío confirmado por el servidor de tramas,
+     * desde que se envió hasta que se recibió la confirmación.
+     *
+     * @param type Tipo de evento enviado.
+     * @param delay Retraso en milisegundos.
+     */
+    public static void recordDelay(SimulatedSmartDriver.Event_Type type, long delay) {
+        setCurrentSmartDriversDelay(delay);
+        DELAY_HISTOGRAMS.get(type).record(delay);
+    }
+
+    private static String getSendDurationMetricName(int path, SimulatedSmartDriver.Event_Type type) {
+        return "sendDurationUs{path=" + SEND_PATHS[path] + ",type=" + type.name() + "}";
+    }
+
+    /**
+     * Registra lo que ha tardado un SmartDriver en hacer un envío, sin
+     * esperar la confirmación. Así se distingue la sobrecarga del simulador
+     * de la lentitud del servidor de tramas.
+     *
+     * @param type Tipo de evento enviado.
+     * @param nanos Duración del envío en nanosegundos.
+     */
+    public static void recordSendDuration(SimulatedSmartDriver.Event_Type type, long nanos) {
+        int path = eventBatcher != null ? 2 : streamServer.ordinal() % 2;
+        SEND_DURATIONS[path][type.ordinal()].record(TimeUnit.NANOSECONDS.toMicros(nanos));
+    }
+
+    // Avisa cuando el motor empieza a quedarse atrás respecto al reloj del sistema y cuando se recupera.
+    private static void checkEngineFallingBehind(long behind) {
+        boolean fallingBehind = behind >= ENGINE_BEHIND_ALERT;
+        if (fallingBehind != engineFallingBehind) {
+            engineFallingBehind = fallingBehind;
+            if (fallingBehind) {
+                LOG.log(Level.WARNING, "checkEngineFallingBehind() - El motor de simulación va {0} ms por detrás del reloj del sistema. El simulador está sobrecargado", behind);
+            } else {
+                LOG.log(Level.INFO, "checkEngineFallingBehind() - El motor de simulación vuelve a ir al día");
+            }
+        }
     }
 
-    public void setRetries(int r) {
-        retries = r;
+    private static String getDelayMetricName(SimulatedSmartDriver.Event_Type type) {
+        return "delayMs{type=" + type.name() + "}";
+    }
+
+    // Obtiene los retrasos del tipo de evento desde el anterior muestreo y los añade a los de toda la simulación.
+    private static synchronized LatencyHistogram.Snapshot sampleDelays(SimulatedSmartDriver.Event_Type type) {
+        LatencyHistogram.Snapshot interval = METRICS.sampleHistogram(getDelayMetricName(type));
+        TOTAL_DELAYS.put(type, TOTAL_DELAYS.get(type).merge(interval));
+        return interval;
     }
 
-    public static long getNextKafkaRecordId() {
-        return kafkaRecordId.getAndIncrement();
+    // Obtiene los retrasos de planificación desde el anterior muestreo y los añade a los de toda la simulación.
+    private static synchronized LatencyHistogram.Snapshot sampleSchedulingLag() {
+        LatencyHistogram.Snapshot interval = METRICS.sampleHistogram(SCHEDULING_LAG_METRIC_NAME);
+        totalSchedulingLag = totalSchedulingLag.merge(interval);
+        return interval;
     }
 
-    public static synchronized KafkaProducer<Long, String> getKafkaProducer() {
-        return kafkaProducer;
+    private static synchronized String getDelaySummary() {
+        StringBuilder sb = new StringBuilder(MessageFormat.format("RETRASO DE LOS ENVIOS CONFIRMADOS (medido desde {0}):\n\n", OPEN_LOOP_LOAD ? "el instante previsto de cada envío" : "el envío"));
+        for (Map.Entry<SimulatedSmartDriver.Event_Type, LatencyHistogram.Snapshot> entry : TOTAL_DELAYS.entrySet()) {
+            LatencyHistogram.Snapshot delays = entry.getValue();
+            sb.append(MessageFormat.format("-> {0}: Envíos={1}|p50={2}ms|p95={3}ms|p99={4}ms|p99.9={5}ms|Máximo={6}ms\n", new Object[]{entry.getKey().name(), delays.getCount(), delays.getValueAtPercentile(50.0d), delays.getValueAtPercentile(95.0d), delays.getValueAtPercentile(99.0d), delays.getValueAtPercentile(99.9d), delays.getMax()}));
+        }
+        sb.append(MessageFormat.format("\nRETRASO DE PLANIFICACION DE LOS SMARTDRIVERS:\n\n-> Ejecuciones={0}|p50={1}ms|p95={2}ms|p99={3}ms|p99.9={4}ms|Máximo={5}ms\n", new Object[]{totalSchedulingLag.getCount(), totalSchedulingLag.getValueAtPercentile(50.0d), totalSchedulingLag.getValueAtPercentile(95.0d), totalSchedulingLag.getValueAtPercentile(99.0d), totalSchedulingLag.getValueAtPercentile(99.9d), totalSchedulingLag.getMax()}));
+        return sb.append("\n").toString();
+    }
+
+    public int getRetries() {
+        return retries;
+    }
+
+    public void setRetries(int r) {
+        retries = r;
     }
 
     class EmergencyShutdown implements Runnable {
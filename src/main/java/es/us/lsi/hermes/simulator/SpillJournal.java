@@ -0,0 +1,253 @@
+package es.us.lsi.hermes.simulator;
+
+import es.us.lsi.hermes.simulator.kafka.ExtendedEventDeserializer;
+import es.us.lsi.hermes.simulator.kafka.ExtendedEventSerializer;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Diario en disco de los reintentos que no caben en memoria. Los reintentos se
+ * añaden al final de ficheros de segmento proyectados en memoria y se leen en
+ * el mismo orden en el que se escribieron.
+ *
+ * Un segmento se borra cuando ya se han leído todos sus reintentos y todos
+ * ellos se han resuelto: enviados, descartados o vueltos a guardar.
+ *
+ * Formato de cada registro: longitud total (int), intento (int), instante del
+ * reintento según 'System.nanoTime()' (long), 'topic' (longitud como short y
+ * bytes UTF-8) y eventos en el formato binario de 'ExtendedEventSerializer'.
+ * El diario sólo es válido durante la simulación que lo crea.
+ */
+final class SpillJournal {
+
+    private static final Logger LOG = Logger.getLogger(SpillJournal.class.getName());
+
+    // Longitud de la cabecera fija de un registro: longitud, intento, instante y longitud del 'topic'.
+    private static final int RECORD_HEADER_SIZE = 4 + 4 + 8 + 2;
+
+    private final Path directory;
+    private final int segmentSize;
+    private final ExtendedEventSerializer serializer;
+    private final ExtendedEventDeserializer deserializer;
+
+    // Segmentos aún no borrados, en el orden en el que se crearon. El último es en el que se escribe.
+    private final ArrayDeque<Segment> segments;
+    private int nextSegmentId;
+    // Número de eventos guardados y aún no leídos.
+    private int events;
+
+    /**
+     * Constructor del diario.
+     *
+     * @param directory Directorio en el que se crearán los segmentos. Se crea
+     * si no existe.
+     * @param segmentSize Tamaño en bytes de cada segmento.
+     */
+    SpillJournal(Path directory, int segmentSize) {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.serializer = new ExtendedEventSerializer(ExtendedEventSerializer.Format.BINARY);
+        this.deserializer = new ExtendedEventDeserializer();
+        this.segments = new ArrayDeque<>();
+        this.nextSegmentId = 0;
+        this.events = 0;
+    }
+
+    /**
+     * Guarda un reintento en el diario.
+     *
+     * @return 'false' si no se ha podido guardar.
+     */
+    synchronized boolean append(String topic, ExtendedEvent[] retryEvents, int attempt, long deadline) {
+        byte[] topicBytes = topic.getBytes(StandardCharsets.UTF_8);
+        byte[] payload;
+        try {
+            payload = serializer.serialize(topic, retryEvents);
+        } catch (RuntimeException ex) {
+            LOG.log(Level.SEVERE, "append() - No se han podido serializar los eventos para guardarlos en disco", ex);
+            return false;
+        }
+        int length = RECORD_HEADER_SIZE + topicBytes.length + payload.length;
+        if (length > segmentSize) {
+            LOG.log(Level.WARNING, "append() - Los eventos ocupan más que un segmento del diario: {0} bytes", length);
+            return false;
+        }
+
+        try {
+            Segment segment = segments.peekLast();
+            if (segment == null || segment.buffer.capacity() - segment.writePosition < length) {
+                if (segment != null) {
+                    segment.sealed = true;
+                    releaseIfDone(segment);
+                }
+                segment = createSegment();
+                segments.addLast(segment);
+            }
+
+            MappedByteBuffer buffer = segment.buffer;
+            buffer.position(segment.writePosition);
+            buffer.putInt(length);
+            buffer.putInt(attempt);
+            buffer.putLong(deadline);
+            buffer.putShort((short) topicBytes.length);
+            buffer.put(topicBytes);
+            buffer.put(payload);
+            segment.writePosition += length;
+            segment.outstanding++;
+            events += retryEvents.length;
+            return true;
+        } catch (IOException ex) {
+            LOG.log(Level.SEVERE, "append() - No se ha podido crear un segmento del diario de reintentos", ex);
+            return false;
+        }
+    }
+
+    /**
+     * Lee el siguiente reintento guardado.
+     *
+     * @return Reintento leído o nulo si no hay ninguno.
+     */
+    synchronized Record next() {
+        for (Segment segment : segments) {
+            if (segment.readPosition < segment.writePosition) {
+                MappedByteBuffer buffer = segment.buffer;
+                buffer.position(segment.readPosition);
+                int length = buffer.getInt();
+                int attempt = buffer.getInt();
+                long deadline = buffer.getLong();
+                byte[] topicBytes = new byte[buffer.getShort()];
+                buffer.get(topicBytes);
+                byte[] payload = new byte[length - RECORD_HEADER_SIZE - topicBytes.length];
+                buffer.get(payload);
+                segment.readPosition += length;
+
+                String topic = new String(topicBytes, StandardCharsets.UTF_8);
+                ExtendedEvent[] retryEvents = deserializer.deserialize(topic, payload);
+                events -= retryEvents.length;
+                return new Record(topic, retryEvents, attempt, deadline, segment);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Indica que un reintento leído del diario ya se ha resuelto, para poder
+     * borrar su segmento cuando se hayan resuelto todos.
+     */
+    synchronized void release(Segment segment) {
+        segment.outstanding--;
+        releaseIfDone(segment);
+    }
+
+    synchronized boolean isEmpty() {
+        return events == 0;
+    }
+
+    /**
+     * Número de eventos guardados y pendientes de leer.
+     */
+    synchronized int getEvents() {
+        return events;
+    }
+
+    /**
+     * Borra todos los segmentos.
+     *
+     * @return Número de eventos que quedaban sin leer.
+     */
+    synchronized int close() {
+        int pending = events;
+        for (Segment segment : segments) {
+            delete(segment);
+        }
+        segments.clear();
+        events = 0;
+        try {
+            Files.deleteIfExists(directory);
+        } catch (IOException ex) {
+            LOG.log(Level.WARNING, "close() - No se ha podido borrar el directorio del diario de reintentos: {0}", directory);
+        }
+        return pending;
+    }
+
+    private Segment createSegment() throws IOException {
+        Files.createDirectories(directory);
+        File file = directory.resolve("retries-" + nextSegmentId++ + ".seg").toFile();
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            // La proyección sigue siendo válida aunque se cierre el fichero.
+            MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+            LOG.log(Level.INFO, "createSegment() - Nuevo segmento del diario de reintentos: {0}", file.getName());
+            return new Segment(file, buffer);
+        }
+    }
+
+    private void releaseIfDone(Segment segment) {
+        if (segment.sealed && segment.outstanding == 0 && segment.readPosition == segment.writePosition && !segment.deleted) {
+            segments.remove(segment);
+            delete(segment);
+        }
+    }
+
+    private static void delete(Segment segment) {
+        segment.deleted = true;
+        // La memoria proyectada se libera cuando el 'buffer' deje de estar referenciado.
+        if (!segment.file.delete()) {
+            LOG.log(Level.WARNING, "delete() - No se ha podido borrar el segmento del diario de reintentos: {0}", segment.file.getName());
+        }
+    }
+
+    /**
+     * Fichero de segmento del diario.
+     */
+    static final class Segment {
+
+        private final File file;
+        private final MappedByteBuffer buffer;
+        private int writePosition;
+        private int readPosition;
+        // Reintentos guardados en el segmento que aún no se han resuelto.
+        private int outstanding;
+        // Indicará si ya no se escribe en él.
+        private boolean sealed;
+        private boolean deleted;
+
+        Segment(File file, MappedByteBuffer buffer) {
+            this.file = file;
+            this.buffer = buffer;
+            this.writePosition = 0;
+            this.readPosition = 0;
+            this.outstanding = 0;
+            this.sealed = false;
+            this.deleted = false;
+        }
+    }
+
+    /**
+     * Reintento leído del diario.
+     */
+    static final class Record {
+
+        final String topic;
+        final ExtendedEvent[] events;
+        final int attempt;
+        final long deadline;
+        final Segment segment;
+
+        Record(String topic, ExtendedEvent[] events, int attempt, long deadline, Segment segment) {
+            this.topic = topic;
+            this.events = events;
+            this.attempt = attempt;
+            this.deadline = deadline;
+            this.segment = segment;
+        }
+    }
+}
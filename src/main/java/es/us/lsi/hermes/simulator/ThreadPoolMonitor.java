@@ -10,7 +10,7 @@ public class ThreadPoolMonitor implements Runnable {
 
     private final ThreadPoolExecutor executor;
     private final int seconds;
-    private boolean run = true;
+    private volatile boolean run = true;
 
     public ThreadPoolMonitor(ThreadPoolExecutor executor, int delay) {
         this.executor = executor;
@@ -17,7 +17,7 @@ public class TrackRequestWebService implements ServletContextListener {
 
     private static final Logger LOG = Logger.getLogger(TrackRequestWebService.class.getName());
 
-    private static ThreadPoolExecutor executor;
+    private static volatile ThreadPoolExecutor executor;
     private static ThreadPoolMonitor monitor;
 
     @Override
@@ -55,6 +55,22 @@ public class TrackRequestWebService implements ServletContextListener {
         monitorThread.start();
     }
 
+    /**
+     * Número de tareas en espera de un hilo libre del 'pool'.
+     */
+    public static int getQueuedTasks() {
+        ThreadPoolExecutor e = executor;
+        return e != null ? e.getQueue().size() : 0;
+    }
+
+    /**
+     * Número de hilos del 'pool' que están ejecutando una tarea.
+     */
+    public static int getActiveTasks() {
+        ThreadPoolExecutor e = executor;
+        return e != null ? e.getActiveCount() : 0;
+    }
+
     public static synchronized void shutdown() {
         if (executor != null) {
             executor.shutdown();
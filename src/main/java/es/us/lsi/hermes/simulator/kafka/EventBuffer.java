@@ -0,0 +1,218 @@
+package es.us.lsi.hermes.simulator.kafka;
+
+import java.util.Arrays;
+
+/**
+ * 'Buffer' de bytes reutilizable en el que se serializan los eventos antes de
+ * entregarlos a Kafka. Cada hilo usa siempre el mismo, de modo que sólo se
+ * reserva memoria para la copia final del tamaño exacto.
+ */
+final class EventBuffer {
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    // Si algún evento lo hace crecer por encima de este tamaño, se vuelve a reducir para no retener memoria.
+    private static final int MAX_RETAINED_CAPACITY = 1 << 20;
+    private static final int INITIAL_CAPACITY = 4096;
+
+    private byte[] bytes;
+    private int size;
+
+    EventBuffer() {
+        this.bytes = new byte[INITIAL_CAPACITY];
+        this.size = 0;
+    }
+
+    void reset() {
+        if (bytes.length > MAX_RETAINED_CAPACITY) {
+            bytes = new byte[INITIAL_CAPACITY];
+        }
+        size = 0;
+    }
+
+    int size() {
+        return size;
+    }
+
+    byte[] toByteArray() {
+        return Arrays.copyOf(bytes, size);
+    }
+
+    private void ensureCapacity(int extra) {
+        if (size + extra > bytes.length) {
+            bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, size + extra));
+        }
+    }
+
+    void writeByte(int b) {
+        ensureCapacity(1);
+        bytes[size++] = (byte) b;
+    }
+
+    /**
+     * Entero sin signo en formato 'varint': 7 bits por byte, con el bit más
+     * alto indicando si siguen más bytes.
+     */
+    void writeVarInt(int value) {
+        ensureCapacity(5);
+        while ((value & ~0x7F) != 0) {
+            bytes[size++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        bytes[size++] = (byte) value;
+    }
+
+    /**
+     * Entero con signo en formato 'varint', con codificación 'zigzag' para que
+     * los valores negativos pequeños también ocupen poco.
+     */
+    void writeSignedVarInt(int value) {
+        writeVarInt((value << 1) ^ (value >> 31));
+    }
+
+    void writeDouble(double value) {
+        long bits = Double.doubleToLongBits(value);
+        ensureCapacity(8);
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            bytes[size++] = (byte) (bits >>> shift);
+        }
+    }
+
+    /**
+     * Cadena precedida de su longitud en bytes más uno. La longitud 0 indica
+     * una cadena nula.
+     */
+    void writeString(String value) {
+        if (value == null) {
+            writeVarInt(0);
+            return;
+        }
+        writeVarInt(utf8Length(value) + 1);
+        writeUtf8(value);
+    }
+
+    /**
+     * Texto que se sabe que sólo contiene caracteres ASCII, como los nombres
+     * de los atributos en JSON.
+     */
+    void writeAscii(String value) {
+        int length = value.length();
+        ensureCapacity(length);
+        for (int i = 0; i < length; i++) {
+            bytes[size++] = (byte) value.charAt(i);
+        }
+    }
+
+    void writeUtf8(String value) {
+        writeUtf8(value, 0, value.length());
+    }
+
+    private void writeUtf8(String value, int from, int to) {
+        ensureCapacity((to - from) * 3);
+        for (int i = from; i < to; i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                bytes[size++] = (byte) c;
+            } else if (c < 0x800) {
+                bytes[size++] = (byte) (0xC0 | (c >> 6));
+                bytes[size++] = (byte) (0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < to && Character.isLowSurrogate(value.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                bytes[size++] = (byte) (0xF0 | (codePoint >> 18));
+                bytes[size++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+                bytes[size++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+                bytes[size++] = (byte) (0x80 | (codePoint & 0x3F));
+            } else if (Character.isSurrogate(c)) {
+                // Sustituto suelto: se codifica como '?', igual que 'String.getBytes()'.
+                bytes[size++] = (byte) '?';
+            } else {
+                bytes[size++] = (byte) (0xE0 | (c >> 12));
+                bytes[size++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                bytes[size++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+    }
+
+    private static int utf8Length(String value) {
+        int length = value.length();
+        int bytesLength = 0;
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                bytesLength++;
+            } else if (c < 0x800) {
+                bytesLength += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(value.charAt(i + 1))) {
+                bytesLength += 4;
+                i++;
+            } else if (Character.isSurrogate(c)) {
+                bytesLength++;
+            } else {
+                bytesLength += 3;
+            }
+        }
+        return bytesLength;
+    }
+
+    /**
+     * Cadena JSON entre comillas, con los mismos caracteres escapados que usa
+     * GSON por defecto (incluidos los de HTML), para que el resultado sea
+     * idéntico.
+     */
+    void writeJsonString(String value) {
+        writeByte('"');
+        int length = value.length();
+        int start = 0;
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            String replacement;
+            if (c < 0x20 || c == '<' || c == '>' || c == '&' || c == '=' || c == '\'' || c == '\u2028' || c == '\u2029') {
+                replacement = null;
+            } else if (c == '"') {
+                replacement = "\\\"";
+            } else if (c == '\\') {
+                replacement = "\\\\";
+            } else {
+                continue;
+            }
+            writeUtf8(value, start, i);
+            if (replacement != null) {
+                writeAscii(replacement);
+            } else {
+                writeJsonEscapedChar(c);
+            }
+            start = i + 1;
+        }
+        writeUtf8(value, start, length);
+        writeByte('"');
+    }
+
+    private void writeJsonEscapedChar(char c) {
+        switch (c) {
+            case '\t':
+                writeAscii("\\t");
+                break;
+            case '\b':
+                writeAscii("\\b");
+                break;
+            case '\n':
+                writeAscii("\\n");
+                break;
+            case '\r':
+                writeAscii("\\r");
+                break;
+            case '\f':
+                writeAscii("\\f");
+                break;
+            default:
+                ensureCapacity(6);
+                bytes[size++] = '\\';
+                bytes[size++] = 'u';
+                bytes[size++] = (byte) HEX_DIGITS[(c >> 12) & 0xF];
+                bytes[size++] = (byte) HEX_DIGITS[(c >> 8) & 0xF];
+                bytes[size++] = (byte) HEX_DIGITS[(c >> 4) & 0xF];
+                bytes[size++] = (byte) HEX_DIGITS[c & 0xF];
+                break;
+        }
+    }
+}
@@ -0,0 +1,290 @@
+package es.us.lsi.hermes.simulator.kafka;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import es.us.lsi.hermes.simulator.ExtendedEvent;
+import es.us.lsi.hermes.smartDriver.DataSection;
+import es.us.lsi.hermes.smartDriver.Location;
+import es.us.lsi.hermes.smartDriver.RoadSections;
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+import java.util.HashMap;
+import java.util.Map;
+import org.apache.kafka.common.errors.SerializationException;
+import org.apache.kafka.common.serialization.Deserializer;
+
+/**
+ * Deserializador de Kafka de los eventos escritos por
+ * 'ExtendedEventSerializer', en cualquiera de sus dos formatos. Se usa para
+ * comprobar los eventos enviados y para los consumidores que quieran leer el
+ * formato binario.
+ */
+public class ExtendedEventDeserializer implements Deserializer<ExtendedEvent[]> {
+
+    @Override
+    public void configure(Map<String, ?> configs, boolean isKey) {
+    }
+
+    @Override
+    public ExtendedEvent[] deserialize(String topic, byte[] data) {
+        if (data == null) {
+            return null;
+        }
+        if (data.length == 0) {
+            throw new SerializationException("Evento vacío en el topic " + topic);
+        }
+
+        try {
+            if (data[0] == ExtendedEventSerializer.BINARY_FORMAT_VERSION) {
+                return readBinary(new Reader(data));
+            }
+            return readJson(new JsonParser().parse(new String(data, StandardCharsets.UTF_8)));
+        } catch (RuntimeException ex) {
+            throw new SerializationException("No se ha podido deserializar el evento del topic " + topic, ex);
+        }
+    }
+
+    @Override
+    public void close() {
+    }
+
+    ////////////
+    // BINARY //
+    ////////////
+    private static ExtendedEvent[] readBinary(Reader reader) {
+        reader.readByte();
+        ExtendedEvent[] events = new ExtendedEvent[reader.readVarInt()];
+        for (int i = 0; i < events.length; i++) {
+            String eventId = reader.readString();
+            String sourceId = reader.readString();
+            String syntax = reader.readString();
+            String timestamp = reader.readString();
+            String applicationId = reader.readString();
+            String eventType = reader.readString();
+            int retries = reader.readSignedVarInt();
+
+            HashMap<String, Object> body = null;
+            int bodySize = reader.readVarInt();
+            if (bodySize > 0) {
+                body = new HashMap<>();
+                for (int j = 0; j < bodySize - 1; j++) {
+                    String key = reader.readString();
+                    int type = reader.readByte();
+                    switch (type) {
+                        case ExtendedEventSerializer.BODY_TYPE_NULL:
+                            body.put(key, null);
+                            break;
+                        case ExtendedEventSerializer.BODY_TYPE_LOCATION:
+                            body.put(key, readLocation(reader));
+                            break;
+                        case ExtendedEventSerializer.BODY_TYPE_DATA_SECTION:
+                            body.put(key, readDataSection(reader));
+                            break;
+                        case ExtendedEventSerializer.BODY_TYPE_JSON:
+                            body.put(key, ExtendedEventSerializer.GSON.fromJson(reader.readString(), Object.class));
+                            break;
+                        default:
+                            throw new IllegalArgumentException("Tipo de cuerpo desconocido: " + type);
+                    }
+                }
+            }
+
+            events[i] = new ExtendedEvent(eventId, sourceId, syntax, applicationId, eventType, body, retries, timestamp);
+        }
+        return events;
+    }
+
+    private static Location readLocation(Reader reader) {
+        Location location = new Location();
+        location.setTimeStamp(reader.readString());
+        int mask = reader.readVarInt();
+        location.setLongitude(reader.readDouble(mask, 0));
+        location.setScore(reader.readInteger(mask, 1));
+        location.setLatitude(reader.readDouble(mask, 2));
+        location.setSpeed(reader.readDouble(mask, 3));
+        location.setAccuracy(reader.readInteger(mask, 4));
+        return location;
+    }
+
+    private static DataSection readDataSection(Reader reader) {
+        DataSection dataSection = new DataSection();
+        int mask = reader.readVarInt();
+        dataSection.setMedianSpeed(reader.readDouble(mask, 0));
+        dataSection.setStandardDeviationSpeed(reader.readDouble(mask, 1));
+        dataSection.setAverageRR(reader.readDouble(mask, 2));
+        dataSection.setAverageHeartRate(reader.readDouble(mask, 3));
+        dataSection.setStandardDeviationRR(reader.readDouble(mask, 4));
+        dataSection.setAverageDeceleration(reader.readDouble(mask, 5));
+        dataSection.setNumHighDecelerations(reader.readInteger(mask, 6));
+        dataSection.setAverageAcceleration(reader.readDouble(mask, 7));
+        dataSection.setMaxSpeed(reader.readDouble(mask, 8));
+        dataSection.setNumHighAccelerations(reader.readInteger(mask, 9));
+        dataSection.setPke(reader.readDouble(mask, 10));
+        dataSection.setStandardDeviationHeartRate(reader.readDouble(mask, 11));
+        dataSection.setAverageSpeed(reader.readDouble(mask, 12));
+        dataSection.setMinSpeed(reader.readDouble(mask, 13));
+
+        int roadSectionsSize = reader.readVarInt();
+        if (roadSectionsSize == 0) {
+            dataSection.setRoadSection(null);
+        } else {
+            RoadSections.Builder roadSections = new RoadSections.Builder(roadSectionsSize - 1);
+            for (int i = 0; i < roadSectionsSize - 1; i++) {
+                long time = parseTimeStamp(reader.readString());
+                int roadSectionMask = reader.readVarInt();
+                if (roadSectionMask != ExtendedEventSerializer.ROAD_SECTION_MASK) {
+                    throw new IllegalArgumentException("Tramo incompleto en el 'Data Section'");
+                }
+                double latitude = reader.readDouble();
+                double longitude = reader.readDouble();
+                double speed = reader.readDouble();
+                int accuracy = reader.readSignedVarInt();
+                // Los intervalos RR van aparte, en 'rrSection'.
+                roadSections.add(time, latitude, longitude, speed, accuracy, 0);
+            }
+            dataSection.setRoadSection(roadSections.build());
+        }
+
+        int rrSectionSize = reader.readVarInt();
+        if (rrSectionSize == 0) {
+            dataSection.setRrSection(null);
+        } else {
+            int[] rrSection = new int[rrSectionSize - 1];
+            for (int i = 0; i < rrSection.length; i++) {
+                rrSection[i] = reader.readSignedVarInt();
+            }
+            dataSection.setRrSection(rrSection);
+        }
+        return dataSection;
+    }
+
+    //////////
+    // JSON //
+    //////////
+    private static ExtendedEvent[] readJson(JsonElement json) {
+        if (json.isJsonArray()) {
+            JsonArray array = json.getAsJsonArray();
+            ExtendedEvent[] events = new ExtendedEvent[array.size()];
+            for (int i = 0; i < events.length; i++) {
+                events[i] = readJsonEvent(array.get(i));
+            }
+            return events;
+        }
+        return new ExtendedEvent[]{readJsonEvent(json)};
+    }
+
+    private static ExtendedEvent readJsonEvent(JsonElement json) {
+        if (json.isJsonNull()) {
+            return null;
+        }
+        JsonObject object = json.getAsJsonObject();
+
+        HashMap<String, Object> body = null;
+        if (object.has("body")) {
+            body = new HashMap<>();
+            for (Map.Entry<String, JsonElement> entry : object.getAsJsonObject("body").entrySet()) {
+                Class<?> type;
+                switch (entry.getKey()) {
+                    case ExtendedEventSerializer.BODY_LOCATION:
+                        type = Location.class;
+                        break;
+                    case ExtendedEventSerializer.BODY_DATA_SECTION:
+                        type = DataSection.class;
+                        break;
+                    default:
+                        type = Object.class;
+                        break;
+                }
+                body.put(entry.getKey(), ExtendedEventSerializer.GSON.fromJson(entry.getValue(), type));
+            }
+        }
+
+        return new ExtendedEvent(getString(object, "eventId"), getString(object, "sourceId"), getString(object, "syntax"), getString(object, "applicationId"), getString(object, "eventType"), body, object.has("retries") ? object.get("retries").getAsInt() : 0, getString(object, "timestamp"));
+    }
+
+    private static long parseTimeStamp(String timeStamp) {
+        if (timeStamp == null) {
+            throw new IllegalArgumentException("Tramo sin fecha en el 'Data Section'");
+        }
+        try {
+            return RoadSections.parseTimeStamp(timeStamp);
+        } catch (ParseException ex) {
+            throw new IllegalArgumentException("Fecha de tramo no válida: " + timeStamp, ex);
+        }
+    }
+
+    private static String getString(JsonObject object, String name) {
+        JsonElement element = object.get(name);
+        return element == null || element.isJsonNull() ? null : element.getAsString();
+    }
+
+    /**
+     * Lectura secuencial de los datos en formato binario.
+     */
+    private static final class Reader {
+
+        private final byte[] data;
+        private int position;
+
+        Reader(byte[] data) {
+            this.data = data;
+            this.position = 0;
+        }
+
+        int readByte() {
+            if (position >= data.length) {
+                throw new IllegalArgumentException("Fin de datos inesperado");
+            }
+            return data[position++] & 0xFF;
+        }
+
+        int readVarInt() {
+            int value = 0;
+            for (int shift = 0; shift < 35; shift += 7) {
+                int b = readByte();
+                value |= (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IllegalArgumentException("Entero 'varint' mal formado");
+        }
+
+        int readSignedVarInt() {
+            int value = readVarInt();
+            return (value >>> 1) ^ -(value & 1);
+        }
+
+        double readDouble() {
+            long bits = 0;
+            for (int i = 0; i < 8; i++) {
+                bits = (bits << 8) | readByte();
+            }
+            return Double.longBitsToDouble(bits);
+        }
+
+        Double readDouble(int mask, int bit) {
+            return (mask & (1 << bit)) != 0 ? readDouble() : null;
+        }
+
+        Integer readInteger(int mask, int bit) {
+            return (mask & (1 << bit)) != 0 ? readSignedVarInt() : null;
+        }
+
+        String readString() {
+            int length = readVarInt();
+            if (length == 0) {
+                return null;
+            }
+            length--;
+            if (length > data.length - position) {
+                throw new IllegalArgumentException("Fin de datos inesperado");
+            }
+            String value = new String(data, position, length, StandardCharsets.UTF_8);
+            position += length;
+            return value;
+        }
+    }
+}
@@ -0,0 +1,459 @@
+package es.us.lsi.hermes.simulator.kafka;
+
+import com.google.gson.Gson;
+import es.us.lsi.hermes.simulator.ExtendedEvent;
+import es.us.lsi.hermes.smartDriver.DataSection;
+import es.us.lsi.hermes.smartDriver.Location;
+import es.us.lsi.hermes.smartDriver.RoadSections;
+import java.util.Map;
+import org.apache.kafka.common.errors.SerializationException;
+import org.apache.kafka.common.serialization.Serializer;
+
+/**
+ * Serializador de Kafka para los eventos de los SmartDrivers. Escribe
+ * directamente los datos de 'Vehicle Location' y 'Data Section' en un 'buffer'
+ * reutilizable por cada hilo, sin pasar por una cadena intermedia ni usar
+ * reflexión. Admite dos formatos:
+ *
+ * - JSON: el mismo que generaba GSON a partir del evento, para los
+ * consumidores que esperan JSON. Un único evento se escribe como objeto y
+ * varios como 'array'.
+ *
+ * - BINARY: formato compacto propio, que se lee con
+ * 'ExtendedEventDeserializer'.
+ */
+public class ExtendedEventSerializer implements Serializer<ExtendedEvent[]> {
+
+    public static enum Format {
+        JSON, BINARY
+    }
+
+    // Propiedad para indicar el formato cuando Kafka crea el serializador a partir de su nombre de clase.
+    public static final String FORMAT_CONFIG = "value.serializer.format";
+
+    // Claves del cuerpo de los eventos que tienen una serialización específica.
+    public static final String BODY_LOCATION = "Location";
+    public static final String BODY_DATA_SECTION = "Data Section";
+
+    // Primer byte del formato binario. No puede confundirse con el inicio de un JSON ('{' o '[').
+    static final int BINARY_FORMAT_VERSION = 1;
+
+    // Tipos de valor del cuerpo en el formato binario.
+    static final int BODY_TYPE_NULL = 0;
+    static final int BODY_TYPE_LOCATION = 1;
+    static final int BODY_TYPE_DATA_SECTION = 2;
+    static final int BODY_TYPE_JSON = 3;
+
+    // Máscara de presencia de un tramo: latitud, longitud, velocidad y precisión.
+    static final int ROAD_SECTION_MASK = 0xF;
+
+    // Para los valores del cuerpo que no tienen serialización específica. GSON es 'thread-safe'.
+    static final Gson GSON = new Gson();
+
+    private static final ThreadLocal<EventBuffer> BUFFER = new ThreadLocal<EventBuffer>() {
+        @Override
+        protected EventBuffer initialValue() {
+            return new EventBuffer();
+        }
+    };
+
+    private Format format;
+
+    /**
+     * Constructor usado por Kafka cuando se indica la clase en la propiedad
+     * 'value.serializer'. El formato se tomará de la propiedad
+     * 'value.serializer.format' y, si no se indica, será JSON.
+     */
+    public ExtendedEventSerializer() {
+        this(Format.JSON);
+    }
+
+    public ExtendedEventSerializer(Format format) {
+        this.format = format;
+    }
+
+    @Override
+    public void configure(Map<String, ?> configs, boolean isKey) {
+        Object value = configs.get(FORMAT_CONFIG);
+        if (value != null) {
+            format = Format.valueOf(value.toString().trim().toUpperCase());
+        }
+    }
+
+    public Format getFormat() {
+        return format;
+    }
+
+    @Override
+    public byte[] serialize(String topic, ExtendedEvent[] events) {
+        if (events == null) {
+            return null;
+        }
+
+        EventBuffer buffer = BUFFER.get();
+        buffer.reset();
+        try {
+            if (format == Format.BINARY) {
+                writeBinary(buffer, events);
+            } else {
+                writeJson(buffer, events);
+            }
+        } catch (IllegalArgumentException ex) {
+            throw new SerializationException("No se ha podido serializar el evento para el topic " + topic, ex);
+        }
+        return buffer.toByteArray();
+    }
+
+    /**
+     * Número de bytes que ocupa un evento serializado. Se escribe en el
+     * 'buffer' del hilo, pero sin hacer la copia final.
+     *
+     * @param event Evento.
+     * @return Número de bytes o 0 si el evento no se puede serializar.
+     */
+    public int serializedSize(ExtendedEvent event) {
+        EventBuffer buffer = BUFFER.get();
+        buffer.reset();
+        try {
+            if (format == Format.BINARY) {
+                writeBinary(buffer, new ExtendedEvent[]{event});
+            } else {
+                writeJson(buffer, event);
+            }
+        } catch (IllegalArgumentException ex) {
+            // Ya fallará al enviarlo.
+            return 0;
+        }
+        return buffer.size();
+    }
+
+    @Override
+    public void close() {
+    }
+
+    ////////////
+    // BINARY //
+    ////////////
+    private static void writeBinary(EventBuffer buffer, ExtendedEvent[] events) {
+        buffer.writeByte(BINARY_FORMAT_VERSION);
+        buffer.writeVarInt(events.length);
+        for (ExtendedEvent event : events) {
+            if (event == null) {
+                throw new IllegalArgumentException("Evento nulo");
+            }
+            buffer.writeString(event.getEventId());
+            buffer.writeString(event.getSourceId());
+            buffer.writeString(event.getSyntax());
+            buffer.writeString(event.getTimestamp());
+            buffer.writeString(event.getApplicationId());
+            buffer.writeString(event.getEventType());
+            buffer.writeSignedVarInt(event.getRetries());
+
+            Map<String, Object> body = event.getBody();
+            if (body == null) {
+                buffer.writeVarInt(0);
+                continue;
+            }
+            buffer.writeVarInt(body.size() + 1);
+            for (Map.Entry<String, Object> entry : body.entrySet()) {
+                buffer.writeString(entry.getKey());
+                Object value = entry.getValue();
+                if (value == null) {
+                    buffer.writeByte(BODY_TYPE_NULL);
+                } else if (value instanceof Location) {
+                    buffer.writeByte(BODY_TYPE_LOCATION);
+                    writeBinary(buffer, (Location) value);
+                } else if (value instanceof DataSection) {
+                    buffer.writeByte(BODY_TYPE_DATA_SECTION);
+                    writeBinary(buffer, (DataSection) value);
+                } else {
+                    buffer.writeByte(BODY_TYPE_JSON);
+                    buffer.writeString(GSON.toJson(value));
+                }
+            }
+        }
+    }
+
+    private static void writeBinary(EventBuffer buffer, Location location) {
+        buffer.writeString(location.getTimeStamp());
+        // Máscara con los atributos presentes, en el orden en que se escriben.
+        int mask = presence(location.getLongitude(), 0)
+                | presence(location.getScore(), 1)
+                | presence(location.getLatitude(), 2)
+                | presence(location.getSpeed(), 3)
+                | presence(location.getAccuracy(), 4);
+        buffer.writeVarInt(mask);
+        writeIfPresent(buffer, location.getLongitude());
+        writeIfPresent(buffer, location.getScore());
+        writeIfPresent(buffer, location.getLatitude());
+        writeIfPresent(buffer, location.getSpeed());
+        writeIfPresent(buffer, location.getAccuracy());
+    }
+
+    private static void writeBinary(EventBuffer buffer, DataSection dataSection) {
+        int mask = presence(dataSection.getMedianSpeed(), 0)
+                | presence(dataSection.getStandardDeviationSpeed(), 1)
+                | presence(dataSection.getAverageRR(), 2)
+                | presence(dataSection.getAverageHeartRate(), 3)
+                | presence(dataSection.getStandardDeviationRR(), 4)
+                | presence(dataSection.getAverageDeceleration(), 5)
+                | presence(dataSection.getNumHighDecelerations(), 6)
+                | presence(dataSection.getAverageAcceleration(), 7)
+                | presence(dataSection.getMaxSpeed(), 8)
+                | presence(dataSection.getNumHighAccelerations(), 9)
+                | presence(dataSection.getPke(), 10)
+                | presence(dataSection.getStandardDeviationHeartRate(), 11)
+                | presence(dataSection.getAverageSpeed(), 12)
+                | presence(dataSection.getMinSpeed(), 13);
+        buffer.writeVarInt(mask);
+        writeIfPresent(buffer, dataSection.getMedianSpeed());
+        writeIfPresent(buffer, dataSection.getStandardDeviationSpeed());
+        writeIfPresent(buffer, dataSection.getAverageRR());
+        writeIfPresent(buffer, dataSection.getAverageHeartRate());
+        writeIfPresent(buffer, dataSection.getStandardDeviationRR());
+        writeIfPresent(buffer, dataSection.getAverageDeceleration());
+        writeIfPresent(buffer, dataSection.getNumHighDecelerations());
+        writeIfPresent(buffer, dataSection.getAverageAcceleration());
+        writeIfPresent(buffer, dataSection.getMaxSpeed());
+        writeIfPresent(buffer, dataSection.getNumHighAccelerations());
+        writeIfPresent(buffer, dataSection.getPke());
+        writeIfPresent(buffer, dataSection.getStandardDeviationHeartRate());
+        writeIfPresent(buffer, dataSection.getAverageSpeed());
+        writeIfPresent(buffer, dataSection.getMinSpeed());
+
+        // Las listas se preceden de su tamaño más uno. El 0 indica una lista nula.
+        RoadSections roadSections = dataSection.getRoadSection();
+        if (roadSections == null) {
+            buffer.writeVarInt(0);
+        } else {
+            buffer.writeVarInt(roadSections.size() + 1);
+            for (int i = 0; i < roadSections.size(); i++) {
+                buffer.writeString(roadSections.getTimeStamp(i));
+                // Los tramos siempre tienen todos sus valores.
+                buffer.writeVarInt(ROAD_SECTION_MASK);
+                buffer.writeDouble(roadSections.getLatitude(i));
+                buffer.writeDouble(roadSections.getLongitude(i));
+                buffer.writeDouble(roadSections.getSpeed(i));
+                buffer.writeSignedVarInt(roadSections.getAccuracy(i));
+            }
+        }
+
+        int[] rrSection = dataSection.getRrSection();
+        if (rrSection == null) {
+            buffer.writeVarInt(0);
+        } else {
+            buffer.writeVarInt(rrSection.length + 1);
+            for (int rr : rrSection) {
+                buffer.writeSignedVarInt(rr);
+            }
+        }
+    }
+
+    private static int presence(Object value, int bit) {
+        return value != null ? 1 << bit : 0;
+    }
+
+    private static void writeIfPresent(EventBuffer buffer, Double value) {
+        if (value != null) {
+            buffer.writeDouble(value);
+        }
+    }
+
+    private static void writeIfPresent(EventBuffer buffer, Integer value) {
+        if (value != null) {
+            buffer.writeSignedVarInt(value);
+        }
+    }
+
+    //////////
+    // JSON //
+    //////////
+    private static void writeJson(EventBuffer buffer, ExtendedEvent[] events) {
+        if (events.length == 1) {
+            writeJson(buffer, events[0]);
+            return;
+        }
+        buffer.writeByte('[');
+        for (int i = 0; i < events.length; i++) {
+            if (i > 0) {
+                buffer.writeByte(',');
+            }
+            writeJson(buffer, events[i]);
+        }
+        buffer.writeByte(']');
+    }
+
+    // Mismo orden de atributos que usa GSON: primero los de 'ExtendedEvent' y luego los de 'Event'. Los nulos se omiten.
+    private static void writeJson(EventBuffer buffer, ExtendedEvent event) {
+        if (event == null) {
+            buffer.writeAscii("null");
+            return;
+        }
+        JsonObjectWriter writer = new JsonObjectWriter(buffer);
+        writer.name("retries");
+        buffer.writeAscii(Integer.toString(event.getRetries()));
+        writer.field("eventId", event.getEventId());
+        writer.field("sourceId", event.getSourceId());
+        writer.field("syntax", event.getSyntax());
+        writer.field("timestamp", event.getTimestamp());
+        writer.field("applicationId", event.getApplicationId());
+        writer.field("eventType", event.getEventType());
+
+        Map<String, Object> body = event.getBody();
+        if (body != null) {
+            writer.name("body");
+            JsonObjectWriter bodyWriter = new JsonObjectWriter(buffer);
+            for (Map.Entry<String, Object> entry : body.entrySet()) {
+                Object value = entry.getValue();
+                if (value == null) {
+                    continue;
+                }
+                bodyWriter.name(String.valueOf(entry.getKey()));
+                if (value instanceof Location) {
+                    writeJson(buffer, (Location) value);
+                } else if (value instanceof DataSection) {
+                    writeJson(buffer, (DataSection) value);
+                } else {
+                    buffer.writeUtf8(GSON.toJson(value));
+                }
+            }
+            bodyWriter.end();
+        }
+
+        // Las cabeceras adicionales de Ztreamy no se usan en el simulador, así que siempre están vacías.
+        writer.name("extraHeaders");
+        buffer.writeAscii("{}");
+        writer.end();
+    }
+
+    private static void writeJson(EventBuffer buffer, Location location) {
+        JsonObjectWriter writer = new JsonObjectWriter(buffer);
+        writer.field("timeStamp", location.getTimeStamp());
+        writer.field("longitude", location.getLongitude());
+        writer.field("score", location.getScore());
+        writer.field("latitude", location.getLatitude());
+        writer.field("speed", location.getSpeed());
+        writer.field("accuracy", location.getAccuracy());
+        writer.end();
+    }
+
+    private static void writeJson(EventBuffer buffer, DataSection dataSection) {
+        JsonObjectWriter writer = new JsonObjectWriter(buffer);
+        writer.field("medianSpeed", dataSection.getMedianSpeed());
+        RoadSections roadSections = dataSection.getRoadSection();
+        if (roadSections != null) {
+            writer.name("roadSection");
+            buffer.writeByte('[');
+            for (int i = 0; i < roadSections.size(); i++) {
+                if (i > 0) {
+                    buffer.writeByte(',');
+                }
+                writeJson(buffer, roadSections, i);
+            }
+            buffer.writeByte(']');
+        }
+        writer.field("standardDeviationSpeed", dataSection.getStandardDeviationSpeed());
+        writer.field("averageRR", dataSection.getAverageRR());
+        writer.field("averageHeartRate", dataSection.getAverageHeartRate());
+        writer.field("standardDeviationRR", dataSection.getStandardDeviationRR());
+        writer.field("averageDeceleration", dataSection.getAverageDeceleration());
+        writer.field("numHighDecelerations", dataSection.getNumHighDecelerations());
+        writer.field("averageAcceleration", dataSection.getAverageAcceleration());
+        writer.field("maxSpeed", dataSection.getMaxSpeed());
+        int[] rrSection = dataSection.getRrSection();
+        if (rrSection != null) {
+            writer.name("rrSection");
+            buffer.writeByte('[');
+            for (int i = 0; i < rrSection.length; i++) {
+                if (i > 0) {
+                    buffer.writeByte(',');
+                }
+                buffer.writeAscii(Integer.toString(rrSection[i]));
+            }
+            buffer.writeByte(']');
+        }
+        writer.field("numHighAccelerations", dataSection.getNumHighAccelerations());
+        writer.field("pke", dataSection.getPke());
+        writer.field("standardDeviationHeartRate", dataSection.getStandardDeviationHeartRate());
+        writer.field("averageSpeed", dataSection.getAverageSpeed());
+        writer.field("minSpeed", dataSection.getMinSpeed());
+        writer.end();
+    }
+
+    private static void writeJson(EventBuffer buffer, RoadSections roadSections, int index) {
+        JsonObjectWriter writer = new JsonObjectWriter(buffer);
+        writer.field("timeStamp", roadSections.getTimeStamp(index));
+        writer.field("latitude", roadSections.getLatitude(index));
+        writer.field("longitude", roadSections.getLongitude(index));
+        writer.field("speed", roadSections.getSpeed(index));
+        writer.field("accuracy", roadSections.getAccuracy(index));
+        writer.end();
+    }
+
+    /**
+     * Escritura de los atributos de un objeto JSON, omitiendo los nulos como
+     * hace GSON.
+     */
+    private static final class JsonObjectWriter {
+
+        private final EventBuffer buffer;
+        private boolean first;
+
+        JsonObjectWriter(EventBuffer buffer) {
+            this.buffer = buffer;
+            this.first = true;
+            buffer.writeByte('{');
+        }
+
+        void name(String name) {
+            if (!first) {
+                buffer.writeByte(',');
+            }
+            first = false;
+            buffer.writeJsonString(name);
+            buffer.writeByte(':');
+        }
+
+        void field(String name, String value) {
+            if (value != null) {
+                name(name);
+                buffer.writeJsonString(value);
+            }
+        }
+
+        void field(String name, Double value) {
+            if (value != null) {
+                if (value.isNaN() || value.isInfinite()) {
+                    // GSON tampoco admite estos valores por defecto.
+                    throw new IllegalArgumentException(value + " is not a valid double value as per JSON specification.");
+                }
+                name(name);
+                buffer.writeAscii(value.toString());
+            }
+        }
+
+        void field(String name, Integer value) {
+            if (value != null) {
+                name(name);
+                buffer.writeAscii(value.toString());
+            }
+        }
+
+        void field(String name, double value) {
+            if (Double.isNaN(value) || Double.isInfinite(value)) {
+                throw new IllegalArgumentException(value + " is not a valid double value as per JSON specification.");
+            }
+            name(name);
+            buffer.writeAscii(Double.toString(value));
+        }
+
+        void field(String name, int value) {
+            name(name);
+            buffer.writeAscii(Integer.toString(value));
+        }
+
+        void end() {
+            buffer.writeByte('}');
+        }
+    }
+}
@@ -0,0 +1,172 @@
+package es.us.lsi.hermes.simulator.kafka;
+
+import es.us.lsi.hermes.simulator.ExtendedEvent;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.apache.kafka.clients.producer.KafkaProducer;
+import org.apache.kafka.common.Metric;
+import org.apache.kafka.common.MetricName;
+import org.apache.kafka.common.serialization.LongSerializer;
+
+/**
+ * Conjunto fijo de 'producers' de Kafka compartidos por todos los SmartDrivers
+ * de una simulación. Cada SmartDriver queda asignado siempre al mismo
+ * 'producer', según el 'hash' de su identificador, de modo que sus tramas se
+ * envían en orden y se agrupan en lotes con las de otros SmartDrivers, sin
+ * necesidad de un 'producer' (con su hilo de E/S y sus 'buffers') por cada
+ * uno.
+ */
+public class KafkaProducerPool {
+
+    private static final Logger LOG = Logger.getLogger(KafkaProducerPool.class.getName());
+
+    // Grupo y nombres de las métricas de Kafka de las que se informa por cada 'producer'.
+    private static final String METRICS_GROUP = "producer-metrics";
+    private static final String METRIC_BATCH_SIZE_AVG = "batch-size-avg";
+    private static final String METRIC_RECORD_SEND_RATE = "record-send-rate";
+    private static final String METRIC_BUFFER_EXHAUSTED_RATE = "buffer-exhausted-rate";
+
+    // Número de identificadores de registro que reserva cada hilo de una vez.
+    private static final int RECORD_ID_BLOCK_SIZE = 1024;
+
+    private final KafkaProducer<Long, ExtendedEvent[]>[] producers;
+    // Con el mismo formato que los de los 'producers', para calcular el tamaño de los eventos.
+    private final ExtendedEventSerializer serializer;
+
+    // Primer identificador del siguiente bloque libre.
+    private final AtomicLong nextRecordIdBlock;
+    // Bloque de identificadores de cada hilo: el siguiente a usar y el primero que ya no le pertenece.
+    private final ThreadLocal<long[]> recordIdBlock;
+
+    /**
+     * Constructor del conjunto de 'producers'.
+     *
+     * @param size Número de 'producers'. Si es menor que 1, se usará el número
+     * de núcleos disponibles.
+     * @param properties Propiedades de configuración de los 'producers'. Cada
+     * uno tendrá como 'client.id' el indicado en ellas seguido de su índice.
+     * Los serializadores indicados en ellas no se tienen en cuenta.
+     * @param format Formato en el que se serializarán los eventos.
+     */
+    @SuppressWarnings("unchecked")
+    public KafkaProducerPool(int size, Properties properties, ExtendedEventSerializer.Format format) {
+        int amount = size > 0 ? size : Runtime.getRuntime().availableProcessors();
+        String clientId = properties.getProperty("client.id", "HermesSimulator");
+        this.producers = new KafkaProducer[amount];
+        this.serializer = new ExtendedEventSerializer(format);
+        this.nextRecordIdBlock = new AtomicLong(0);
+        this.recordIdBlock = new ThreadLocal<long[]>() {
+            @Override
+            protected long[] initialValue() {
+                return new long[]{0, 0};
+            }
+        };
+        for (int i = 0; i < amount; i++) {
+            // Usamos una copia para no modificar las propiedades comunes.
+            Properties producerProperties = new Properties();
+            producerProperties.putAll(properties);
+            producerProperties.setProperty("client.id", clientId + "-" + i);
+            producers[i] = new KafkaProducer<>(producerProperties, new LongSerializer(), new ExtendedEventSerializer(format));
+        }
+        LOG.log(Level.INFO, "KafkaProducerPool() - Se han creado {0} producers de Kafka. Formato de los eventos: {1}", new Object[]{amount, format.name()});
+    }
+
+    /**
+     * Obtiene el 'producer' asignado a un SmartDriver. Para el mismo
+     * identificador, siempre se obtiene el mismo 'producer'.
+     *
+     * @param key Identificador del SmartDriver.
+     * @return 'Producer' de Kafka asignado.
+     */
+    public KafkaProducer<Long, ExtendedEvent[]> getProducer(String key) {
+        return producers[(key.hashCode() & Integer.MAX_VALUE) % producers.length];
+    }
+
+    /**
+     * Serializador con el formato de los eventos que envían los 'producers'.
+     */
+    public ExtendedEventSerializer getSerializer() {
+        return serializer;
+    }
+
+    /**
+     * Obtiene un identificador para un registro de Kafka, único en toda la
+     * simulación. Cada hilo toma los identificadores de su propio bloque y
+     * sólo accede al contador compartido cuando lo agota, por lo que los
+     * identificadores son únicos pero no consecutivos entre hilos.
+     *
+     * @return Identificador del registro.
+     */
+    public long nextRecordId() {
+        long[] block = recordIdBlock.get();
+        if (block[0] == block[1]) {
+            block[0] = nextRecordIdBlock.getAndAdd(RECORD_ID_BLOCK_SIZE);
+            block[1] = block[0] + RECORD_ID_BLOCK_SIZE;
+        }
+        return block[0]++;
+    }
+
+    public int size() {
+        return producers.length;
+    }
+
+    public void flush() {
+        for (KafkaProducer<Long, ExtendedEvent[]> producer : producers) {
+            producer.flush();
+        }
+    }
+
+    public void close() {
+        for (KafkaProducer<Long, ExtendedEvent[]> producer : producers) {
+            try {
+                producer.close();
+            } catch (Exception ex) {
+                // FIXME: Algunas veces salta una excepción de tipo 'java.lang.InterruptedException'.
+                // Es un 'bug' que aún está en estado abierto en Kafka.
+                // https://issues.streamsets.com/browse/SDC-4925
+                LOG.log(Level.WARNING, "close() - Error al cerrar el producer de Kafka: {0}", ex.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Resumen del tamaño medio de lote, el ritmo de envío y el agotamiento del
+     * 'buffer' de cada 'producer'.
+     *
+     * @return Una línea por cada 'producer'.
+     */
+    public String getMetricsSummary() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < producers.length; i++) {
+            double batchSizeAvg = Double.NaN;
+            double recordSendRate = Double.NaN;
+            double bufferExhaustedRate = Double.NaN;
+
+            for (Map.Entry<MetricName, ? extends Metric> entry : producers[i].metrics().entrySet()) {
+                MetricName metricName = entry.getKey();
+                if (!METRICS_GROUP.equals(metricName.group())) {
+                    continue;
+                }
+                switch (metricName.name()) {
+                    case METRIC_BATCH_SIZE_AVG:
+                        batchSizeAvg = entry.getValue().value();
+                        break;
+                    case METRIC_RECORD_SEND_RATE:
+                        recordSendRate = entry.getValue().value();
+                        break;
+                    case METRIC_BUFFER_EXHAUSTED_RATE:
+                        bufferExhaustedRate = entry.getValue().value();
+                        break;
+                    default:
+                        break;
+                }
+            }
+
+            sb.append(String.format("-> Producer %d: Tamaño medio de lote=%.2f bytes|Tramas por segundo=%.2f|Buffer agotado por segundo=%.2f%n", i, batchSizeAvg, recordSendRate, bufferExhaustedRate));
+        }
+        return sb.toString();
+    }
+}
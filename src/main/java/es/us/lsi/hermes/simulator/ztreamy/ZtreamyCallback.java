@@ -0,0 +1,19 @@
+package es.us.lsi.hermes.simulator.ztreamy;
+
+/**
+ * Recibe el resultado de una publicación asíncrona en Ztreamy, del mismo modo
+ * que el 'Callback' de un envío a Kafka.
+ */
+public interface ZtreamyCallback {
+
+    /**
+     * Se invoca cuando termina la publicación. Se ejecuta en un hilo de E/S del
+     * cliente HTTP, así que no debe bloquearse.
+     *
+     * @param statusCode Código HTTP de la respuesta de Ztreamy. Será -1 si no
+     * se ha obtenido respuesta.
+     * @param exception Error que ha impedido obtener la respuesta. Nulo si se
+     * ha obtenido.
+     */
+    void onCompletion(int statusCode, Exception exception);
+}
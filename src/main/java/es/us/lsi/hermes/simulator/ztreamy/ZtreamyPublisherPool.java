@@ -0,0 +1,180 @@
+package es.us.lsi.hermes.simulator.ztreamy;
+
+import es.us.lsi.hermes.simulator.ExtendedEvent;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.GZIPOutputStream;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
+import ztreamy.JSONSerializer;
+import ztreamy.Serializer;
+
+/**
+ * Publicación asíncrona de eventos en Ztreamy compartida por todos los
+ * SmartDrivers de una simulación.
+ *
+ * Envía las mismas peticiones que 'PublisherHC' (POST con los eventos en JSON
+ * comprimidos con GZIP), pero a través de un cliente HTTP no bloqueante con un
+ * número limitado de conexiones persistentes, en lugar de una conexión por
+ * SmartDriver. El resultado se notifica con un 'ZtreamyCallback'. El número de
+ * peticiones en curso también está limitado. Con el reloj real, si se alcanza,
+ * la publicación se rechaza en el momento, en vez de dejar esperando al hilo
+ * que la hace. Con un reloj virtual, el hilo espera a que quede una petición
+ * libre, de modo que la simulación avanza al ritmo que admite Ztreamy, igual
+ * que con Kafka cuando se llena el 'buffer' de los 'producers'.
+ */
+public class ZtreamyPublisherPool {
+
+    private static final Logger LOG = Logger.getLogger(ZtreamyPublisherPool.class.getName());
+
+    private final String url;
+    private final Serializer serializer;
+    private final CloseableHttpAsyncClient client;
+    private final int maxInFlight;
+    // Permisos para peticiones en curso.
+    private final Semaphore inFlight;
+    // Tiempo máximo en milisegundos que se espera a que quede una petición libre. Con 0 no se espera.
+    private final long maxWait;
+
+    /**
+     * Constructor de la publicación asíncrona.
+     *
+     * @param url URL de publicación de Ztreamy.
+     * @param maxConnections Número máximo de conexiones con Ztreamy.
+     * @param maxInFlight Número máximo de peticiones en curso. Las que no
+     * tengan conexión libre esperan en el cliente HTTP, sin ocupar ningún
+     * hilo.
+     * @param timeout Tiempo máximo en milisegundos para conectar, para obtener
+     * una conexión libre y entre dos lecturas de la respuesta.
+     * @param maxWait Tiempo máximo en milisegundos que espera el hilo que
+     * publica si se ha alcanzado el máximo de peticiones en curso. Si es 0, la
+     * publicación se rechaza sin esperar.
+     */
+    public ZtreamyPublisherPool(String url, int maxConnections, int maxInFlight, int timeout, long maxWait) {
+        this.url = url;
+        this.serializer = new JSONSerializer();
+        this.maxInFlight = Math.max(maxInFlight, 1);
+        this.inFlight = new Semaphore(this.maxInFlight);
+        this.maxWait = Math.max(maxWait, 0L);
+        int connections = Math.max(maxConnections, 1);
+        this.client = HttpAsyncClients.custom()
+                .setMaxConnTotal(connections)
+                .setMaxConnPerRoute(connections)
+                .setDefaultIOReactorConfig(IOReactorConfig.custom()
+                        .setIoThreadCount(Math.min(connections, Runtime.getRuntime().availableProcessors()))
+                        .setSoKeepAlive(true)
+                        .setTcpNoDelay(true)
+                        .build())
+                .setDefaultRequestConfig(RequestConfig.custom()
+                        .setConnectTimeout(timeout)
+                        .setConnectionRequestTimeout(timeout)
+                        .setSocketTimeout(timeout)
+                        .build())
+                .build();
+        this.client.start();
+        LOG.log(Level.INFO, "ZtreamyPublisherPool() - Publicación en Ztreamy con {0} conexiones y hasta {1} peticiones en curso", new Object[]{connections, this.maxInFlight});
+    }
+
+    /**
+     * Publica los eventos en Ztreamy sin esperar la respuesta.
+     *
+     * @param events Eventos a publicar.
+     * @param callback Se le notificará el resultado. Si la publicación se
+     * rechaza, se le notifica antes de volver de este método.
+     */
+    public void publish(ExtendedEvent[] events, final ZtreamyCallback callback) {
+        if (!acquire()) {
+            callback.onCompletion(-1, new RejectedExecutionException("Se ha alcanzado el máximo de " + maxInFlight + " peticiones en curso a Ztreamy"));
+            return;
+        }
+
+        try {
+            HttpPost post = new HttpPost(url);
+            ByteArrayEntity entity = new ByteArrayEntity(compress(events.length == 1 ? serializer.serialize(events[0]) : serializer.serialize(events)));
+            entity.setContentType(serializer.contentType());
+            entity.setContentEncoding("gzip");
+            post.setEntity(entity);
+            client.execute(post, new FutureCallback<HttpResponse>() {
+                @Override
+                public void completed(HttpResponse response) {
+                    inFlight.release();
+                    callback.onCompletion(response.getStatusLine().getStatusCode(), null);
+                }
+
+                @Override
+                public void failed(Exception ex) {
+                    inFlight.release();
+                    callback.onCompletion(-1, ex);
+                }
+
+                @Override
+                public void cancelled() {
+                    inFlight.release();
+                    callback.onCompletion(-1, new IOException("Petición a Ztreamy cancelada"));
+                }
+            });
+        } catch (IOException | RuntimeException ex) {
+            // No se ha llegado a enviar la petición.
+            inFlight.release();
+            callback.onCompletion(-1, ex);
+        }
+    }
+
+    private boolean acquire() {
+        if (maxWait == 0) {
+            return inFlight.tryAcquire();
+        }
+        try {
+            return inFlight.tryAcquire(maxWait, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private static byte[] compress(byte[] data) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(Math.max(data.length / 4, 64));
+        try (GZIPOutputStream gzip = new GZIPOutputStream(baos)) {
+            gzip.write(data);
+        }
+        return baos.toByteArray();
+    }
+
+    /**
+     * Número de peticiones enviadas de las que aún no se tiene respuesta.
+     */
+    public int getInFlight() {
+        return maxInFlight - inFlight.availablePermits();
+    }
+
+    /**
+     * Espera a que terminen las peticiones en curso, hasta un máximo de 30
+     * segundos, y cierra las conexiones. Las que no hayan terminado se
+     * cancelan.
+     */
+    public void close() {
+        try {
+            if (!inFlight.tryAcquire(maxInFlight, 30, TimeUnit.SECONDS)) {
+                LOG.log(Level.WARNING, "close() - Se cancelan {0} peticiones a Ztreamy sin respuesta", getInFlight());
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            client.close();
+        } catch (IOException ex) {
+            LOG.log(Level.WARNING, "close() - Error al cerrar el cliente HTTP de Ztreamy: {0}", ex.getMessage());
+        }
+    }
+}
@@ -1,13 +1,19 @@
 package es.us.lsi.hermes.smartDriver;
 
+import com.google.gson.annotations.JsonAdapter;
 import java.io.Serializable;
-import java.util.ArrayList;
-import java.util.List;
 
+/**
+ * Resumen de una sección de trayecto. Los tramos y los intervalos RR se
+ * guardan en 'arrays' de tipos primitivos; 'DataSectionTypeAdapter' los
+ * serializa a JSON con la misma forma que las antiguas listas de
+ * 'RoadSection' e 'Integer'.
+ */
+@JsonAdapter(DataSectionTypeAdapter.class)
 public class DataSection implements Serializable {
 
     private Double medianSpeed;
-    private List<RoadSection> roadSection = new ArrayList<>();
+    private RoadSections roadSection;
     private Double standardDeviationSpeed;
     private Double averageRR;
     private Double averageHeartRate;
@@ -16,7 +22,7 @@ public class DataSection implements Serializable {
     private Integer numHighDecelerations;
     private Double averageAcceleration;
     private Double maxSpeed;
-    private List<Integer> rrSection = new ArrayList<>();
+    private int[] rrSection;
     private Integer numHighAccelerations;
     private Double pke;
     private Double standardDeviationHeartRate;
@@ -31,11 +37,11 @@ public class DataSection implements Serializable {
         this.medianSpeed = medianSpeed;
     }
 
-    public List<RoadSection> getRoadSection() {
+    public RoadSections getRoadSection() {
         return roadSection;
     }
 
-    public void setRoadSection(List<RoadSection> roadSection) {
+    public void setRoadSection(RoadSections roadSection) {
         this.roadSection = roadSection;
     }
 
@@ -103,11 +109,11 @@ public class DataSection implements Serializable {
         this.maxSpeed = maxSpeed;
     }
 
-    public List<Integer> getRrSection() {
+    public int[] getRrSection() {
         return rrSection;
     }
 
-    public void setRrSection(List<Integer> rrSection) {
+    public void setRrSection(int[] rrSection) {
         this.rrSection = rrSection;
     }
 
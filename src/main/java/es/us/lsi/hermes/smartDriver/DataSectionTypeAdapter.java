@@ -0,0 +1,213 @@
+package es.us.lsi.hermes.smartDriver;
+
+import com.google.gson.JsonSyntaxException;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+import java.io.IOException;
+import java.text.ParseException;
+import java.util.Arrays;
+
+/**
+ * Serialización con GSON de un 'DataSection'. Genera el mismo JSON que
+ * generaba GSON cuando los tramos eran una lista de 'RoadSection' y los
+ * intervalos RR una lista de 'Integer', con los atributos en el mismo orden y
+ * omitiendo los nulos, de modo que los consumidores no notan el cambio.
+ */
+public class DataSectionTypeAdapter extends TypeAdapter<DataSection> {
+
+    @Override
+    public void write(JsonWriter out, DataSection dataSection) throws IOException {
+        if (dataSection == null) {
+            out.nullValue();
+            return;
+        }
+
+        out.beginObject();
+        writeField(out, "medianSpeed", dataSection.getMedianSpeed());
+        RoadSections roadSections = dataSection.getRoadSection();
+        if (roadSections != null) {
+            out.name("roadSection");
+            out.beginArray();
+            for (int i = 0; i < roadSections.size(); i++) {
+                out.beginObject();
+                out.name("timeStamp").value(roadSections.getTimeStamp(i));
+                out.name("latitude").value(roadSections.getLatitude(i));
+                out.name("longitude").value(roadSections.getLongitude(i));
+                out.name("speed").value(roadSections.getSpeed(i));
+                out.name("accuracy").value(roadSections.getAccuracy(i));
+                out.endObject();
+            }
+            out.endArray();
+        }
+        writeField(out, "standardDeviationSpeed", dataSection.getStandardDeviationSpeed());
+        writeField(out, "averageRR", dataSection.getAverageRR());
+        writeField(out, "averageHeartRate", dataSection.getAverageHeartRate());
+        writeField(out, "standardDeviationRR", dataSection.getStandardDeviationRR());
+        writeField(out, "averageDeceleration", dataSection.getAverageDeceleration());
+        writeField(out, "numHighDecelerations", dataSection.getNumHighDecelerations());
+        writeField(out, "averageAcceleration", dataSection.getAverageAcceleration());
+        writeField(out, "maxSpeed", dataSection.getMaxSpeed());
+        int[] rrSection = dataSection.getRrSection();
+        if (rrSection != null) {
+            out.name("rrSection");
+            out.beginArray();
+            for (int rr : rrSection) {
+                out.value(rr);
+            }
+            out.endArray();
+        }
+        writeField(out, "numHighAccelerations", dataSection.getNumHighAccelerations());
+        writeField(out, "pke", dataSection.getPke());
+        writeField(out, "standardDeviationHeartRate", dataSection.getStandardDeviationHeartRate());
+        writeField(out, "averageSpeed", dataSection.getAverageSpeed());
+        writeField(out, "minSpeed", dataSection.getMinSpeed());
+        out.endObject();
+    }
+
+    private static void writeField(JsonWriter out, String name, Number value) throws IOException {
+        if (value != null) {
+            out.name(name).value(value);
+        }
+    }
+
+    @Override
+    public DataSection read(JsonReader in) throws IOException {
+        if (in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            return null;
+        }
+
+        DataSection dataSection = new DataSection();
+        in.beginObject();
+        while (in.hasNext()) {
+            String name = in.nextName();
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+                continue;
+            }
+            switch (name) {
+                case "medianSpeed":
+                    dataSection.setMedianSpeed(in.nextDouble());
+                    break;
+                case "roadSection":
+                    dataSection.setRoadSection(readRoadSections(in));
+                    break;
+                case "standardDeviationSpeed":
+                    dataSection.setStandardDeviationSpeed(in.nextDouble());
+                    break;
+                case "averageRR":
+                    dataSection.setAverageRR(in.nextDouble());
+                    break;
+                case "averageHeartRate":
+                    dataSection.setAverageHeartRate(in.nextDouble());
+                    break;
+                case "standardDeviationRR":
+                    dataSection.setStandardDeviationRR(in.nextDouble());
+                    break;
+                case "averageDeceleration":
+                    dataSection.setAverageDeceleration(in.nextDouble());
+                    break;
+                case "numHighDecelerations":
+                    dataSection.setNumHighDecelerations(in.nextInt());
+                    break;
+                case "averageAcceleration":
+                    dataSection.setAverageAcceleration(in.nextDouble());
+                    break;
+                case "maxSpeed":
+                    dataSection.setMaxSpeed(in.nextDouble());
+                    break;
+                case "rrSection":
+                    dataSection.setRrSection(readRrSection(in));
+                    break;
+                case "numHighAccelerations":
+                    dataSection.setNumHighAccelerations(in.nextInt());
+                    break;
+                case "pke":
+                    dataSection.setPke(in.nextDouble());
+                    break;
+                case "standardDeviationHeartRate":
+                    dataSection.setStandardDeviationHeartRate(in.nextDouble());
+                    break;
+                case "averageSpeed":
+                    dataSection.setAverageSpeed(in.nextDouble());
+                    break;
+                case "minSpeed":
+                    dataSection.setMinSpeed(in.nextDouble());
+                    break;
+                default:
+                    in.skipValue();
+                    break;
+            }
+        }
+        in.endObject();
+        return dataSection;
+    }
+
+    private static RoadSections readRoadSections(JsonReader in) throws IOException {
+        RoadSections.Builder builder = new RoadSections.Builder();
+        in.beginArray();
+        while (in.hasNext()) {
+            long time = 0;
+            double latitude = 0.0d;
+            double longitude = 0.0d;
+            double speed = 0.0d;
+            int accuracy = 0;
+
+            in.beginObject();
+            while (in.hasNext()) {
+                String name = in.nextName();
+                if (in.peek() == JsonToken.NULL) {
+                    in.nextNull();
+                    continue;
+                }
+                switch (name) {
+                    case "timeStamp":
+                        String timeStamp = in.nextString();
+                        try {
+                            time = RoadSections.parseTimeStamp(timeStamp);
+                        } catch (ParseException ex) {
+                            throw new JsonSyntaxException(ex);
+                        }
+                        break;
+                    case "latitude":
+                        latitude = in.nextDouble();
+                        break;
+                    case "longitude":
+                        longitude = in.nextDouble();
+                        break;
+                    case "speed":
+                        speed = in.nextDouble();
+                        break;
+                    case "accuracy":
+                        accuracy = in.nextInt();
+                        break;
+                    default:
+                        in.skipValue();
+                        break;
+                }
+            }
+            in.endObject();
+
+            // Los intervalos RR van aparte, en 'rrSection'.
+            builder.add(time, latitude, longitude, speed, accuracy, 0);
+        }
+        in.endArray();
+        return builder.build();
+    }
+
+    private static int[] readRrSection(JsonReader in) throws IOException {
+        int[] rrSection = new int[64];
+        int size = 0;
+        in.beginArray();
+        while (in.hasNext()) {
+            if (size == rrSection.length) {
+                rrSection = Arrays.copyOf(rrSection, size * 2);
+            }
+            rrSection[size++] = in.nextInt();
+        }
+        in.endArray();
+        return Arrays.copyOf(rrSection, size);
+    }
+}
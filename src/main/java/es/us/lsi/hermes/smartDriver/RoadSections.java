@@ -0,0 +1,176 @@
+package es.us.lsi.hermes.smartDriver;
+
+import java.io.Serializable;
+import java.text.DateFormat;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+
+/**
+ * Tramos de una sección de trayecto, guardados en 'arrays' de tipos primitivos
+ * en lugar de como una lista con un objeto por tramo. Es inmutable, de modo
+ * que el 'Data Section' que los contiene puede enviarse o reintentarse más
+ * tarde aunque el SmartDriver ya esté recogiendo los tramos de la siguiente
+ * sección.
+ *
+ * Cada SmartDriver va añadiendo los tramos a un 'Builder' que reutiliza en
+ * todas sus secciones.
+ */
+public final class RoadSections implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    // Mismo formato que 'Constants.dfISO8601', pero uno por hilo, ya que 'SimpleDateFormat' no es 'thread-safe'.
+    private static final ThreadLocal<DateFormat> TIMESTAMP_FORMAT = new ThreadLocal<DateFormat>() {
+        @Override
+        protected DateFormat initialValue() {
+            return new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSZ");
+        }
+    };
+
+    private final long[] time;
+    private final double[] latitude;
+    private final double[] longitude;
+    private final double[] speed;
+    private final int[] accuracy;
+    // No se envía en cada tramo, sino en la lista 'rrSection' del 'Data Section'.
+    private final int[] rrTime;
+
+    private RoadSections(Builder builder) {
+        int size = builder.size;
+        this.time = Arrays.copyOf(builder.time, size);
+        this.latitude = Arrays.copyOf(builder.latitude, size);
+        this.longitude = Arrays.copyOf(builder.longitude, size);
+        this.speed = Arrays.copyOf(builder.speed, size);
+        this.accuracy = Arrays.copyOf(builder.accuracy, size);
+        this.rrTime = Arrays.copyOf(builder.rrTime, size);
+    }
+
+    public static String formatTimeStamp(long time) {
+        return TIMESTAMP_FORMAT.get().format(time);
+    }
+
+    public static long parseTimeStamp(String timeStamp) throws ParseException {
+        return TIMESTAMP_FORMAT.get().parse(timeStamp).getTime();
+    }
+
+    public int size() {
+        return time.length;
+    }
+
+    public boolean isEmpty() {
+        return time.length == 0;
+    }
+
+    public long getTime(int index) {
+        return time[index];
+    }
+
+    public String getTimeStamp(int index) {
+        return formatTimeStamp(time[index]);
+    }
+
+    public double getLatitude(int index) {
+        return latitude[index];
+    }
+
+    public double getLongitude(int index) {
+        return longitude[index];
+    }
+
+    public double getSpeed(int index) {
+        return speed[index];
+    }
+
+    public int getAccuracy(int index) {
+        return accuracy[index];
+    }
+
+    public int getRrTime(int index) {
+        return rrTime[index];
+    }
+
+    /**
+     * Intervalos RR de todos los tramos.
+     *
+     * @return Copia de los intervalos RR, en milisegundos.
+     */
+    public int[] getRrTimes() {
+        return Arrays.copyOf(rrTime, rrTime.length);
+    }
+
+    /**
+     * Permite ir añadiendo los tramos de una sección según avanza el
+     * SmartDriver, sin crear un objeto por cada tramo. Se reutiliza para todas
+     * las secciones.
+     */
+    public static final class Builder {
+
+        private long[] time;
+        private double[] latitude;
+        private double[] longitude;
+        private double[] speed;
+        private int[] accuracy;
+        private int[] rrTime;
+        private int size;
+
+        public Builder() {
+            this(64);
+        }
+
+        public Builder(int expectedSize) {
+            int capacity = Math.max(expectedSize, 1);
+            this.time = new long[capacity];
+            this.latitude = new double[capacity];
+            this.longitude = new double[capacity];
+            this.speed = new double[capacity];
+            this.accuracy = new int[capacity];
+            this.rrTime = new int[capacity];
+            this.size = 0;
+        }
+
+        public Builder add(long time, double latitude, double longitude, double speed, int accuracy, int rrTime) {
+            if (size == this.time.length) {
+                grow();
+            }
+            this.time[size] = time;
+            this.latitude[size] = latitude;
+            this.longitude[size] = longitude;
+            this.speed[size] = speed;
+            this.accuracy[size] = accuracy;
+            this.rrTime[size] = rrTime;
+            size++;
+            return this;
+        }
+
+        public int size() {
+            return size;
+        }
+
+        public boolean isEmpty() {
+            return size == 0;
+        }
+
+        /**
+         * Vacía el 'Builder' para empezar una nueva sección, conservando la
+         * memoria reservada.
+         */
+        public void clear() {
+            size = 0;
+        }
+
+        public RoadSections build() {
+            return new RoadSections(this);
+        }
+
+        private void grow() {
+            int capacity = time.length * 2;
+            time = Arrays.copyOf(time, capacity);
+            latitude = Arrays.copyOf(latitude, capacity);
+            longitude = Arrays.copyOf(longitude, capacity);
+            speed = Arrays.copyOf(speed, capacity);
+            accuracy = Arrays.copyOf(accuracy, capacity);
+            rrTime = Arrays.copyOf(rrTime, capacity);
+        }
+    }
+}
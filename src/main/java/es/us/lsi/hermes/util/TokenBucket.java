@@ -0,0 +1,77 @@
+package es.us.lsi.hermes.util;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limitador de ritmo por 'token bucket': se van acumulando 'tokens' a un ritmo
+ * fijo, hasta un máximo, y cada operación consume uno. Permite pequeñas
+ * ráfagas sin superar el ritmo medio indicado.
+ */
+public final class TokenBucket {
+
+    private final double tokensPerNano;
+    private final double capacity;
+
+    private double tokens;
+    private long lastRefill;
+
+    /**
+     * Constructor del limitador.
+     *
+     * @param ratePerSecond Número medio de operaciones por segundo permitidas.
+     * @param capacity Número máximo de 'tokens' acumulados, es decir, tamaño
+     * máximo de una ráfaga.
+     */
+    public TokenBucket(double ratePerSecond, int capacity) {
+        if (ratePerSecond <= 0.0d) {
+            throw new IllegalArgumentException("El ritmo debe ser mayor que 0");
+        }
+        this.tokensPerNano = ratePerSecond / TimeUnit.SECONDS.toNanos(1);
+        this.capacity = Math.max(capacity, 1);
+        this.tokens = this.capacity;
+        this.lastRefill = System.nanoTime();
+    }
+
+    /**
+     * Consume un 'token' si hay alguno disponible.
+     *
+     * @return 'true' si se ha consumido el 'token'.
+     */
+    public synchronized boolean tryAcquire() {
+        refill();
+        if (tokens >= 1.0d) {
+            tokens -= 1.0d;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Consume un 'token', esperando lo necesario hasta que haya alguno
+     * disponible.
+     *
+     * @throws InterruptedException Si se interrumpe el hilo mientras espera.
+     */
+    public void acquire() throws InterruptedException {
+        long waitNanos;
+        while ((waitNanos = reserve()) > 0) {
+            TimeUnit.NANOSECONDS.sleep(waitNanos);
+        }
+    }
+
+    // Consume un 'token' si hay alguno disponible y devuelve 0, o devuelve los nanosegundos hasta que lo haya.
+    private synchronized long reserve() {
+        refill();
+        if (tokens >= 1.0d) {
+            tokens -= 1.0d;
+            return 0;
+        }
+        return Math.max(1L, (long) Math.ceil((1.0d - tokens) / tokensPerNano));
+    }
+
+    private void refill() {
+        long now = System.nanoTime();
+        tokens = Math.min(capacity, tokens + (now - lastRefill) * tokensPerNano);
+        lastRefill = now;
+    }
+}